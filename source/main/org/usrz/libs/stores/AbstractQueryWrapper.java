@@ -0,0 +1,175 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores;
+
+import static org.usrz.libs.utils.Check.notNull;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.usrz.libs.stores.geo.Point;
+import org.usrz.libs.stores.geo.Polygon;
+
+/**
+ * A <em>Wrapper</em> around another {@link Query}.
+ * <p>
+ * All the methods building the {@link Query} are delegated to the wrapped
+ * instance, but return <em>this</em> wrapper, so that subclasses can simply
+ * override {@link #documents()} and {@link #ids()}.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ * @param <D> The type of {@link Document}s queried by this.
+ */
+public abstract class AbstractQueryWrapper<D extends Document> implements Query<D> {
+
+    /** The original {@link Query} wrapped by this instance. */
+    protected final Query<D> query;
+
+    /**
+     * Create a new instance wrapping the specified {@link Query}.
+     */
+    protected AbstractQueryWrapper(Query<D> query) {
+        this.query = notNull(query, "Null query");
+    }
+
+    @Override
+    public Query.Operator<D> and(String field) {
+        return new Operator(query.and(field));
+    }
+
+    @Override
+    public Query.Operator<D> and(Field field) {
+        return new Operator(query.and(field));
+    }
+
+    @Override
+    public Query<D> orderBy(String field, boolean ascending) {
+        query.orderBy(field, ascending);
+        return this;
+    }
+
+    @Override
+    public Query<D> hint(String index) {
+        query.hint(index);
+        return this;
+    }
+
+    @Override
+    public Query<D> text(String search) {
+        query.text(search);
+        return this;
+    }
+
+    @Override
+    public Cursor<D> documents() {
+        return query.documents();
+    }
+
+    @Override
+    public Cursor<Map.Entry<D, Double>> scored() {
+        return query.scored();
+    }
+
+    @Override
+    public Cursor<String> ids() {
+        return query.ids();
+    }
+
+    /* ====================================================================== */
+
+    private class Operator implements Query.Operator<D> {
+
+        private final Query.Operator<D> operator;
+
+        private Operator(Query.Operator<D> operator) {
+            this.operator = notNull(operator, "Null operator");
+        }
+
+        @Override
+        public Query<D> is(Object value) {
+            operator.is(value);
+            return AbstractQueryWrapper.this;
+        }
+
+        @Override
+        public Query<D> isNot(Object value) {
+            operator.isNot(value);
+            return AbstractQueryWrapper.this;
+        }
+
+        @Override
+        public Query<D> gt(Object value) {
+            operator.gt(value);
+            return AbstractQueryWrapper.this;
+        }
+
+        @Override
+        public Query<D> gte(Object value) {
+            operator.gte(value);
+            return AbstractQueryWrapper.this;
+        }
+
+        @Override
+        public Query<D> lt(Object value) {
+            operator.lt(value);
+            return AbstractQueryWrapper.this;
+        }
+
+        @Override
+        public Query<D> lte(Object value) {
+            operator.lte(value);
+            return AbstractQueryWrapper.this;
+        }
+
+        @Override
+        public Query<D> in(Collection<?> collection) {
+            operator.in(collection);
+            return AbstractQueryWrapper.this;
+        }
+
+        @Override
+        public Query<D> notIn(Collection<?> collection) {
+            operator.notIn(collection);
+            return AbstractQueryWrapper.this;
+        }
+
+        @Override
+        public Query<D> mod(int divisor, int reminder) {
+            operator.mod(divisor, reminder);
+            return AbstractQueryWrapper.this;
+        }
+
+        @Override
+        public Query<D> matches(Pattern pattern) {
+            operator.matches(pattern);
+            return AbstractQueryWrapper.this;
+        }
+
+        @Override
+        public Query<D> near(Point point, double maxMeters) {
+            operator.near(point, maxMeters);
+            return AbstractQueryWrapper.this;
+        }
+
+        @Override
+        public Query<D> within(Polygon polygon) {
+            operator.within(polygon);
+            return AbstractQueryWrapper.this;
+        }
+
+    }
+}
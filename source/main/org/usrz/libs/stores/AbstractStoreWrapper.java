@@ -18,6 +18,10 @@ package org.usrz.libs.stores;
 import static org.usrz.libs.utils.Check.notNull;
 
 import java.lang.reflect.Type;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
 
 /**
  * A <em>Wrapper</em> around another {@link Store}.
@@ -57,11 +61,36 @@ public class AbstractStoreWrapper<D extends Document> implements Store<D> {
         return store.find(id);
     }
 
+    @Override
+    public Map<String, D> findAll(Collection<String> ids) {
+        return store.findAll(ids);
+    }
+
+    @Override
+    public Date lastModifiedAt(String id) {
+        return store.lastModifiedAt(id);
+    }
+
+    @Override
+    public Map<String, Date> lastModifiedAt(Collection<String> ids) {
+        return store.lastModifiedAt(ids);
+    }
+
     @Override
     public D store(D object) {
         return store.store(object);
     }
 
+    @Override
+    public List<D> storeAll(Collection<D> objects) {
+        return store.storeAll(objects);
+    }
+
+    @Override
+    public List<D> storeAllAsModified(Collection<D> objects) {
+        return store.storeAllAsModified(objects);
+    }
+
     @Override
     public boolean delete(String id) {
         return store.delete(id);
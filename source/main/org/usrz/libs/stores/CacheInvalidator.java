@@ -0,0 +1,61 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores;
+
+import java.util.Date;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * A {@link CacheInvalidator} notifies {@link CachingStore}s of
+ * {@link Document}s modified (or deleted) by other nodes sharing the same
+ * underlying database.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public interface CacheInvalidator {
+
+    /**
+     * Register a {@link Consumer} to be notified with the <em>id</em> of any
+     * {@link Document} modified in the specified <em>collection</em>.
+     * <p>
+     * When changes might have been lost (for example after a connection
+     * failure) the {@link Consumer} will be notified with a <b>null</b>
+     * <em>id</em>, meaning that <em>all</em> documents should be considered
+     * stale.
+     */
+    public void subscribe(String collection, Consumer<String> listener);
+
+    /**
+     * Register a {@link BiConsumer} to be notified with the <em>id</em> of
+     * any {@link Document} modified in the specified <em>collection</em>,
+     * and (when known) its new {@linkplain Document#lastModifiedAt() last
+     * modification date}.
+     * <p>
+     * Listeners can use the date to recognize changes they already know
+     * about, for example their own writes echoed back by the database.
+     */
+    public default void subscribe(String collection, BiConsumer<String, Date> listener) {
+        this.subscribe(collection, (id) -> listener.accept(id, null));
+    }
+
+    /**
+     * Announce to other nodes that the {@link Document} with the specified
+     * <em>id</em> was modified (or deleted) in the given <em>collection</em>.
+     */
+    public void publish(String collection, String id);
+
+}
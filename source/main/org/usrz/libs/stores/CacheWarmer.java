@@ -0,0 +1,238 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static org.usrz.libs.utils.Check.notNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.usrz.libs.logging.Log;
+
+/**
+ * A {@link CacheWarmer} pre-loads {@link Document}s in a {@link Store}
+ * (normally a {@link CachingStore}) in parallel batches, using its
+ * {@link Store#findAll(Collection) multi-get} path.
+ * <p>
+ * {@link CachingStore}s are warmed without recording the loaded
+ * <em>id</em>s as {@linkplain CachingStore#getHotIds(int) requested}.
+ * <p>
+ * Progress is exposed through the {@link CacheWarmerMXBean} management
+ * interface, registered in the platform MBean server until this instance is
+ * {@linkplain #close() closed}.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ * @param <D> The type of {@link Document}s to warm.
+ */
+public class CacheWarmer<D extends Document> implements CacheWarmerMXBean, Closeable {
+
+    /** The default number of {@link Document}s loaded in each batch. */
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    /** The default number of batches loaded in parallel. */
+    public static final int DEFAULT_THREADS = 4;
+
+    private static final Log log = new Log();
+
+    private final AtomicLong requested = new AtomicLong();
+    private final AtomicLong loaded = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final Store<D> store;
+    private final int batchSize;
+    private final int threads;
+    private ObjectName registration;
+
+    private volatile long started = 0;
+    private volatile long finished = 0;
+
+    public CacheWarmer(Store<D> store) {
+        this(store, DEFAULT_BATCH_SIZE, DEFAULT_THREADS);
+    }
+
+    public CacheWarmer(Store<D> store, int batchSize, int threads) {
+        if (batchSize < 1) throw new IllegalArgumentException("Invalid batch size " + batchSize);
+        if (threads < 1) throw new IllegalArgumentException("Invalid number of threads " + threads);
+        this.store = notNull(store, "Null store");
+        this.batchSize = batchSize;
+        this.threads = threads;
+
+        try {
+            final ObjectName name = new ObjectName("org.usrz.libs.stores:type=CacheWarmer,collection=" + ObjectName.quote(store.getCollection()));
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+            server.registerMBean(this, name);
+            registration = name;
+        } catch (JMException exception) {
+            log.warn(exception, "Unable to register management bean for \"%s\"", store.getCollection());
+        }
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Load all {@link Document}s matching the specified {@link Query}.
+     */
+    public void warm(Query<D> query) {
+        try (Cursor<String> cursor = query.ids()) {
+            warm(cursor);
+        }
+    }
+
+    /**
+     * Load all {@link Document}s whose <em>ids</em> are listed (one per line)
+     * in the specified snapshot file, if it exists.
+     */
+    public void warm(Path snapshot) {
+        if (!Files.isRegularFile(snapshot)) {
+            log.info("No snapshot %s to warm \"%s\" from", snapshot, store.getCollection());
+            return;
+        }
+
+        final List<String> ids;
+        try {
+            ids = Files.readAllLines(snapshot, UTF_8);
+        } catch (IOException exception) {
+            log.warn(exception, "Unable to read snapshot %s", snapshot);
+            return;
+        }
+        ids.removeIf(String::isEmpty);
+        warm(ids.iterator());
+    }
+
+    /**
+     * Load all {@link Document}s with the specified <em>ids</em>.
+     */
+    public void warm(Collection<String> ids) {
+        warm(ids.iterator());
+    }
+
+    private void warm(Iterator<String> ids) {
+        started = System.currentTimeMillis();
+        finished = 0;
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final List<Future<?>> futures = new ArrayList<>();
+        try {
+            while (ids.hasNext()) {
+                final List<String> batch = new ArrayList<>(batchSize);
+                while (ids.hasNext() && (batch.size() < batchSize)) batch.add(ids.next());
+                requested.addAndGet(batch.size());
+                futures.add(executor.submit(() -> {
+                    loaded.addAndGet(findAll(batch).size());
+                    batches.incrementAndGet();
+                }));
+            }
+
+            for (Future<?> future: futures) future.get();
+        } catch (ExecutionException exception) {
+            log.warn(exception.getCause(), "Exception warming \"%s\"", store.getCollection());
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted warming \"%s\"", store.getCollection());
+        } finally {
+            executor.shutdownNow();
+            finished = System.currentTimeMillis();
+        }
+
+        log.info("Warmed %d of %d documents in \"%s\" in %d ms", loaded.get(), requested.get(), store.getCollection(), getDurationMillis());
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, D> findAll(List<String> ids) {
+        if (store instanceof CachingStore) return ((CachingStore<D>) store).warmAll(ids);
+        return store.findAll(ids);
+    }
+
+    /**
+     * Unregister this instance from the platform MBean server.
+     */
+    @Override
+    public synchronized void close() {
+        if (registration == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registration);
+        } catch (JMException exception) {
+            log.warn(exception, "Unable to unregister management bean for \"%s\"", store.getCollection());
+        } finally {
+            registration = null;
+        }
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Atomically write the specified <em>ids</em> to a snapshot file, one per
+     * line, for later {@linkplain #warm(Path) warming}.
+     */
+    public static void snapshot(Path snapshot, Collection<String> ids)
+    throws IOException {
+        final Path temporary = snapshot.resolveSibling(snapshot.getFileName() + ".tmp");
+        Files.write(temporary, ids, UTF_8);
+        Files.move(temporary, snapshot, ATOMIC_MOVE, REPLACE_EXISTING);
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    public String getCollection() {
+        return store.getCollection();
+    }
+
+    @Override
+    public long getRequested() {
+        return requested.get();
+    }
+
+    @Override
+    public long getLoaded() {
+        return loaded.get();
+    }
+
+    @Override
+    public long getBatches() {
+        return batches.get();
+    }
+
+    @Override
+    public long getDurationMillis() {
+        if (started == 0) return 0;
+        return (finished == 0 ? System.currentTimeMillis() : finished) - started;
+    }
+
+    @Override
+    public boolean isComplete() {
+        return finished != 0;
+    }
+}
@@ -0,0 +1,43 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores;
+
+/**
+ * The management interface exposing the progress of a {@link CacheWarmer}.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public interface CacheWarmerMXBean {
+
+    /** The name of the collection being warmed. */
+    public String getCollection();
+
+    /** The number of {@link Document} ids requested so far. */
+    public long getRequested();
+
+    /** The number of {@link Document}s actually loaded so far. */
+    public long getLoaded();
+
+    /** The number of batches completed so far. */
+    public long getBatches();
+
+    /** The number of milliseconds spent warming (so far, if running). */
+    public long getDurationMillis();
+
+    /** Whether warming has completed. */
+    public boolean isComplete();
+
+}
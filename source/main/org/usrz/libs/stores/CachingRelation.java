@@ -0,0 +1,317 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores;
+
+import static org.usrz.libs.utils.Check.notNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BinaryOperator;
+
+import org.usrz.libs.logging.Log;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * A {@link Relation} caching in memory the <em>adjacency</em> of each
+ * {@link Document}: the {@linkplain Document#id() id}s of all the
+ * {@link Document}s it is associated with, encoded as dense integers and
+ * kept in a compressed bitmap.
+ * <p>
+ * Bitmaps make {@linkplain #intersectR(Collection) intersections},
+ * {@linkplain #unionR(Collection) unions} and
+ * {@linkplain #differenceR(Document, Collection) differences} of
+ * adjacencies cheap, even for hundreds of thousands of ids. The dictionary
+ * of ids is never shrunk, and grows with the number of distinct ids seen.
+ * <p>
+ * Adjacencies are loaded lazily and evicted whenever an association
+ * involving their {@link Document} is changed, either locally or (when a
+ * {@link CacheInvalidator} is configured) by another node. Relation
+ * changes are identified by their <em>edge id</em> (the <em>left</em> and
+ * <em>right</em> ids separated by a NUL): any other change invalidates all cached adjacencies.
+ * <p>
+ * Every invalidation bumps a <em>generation</em> (striped by id), and
+ * adjacencies loaded while their generation changed are returned to the
+ * caller but never kept in the cache.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ * @param <L> The type of data stored in the left part of this relation.
+ * @param <R> The type of data stored in the right part of this relation.
+ */
+public class CachingRelation<L extends Document, R extends Document>
+extends AbstractRelation<L, R> {
+
+    /* The number of generation stripes, a power of two */
+    private static final int STRIPES = 256;
+    private static final Log log = new Log();
+
+    private final Relation<L, R> relation;
+    private final Store<L> storeL;
+    private final Store<R> storeR;
+    private final IdDictionary dictionary = new IdDictionary();
+    private final Adjacencies byL;
+    private final Adjacencies byR;
+    private final CacheInvalidator invalidator;
+    private final String collection;
+
+    public CachingRelation(Relation<L, R> relation, Store<L> storeL, Store<R> storeR, CacheBuilder<Object, Object> builder) {
+        this(relation, storeL, storeR, builder, null, null);
+    }
+
+    public CachingRelation(Relation<L, R> relation, Store<L> storeL, Store<R> storeR, CacheBuilder<Object, Object> builder, String collection, CacheInvalidator invalidator) {
+        this.relation = notNull(relation, "Null relation");
+        this.storeL = notNull(storeL, "Null left store");
+        this.storeR = notNull(storeR, "Null right store");
+        notNull(builder, "Null cache builder");
+        this.byL = new Adjacencies(builder.build());
+        this.byR = new Adjacencies(builder.build());
+        this.collection = collection;
+        this.invalidator = invalidator;
+        if (invalidator != null) invalidator.subscribe(notNull(collection, "Null collection"), this::invalidate);
+    }
+
+    /**
+     * Evict the adjacencies affected by the change of the edge with the
+     * specified <em>id</em>, or evict <em>all</em> of them if <b>null</b>
+     * or not an <em>edge id</em>.
+     * <p>
+     * An edge id with an empty <em>right</em> id evicts the adjacency of its
+     * <em>left</em> id, and all <em>right</em> adjacencies.
+     */
+    public void invalidate(String id) {
+        final int separator = id == null ? -1 : id.indexOf(EdgeIds.SEPARATOR);
+        if (separator < 0) {
+            log.debug("Invalidating all cached adjacencies");
+            byL.invalidateAll();
+            byR.invalidateAll();
+        } else if (separator == id.length() - 1) {
+            byL.invalidate(id.substring(0, separator));
+            byR.invalidateAll();
+        } else {
+            byL.invalidate(id.substring(0, separator));
+            byR.invalidate(id.substring(separator + 1));
+        }
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    public void associate(L left, R right) {
+        relation.associate(left, right);
+        changed(left.id(), right.id());
+    }
+
+    @Override
+    public void dissociate(L left, R right) {
+        relation.dissociate(left, right);
+        changed(left.id(), right.id());
+    }
+
+    @Override
+    public void associateAll(L left, Collection<R> rights) {
+        relation.associateAll(left, rights);
+        if (!rights.isEmpty()) changedAll(left.id(), rights);
+    }
+
+    @Override
+    public void dissociateAll(L left, Collection<R> rights) {
+        relation.dissociateAll(left, rights);
+        if (!rights.isEmpty()) changedAll(left.id(), rights);
+    }
+
+    @Override
+    public void replaceAll(L left, Collection<R> rights) {
+        relation.replaceAll(left, rights);
+        changedAll(left.id(), null);
+    }
+
+    @Override
+    public boolean isAssociated(L left, R right) {
+        /* Use whatever adjacency we have, or load the left one */
+        final CompressedBitmap rights = byL.getIfPresent(left.id());
+        if (rights != null) return rights.contains(dictionary.code(right.id()));
+        final CompressedBitmap lefts = byR.getIfPresent(right.id());
+        if (lefts != null) return lefts.contains(dictionary.code(left.id()));
+        return rightsOf(left).contains(dictionary.code(right.id()));
+    }
+
+    @Override
+    public Cursor<L> findL(R right) {
+        return new ResolvingCursor<L>(findLIds(right), storeL::findAll);
+    }
+
+    @Override
+    public Cursor<R> findR(L left) {
+        return new ResolvingCursor<R>(findRIds(left), storeR::findAll);
+    }
+
+    @Override
+    public long countL(R right) {
+        return leftsOf(right).cardinality();
+    }
+
+    @Override
+    public long countR(L left) {
+        return rightsOf(left).cardinality();
+    }
+
+    @Override
+    public Cursor<String> findLIds(R right) {
+        return ids(leftsOf(right));
+    }
+
+    @Override
+    public Cursor<String> findRIds(L left) {
+        return ids(rightsOf(left));
+    }
+
+    @Override
+    public Cursor<R> intersectR(Collection<L> lefts) {
+        return resolve(combine(lefts, CompressedBitmap::and));
+    }
+
+    @Override
+    public Cursor<R> unionR(Collection<L> lefts) {
+        return resolve(combine(lefts, CompressedBitmap::or));
+    }
+
+    @Override
+    public Cursor<R> differenceR(L left, Collection<L> excluded) {
+        return resolve(rightsOf(left).andNot(combine(excluded, CompressedBitmap::or)));
+    }
+
+    @Override
+    public Map<String, Integer> traverse(L start, int depth, int maxResults) {
+        return relation.traverse(start, depth, maxResults);
+    }
+
+    /* ====================================================================== */
+
+    private void changed(String left, String right) {
+        byL.invalidate(left);
+        byR.invalidate(right);
+        if (invalidator != null) invalidator.publish(collection, EdgeIds.edgeId(left, right));
+    }
+
+    /* Bulk changes publish once per left id, rights are null when unknown */
+    private void changedAll(String left, Collection<R> rights) {
+        byL.invalidate(left);
+        if (rights == null) byR.invalidateAll();
+        else for (R right: rights) byR.invalidate(right.id());
+        if (invalidator != null) invalidator.publish(collection, EdgeIds.edgeId(left, ""));
+    }
+
+    private CompressedBitmap leftsOf(R right) {
+        return adjacency(byR, right.id(), () -> relation.findLIds(right));
+    }
+
+    private CompressedBitmap rightsOf(L left) {
+        return adjacency(byL, left.id(), () -> relation.findRIds(left));
+    }
+
+    private CompressedBitmap combine(Collection<L> lefts, BinaryOperator<CompressedBitmap> operator) {
+        final Iterator<L> iterator = lefts.iterator();
+        if (!iterator.hasNext()) return CompressedBitmap.EMPTY;
+
+        CompressedBitmap bitmap = rightsOf(iterator.next());
+        while (iterator.hasNext()) bitmap = operator.apply(bitmap, rightsOf(iterator.next()));
+        return bitmap;
+    }
+
+    private Cursor<R> resolve(CompressedBitmap rights) {
+        return new ResolvingCursor<R>(ids(rights), storeR::findAll);
+    }
+
+    private Cursor<String> ids(CompressedBitmap bitmap) {
+        return Cursor.of(bitmap.iterator()).map(dictionary::decode);
+    }
+
+    private CompressedBitmap adjacency(Adjacencies adjacencies, String id, Callable<Cursor<String>> loader) {
+        Throwable cause;
+        try {
+            final Adjacency adjacency = adjacencies.cache.get(id, () -> {
+                /* Read the generation before hitting the relation */
+                final long generation = adjacencies.generation(id);
+                final List<String> ids = loader.call().drainTo(new ArrayList<>());
+                final int[] codes = new int[ids.size()];
+                for (int x = 0; x < codes.length; x ++) codes[x] = dictionary.encode(ids.get(x));
+                return new Adjacency(CompressedBitmap.of(codes), generation);
+            });
+
+            /* Invalidated while loading? Answer this caller, but don't keep it */
+            if (adjacency.generation != adjacencies.generation(id))
+                adjacencies.cache.asMap().remove(id, adjacency);
+            return adjacency.bitmap;
+
+        } catch (ExecutionException | UncheckedExecutionException exception) {
+            cause = exception.getCause();
+            if (cause == null) cause = exception;
+        }
+
+        if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+        throw new UncheckedExecutionException(cause.getClass().getSimpleName() + " caught loading adjacency of \"" + id + "\"", cause);
+    }
+
+    /* ====================================================================== */
+
+    /* A cached adjacency, and the generation it was loaded at */
+    private static final class Adjacency {
+        private final CompressedBitmap bitmap;
+        private final long generation;
+
+        private Adjacency(CompressedBitmap bitmap, long generation) {
+            this.bitmap = bitmap;
+            this.generation = generation;
+        }
+    }
+
+    /* A cache of adjacencies, bumping generations on invalidation */
+    private static final class Adjacencies {
+        private final AtomicLongArray generations = new AtomicLongArray(STRIPES);
+        private final Cache<String, Adjacency> cache;
+
+        private Adjacencies(Cache<String, Adjacency> cache) {
+            this.cache = cache;
+        }
+
+        private long generation(String id) {
+            return generations.get(id.hashCode() & (STRIPES - 1));
+        }
+
+        private CompressedBitmap getIfPresent(String id) {
+            final Adjacency adjacency = cache.getIfPresent(id);
+            return adjacency == null ? null : adjacency.bitmap;
+        }
+
+        private void invalidate(String id) {
+            generations.incrementAndGet(id.hashCode() & (STRIPES - 1));
+            cache.invalidate(id);
+        }
+
+        private void invalidateAll() {
+            for (int x = 0; x < STRIPES; x ++) generations.incrementAndGet(x);
+            cache.invalidateAll();
+        }
+    }
+}
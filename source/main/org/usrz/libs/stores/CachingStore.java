@@ -15,36 +15,237 @@
  * ========================================================================== */
 package org.usrz.libs.stores;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 import org.usrz.libs.logging.Log;
 
 import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
 import com.google.common.cache.CacheLoader.InvalidCacheLoadException;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.common.util.concurrent.UncheckedExecutionException;
 
 /**
  * A {@link Store} capable of <em>caching</em> documents in the wrapped
  * {@link Cache}.
+ * <p>
+ * When constructed from a {@link CacheBuilder} configured to
+ * {@linkplain CacheBuilder#refreshAfterWrite(long, java.util.concurrent.TimeUnit)
+ * refresh after write}, documents due for refresh will be <em>revalidated</em>
+ * asynchronously: the cached instance will be kept (and returned while the
+ * check is in progress) if its {@linkplain Document#lastModifiedAt() last
+ * modified date} still matches the one in the wrapped {@link Store}, and will
+ * only be fetched again if it changed (or evicted, if it was deleted).
+ * Revalidations run on a small shared pool: when this is saturated, cached
+ * documents are kept as they are until their next refresh.
+ * <p>
+ * {@link Document}s returned by {@linkplain #query() queries} will also be
+ * cached. When configured to <em>resolve queries</em>, queries will only
+ * fetch the {@linkplain Query#ids() ids} of matching documents, resolving
+ * them from the {@link Cache} and fetching all missing ones in
+ * {@linkplain #findAll(Collection) batches}.
+ * <p>
+ * When a <em>negative</em> {@link Cache} is specified, the <em>id</em>s of
+ * documents not found in the wrapped {@link Store} will also be remembered,
+ * and subsequent lookups for the same <em>id</em>s will not hit the wrapped
+ * {@link Store} until they either expire or are {@linkplain #store(Document)
+ * stored}.
+ * <p>
+ * When a {@link CacheInvalidator} is specified, cached documents will also
+ * be evicted whenever they are modified or deleted by other nodes.
  *
  * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
  * @param <D> The type of {@link Document}s stored by this {@link Store}.
  */
-public class CachingStore<D extends Document> extends AbstractStoreWrapper<D> {
+public class CachingStore<D extends Document> extends AbstractStoreWrapper<D>
+implements Closeable {
 
     private static final Log log = new Log();
+    private static final int REVALIDATOR_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private static final int REVALIDATOR_QUEUE = 1024;
+    private static final ExecutorService revalidator = revalidator();
+
     private final Cache<String, D> cache;
+    private final Cache<String, Boolean> missing;
+    private final CacheInvalidator invalidator;
+    private final boolean resolveQueries;
+    private final HotKeys hotKeys = new HotKeys();
+    private final Statistics statistics = new Statistics();
+    private final List<Closeable> closeables = new ArrayList<>();
+    private ObjectName registration;
 
     public CachingStore(Store<D> store, Cache<String, D> cache) {
+        this(store, cache, null, null, false);
+    }
+
+    public CachingStore(Store<D> store, CacheBuilder<Object, Object> builder, Cache<String, Boolean> missing, CacheInvalidator invalidator, boolean resolveQueries) {
+        super(store);
+        this.cache = Objects.requireNonNull(builder, "Null cache builder").build(new Revalidator());
+        this.missing = missing;
+        this.invalidator = invalidator;
+        this.resolveQueries = resolveQueries;
+        if (invalidator != null) invalidator.subscribe(getCollection(), this::changed);
+    }
+
+    public CachingStore(Store<D> store, Cache<String, D> cache, Cache<String, Boolean> missing, CacheInvalidator invalidator, boolean resolveQueries) {
         super(store);
         this.cache = Objects.requireNonNull(cache, "Null cache");
+        this.missing = missing;
+        this.invalidator = invalidator;
+        this.resolveQueries = resolveQueries;
+        if (invalidator != null) invalidator.subscribe(getCollection(), this::changed);
+    }
+
+    /**
+     * Return the {@link Cache} used by this instance.
+     */
+    public Cache<String, D> getCache() {
+        return cache;
+    }
+
+    /**
+     * Return the statistics of this instance, also available from the
+     * platform MBean server once {@linkplain #register() registered}.
+     * <p>
+     * Hit, miss, load and eviction counts are only available when the
+     * {@link Cache} was built {@linkplain CacheBuilder#recordStats()
+     * recording statistics}.
+     */
+    public CachingStoreMXBean getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Return up to the specified number of the most requested <em>id</em>s
+     * (as sampled by {@link HotKeys}) still in the {@link Cache}, most
+     * requested first.
+     */
+    public List<String> getHotIds(int count) {
+        final List<String> ids = new ArrayList<>();
+        for (String id: hotKeys.top(Integer.MAX_VALUE).keySet()) {
+            if (ids.size() >= count) break;
+            if (cache.asMap().containsKey(id)) ids.add(id);
+        }
+        return ids;
+    }
+
+    /**
+     * Return the <em>id</em>s of all {@link Document}s in the {@link Cache},
+     * the most requested ones (as {@linkplain #getHotIds(int) above}) first.
+     */
+    public List<String> getCachedIds() {
+        final Set<String> ids = new LinkedHashSet<>(getHotIds(Integer.MAX_VALUE));
+        ids.addAll(cache.asMap().keySet());
+        return new ArrayList<>(ids);
+    }
+
+    /**
+     * Register the {@linkplain #getStatistics() statistics} of this instance
+     * in the platform MBean server, until this instance is {@linkplain
+     * #close() closed}.
+     * <p>
+     * Statistics are registered by collection name: if another instance
+     * already registered them for the same collection, this call is ignored.
+     */
+    public synchronized void register() {
+        if (registration != null) return;
+        try {
+            final ObjectName name = new ObjectName("org.usrz.libs.stores:type=CachingStore,collection=" + ObjectName.quote(getCollection()));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(statistics, name);
+            registration = name;
+        } catch (InstanceAlreadyExistsException exception) {
+            log.warn("Management bean for \"%s\" already registered by another instance", getCollection());
+        } catch (JMException exception) {
+            log.warn(exception, "Unable to register management bean for \"%s\"", getCollection());
+        }
+    }
+
+    /**
+     * Close the specified {@link Closeable} (e.g. a {@link CacheWarmer}) when
+     * this instance is {@linkplain #close() closed}.
+     */
+    public synchronized void closeWith(Closeable closeable) {
+        closeables.add(Objects.requireNonNull(closeable, "Null closeable"));
+    }
+
+    /**
+     * Unregister the {@linkplain #getStatistics() statistics} of this
+     * instance from the platform MBean server, if {@linkplain #register()
+     * registered}, and close everything it should {@linkplain
+     * #closeWith(Closeable) close with}.
+     */
+    @Override
+    public synchronized void close() {
+        for (Closeable closeable: closeables) try {
+            closeable.close();
+        } catch (IOException | RuntimeException exception) {
+            log.warn(exception, "Exception closing %s for \"%s\"", closeable, getCollection());
+        }
+        closeables.clear();
+
+        if (registration == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registration);
+        } catch (JMException exception) {
+            log.warn(exception, "Unable to unregister management bean for \"%s\"", getCollection());
+        } finally {
+            registration = null;
+        }
+    }
+
+    /**
+     * Evict the {@link Document} with the specified <em>id</em> from the
+     * {@link Cache}, or evict <em>all</em> documents if <b>null</b>.
+     */
+    public void invalidate(String id) {
+        if (id == null) {
+            log.debug("Invalidating all cached documents in \"%s\"", getCollection());
+            if (missing != null) missing.invalidateAll();
+            cache.invalidateAll();
+        } else {
+            log.debug("Invalidating cached document %s", id);
+            if (missing != null) missing.invalidate(id);
+            cache.invalidate(id);
+        }
+        invalidateOffHeap(id);
     }
 
     @Override
     public D find(String id) {
+        hotKeys.record(id);
+        if ((missing != null) && (missing.getIfPresent(id) != null)) return null;
+
         Throwable cause;
         try {
+            if (cache instanceof LoadingCache) return ((LoadingCache<String, D>) cache).get(id);
             return cache.get(id, () -> {
                 final D document = super.find(id);
                 if (document != null) log.debug("Caching document %s on find", document.id());
@@ -54,6 +255,10 @@ public class CachingStore<D extends Document> extends AbstractStoreWrapper<D> {
             cause = exception.getCause();
             if (cause == null) cause = exception;
         } catch (InvalidCacheLoadException exception) {
+            if (missing != null) {
+                log.debug("Caching missing document %s on find", id);
+                missed(id);
+            }
             return null;
         }
 
@@ -61,20 +266,299 @@ public class CachingStore<D extends Document> extends AbstractStoreWrapper<D> {
         throw new UncheckedExecutionException(cause.getClass().getSimpleName() + " caught fetching document \"" + id + "\"", cause);
     }
 
+    @Override
+    public Map<String, D> findAll(Collection<String> ids) {
+        ids.forEach(hotKeys::record);
+        return fetchAll(ids);
+    }
+
+    /**
+     * Find all the {@link Document}s associated with the specified
+     * <em>id</em>s like {@link #findAll(Collection)} does, without recording
+     * them as requested: this is used by {@link CacheWarmer}s.
+     */
+    public Map<String, D> warmAll(Collection<String> ids) {
+        return fetchAll(ids);
+    }
+
+    private Map<String, D> fetchAll(Collection<String> ids) {
+        final Map<String, D> found = new HashMap<>(cache.getAllPresent(ids));
+
+        /* Figure out what we need to fetch (skipping known misses) */
+        final List<String> fetch = new ArrayList<>();
+        for (String id: ids) {
+            if (found.containsKey(id)) continue;
+            if ((missing != null) && (missing.getIfPresent(id) != null)) continue;
+            fetch.add(id);
+        }
+
+        /* Fetch everything we don't have in one go */
+        if (!fetch.isEmpty()) {
+            log.debug("Fetching %d documents out of %d", fetch.size(), ids.size());
+            super.findAll(fetch).forEach((id, document) -> found.put(id, cache(document)));
+            if (missing != null) for (String id: fetch) {
+                if (!found.containsKey(id)) missed(id);
+            }
+        }
+
+        /* Return in the same order we were asked for */
+        final Map<String, D> documents = new LinkedHashMap<>();
+        for (String id: ids) {
+            final D document = found.get(id);
+            if (document != null) documents.put(id, document);
+        }
+        return documents;
+    }
+
     @Override
     public D store(D object) {
         final D document = super.store(object);
         if (document != null) {
             log.debug("Caching document %s on store", document.id());
             cache.put(document.id(), document);
+            if (missing != null) missing.invalidate(document.id());
+            if (invalidator != null) invalidator.publish(getCollection(), document.id());
         }
         return document;
     }
 
+    @Override
+    public List<D> storeAll(Collection<D> objects) {
+        return stored(super.storeAll(objects));
+    }
+
+    @Override
+    public List<D> storeAllAsModified(Collection<D> objects) {
+        return stored(super.storeAllAsModified(objects));
+    }
+
+    private List<D> stored(List<D> documents) {
+        for (D document: documents) {
+            cache.put(document.id(), document);
+            if (missing != null) missing.invalidate(document.id());
+            if (invalidator != null) invalidator.publish(getCollection(), document.id());
+        }
+        log.debug("Cached %d documents on store", documents.size());
+        return documents;
+    }
+
     @Override
     public boolean delete(String id) {
         cache.invalidate(id);
-        return super.delete(id);
+        final boolean deleted = super.delete(id);
+        if (invalidator != null) invalidator.publish(getCollection(), id);
+        return deleted;
+    }
+
+    @Override
+    public Query<D> query() {
+        return new AbstractQueryWrapper<D>(super.query()) {
+
+            @Override
+            public Cursor<D> documents() {
+                if (resolveQueries) return new ResolvingCursor<D>(query.ids(), CachingStore.this::findAll);
+
+                final Cursor<D> cursor = query.documents();
+                return new Cursor<D>() {
+
+                    @Override
+                    public boolean hasNext() {
+                        return cursor.hasNext();
+                    }
+
+                    @Override
+                    public D next() {
+                        final D document = cursor.next();
+                        return document == null ? null : cache(document);
+                    }
+
+                    @Override
+                    public void close() {
+                        cursor.close();
+                    }
+                };
+            }
+        };
+    }
+
+    /* ====================================================================== */
+
+    /* Ignore changes to documents we already hold, normally our own writes */
+    private void changed(String id, Date lastModifiedAt) {
+        if ((id != null) && (lastModifiedAt != null)) {
+            final D cached = cache.getIfPresent(id);
+            if ((cached != null) && lastModifiedAt.equals(cached.lastModifiedAt())) return;
+        }
+        invalidate(id);
+    }
+
+    /* Stale documents must not be resurrected from a second tier */
+    @SuppressWarnings("unchecked")
+    private void invalidateOffHeap(String id) {
+        if (store instanceof OffHeapStore) ((OffHeapStore<D>) store).invalidate(id);
+    }
+
+    /**
+     * Cache a {@link Document} unless a more recent version is already
+     * cached, returning whichever instance was kept.
+     */
+    private D cache(D document) {
+        final D cached = cache.asMap().merge(document.id(), document, (current, fetched) -> {
+            final Date currentDate = current.lastModifiedAt();
+            final Date fetchedDate = fetched.lastModifiedAt();
+            if ((currentDate == null) || (fetchedDate == null)) return fetched;
+            return fetchedDate.after(currentDate) ? fetched : current;
+        });
+        if (missing != null) missing.invalidate(document.id());
+        return cached;
+    }
+
+    /**
+     * Remember a {@link Document} as missing, unless it was cached (thus
+     * stored) meanwhile: as documents are always cached <em>before</em>
+     * being forgotten as missing, one of the two will notice the other.
+     */
+    private void missed(String id) {
+        missing.put(id, Boolean.TRUE);
+        if (cache.asMap().containsKey(id)) missing.invalidate(id);
+    }
+
+    /* ====================================================================== */
+
+    private static ExecutorService revalidator() {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(REVALIDATOR_THREADS, REVALIDATOR_THREADS,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(REVALIDATOR_QUEUE),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("CachingStore-revalidator-%d").build());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /* ====================================================================== */
+
+    private final class Statistics implements CachingStoreMXBean {
+
+        @Override
+        public String getCollection() {
+            return CachingStore.this.getCollection();
+        }
+
+        @Override
+        public long getSize() {
+            return cache.size();
+        }
+
+        @Override
+        public long getHitCount() {
+            return cache.stats().hitCount();
+        }
+
+        @Override
+        public long getMissCount() {
+            return cache.stats().missCount();
+        }
+
+        @Override
+        public double getHitRate() {
+            return cache.stats().hitRate();
+        }
+
+        @Override
+        public long getLoadCount() {
+            return cache.stats().loadCount();
+        }
+
+        @Override
+        public long getLoadExceptionCount() {
+            return cache.stats().loadExceptionCount();
+        }
+
+        @Override
+        public double getAverageLoadMillis() {
+            return cache.stats().averageLoadPenalty() / 1000000.0;
+        }
+
+        @Override
+        public long getEvictionCount() {
+            return cache.stats().evictionCount();
+        }
+
+        @Override
+        public long getMissingSize() {
+            return missing == null ? 0 : missing.size();
+        }
+
+        @Override
+        public Map<String, Long> getHotKeys() {
+            return hotKeys.top(20);
+        }
+
+        @Override
+        public void resetHotKeys() {
+            hotKeys.reset();
+        }
+
+        @Override
+        public String toString() {
+            return "CachingStore[" + getCollection() + "]: " + cache.stats();
+        }
     }
 
+    /* ====================================================================== */
+
+    private final class Revalidator extends CacheLoader<String, D> {
+
+        @Override
+        public D load(String id) {
+            final D document = store.find(id);
+            if (document != null) log.debug("Caching document %s on find", document.id());
+            return document;
+        }
+
+        @Override
+        public ListenableFuture<D> reload(String id, D cached) {
+            final SettableFuture<D> future = SettableFuture.create();
+            try {
+                revalidator.execute(() -> revalidate(id, cached, future));
+            } catch (RejectedExecutionException exception) {
+                log.debug("Too many revalidations pending, keeping cached document %s", id);
+                return Futures.immediateFuture(cached);
+            }
+            return future;
+        }
+
+        /*
+         * The cache stores the refreshed value from a listener attached as
+         * soon as reload() returns (well before our round trips complete):
+         * deleted documents are evicted by a listener attached after it.
+         */
+        private void revalidate(String id, D cached, SettableFuture<D> future) {
+            final D document;
+            try {
+                /* Unchanged? Keep the instance we already have */
+                final Date lastModifiedAt = store.lastModifiedAt(id);
+                if ((lastModifiedAt != null) && lastModifiedAt.equals(cached.lastModifiedAt())) {
+                    log.debug("Revalidated cached document %s", id);
+                    future.set(cached);
+                    return;
+                }
+
+                /* Changed (or unknown), fetch it again */
+                if (lastModifiedAt != null) invalidateOffHeap(id);
+                document = store.find(id);
+            } catch (Throwable throwable) {
+                /* The cache keeps the document it has on failures */
+                future.setException(throwable);
+                return;
+            }
+
+            if (document != null) {
+                log.debug("Refreshed cached document %s", id);
+                future.set(document);
+            } else {
+                log.debug("Evicting deleted document %s", id);
+                future.addListener(() -> cache.invalidate(id), MoreExecutors.directExecutor());
+                future.set(cached);
+            }
+        }
+    }
 }
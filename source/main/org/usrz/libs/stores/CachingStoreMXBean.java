@@ -0,0 +1,63 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores;
+
+import java.util.Map;
+
+/**
+ * The management interface exposing statistics of a {@link CachingStore}.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public interface CachingStoreMXBean {
+
+    /** The name of the collection being cached. */
+    public String getCollection();
+
+    /** The number of {@link Document}s currently cached. */
+    public long getSize();
+
+    /** The number of lookups which found a cached {@link Document}. */
+    public long getHitCount();
+
+    /** The number of lookups which did not find a cached {@link Document}. */
+    public long getMissCount();
+
+    /** The ratio of lookups which found a cached {@link Document}. */
+    public double getHitRate();
+
+    /** The number of {@link Document}s loaded (or revalidated). */
+    public long getLoadCount();
+
+    /** The number of loads which failed. */
+    public long getLoadExceptionCount();
+
+    /** The average time spent loading a {@link Document}, in milliseconds. */
+    public double getAverageLoadMillis();
+
+    /** The number of {@link Document}s evicted from the cache. */
+    public long getEvictionCount();
+
+    /** The number of ids cached as <em>missing</em>. */
+    public long getMissingSize();
+
+    /** The most requested ids, with their (estimated) number of requests. */
+    public Map<String, Long> getHotKeys();
+
+    /** Forget all recorded requests for {@linkplain #getHotKeys() hot keys}. */
+    public void resetHotKeys();
+
+}
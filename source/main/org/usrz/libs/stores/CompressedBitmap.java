@@ -0,0 +1,433 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * An immutable, compressed set of non-negative {@code int}s, organized
+ * (as in <em>Roaring</em> bitmaps) in containers of 65536 values keyed by
+ * their 16 high bits, each one holding its 16 low bits either as a sorted
+ * array (when sparse) or as a bitmap (when dense).
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+final class CompressedBitmap {
+
+    /** The maximum cardinality of an array container. */
+    private static final int ARRAY_MAX = 4096;
+    /** The number of 64-bits words in a bitmap container. */
+    private static final int WORDS = 1024;
+
+    /** An empty {@link CompressedBitmap}. */
+    static final CompressedBitmap EMPTY = new CompressedBitmap(new char[0], new Container[0], 0);
+
+    private final char[] keys;
+    private final Container[] containers;
+    private final int cardinality;
+
+    private CompressedBitmap(char[] keys, Container[] containers, int size) {
+        this.keys = size == keys.length ? keys : Arrays.copyOf(keys, size);
+        this.containers = size == containers.length ? containers : Arrays.copyOf(containers, size);
+
+        int cardinality = 0;
+        for (Container container: this.containers) cardinality += container.cardinality();
+        this.cardinality = cardinality;
+    }
+
+    /**
+     * Create a new {@link CompressedBitmap} holding the specified values,
+     * which must be non-negative but need not to be sorted or unique.
+     */
+    static CompressedBitmap of(int... values) {
+        final int[] sorted = values.clone();
+        Arrays.sort(sorted);
+        if ((sorted.length > 0) && (sorted[0] < 0))
+            throw new IllegalArgumentException("Negative value " + sorted[0]);
+
+        final char[] keys = new char[sorted.length];
+        final Container[] containers = new Container[sorted.length];
+        final char[] lows = new char[sorted.length];
+        int size = 0;
+
+        for (int start = 0; start < sorted.length; ) {
+            final int high = sorted[start] >>> 16;
+
+            /* Collect all unique low bits sharing the same high bits */
+            int count = 0;
+            int end = start;
+            for (; (end < sorted.length) && ((sorted[end] >>> 16) == high); end ++) {
+                final char low = (char) sorted[end];
+                if ((count == 0) || (lows[count - 1] != low)) lows[count ++] = low;
+            }
+
+            keys[size] = (char) high;
+            containers[size ++] = count <= ARRAY_MAX ?
+                    new ArrayContainer(Arrays.copyOf(lows, count)) :
+                    BitmapContainer.of(lows, count);
+            start = end;
+        }
+
+        return new CompressedBitmap(keys, containers, size);
+    }
+
+    /* ====================================================================== */
+
+    /** Return the number of values in this {@link CompressedBitmap}. */
+    int cardinality() {
+        return cardinality;
+    }
+
+    /** Return whether this {@link CompressedBitmap} is empty or not. */
+    boolean isEmpty() {
+        return cardinality == 0;
+    }
+
+    /** Check whether this {@link CompressedBitmap} contains the specified value. */
+    boolean contains(int value) {
+        if (value < 0) return false;
+        final int index = Arrays.binarySearch(keys, (char) (value >>> 16));
+        return (index >= 0) && containers[index].contains((char) value);
+    }
+
+    /** Return the intersection of this and the specified {@link CompressedBitmap}. */
+    CompressedBitmap and(CompressedBitmap other) {
+        final int length = Math.min(keys.length, other.keys.length);
+        final char[] keys = new char[length];
+        final Container[] containers = new Container[length];
+        int size = 0;
+
+        for (int x = 0, y = 0; (x < this.keys.length) && (y < other.keys.length); ) {
+            if (this.keys[x] < other.keys[y]) x ++;
+            else if (this.keys[x] > other.keys[y]) y ++;
+            else {
+                final Container container = this.containers[x].and(other.containers[y]);
+                if (container != null) {
+                    keys[size] = this.keys[x];
+                    containers[size ++] = container;
+                }
+                x ++;
+                y ++;
+            }
+        }
+
+        return new CompressedBitmap(keys, containers, size);
+    }
+
+    /** Return the union of this and the specified {@link CompressedBitmap}. */
+    CompressedBitmap or(CompressedBitmap other) {
+        final int length = keys.length + other.keys.length;
+        final char[] keys = new char[length];
+        final Container[] containers = new Container[length];
+        int size = 0;
+
+        int x = 0, y = 0;
+        while ((x < this.keys.length) && (y < other.keys.length)) {
+            if (this.keys[x] < other.keys[y]) {
+                keys[size] = this.keys[x];
+                containers[size ++] = this.containers[x ++];
+            } else if (this.keys[x] > other.keys[y]) {
+                keys[size] = other.keys[y];
+                containers[size ++] = other.containers[y ++];
+            } else {
+                keys[size] = this.keys[x];
+                containers[size ++] = this.containers[x ++].or(other.containers[y ++]);
+            }
+        }
+        for (; x < this.keys.length; x ++) {
+            keys[size] = this.keys[x];
+            containers[size ++] = this.containers[x];
+        }
+        for (; y < other.keys.length; y ++) {
+            keys[size] = other.keys[y];
+            containers[size ++] = other.containers[y];
+        }
+
+        return new CompressedBitmap(keys, containers, size);
+    }
+
+    /** Return the values of this not in the specified {@link CompressedBitmap}. */
+    CompressedBitmap andNot(CompressedBitmap other) {
+        final char[] keys = new char[this.keys.length];
+        final Container[] containers = new Container[this.keys.length];
+        int size = 0;
+
+        for (int x = 0, y = 0; x < this.keys.length; x ++) {
+            while ((y < other.keys.length) && (other.keys[y] < this.keys[x])) y ++;
+            final Container container = (y < other.keys.length) && (other.keys[y] == this.keys[x]) ?
+                    this.containers[x].andNot(other.containers[y]) :
+                    this.containers[x];
+            if (container != null) {
+                keys[size] = this.keys[x];
+                containers[size ++] = container;
+            }
+        }
+
+        return new CompressedBitmap(keys, containers, size);
+    }
+
+    /** Return an iterator over all values in this {@link CompressedBitmap}, in order. */
+    PrimitiveIterator.OfInt iterator() {
+        return new PrimitiveIterator.OfInt() {
+
+            private int container = -1;
+            private int position = 0;
+            private long word = 0;
+            private int high = 0;
+            private int next = advance();
+
+            @Override
+            public boolean hasNext() {
+                return next >= 0;
+            }
+
+            @Override
+            public int nextInt() {
+                if (next < 0) throw new NoSuchElementException();
+                final int value = next;
+                next = advance();
+                return value;
+            }
+
+            private int advance() {
+                while (true) {
+                    if (container >= 0) {
+                        final Container current = containers[container];
+                        if (current instanceof ArrayContainer) {
+                            final char[] values = ((ArrayContainer) current).values;
+                            if (position < values.length) return high | values[position ++];
+                        } else {
+                            final long[] words = ((BitmapContainer) current).words;
+                            while ((word == 0) && (position < WORDS)) word = words[position ++];
+                            if (word != 0) {
+                                final int value = high | ((position - 1) << 6) | Long.numberOfTrailingZeros(word);
+                                word &= word - 1;
+                                return value;
+                            }
+                        }
+                    }
+
+                    /* Move on to the next container */
+                    if (++ container >= containers.length) return -1;
+                    high = keys[container] << 16;
+                    position = 0;
+                    word = 0;
+                }
+            }
+        };
+    }
+
+    /** Return all values in this {@link CompressedBitmap}, in order. */
+    int[] toArray() {
+        final int[] array = new int[cardinality];
+        final PrimitiveIterator.OfInt iterator = iterator();
+        for (int x = 0; x < array.length; x ++) array[x] = iterator.nextInt();
+        return array;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[cardinality=" + cardinality + ",containers=" + containers.length + "]";
+    }
+
+    /* ====================================================================== */
+
+    private static abstract class Container {
+
+        abstract int cardinality();
+
+        abstract boolean contains(char value);
+
+        /* The following return null when the result is empty */
+
+        abstract Container and(Container other);
+
+        abstract Container or(Container other);
+
+        abstract Container andNot(Container other);
+
+    }
+
+    /* ====================================================================== */
+
+    private static final class ArrayContainer extends Container {
+
+        private final char[] values;
+
+        private ArrayContainer(char[] values) {
+            this.values = values;
+        }
+
+        @Override
+        int cardinality() {
+            return values.length;
+        }
+
+        @Override
+        boolean contains(char value) {
+            return Arrays.binarySearch(values, value) >= 0;
+        }
+
+        @Override
+        Container and(Container other) {
+            if (other instanceof BitmapContainer) return filter((BitmapContainer) other, true);
+
+            final char[] those = ((ArrayContainer) other).values;
+            final char[] result = new char[Math.min(values.length, those.length)];
+            int size = 0;
+            for (int x = 0, y = 0; (x < values.length) && (y < those.length); ) {
+                if (values[x] < those[y]) x ++;
+                else if (values[x] > those[y]) y ++;
+                else {
+                    result[size ++] = values[x ++];
+                    y ++;
+                }
+            }
+            return of(result, size);
+        }
+
+        @Override
+        Container or(Container other) {
+            if (other instanceof BitmapContainer) return other.or(this);
+
+            final char[] those = ((ArrayContainer) other).values;
+            final char[] result = new char[values.length + those.length];
+            int size = 0;
+            int x = 0, y = 0;
+            while ((x < values.length) && (y < those.length)) {
+                if (values[x] < those[y]) result[size ++] = values[x ++];
+                else if (values[x] > those[y]) result[size ++] = those[y ++];
+                else {
+                    result[size ++] = values[x ++];
+                    y ++;
+                }
+            }
+            while (x < values.length) result[size ++] = values[x ++];
+            while (y < those.length) result[size ++] = those[y ++];
+
+            return size <= ARRAY_MAX ?
+                    new ArrayContainer(Arrays.copyOf(result, size)) :
+                    BitmapContainer.of(result, size);
+        }
+
+        @Override
+        Container andNot(Container other) {
+            if (other instanceof BitmapContainer) return filter((BitmapContainer) other, false);
+
+            final char[] those = ((ArrayContainer) other).values;
+            final char[] result = new char[values.length];
+            int size = 0;
+            for (int x = 0, y = 0; x < values.length; x ++) {
+                while ((y < those.length) && (those[y] < values[x])) y ++;
+                if ((y >= those.length) || (those[y] != values[x])) result[size ++] = values[x];
+            }
+            return of(result, size);
+        }
+
+        private Container filter(BitmapContainer bitmap, boolean contained) {
+            final char[] result = new char[values.length];
+            int size = 0;
+            for (char value: values) if (bitmap.contains(value) == contained) result[size ++] = value;
+            return of(result, size);
+        }
+
+        private static Container of(char[] values, int size) {
+            return size == 0 ? null : new ArrayContainer(size == values.length ? values : Arrays.copyOf(values, size));
+        }
+    }
+
+    /* ====================================================================== */
+
+    private static final class BitmapContainer extends Container {
+
+        private final long[] words;
+        private final int cardinality;
+
+        private BitmapContainer(long[] words, int cardinality) {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        boolean contains(char value) {
+            return (words[value >>> 6] & (1L << value)) != 0;
+        }
+
+        @Override
+        Container and(Container other) {
+            if (other instanceof ArrayContainer) return other.and(this);
+
+            final long[] those = ((BitmapContainer) other).words;
+            final long[] result = new long[WORDS];
+            for (int x = 0; x < WORDS; x ++) result[x] = words[x] & those[x];
+            return of(result);
+        }
+
+        @Override
+        Container or(Container other) {
+            final long[] result = words.clone();
+            if (other instanceof ArrayContainer) {
+                for (char value: ((ArrayContainer) other).values) result[value >>> 6] |= 1L << value;
+            } else {
+                final long[] those = ((BitmapContainer) other).words;
+                for (int x = 0; x < WORDS; x ++) result[x] |= those[x];
+            }
+            return of(result);
+        }
+
+        @Override
+        Container andNot(Container other) {
+            final long[] result = words.clone();
+            if (other instanceof ArrayContainer) {
+                for (char value: ((ArrayContainer) other).values) result[value >>> 6] &= ~(1L << value);
+            } else {
+                final long[] those = ((BitmapContainer) other).words;
+                for (int x = 0; x < WORDS; x ++) result[x] &= ~those[x];
+            }
+            return of(result);
+        }
+
+        private static Container of(char[] values, int size) {
+            final long[] words = new long[WORDS];
+            for (int x = 0; x < size; x ++) words[values[x] >>> 6] |= 1L << values[x];
+            return new BitmapContainer(words, size);
+        }
+
+        private static Container of(long[] words) {
+            int cardinality = 0;
+            for (long word: words) cardinality += Long.bitCount(word);
+            if (cardinality > ARRAY_MAX) return new BitmapContainer(words, cardinality);
+            if (cardinality == 0) return null;
+
+            /* Sparse enough to go back to an array */
+            final char[] values = new char[cardinality];
+            int size = 0;
+            for (int x = 0; x < WORDS; x ++) {
+                for (long word = words[x]; word != 0; word &= word - 1) {
+                    values[size ++] = (char) ((x << 6) | Long.numberOfTrailingZeros(word));
+                }
+            }
+            return new ArrayContainer(values);
+        }
+    }
+}
@@ -16,11 +16,81 @@
 package org.usrz.libs.stores;
 
 import java.io.Closeable;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.function.Function;
 
-public interface Cursor<D extends Document> extends Iterator<D>, Closeable {
+/**
+ * A {@link Closeable} {@link Iterator} over the results of a {@link Query}.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ * @param <T> The type of the objects returned by this {@link Cursor}.
+ */
+public interface Cursor<T> extends Iterator<T>, Closeable {
 
     @Override
     public void close();
 
+    /**
+     * Return a {@link Cursor} over the objects returned by the specified
+     * {@link Iterator}.
+     */
+    public static <T> Cursor<T> of(Iterator<? extends T> iterator) {
+        return new Cursor<T>() {
+
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public T next() {
+                return iterator.next();
+            }
+
+            @Override
+            public void close() {
+                /* Nothing to do */
+            }
+        };
+    }
+
+    /**
+     * Add all the remaining objects returned by this {@link Cursor} to the
+     * specified {@link Collection}, and close it.
+     */
+    public default <C extends Collection<? super T>> C drainTo(C collection) {
+        try {
+            while (hasNext()) collection.add(next());
+            return collection;
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Return a {@link Cursor} over the results of applying the specified
+     * {@link Function} to each object returned by this one.
+     */
+    public default <X> Cursor<X> map(Function<? super T, ? extends X> function) {
+        final Cursor<T> cursor = this;
+        return new Cursor<X>() {
+
+            @Override
+            public boolean hasNext() {
+                return cursor.hasNext();
+            }
+
+            @Override
+            public X next() {
+                return function.apply(cursor.next());
+            }
+
+            @Override
+            public void close() {
+                cursor.close();
+            }
+        };
+    }
+
 }
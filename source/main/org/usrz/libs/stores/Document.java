@@ -35,17 +35,21 @@ public abstract class Document {
     private final Store<?> store;
     @BsonIgnore
     private final Date lastModifiedAt;
+    @BsonIgnore
+    private final int encodedSize;
 
     protected Document() {
         id = null;
         store = null;
         lastModifiedAt = null;
+        encodedSize = 0;
     }
 
     protected Document(String id) {
         this.id = Check.notNull(id, "Null ID for document");
         store = null;
         lastModifiedAt = null;
+        encodedSize = 0;
     }
 
     @BsonIgnore
@@ -63,6 +67,16 @@ public abstract class Document {
         return lastModifiedAt;
     }
 
+    /**
+     * Return the size in bytes of the encoded (BSON) form of this
+     * {@link Document} as last read from or written to its {@link Store},
+     * or zero if unknown.
+     */
+    @BsonIgnore
+    public final int encodedSize() {
+        return encodedSize;
+    }
+
     /* ====================================================================== */
 
     @Override
@@ -0,0 +1,49 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores;
+
+import java.util.Date;
+
+/**
+ * A {@link DocumentCodec} converts {@link Document}s to and from their
+ * serialized binary form (including <em>id</em> and <em>last modified</em>
+ * date).
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ * @param <D> The type of {@link Document}s handled by this instance.
+ */
+public interface DocumentCodec<D extends Document> {
+
+    /**
+     * Encode the specified {@link Document} into a <code>byte[]</code>.
+     */
+    public default byte[] encode(D document) {
+        return this.encode(document, document.lastModifiedAt());
+    }
+
+    /**
+     * Encode the specified {@link Document} into a <code>byte[]</code>,
+     * with the specified <em>last modified</em> date rather than its own.
+     */
+    public byte[] encode(D document, Date lastModifiedAt);
+
+    /**
+     * Decode a {@link Document} previously {@linkplain #encode(Document)
+     * encoded} by this instance.
+     */
+    public D decode(byte[] bytes);
+
+}
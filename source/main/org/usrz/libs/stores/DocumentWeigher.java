@@ -0,0 +1,37 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores;
+
+import com.google.common.cache.Weigher;
+
+/**
+ * A {@link Weigher} for {@link Document}s based on their
+ * {@linkplain Document#encodedSize() encoded size}, so that caches can be
+ * bounded by a <code>maximumWeight</code> expressed in bytes.
+ * <p>
+ * {@link Document}s of unknown size weigh a single byte.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public class DocumentWeigher implements Weigher<Object, Object> {
+
+    @Override
+    public int weigh(Object key, Object value) {
+        if (!(value instanceof Document)) return 1;
+        return Math.max(1, ((Document) value).encodedSize());
+    }
+
+}
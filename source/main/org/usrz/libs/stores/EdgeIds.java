@@ -0,0 +1,41 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores;
+
+/**
+ * Helper building and parsing the <em>edge ids</em> identifying changes of
+ * associations in a {@link Relation}: the <em>left</em> and <em>right</em>
+ * {@linkplain Document#id() id}s joined by a {@linkplain #SEPARATOR NUL}.
+ * <p>
+ * Edge ids written by the MongoDB relation use the very same format.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+final class EdgeIds {
+
+    /** The separator between <em>left</em> and <em>right</em> ids. */
+    static final char SEPARATOR = '\u0000';
+
+    private EdgeIds() {
+        throw new IllegalStateException("Go away!");
+    }
+
+    /** Return the edge id of the association between the specified ids. */
+    static String edgeId(String left, String right) {
+        return left + SEPARATOR + right;
+    }
+
+}
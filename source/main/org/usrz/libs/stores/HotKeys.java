@@ -0,0 +1,117 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores;
+
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A <em>sampled</em> approximation of the most frequently requested keys,
+ * based on the <em>Space-Saving</em> algorithm by Metwally, Agrawal and
+ * El Abbadi.
+ * <p>
+ * Only one in every <em>sampling rate</em> requests is actually counted
+ * (and the counts reported are scaled accordingly) so that the cost on the
+ * hot path is normally a single random number generation.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public class HotKeys {
+
+    /** The default number of keys tracked. */
+    public static final int DEFAULT_CAPACITY = 100;
+    /** The default sampling rate (one in 16 requests). */
+    public static final int DEFAULT_SAMPLING_RATE = 16;
+
+    private final Map<String, long[]> counters = new HashMap<>();
+    private final int capacity;
+    private final int samplingRate;
+
+    public HotKeys() {
+        this(DEFAULT_CAPACITY, DEFAULT_SAMPLING_RATE);
+    }
+
+    public HotKeys(int capacity, int samplingRate) {
+        if (capacity < 1) throw new IllegalArgumentException("Invalid capacity " + capacity);
+        if (samplingRate < 1) throw new IllegalArgumentException("Invalid sampling rate " + samplingRate);
+        this.capacity = capacity;
+        this.samplingRate = samplingRate;
+    }
+
+    /**
+     * Record a request for the specified key (subject to sampling).
+     */
+    public void record(String key) {
+        if ((samplingRate > 1) && (ThreadLocalRandom.current().nextInt(samplingRate) != 0)) return;
+        increment(key);
+    }
+
+    private synchronized void increment(String key) {
+        final long[] counter = counters.get(key);
+        if (counter != null) {
+            counter[0] ++;
+            return;
+        }
+
+        if (counters.size() < capacity) {
+            counters.put(key, new long[] { 1 });
+            return;
+        }
+
+        /* Replace the minimum counter, inheriting its count (linear, but small) */
+        String minimumKey = null;
+        long minimum = Long.MAX_VALUE;
+        for (Map.Entry<String, long[]> entry: counters.entrySet()) {
+            if (entry.getValue()[0] < minimum) {
+                minimum = entry.getValue()[0];
+                minimumKey = entry.getKey();
+            }
+        }
+        counters.remove(minimumKey);
+        counters.put(key, new long[] { minimum + 1 });
+    }
+
+    /**
+     * Return up to the specified number of the most requested keys, with
+     * their (estimated) number of requests, most requested first.
+     */
+    public Map<String, Long> top(int count) {
+        final List<Map.Entry<String, Long>> entries = new ArrayList<>();
+        synchronized (this) {
+            counters.forEach((key, counter) -> entries.add(new SimpleEntry<>(key, counter[0] * samplingRate)));
+        }
+        entries.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+
+        final Map<String, Long> top = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> entry: entries) {
+            if (top.size() >= count) break;
+            top.put(entry.getKey(), entry.getValue());
+        }
+        return top;
+    }
+
+    /**
+     * Forget all recorded requests.
+     */
+    public synchronized void reset() {
+        counters.clear();
+    }
+}
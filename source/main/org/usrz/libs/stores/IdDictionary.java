@@ -0,0 +1,76 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A dictionary assigning dense, non-negative {@code int} codes to
+ * {@linkplain Document#id() id}s, so that sets of them can be kept as
+ * {@link CompressedBitmap}s.
+ * <p>
+ * Codes are never reclaimed: the dictionary grows with the number of
+ * distinct ids it ever encoded.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+final class IdDictionary {
+
+    private final ConcurrentHashMap<String, Integer> codes = new ConcurrentHashMap<>();
+    private volatile String[] ids = new String[1024];
+    private int size = 0;
+
+    IdDictionary() {
+        /* Nothing to do */
+    }
+
+    /** Return the code of the specified id, assigning a new one if needed. */
+    int encode(String id) {
+        final Integer code = codes.get(id);
+        if (code != null) return code;
+
+        synchronized (this) {
+            final Integer existing = codes.get(id);
+            if (existing != null) return existing;
+
+            /* Store the id before publishing its code */
+            if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+            ids[size] = id;
+            codes.put(id, size);
+            return size ++;
+        }
+    }
+
+    /** Return the code of the specified id, or -1 if it was never encoded. */
+    int code(String id) {
+        final Integer code = codes.get(id);
+        return code == null ? -1 : code;
+    }
+
+    /** Return the id associated with the specified code. */
+    String decode(int code) {
+        final String id = ids[code];
+        if (id == null) throw new IllegalArgumentException("Unknown code " + code);
+        return id;
+    }
+
+    /** Return the number of ids in this dictionary. */
+    int size() {
+        return codes.size();
+    }
+
+}
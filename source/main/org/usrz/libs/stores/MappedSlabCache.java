@@ -0,0 +1,164 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.usrz.libs.logging.Log;
+
+/**
+ * A {@link SlabCache} whose slabs are memory-mapped files in a directory,
+ * therefore surviving restarts of the JVM.
+ * <p>
+ * Upon creation all values found in the directory will be
+ * {@linkplain #recover() recovered} as <em>unverified</em>, and must be
+ * {@linkplain #verify(String, long) verified} before being trusted.
+ * <p>
+ * Only one {@link MappedSlabCache} can use a directory at any given time,
+ * and slabs are flushed to disk when it is {@linkplain #close() closed}, or
+ * (failing that) when the JVM shuts down.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public class MappedSlabCache extends SlabCache implements Closeable {
+
+    private static final Log log = new Log();
+
+    private final List<MappedByteBuffer> buffers = new ArrayList<>();
+    private final Path directory;
+    private final FileChannel lock;
+    private final Thread shutdownHook;
+
+    /**
+     * Create a new {@link MappedSlabCache} in the specified directory with
+     * the specified capacity in bytes.
+     */
+    public MappedSlabCache(Path directory, long capacity) {
+        this(directory, capacity, DEFAULT_SLAB_SIZE);
+    }
+
+    /**
+     * Create a new {@link MappedSlabCache} in the specified directory with
+     * the specified capacity in bytes, split in slabs of the given size.
+     */
+    public MappedSlabCache(Path directory, long capacity, int slabSize) {
+        super(capacity, slabSize);
+        this.directory = directory;
+
+        try {
+            Files.createDirectories(directory);
+            lock = FileChannel.open(directory.resolve("lock"), CREATE, READ, WRITE);
+            final FileLock acquired = tryLock(lock);
+            if (acquired == null) {
+                lock.close();
+                throw new IllegalStateException("Directory " + directory + " in use by another process");
+            }
+        } catch (IOException exception) {
+            throw new UncheckedIOException("Unable to lock directory " + directory, exception);
+        }
+
+        recover();
+        log.info("Recovered %d values from %s", size(), directory);
+
+        shutdownHook = new Thread(this::closeQuietly, "MappedSlabCache-shutdown-" + directory.getFileName());
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    @Override
+    protected ByteBuffer allocate(int slab, int size) {
+        return map(slab, size);
+    }
+
+    @Override
+    protected ByteBuffer existing(int slab, int size) {
+        final Path file = file(slab);
+        try {
+            if (Files.isRegularFile(file) && (Files.size(file) == size)) return map(slab, size);
+            if (Files.deleteIfExists(file)) log.info("Discarded mismatched slab %s", file);
+            return null;
+        } catch (IOException exception) {
+            log.warn(exception, "Unable to access slab %s", file);
+            return null;
+        }
+    }
+
+    /**
+     * Flush all slabs to disk and release the lock on the directory.
+     */
+    @Override
+    public void close()
+    throws IOException {
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException exception) {
+            /* Already shutting down */
+        }
+
+        synchronized (this) {
+            for (MappedByteBuffer buffer: buffers) buffer.force();
+        }
+        lock.close();
+    }
+
+    /* ====================================================================== */
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException exception) {
+            log.warn(exception, "Unable to close slabs in %s", directory);
+        }
+    }
+
+    private static FileLock tryLock(FileChannel channel)
+    throws IOException {
+        try {
+            return channel.tryLock();
+        } catch (OverlappingFileLockException exception) {
+            return null; /* Locked by ourselves */
+        }
+    }
+
+    private Path file(int slab) {
+        return directory.resolve(String.format("slab-%05d.bin", slab));
+    }
+
+    private synchronized MappedByteBuffer map(int slab, int size) {
+        try (FileChannel channel = FileChannel.open(file(slab), CREATE, READ, WRITE)) {
+            final MappedByteBuffer buffer = channel.map(MapMode.READ_WRITE, 0, size);
+            buffers.add(buffer);
+            return buffer;
+        } catch (IOException exception) {
+            throw new UncheckedIOException("Unable to map slab " + file(slab), exception);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores;
+
+import static org.usrz.libs.utils.Check.notNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.usrz.libs.logging.Log;
+
+/**
+ * A {@link Store} keeping the <em>serialized</em> form of its
+ * {@link Document}s in a {@link SlabCache} outside of the Java heap.
+ * <p>
+ * This is normally wrapped by a (smaller) {@link CachingStore}: on a miss
+ * documents will be decoded from the off-heap bytes rather than fetched
+ * from the underlying database, without the garbage collector ever having
+ * to deal with the bulk of the cached data.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ * @param <D> The type of {@link Document}s stored by this {@link Store}.
+ */
+public class OffHeapStore<D extends Document> extends AbstractStoreWrapper<D> {
+
+    private static final int REVALIDATION_BATCH = 1000;
+    private static final Log log = new Log();
+
+    private final DocumentCodec<D> codec;
+    private final SlabCache cache;
+    private final CacheInvalidator invalidator;
+
+    public OffHeapStore(Store<D> store, DocumentCodec<D> codec, long capacity) {
+        this(store, codec, new SlabCache(capacity), null);
+    }
+
+    public OffHeapStore(Store<D> store, DocumentCodec<D> codec, SlabCache cache, CacheInvalidator invalidator) {
+        super(store);
+        this.codec = notNull(codec, "Null codec");
+        this.cache = notNull(cache, "Null cache");
+        this.invalidator = invalidator;
+        if (invalidator != null) invalidator.subscribe(getCollection(), this::invalidate);
+    }
+
+    /**
+     * Return the {@link SlabCache} used by this instance.
+     */
+    public SlabCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Evict the {@link Document} with the specified <em>id</em> from the
+     * {@link SlabCache}, or evict <em>all</em> documents if <b>null</b>.
+     */
+    public void invalidate(String id) {
+        if (id == null) {
+            log.debug("Invalidating all off-heap documents in \"%s\"", getCollection());
+            cache.clear();
+        } else {
+            cache.remove(id);
+        }
+    }
+
+    /**
+     * Verify all documents recovered by a persistent {@link SlabCache},
+     * fetching their last modified dates in bulk and discarding stale ones.
+     */
+    public void revalidate() {
+        final List<String> ids = cache.unverified();
+        int count = 0;
+        for (int offset = 0; offset < ids.size(); offset += REVALIDATION_BATCH) {
+            count += revalidate(ids.subList(offset, Math.min(offset + REVALIDATION_BATCH, ids.size())));
+        }
+        if (count > 0) log.info("Revalidated %d off-heap documents in \"%s\"", count, getCollection());
+    }
+
+    @Override
+    public D find(String id) {
+        if (cache.isUnverified(id)) revalidate(Collections.singletonList(id));
+        final D cached = decode(id);
+        if (cached != null) return cached;
+
+        final D document = super.find(id);
+        if (document != null) encode(document);
+        return document;
+    }
+
+    @Override
+    public Map<String, D> findAll(Collection<String> ids) {
+        final List<String> unverified = new ArrayList<>();
+        for (String id: ids) if (cache.isUnverified(id)) unverified.add(id);
+        if (!unverified.isEmpty()) revalidate(unverified);
+
+        final Map<String, D> found = new HashMap<>();
+        final List<String> fetch = new ArrayList<>();
+        for (String id: ids) {
+            final D document = decode(id);
+            if (document != null) found.put(id, document);
+            else fetch.add(id);
+        }
+
+        if (!fetch.isEmpty()) super.findAll(fetch).forEach((id, document) -> {
+            encode(document);
+            found.put(id, document);
+        });
+
+        /* Return in the same order we were asked for */
+        final Map<String, D> documents = new LinkedHashMap<>();
+        for (String id: ids) {
+            final D document = found.get(id);
+            if (document != null) documents.put(id, document);
+        }
+        return documents;
+    }
+
+    @Override
+    public D store(D object) {
+        final D document = super.store(object);
+        if (document != null) {
+            encode(document);
+            if (invalidator != null) invalidator.publish(getCollection(), document.id());
+        }
+        return document;
+    }
+
+    @Override
+    public List<D> storeAll(Collection<D> objects) {
+        return stored(super.storeAll(objects));
+    }
+
+    @Override
+    public List<D> storeAllAsModified(Collection<D> objects) {
+        return stored(super.storeAllAsModified(objects));
+    }
+
+    private List<D> stored(List<D> documents) {
+        for (D document: documents) {
+            encode(document);
+            if (invalidator != null) invalidator.publish(getCollection(), document.id());
+        }
+        return documents;
+    }
+
+    @Override
+    public boolean delete(String id) {
+        /* Remove after deleting, or a concurrent find could cache it again */
+        final boolean deleted = super.delete(id);
+        cache.remove(id);
+        if (invalidator != null) invalidator.publish(getCollection(), id);
+        return deleted;
+    }
+
+    /* ====================================================================== */
+
+    private int revalidate(List<String> ids) {
+        final Map<String, Date> dates = super.lastModifiedAt(ids);
+        int verified = 0;
+        for (String id: ids) {
+            final Date date = dates.get(id);
+            if (date == null) cache.discardUnverified(id);
+            else if (cache.verify(id, date.getTime())) verified ++;
+        }
+        log.debug("Verified %d of %d off-heap documents in \"%s\"", verified, ids.size(), getCollection());
+        return verified;
+    }
+
+    private D decode(String id) {
+        final byte[] bytes = cache.get(id);
+        if (bytes == null) return null;
+        try {
+            return codec.decode(bytes);
+        } catch (RuntimeException exception) {
+            log.warn(exception, "Unable to decode off-heap document %s", id);
+            cache.remove(id);
+            return null;
+        }
+    }
+
+    private void encode(D document) {
+        final Date date = document.lastModifiedAt();
+        final long timestamp = date == null ? SlabCache.NO_TIMESTAMP : date.getTime();
+        if (!cache.put(document.id(), codec.encode(document), timestamp))
+            log.debug("Document %s too big to be cached off-heap", document.id());
+    }
+}
@@ -19,8 +19,12 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Pattern;
 
+import org.usrz.libs.stores.geo.Point;
+import org.usrz.libs.stores.geo.Polygon;
+
 /**
  * An extremely simple query interface for {@link Document}s.
  *
@@ -57,11 +61,44 @@ public interface Query<D extends Document> {
 
     public Query<D> orderBy(String field, boolean ascending);
 
+    /**
+     * Hint the underlying store about the name of the index to use for
+     * this {@link Query}, for example a <em>partial</em> one whose filter
+     * is implied by this {@link Query}.
+     * <p>
+     * Hints are advisory, and by default they are simply ignored.
+     */
+    default Query<D> hint(String index) {
+        return this;
+    }
+
+    /**
+     * Continue this {@link Query} by <em>and</em>-ing a full-text search
+     * for the specified words (or quoted phrases, or negated terms), served
+     * by a <em>text</em> index: unless an explicit {@linkplain
+     * #orderBy(String, boolean) ordering} is specified, results will be
+     * sorted by relevance.
+     */
+    public Query<D> text(String search);
+
     /**
      * Search the {@link Document}s matching this {@link Query}.
      */
     public Cursor<D> documents();
 
+    /**
+     * Search the {@link Document}s matching this {@link Query} along with
+     * their relevance score for a {@linkplain #text(String) full-text search}
+     * (or <b>null</b> if no search was specified).
+     */
+    public Cursor<Map.Entry<D, Double>> scored();
+
+    /**
+     * Search the {@linkplain Document#id() id}s of all {@link Document}s
+     * matching this {@link Query}, without fetching the {@link Document}s.
+     */
+    public Cursor<String> ids();
+
     /**
      * Return an unmodifiable {@link List} of all {@link Document}s matching
      * this {@link Query}.
@@ -139,5 +176,24 @@ public interface Query<D extends Document> {
             return matches(Pattern.compile(pattern));
         }
 
+        /**
+         * Matches <em>GeoJSON</em> geometries within the specified distance
+         * (in meters) from the given {@link Point}, sorting the results from
+         * the nearest to the farthest.
+         */
+        public Query<D> near(Point point, double maxMeters);
+
+        /**
+         * Matches <em>GeoJSON</em> geometries within the specified distance
+         * (in meters) from the given longitude and latitude, sorting the
+         * results from the nearest to the farthest.
+         */
+        default Query<D> near(double longitude, double latitude, double maxMeters) {
+            return near(new Point(longitude, latitude), maxMeters);
+        }
+
+        /** Matches <em>GeoJSON</em> geometries within the given {@link Polygon}. */
+        public Query<D> within(Polygon polygon);
+
     }
 }
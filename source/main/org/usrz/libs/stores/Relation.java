@@ -15,6 +15,15 @@
  * ========================================================================== */
 package org.usrz.libs.stores;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * The {@link Relation} interface defines an abstract way to relate two
@@ -26,6 +35,9 @@ package org.usrz.libs.stores;
  */
 public interface Relation<L extends Document, R extends Document> {
 
+    /** The default maximum number of results of a {@linkplain #traverse(Document, int) traversal}. */
+    public static final int DEFAULT_TRAVERSAL_RESULTS = 10000;
+
     /**
      * Ensure that the relation between the two specified {@link Document}s
      * is present.
@@ -38,6 +50,54 @@ public interface Relation<L extends Document, R extends Document> {
      */
     public void dissociate(L left, R right);
 
+    /**
+     * Ensure that the relations between the specified <em>left</em>
+     * {@link Document} and all the specified <em>right</em> ones are
+     * present.
+     */
+    public default void associateAll(L left, Collection<R> rights) {
+        for (R right: rights) this.associate(left, right);
+    }
+
+    /**
+     * Ensure that the relations between the specified <em>left</em>
+     * {@link Document} and all the specified <em>right</em> ones are
+     * <em>not</em> present.
+     */
+    public default void dissociateAll(L left, Collection<R> rights) {
+        for (R right: rights) this.dissociate(left, right);
+    }
+
+    /**
+     * Ensure that the specified <em>left</em> {@link Document} is associated
+     * with <em>exactly</em> the specified <em>right</em> ones, adding and
+     * removing relations as required.
+     */
+    public default void replaceAll(L left, Collection<R> rights) {
+        final Set<String> ids = new HashSet<>();
+        for (R right: rights) ids.add(right.id());
+
+        /* Diff by id, the rights to add are the ones we were given */
+        final Set<String> existing = this.findRIds(left).drainTo(new HashSet<>());
+        final Set<String> removed = new HashSet<>(existing);
+        removed.removeAll(ids);
+
+        final List<R> associate = new ArrayList<>();
+        for (R right: rights) if (existing.add(right.id())) associate.add(right);
+
+        /* Only resolve rights if some need removing, and stop when found */
+        final List<R> dissociate = new ArrayList<>();
+        if (!removed.isEmpty()) try (Cursor<R> cursor = this.findR(left)) {
+            while (cursor.hasNext() && (dissociate.size() < removed.size())) {
+                final R right = cursor.next();
+                if (removed.contains(right.id())) dissociate.add(right);
+            }
+        }
+
+        this.dissociateAll(left, dissociate);
+        this.associateAll(left, associate);
+    }
+
     /**
      * Check whether the relation between the two specified {@link Document}s
      * is present or not.
@@ -56,4 +116,153 @@ public interface Relation<L extends Document, R extends Document> {
      */
     public Cursor<R> findR(L left);
 
+    /**
+     * Count the <em>left</em> {@link Document}s associated with the
+     * specified <em>right</em> one.
+     */
+    public default long countL(R right) {
+        long count = 0;
+        try (Cursor<String> cursor = this.findLIds(right)) {
+            while (cursor.hasNext()) if (cursor.next() != null) count ++;
+        }
+        return count;
+    }
+
+    /**
+     * Count the <em>right</em> {@link Document}s associated with the
+     * specified <em>left</em> one.
+     */
+    public default long countR(L left) {
+        long count = 0;
+        try (Cursor<String> cursor = this.findRIds(left)) {
+            while (cursor.hasNext()) if (cursor.next() != null) count ++;
+        }
+        return count;
+    }
+
+    /**
+     * Find the {@linkplain Document#id() id}s of all the <em>left</em>
+     * {@link Document}s associated with the specified <em>right</em> one.
+     * <p>
+     * Implementations are encouraged to override this method and avoid
+     * loading the {@link Document}s altogether.
+     */
+    public default Cursor<String> findLIds(R right) {
+        return this.findL(right).map(Document::id);
+    }
+
+    /**
+     * Find the {@linkplain Document#id() id}s of all the <em>right</em>
+     * {@link Document}s associated with the specified <em>left</em> one.
+     * <p>
+     * Implementations are encouraged to override this method and avoid
+     * loading the {@link Document}s altogether.
+     */
+    public default Cursor<String> findRIds(L left) {
+        return this.findR(left).map(Document::id);
+    }
+
+    /**
+     * Find all <em>right</em> {@link Document}s associated with
+     * <em>all</em> the specified <em>left</em> ones.
+     */
+    @SuppressWarnings("unchecked")
+    public default Cursor<R> intersectR(L... lefts) {
+        return this.intersectR(Arrays.asList(lefts));
+    }
+
+    /**
+     * Find all <em>right</em> {@link Document}s associated with
+     * <em>all</em> the specified <em>left</em> ones.
+     * <p>
+     * The default implementation loads all associations in memory.
+     */
+    public default Cursor<R> intersectR(Collection<L> lefts) {
+        final Iterator<L> iterator = lefts.iterator();
+        if (!iterator.hasNext()) return Cursor.of(new ArrayList<R>().iterator());
+
+        final L first = iterator.next();
+        final Set<String> ids = this.findRIds(first).drainTo(new HashSet<>());
+        while (iterator.hasNext()) ids.retainAll(this.findRIds(iterator.next()).drainTo(new HashSet<>()));
+
+        final List<R> rights = new ArrayList<>();
+        for (R right: this.findR(first).drainTo(new ArrayList<>())) if (ids.contains(right.id())) rights.add(right);
+        return Cursor.of(rights.iterator());
+    }
+
+    /**
+     * Find all <em>right</em> {@link Document}s associated with
+     * <em>any</em> of the specified <em>left</em> ones.
+     */
+    @SuppressWarnings("unchecked")
+    public default Cursor<R> unionR(L... lefts) {
+        return this.unionR(Arrays.asList(lefts));
+    }
+
+    /**
+     * Find all <em>right</em> {@link Document}s associated with
+     * <em>any</em> of the specified <em>left</em> ones.
+     * <p>
+     * The default implementation loads all associations in memory.
+     */
+    public default Cursor<R> unionR(Collection<L> lefts) {
+        final Map<String, R> rights = new LinkedHashMap<>();
+        for (L left: lefts) {
+            for (R right: this.findR(left).drainTo(new ArrayList<>())) rights.putIfAbsent(right.id(), right);
+        }
+        return Cursor.of(rights.values().iterator());
+    }
+
+    /**
+     * Find all <em>right</em> {@link Document}s associated with the
+     * specified <em>left</em> one, but with <em>none</em> of the excluded
+     * ones.
+     */
+    @SuppressWarnings("unchecked")
+    public default Cursor<R> differenceR(L left, L... excluded) {
+        return this.differenceR(left, Arrays.asList(excluded));
+    }
+
+    /**
+     * Find all <em>right</em> {@link Document}s associated with the
+     * specified <em>left</em> one, but with <em>none</em> of the excluded
+     * ones.
+     * <p>
+     * The default implementation loads all associations in memory.
+     */
+    public default Cursor<R> differenceR(L left, Collection<L> excluded) {
+        final Set<String> ids = new HashSet<>();
+        for (L exclude: excluded) this.findRIds(exclude).drainTo(ids);
+
+        final List<R> rights = new ArrayList<>();
+        for (R right: this.findR(left).drainTo(new ArrayList<>())) if (!ids.contains(right.id())) rights.add(right);
+        return Cursor.of(rights.iterator());
+    }
+
+    /**
+     * Traverse this relation (normally between {@link Document}s of the same
+     * type) starting from the specified <em>left</em> {@link Document}, up
+     * to the specified depth, treating every <em>right</em> id reached as
+     * the <em>left</em> id of the next hop.
+     *
+     * @return The ids of all {@link Document}s reached (excluding the
+     *         starting one) mapped to their (minimum) depth, in order of
+     *         depth and limited to {@value #DEFAULT_TRAVERSAL_RESULTS}.
+     */
+    public default Map<String, Integer> traverse(L start, int depth) {
+        return this.traverse(start, depth, DEFAULT_TRAVERSAL_RESULTS);
+    }
+
+    /**
+     * Traverse this relation (normally between {@link Document}s of the same
+     * type) starting from the specified <em>left</em> {@link Document}, up
+     * to the specified depth, treating every <em>right</em> id reached as
+     * the <em>left</em> id of the next hop.
+     *
+     * @return The ids of all {@link Document}s reached (excluding the
+     *         starting one) mapped to their (minimum) depth, in order of
+     *         depth and limited to the specified number of results.
+     */
+    public Map<String, Integer> traverse(L start, int depth, int maxResults);
+
 }
@@ -0,0 +1,106 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores;
+
+import static org.usrz.libs.utils.Check.notNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+
+/**
+ * A {@link Cursor} resolving {@link Document}s from a {@link Cursor} over
+ * their {@linkplain Document#id() id}s.
+ * <p>
+ * The {@linkplain Document#id() id}s are read in <em>pages</em>, and each
+ * page is resolved with a single call to a function like
+ * {@link Store#findAll(Collection)}. {@link Document}s are returned in the
+ * same order as their {@linkplain Document#id() id}s, skipping the ones
+ * which could not be resolved.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ * @param <D> The type of {@link Document}s returned by this {@link Cursor}.
+ */
+public class ResolvingCursor<D extends Document> implements Cursor<D> {
+
+    /** The default number of {@linkplain Document#id() id}s per page. */
+    public static final int DEFAULT_PAGE_SIZE = 100;
+
+    private final Function<Collection<String>, Map<String, D>> resolver;
+    private final Cursor<String> ids;
+    private final int pageSize;
+
+    private Iterator<D> page = null;
+    private D next = null;
+
+    public ResolvingCursor(Cursor<String> ids, Function<Collection<String>, Map<String, D>> resolver) {
+        this(ids, resolver, DEFAULT_PAGE_SIZE);
+    }
+
+    public ResolvingCursor(Cursor<String> ids, Function<Collection<String>, Map<String, D>> resolver, int pageSize) {
+        if (pageSize < 1) throw new IllegalArgumentException("Invalid page size " + pageSize);
+        this.resolver = notNull(resolver, "Null resolver");
+        this.ids = notNull(ids, "Null IDs cursor");
+        this.pageSize = pageSize;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null) {
+            if ((page != null) && page.hasNext()) {
+                next = page.next();
+            } else if (ids.hasNext()) {
+                page = nextPage();
+            } else {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public D next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        final D document = next;
+        next = null;
+        return document;
+    }
+
+    @Override
+    public void close() {
+        ids.close();
+    }
+
+    /* ====================================================================== */
+
+    private Iterator<D> nextPage() {
+        final List<String> page = new ArrayList<>(pageSize);
+        while ((page.size() < pageSize) && ids.hasNext()) page.add(ids.next());
+
+        /* Resolve and return in the order of our IDs */
+        final Map<String, D> documents = resolver.apply(page);
+        final List<D> resolved = new ArrayList<>(page.size());
+        for (String id: page) {
+            final D document = documents.get(id);
+            if (document != null) resolved.add(document);
+        }
+        return resolved.iterator();
+    }
+}
@@ -0,0 +1,454 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A simple binary cache keeping its values outside of the Java heap in a
+ * fixed number of <em>slabs</em> of {@linkplain ByteBuffer#allocateDirect(int)
+ * direct} memory.
+ * <p>
+ * Values are appended to the current slab, and when this fills up the
+ * <em>oldest</em> slab is evicted in its entirety and reused, making
+ * eviction a <em>FIFO</em> of slabs bounded by the configured capacity
+ * in bytes.
+ * <p>
+ * Reads never lock: each slab carries a <em>generation</em> counter which
+ * is incremented (under a {@link StampedLock}) before its content is
+ * overwritten, and values copied from a slab without a valid optimistic
+ * read stamp are simply discarded.
+ * <p>
+ * Each record in a slab carries its <em>id</em> and <em>timestamp</em>,
+ * so that subclasses backed by persistent storage can {@linkplain
+ * #recover() recover} their content. Recovered values are kept
+ * <em>unverified</em> (and not returned by {@link #get(String)}) until
+ * their timestamp is {@linkplain #verify(String, long) verified}.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public class SlabCache {
+
+    /** The default size of each slab: 4 megabytes. */
+    public static final int DEFAULT_SLAB_SIZE = 4 * 1024 * 1024;
+    /** The timestamp to use when none is available. */
+    public static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+    /* Slab header: sequence (8) */
+    private static final int SLAB_HEADER = 8;
+    /* Record header: value length (4), sequence (8), timestamp (8), id length (2) */
+    private static final int RECORD_HEADER = 22;
+
+    private final ConcurrentHashMap<String, Location> index = new ConcurrentHashMap<>();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final Slab[] slabs;
+    private final int slabSize;
+    private long sequence = 0;
+    private int current = 0;
+
+    /**
+     * Create a new {@link SlabCache} with the specified capacity in bytes.
+     */
+    public SlabCache(long capacity) {
+        this(capacity, DEFAULT_SLAB_SIZE);
+    }
+
+    /**
+     * Create a new {@link SlabCache} with the specified capacity in bytes,
+     * split in slabs of the given size.
+     */
+    public SlabCache(long capacity, int slabSize) {
+        if (capacity < 1) throw new IllegalArgumentException("Invalid capacity " + capacity);
+        if (slabSize <= SLAB_HEADER + RECORD_HEADER) throw new IllegalArgumentException("Invalid slab size " + slabSize);
+
+        this.slabSize = (int) Math.max(Math.min(slabSize, capacity), SLAB_HEADER + RECORD_HEADER + 1);
+        final long count = (capacity + this.slabSize - 1) / this.slabSize;
+        if (count > Integer.MAX_VALUE) throw new IllegalArgumentException("Too many slabs for capacity " + capacity);
+
+        slabs = new Slab[(int) count];
+        for (int x = 0; x < slabs.length; x ++) slabs[x] = new Slab(x);
+        slabs[0].sequence = ++ sequence;
+    }
+
+    /**
+     * Allocate the {@link ByteBuffer} backing the slab with the specified
+     * number, invoked lazily the first time the slab is written to.
+     */
+    protected ByteBuffer allocate(int slab, int size) {
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    /**
+     * Return the {@link ByteBuffer} holding the <em>previous</em> content of
+     * the slab with the specified number, or <b>null</b> if none exists.
+     */
+    protected ByteBuffer existing(int slab, int size) {
+        return null;
+    }
+
+    /**
+     * Recover all values from the {@linkplain #existing(int, int) existing}
+     * slabs, marking them as <em>unverified</em>.
+     */
+    protected final synchronized void recover() {
+        final List<Slab> recovered = new ArrayList<>();
+        for (Slab slab: slabs) {
+            final ByteBuffer buffer = existing(slab.number, slabSize);
+            if (buffer == null) continue;
+            slab.buffer = buffer;
+            slab.sequence = buffer.getLong(0);
+            if (slab.sequence > 0) recovered.add(slab);
+        }
+        if (recovered.isEmpty()) return;
+
+        /* Replay slabs in the order they were written */
+        recovered.sort(Comparator.comparingLong((slab) -> slab.sequence));
+        for (Slab slab: recovered) slab.recover();
+
+        final Slab last = recovered.get(recovered.size() - 1);
+        sequence = last.sequence;
+        current = last.number;
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Return a copy of the bytes cached under the specified <em>id</em> or
+     * <b>null</b> if nothing was cached (or it was evicted, or it was not
+     * yet verified).
+     */
+    public byte[] get(String id) {
+        final Location location = index.get(id);
+        if ((location != null) && location.verified) {
+            final byte[] value = location.slab.read(location);
+            if (value != null) {
+                hits.incrementAndGet();
+                return value;
+            }
+            discard(location);
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Cache the specified bytes under the given <em>id</em>, returning
+     * <b>false</b> if the value is too big to fit in a single slab.
+     */
+    public boolean put(String id, byte[] value) {
+        return put(id, value, NO_TIMESTAMP);
+    }
+
+    /**
+     * Cache the specified bytes and <em>timestamp</em> under the given
+     * <em>id</em>, returning <b>false</b> if the value is too big to fit
+     * in a single slab.
+     * <p>
+     * If a value with a newer timestamp is already cached, it is kept.
+     */
+    public boolean put(String id, byte[] value, long timestamp) {
+        final byte[] key = id.getBytes(UTF_8);
+        final int size = RECORD_HEADER + key.length + value.length;
+        if ((key.length > Short.MAX_VALUE) || (size > slabSize - SLAB_HEADER)) {
+            remove(id);
+            return false;
+        }
+
+        /* Index while locked, or concurrent puts could index an older value last */
+        synchronized (this) {
+            final Location cached = index.get(id);
+            if ((cached != null) && (timestamp != NO_TIMESTAMP) && (cached.timestamp > timestamp)) return true;
+
+            Slab slab = slabs[current];
+            if (slab.remaining() < size) {
+                current = (current + 1) % slabs.length;
+                slab = slabs[current];
+                slab.evict();
+            }
+
+            final Location location = slab.write(id, key, value, timestamp);
+            bytes.addAndGet(location.size);
+            final Location previous = index.put(id, location);
+            if (previous != null) bytes.addAndGet(- previous.size);
+        }
+        return true;
+    }
+
+    /**
+     * Remove the value cached under the specified <em>id</em>.
+     */
+    public void remove(String id) {
+        final Location location = index.remove(id);
+        if (location != null) bytes.addAndGet(- location.size);
+    }
+
+    /**
+     * Remove all values from this {@link SlabCache}.
+     */
+    public synchronized void clear() {
+        /* Evict oldest first, so that the current slab stays the newest */
+        for (int x = 1; x <= slabs.length; x ++) slabs[(current + x) % slabs.length].evict();
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Return the <em>ids</em> of all values which were recovered but not yet
+     * {@linkplain #verify(String, long) verified}.
+     */
+    public List<String> unverified() {
+        return unverified(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Return the <em>ids</em> of up to the specified number of values which
+     * were recovered but not yet {@linkplain #verify(String, long) verified}.
+     */
+    public List<String> unverified(int max) {
+        final List<String> ids = new ArrayList<>();
+        for (Location location: index.values()) {
+            if (ids.size() >= max) break;
+            if (!location.verified) ids.add(location.id);
+        }
+        return ids;
+    }
+
+    /**
+     * Check whether the value cached under the specified <em>id</em> was
+     * recovered but not yet {@linkplain #verify(String, long) verified}.
+     */
+    public boolean isUnverified(String id) {
+        final Location location = index.get(id);
+        return (location != null) && (!location.verified);
+    }
+
+    /**
+     * Verify the <em>recovered</em> value cached under the specified
+     * <em>id</em>, keeping it only if its timestamp matches the one given.
+     * <p>
+     * Values {@linkplain #put(String, byte[], long) put} after recovery are
+     * always trusted, and never discarded by this method.
+     */
+    public boolean verify(String id, long timestamp) {
+        final Location location = index.get(id);
+        if (location == null) return false;
+        if (location.verified) return true;
+        if (location.timestamp == timestamp) {
+            location.verified = true;
+            return true;
+        }
+        discard(location);
+        return false;
+    }
+
+    /**
+     * Remove the value cached under the specified <em>id</em> only if it
+     * was recovered but not yet {@linkplain #verify(String, long) verified}.
+     */
+    public void discardUnverified(String id) {
+        final Location location = index.get(id);
+        if ((location != null) && (!location.verified)) discard(location);
+    }
+
+    /* ====================================================================== */
+
+    /** Return the number of values in this {@link SlabCache}. */
+    public int size() {
+        return index.size();
+    }
+
+    /** Return the number of bytes occupied by live values. */
+    public long bytes() {
+        return bytes.get();
+    }
+
+    /** Return the maximum number of bytes this {@link SlabCache} can hold. */
+    public long capacity() {
+        return (long) slabSize * slabs.length;
+    }
+
+    /** Return the number of successful lookups. */
+    public long hitCount() {
+        return hits.get();
+    }
+
+    /** Return the number of unsuccessful lookups. */
+    public long missCount() {
+        return misses.get();
+    }
+
+    /** Return the number of values evicted to make room for new ones. */
+    public long evictionCount() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[size=" + size()
+                                          + ",bytes=" + bytes()
+                                          + ",capacity=" + capacity()
+                                          + ",slabs=" + slabs.length + "]";
+    }
+
+    /* ====================================================================== */
+
+    private boolean discard(Location location) {
+        if (!index.remove(location.id, location)) return false;
+        bytes.addAndGet(- location.size);
+        return true;
+    }
+
+    /* ====================================================================== */
+
+    private static final class Location {
+
+        private final String id;
+        private final Slab slab;
+        private final int generation;
+        private final int offset;
+        private final int length;
+        private final int size;
+        private final long timestamp;
+        private volatile boolean verified;
+
+        private Location(String id, Slab slab, int generation, int offset, int length, int size, long timestamp, boolean verified) {
+            this.id = id;
+            this.slab = slab;
+            this.generation = generation;
+            this.offset = offset;
+            this.length = length;
+            this.size = size;
+            this.timestamp = timestamp;
+            this.verified = verified;
+        }
+    }
+
+    /* ====================================================================== */
+
+    private final class Slab {
+
+        private final List<Location> locations = new ArrayList<>();
+        private final StampedLock lock = new StampedLock();
+        private final int number;
+        private volatile ByteBuffer buffer;
+        private volatile int generation;
+        private long sequence;
+        private int position = SLAB_HEADER;
+
+        private Slab(int number) {
+            this.number = number;
+        }
+
+        /* Only invoked while holding the lock on the cache */
+        private int remaining() {
+            return slabSize - position;
+        }
+
+        /* Only invoked while holding the lock on the cache */
+        private Location write(String id, byte[] key, byte[] value, long timestamp) {
+            if (buffer == null) {
+                buffer = allocate(number, slabSize);
+                buffer.putLong(0, sequence);
+            }
+
+            final ByteBuffer target = buffer.duplicate();
+            target.position(position + 4);
+            target.putLong(sequence);
+            target.putLong(timestamp);
+            target.putShort((short) key.length);
+            target.put(key);
+            target.put(value);
+            target.putInt(position, value.length);
+
+            final int size = RECORD_HEADER + key.length + value.length;
+            final Location location = new Location(id, this, generation, position + size - value.length, value.length, size, timestamp, true);
+            locations.add(location);
+            position += size;
+            return location;
+        }
+
+        /* Only invoked while holding the lock on the cache */
+        private void evict() {
+            /* Invalidates the stamps of all concurrent readers */
+            final long stamp = lock.writeLock();
+            try {
+                generation ++;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+
+            sequence = ++ SlabCache.this.sequence;
+            position = SLAB_HEADER;
+            for (Location location: locations) {
+                if (discard(location)) evictions.incrementAndGet();
+            }
+            locations.clear();
+
+            if (buffer != null) buffer.putLong(0, sequence);
+        }
+
+        /* Only invoked while holding the lock on the cache */
+        private void recover() {
+            final ByteBuffer source = buffer.duplicate();
+            while (position + RECORD_HEADER <= slabSize) {
+                source.position(position);
+                final int length = source.getInt();
+                if ((length <= 0) || (source.getLong() != sequence)) break;
+                final long timestamp = source.getLong();
+                final int keyLength = source.getShort();
+                final int size = RECORD_HEADER + keyLength + length;
+                if ((keyLength < 0) || (position + size > slabSize)) break;
+
+                final byte[] key = new byte[keyLength];
+                source.get(key);
+
+                final String id = new String(key, UTF_8);
+                final Location location = new Location(id, this, generation, position + size - length, length, size, timestamp, false);
+                locations.add(location);
+                position += size;
+
+                bytes.addAndGet(size);
+                final Location previous = index.put(id, location);
+                if (previous != null) bytes.addAndGet(- previous.size);
+            }
+        }
+
+        private byte[] read(Location location) {
+            final long stamp = lock.tryOptimisticRead();
+            if ((stamp == 0) || (generation != location.generation)) return null;
+
+            final ByteBuffer source = buffer.duplicate();
+            source.position(location.offset);
+            final byte[] value = new byte[location.length];
+            source.get(value);
+
+            /* Evicted while we were copying? Validation fences our reads */
+            return lock.validate(stamp) ? value : null;
+        }
+    }
+}
@@ -17,6 +17,12 @@ package org.usrz.libs.stores;
 
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.usrz.libs.stores.Query.Field;
 
@@ -54,11 +60,81 @@ public interface Store<D extends Document> {
      */
     public D find(String id);
 
+    /**
+     * Find all the {@link Document}s associated with the specified
+     * {@link Id}s, returning a {@link Map} of the documents found keyed and
+     * ordered by their {@link Id}s.
+     * <p>
+     * Implementations are encouraged to override this method and fetch all
+     * {@link Document}s in a single operation.
+     */
+    public default Map<String, D> findAll(Collection<String> ids) {
+        final Map<String, D> documents = new LinkedHashMap<>();
+        for (String id: ids) {
+            final D document = this.find(id);
+            if (document != null) documents.put(id, document);
+        }
+        return documents;
+    }
+
+    /**
+     * Return the {@linkplain Document#lastModifiedAt() last modified date} of
+     * the {@link Document} associated with the specified {@link Id}, or
+     * <b>null</b> if no such {@link Document} exists.
+     * <p>
+     * Implementations are encouraged to override this method and avoid
+     * fetching the whole {@link Document}.
+     */
+    public default Date lastModifiedAt(String id) {
+        final D document = this.find(id);
+        return document == null ? null : document.lastModifiedAt();
+    }
+
+    /**
+     * Return the {@linkplain Document#lastModifiedAt() last modified dates}
+     * of all existing {@link Document}s associated with the specified
+     * {@link Id}s, skipping any one not found (or without a date).
+     */
+    public default Map<String, Date> lastModifiedAt(Collection<String> ids) {
+        final Map<String, Date> dates = new LinkedHashMap<>();
+        for (String id: ids) {
+            final Date date = this.lastModifiedAt(id);
+            if (date != null) dates.put(id, date);
+        }
+        return dates;
+    }
+
     /**
      * Store the specified {@link Document}.
      */
     public D store(D object);
 
+    /**
+     * Store all the specified {@link Document}s, returning them as stored
+     * in the same order.
+     * <p>
+     * Implementations are encouraged to override this method and store all
+     * {@link Document}s in a single operation.
+     */
+    public default List<D> storeAll(Collection<D> objects) {
+        final List<D> documents = new ArrayList<>(objects.size());
+        for (D object: objects) documents.add(this.store(object));
+        return documents;
+    }
+
+    /**
+     * Store all the specified {@link Document}s keeping their own
+     * {@linkplain Document#lastModifiedAt() last modified dates}, rather
+     * than recording the current date, returning them as stored in the
+     * same order.
+     * <p>
+     * This is used by {@link Store}s accepting writes before storing them,
+     * and by default it throws an {@link UnsupportedOperationException}.
+     */
+    public default List<D> storeAllAsModified(Collection<D> objects) {
+        throw new UnsupportedOperationException("Store " + getClass().getName() + " can not keep last modified dates");
+    }
+
     /**
      * Delete the {@link Document} associated with the specified {@link Id}.
      */
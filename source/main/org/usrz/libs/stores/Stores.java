@@ -91,4 +91,30 @@ public final class Stores {
         return cacheByCollection.get(collection);
     }
 
+    /**
+     * Return the {@linkplain CachingStore#getStatistics() cache statistics}
+     * of the {@link Store} associated with the given {@link Document} type,
+     * or <b>null</b> if not cached.
+     */
+    public CachingStoreMXBean getStatistics(Class<? extends Document> type) {
+        return statistics(getStore(type));
+    }
+
+    /**
+     * Return the {@linkplain CachingStore#getStatistics() cache statistics}
+     * of the {@link Store} associated with the given <em>collection</em>,
+     * or <b>null</b> if not cached.
+     */
+    public CachingStoreMXBean getStatistics(String collection) {
+        return statistics(getStore(collection));
+    }
+
+    private static CachingStoreMXBean statistics(Store<?> store) {
+        while (store instanceof AbstractStoreWrapper) {
+            if (store instanceof CachingStore) return ((CachingStore<?>) store).getStatistics();
+            store = ((AbstractStoreWrapper<?>) store).store;
+        }
+        return null;
+    }
+
 }
@@ -15,6 +15,8 @@
  * ========================================================================== */
 package org.usrz.libs.stores;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Set;
 
 import javax.validation.ConstraintViolation;
@@ -60,4 +62,44 @@ public class ValidatingStore<D extends Document> extends AbstractStoreWrapper<D>
         throw new ConstraintViolationException("Validation failed for " + document, violations);
     }
 
+    /**
+     * Validate and store all the specified {@link Document}s, storing none
+     * of them if any one fails validation.
+     *
+     * @throws NullPointerException If any {@link Document} was <b>null</b>.
+     * @throws ConstraintViolationException If any {@link Document} failed
+     *                                      validation.
+     */
+    @Override
+    public List<D> storeAll(Collection<D> documents)
+    throws NullPointerException, ConstraintViolationException {
+        return store.storeAll(validate(documents));
+    }
+
+    /**
+     * Validate and store all the specified {@link Document}s keeping their
+     * last modified dates, storing none of them if any one fails validation.
+     *
+     * @throws NullPointerException If any {@link Document} was <b>null</b>.
+     * @throws ConstraintViolationException If any {@link Document} failed
+     *                                      validation.
+     */
+    @Override
+    public List<D> storeAllAsModified(Collection<D> documents)
+    throws NullPointerException, ConstraintViolationException {
+        return store.storeAllAsModified(validate(documents));
+    }
+
+    private Collection<D> validate(Collection<D> documents) {
+        for (D document: documents) {
+            if (document == null) throw new NullPointerException("Null document");
+
+            log.debug("Validating document %s", document);
+            final Set<ConstraintViolation<Object>> violations = validator.validate(document);
+            if ((violations != null) && (!violations.isEmpty()))
+                throw new ConstraintViolationException("Validation failed for " + document, violations);
+        }
+        return documents;
+    }
+
 }
@@ -0,0 +1,208 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.usrz.libs.utils.Check.notNull;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.usrz.libs.logging.Log;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A {@link Store} <em>deferring</em> writes of existing {@link Document}s
+ * to the wrapped {@link Store}.
+ * <p>
+ * Writes are visible immediately through {@link #find(String)} and
+ * {@link #findAll(Collection)}, and repeated writes to the same
+ * {@link Document} are coalesced: only the last version is flushed, in
+ * bulk, at a fixed interval.
+ * <p>
+ * When the number of pending writes reaches the configured maximum, the
+ * writing thread will flush them itself before its write is accepted. New
+ * {@link Document}s (without an <em>id</em>) are always stored immediately,
+ * and pending writes are flushed once more when the JVM shuts down.
+ * Deferred writes return a copy of the {@link Document} with its <em>last
+ * modified</em> date set when accepted, and this is the date stored when
+ * they are eventually written.
+ * <p>
+ * Note that {@linkplain #query() queries} do not see pending writes.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ * @param <D> The type of {@link Document}s stored by this {@link Store}.
+ */
+public class WriteBehindStore<D extends Document> extends AbstractStoreWrapper<D>
+implements Closeable {
+
+    /** The maximum number of {@link Document}s written in a single batch. */
+    public static final int FLUSH_BATCH_SIZE = 1000;
+
+    private static final Log log = new Log();
+
+    private final ConcurrentHashMap<String, Pending<D>> pending = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService executor;
+    private final DocumentCodec<D> codec;
+    private final Thread shutdownHook;
+    private final int maxPending;
+
+    public WriteBehindStore(Store<D> store, DocumentCodec<D> codec, Duration delay, int maxPending) {
+        super(store);
+        this.codec = notNull(codec, "Null codec");
+        if (delay.isNegative() || delay.isZero()) throw new IllegalArgumentException("Invalid delay " + delay);
+        if (maxPending < 1) throw new IllegalArgumentException("Invalid maximum pending writes " + maxPending);
+        this.maxPending = maxPending;
+
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("WriteBehindStore-" + getCollection())
+                .setDaemon(true)
+                .build());
+        final long millis = delay.toMillis();
+        executor.scheduleWithFixedDelay(this::flushQuietly, millis, millis, MILLISECONDS);
+
+        shutdownHook = new Thread(this::flushQuietly, "WriteBehindStore-shutdown-" + getCollection());
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    public D find(String id) {
+        final Pending<D> write = pending.get(id);
+        return write != null ? write.document : super.find(id);
+    }
+
+    @Override
+    public Map<String, D> findAll(Collection<String> ids) {
+        final List<String> fetch = new ArrayList<>();
+        for (String id: ids) if (!pending.containsKey(id)) fetch.add(id);
+        final Map<String, D> found = fetch.isEmpty() ? new LinkedHashMap<>() : super.findAll(fetch);
+
+        /* Return in the same order we were asked for */
+        final Map<String, D> documents = new LinkedHashMap<>();
+        for (String id: ids) {
+            final Pending<D> write = pending.get(id);
+            final D document = write != null ? write.document : found.get(id);
+            if (document != null) documents.put(id, document);
+        }
+        return documents;
+    }
+
+    @Override
+    public D store(D object) {
+        final String id = object.id();
+        if (id == null) return super.store(object);
+
+        /* Full? Flush before accepting, so that failures reject this write */
+        if ((pending.size() >= maxPending) && (!pending.containsKey(id))) {
+            log.debug("Flushing %d pending writes in \"%s\" (limit reached)", pending.size(), getCollection());
+            flush();
+        }
+
+        /* Never touch the caller's instance, copy it with its new date */
+        final D document = codec.decode(codec.encode(object, new Date()));
+        pending.put(id, new Pending<>(document));
+        return document;
+    }
+
+    @Override
+    public List<D> storeAll(Collection<D> objects) {
+        final List<D> documents = new ArrayList<>(objects.size());
+        for (D object: objects) documents.add(store(object));
+        return documents;
+    }
+
+    /* Synchronized with flush(), or a flushed write could recreate the document */
+    @Override
+    public synchronized boolean delete(String id) {
+        pending.remove(id);
+        return super.delete(id);
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Return the number of writes not yet flushed.
+     */
+    public int getPending() {
+        return pending.size();
+    }
+
+    /**
+     * Flush all pending writes to the wrapped {@link Store}, in batches of
+     * at most {@value #FLUSH_BATCH_SIZE} {@link Document}s.
+     */
+    public synchronized void flush() {
+        if (pending.isEmpty()) return;
+
+        final List<Pending<D>> writes = new ArrayList<>(pending.values());
+        for (int offset = 0; offset < writes.size(); offset += FLUSH_BATCH_SIZE) {
+            final List<Pending<D>> batch = writes.subList(offset, Math.min(offset + FLUSH_BATCH_SIZE, writes.size()));
+            final List<D> documents = new ArrayList<>(batch.size());
+            for (Pending<D> write: batch) documents.add(write.document);
+            super.storeAllAsModified(documents);
+
+            /* Forget what we wrote, unless it was written again meanwhile */
+            for (Pending<D> write: batch) pending.remove(write.document.id(), write);
+        }
+        log.debug("Flushed %d pending writes in \"%s\"", writes.size(), getCollection());
+    }
+
+    /**
+     * Stop flushing periodically and flush all pending writes.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException exception) {
+            /* Already shutting down */
+        }
+        flush();
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException exception) {
+            log.warn(exception, "Unable to flush %d pending writes in \"%s\"", pending.size(), getCollection());
+        }
+    }
+
+    /* ====================================================================== */
+
+    /* Compared by identity: the same document might be stored again */
+    private static final class Pending<D> {
+
+        private final D document;
+
+        private Pending(D document) {
+            this.document = document;
+        }
+    }
+}
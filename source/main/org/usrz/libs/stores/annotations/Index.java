@@ -72,6 +72,18 @@ public @interface Index {
     /** The options for the index to create. */
     public Option[] options() default {};
 
+    /**
+     * A filter (in JSON) restricting the index to the documents matching
+     * it, for example <code>{"status": "open"}</code>.
+     */
+    public String partialFilter() default "";
+
+    /** The locale of the collation for the index (default is binary). */
+    public String collation() default "";
+
+    /** The strength of the collation for the index (default 3, tertiary). */
+    public int collationStrength() default 3;
+
     /** The list of property keys to index. */
     public Key[] keys();
 
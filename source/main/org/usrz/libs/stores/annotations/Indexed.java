@@ -60,4 +60,16 @@ public @interface Indexed {
     /** The duration for automatic expiration. */
     public String expiresAfter() default "";
 
+    /**
+     * A filter (in JSON) restricting the index to the documents matching
+     * it, for example <code>{"status": "open"}</code>.
+     */
+    public String partialFilter() default "";
+
+    /** The locale of the collation for the index (default is binary). */
+    public String collation() default "";
+
+    /** The strength of the collation for the index (default 3, tertiary). */
+    public int collationStrength() default 3;
+
 }
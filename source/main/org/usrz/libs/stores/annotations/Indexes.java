@@ -35,8 +35,19 @@ import java.lang.annotation.Target;
 @Retention(RUNTIME)
 public @interface Indexes {
 
-    /** The type of the index to create. */
-    public enum Type { ASCENDING, DESCENDING, HASHED };
+    /**
+     * The type of the index to create: {@link #WILDCARD} indexes all the
+     * sub-fields of the specified field (or of the whole document when the
+     * field is empty or {@code $**}), {@link #TEXT} indexes the words in the
+     * specified string field (or in all of them, when the field is empty or
+     * {@code $**}) for {@linkplain org.usrz.libs.stores.Query#text(String)
+     * full-text searches}, {@link #GEO_2DSPHERE} indexes <em>GeoJSON</em>
+     * geometries (such as {@link org.usrz.libs.stores.geo.Point}s) for
+     * {@linkplain org.usrz.libs.stores.Query.Operator#near(double, double, double)
+     * proximity} and {@linkplain org.usrz.libs.stores.Query.Operator#within(org.usrz.libs.stores.geo.Polygon)
+     * containment} queries.
+     */
+    public enum Type { ASCENDING, DESCENDING, HASHED, WILDCARD, TEXT, GEO_2DSPHERE };
 
     /** The options for index creation. */
     public enum Option { SPARSE, UNIQUE };
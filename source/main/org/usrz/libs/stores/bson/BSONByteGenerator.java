@@ -0,0 +1,683 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores.bson;
+
+import static org.usrz.libs.stores.bson.BSONObjectMapper.VERSION;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+import org.bson.BSON;
+import org.bson.BSONObject;
+import org.bson.types.ObjectId;
+
+import com.fasterxml.jackson.core.Base64Variant;
+import com.fasterxml.jackson.core.JsonGenerationException;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonStreamContext;
+import com.fasterxml.jackson.core.ObjectCodec;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.TreeNode;
+import com.fasterxml.jackson.core.Version;
+import com.mongodb.DBRef;
+import com.mongodb.DefaultDBEncoder;
+
+/**
+ * A {@link JsonGenerator} writing <em>BSON</em> bytes directly, without
+ * building an intermediate {@link BSONObject} tree like {@link BSONGenerator}.
+ * <p>
+ * Documents are written in a (per-thread, pooled) scratch buffer, and the
+ * encoded document is available from {@link #getOutputTarget()} as soon as
+ * the root object is closed.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public class BSONByteGenerator extends JsonGenerator {
+
+    private static final int FEATURES = Feature.collectDefaults();
+
+    /* Scratch buffers are pooled per thread, up to this size */
+    private static final int POOLED_SIZE = 1024 * 1024;
+    private static final ThreadLocal<byte[]> BUFFERS = new ThreadLocal<>();
+
+    private final BSONObject fields;
+    private Context context;
+    private ObjectCodec codec;
+    private boolean closed;
+
+    private byte[] buffer;
+    private int position;
+    private byte[] output;
+
+    /**
+     * Create a new {@link BSONByteGenerator}.
+     */
+    public BSONByteGenerator(ObjectCodec codec) {
+        this(codec, null);
+    }
+
+    /**
+     * Create a new {@link BSONByteGenerator} writing the specified fields
+     * (if any) first in the root document.
+     */
+    public BSONByteGenerator(ObjectCodec codec, BSONObject fields) {
+        context = new Context(Context.ROOT, null, 0);
+        this.fields = fields;
+        this.codec = codec;
+        closed = false;
+
+        /* Borrow our scratch buffer, if any is available */
+        final byte[] pooled = BUFFERS.get();
+        if (pooled == null) {
+            buffer = new byte[4096];
+        } else {
+            BUFFERS.set(null);
+            buffer = pooled;
+        }
+    }
+
+    @Override
+    public Version version() {
+        return VERSION;
+    }
+
+    @Override
+    public BSONByteGenerator setCodec(ObjectCodec codec) {
+        this.codec = codec;
+        return this;
+    }
+
+    @Override
+    public ObjectCodec getCodec() {
+        return codec;
+    }
+
+    @Override
+    public JsonGenerator enable(Feature feature) {
+        if ((FEATURES & feature.getMask()) != 0) return this;
+        throw new IllegalArgumentException("Can not enable feature " + feature.name());
+    }
+
+    @Override
+    public JsonGenerator disable(Feature feature) {
+        if ((FEATURES & feature.getMask()) == 0) return this;
+        throw new IllegalArgumentException("Can not disable feature " + feature.name());
+    }
+
+    @Override
+    public boolean isEnabled(Feature feature) {
+        return (FEATURES & feature.getMask()) != 0;
+    }
+
+    @Override
+    public int getFeatureMask() {
+        return FEATURES;
+    }
+
+    @Override
+    public JsonGenerator setFeatureMask(int mask) {
+        if (FEATURES == mask) return this;
+        throw new IllegalArgumentException("Unable to modify feature mask");
+    }
+
+    @Override
+    public JsonGenerator useDefaultPrettyPrinter() {
+        return this;
+    }
+
+    @Override
+    public boolean canWriteBinaryNatively() {
+        return true;
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    public void flush() {
+        /* Do nothing */
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close()
+    throws IOException {
+        if (closed) return;
+        closed = true;
+
+        /* Return our scratch buffer to the pool, unless it's too big */
+        if (buffer.length <= POOLED_SIZE) BUFFERS.set(buffer);
+        buffer = null;
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    public JsonStreamContext getOutputContext() {
+        return context;
+    }
+
+    /**
+     * Return the encoded <em>BSON</em> document, or <b>null</b> if the root
+     * object was not written (or closed) yet.
+     */
+    @Override
+    public byte[] getOutputTarget() {
+        return output;
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    public void writeFieldName(String name)
+    throws IOException, JsonGenerationException {
+        if (closed) throw new IOException("Closed");
+        if (!context.inObject()) throw new IllegalStateException("Field names only allowed in objects");
+        if (context.name != null) throw new IllegalStateException("Name already set to \"" + context.name + "\"");
+        context.name = name;
+    }
+
+    @Override
+    public void writeStartObject()
+    throws IOException, JsonGenerationException {
+        if (closed) throw new IOException("Closed");
+
+        if (context.inRoot()) {
+            if (output != null) throw new IllegalStateException("Root object already written");
+            context = new Context(Context.OBJECT, context, reserve());
+
+            /* Our additional fields always come first */
+            if (fields != null) for (String name: fields.keySet()) {
+                context.name = name;
+                writeValue(fields.get(name));
+            }
+
+        } else {
+            header(BSON.OBJECT);
+            context = new Context(Context.OBJECT, context, reserve());
+        }
+    }
+
+    @Override
+    public void writeEndObject()
+    throws IOException, JsonGenerationException {
+        if (closed) throw new IOException("Closed");
+        if (!context.inObject()) throw new IllegalStateException("Not in an object");
+        end();
+
+        /* Root object? Copy out the whole document */
+        if (context.inRoot()) output = Arrays.copyOf(buffer, position);
+    }
+
+    @Override
+    public void writeStartArray()
+    throws IOException, JsonGenerationException {
+        if (closed) throw new IOException("Closed");
+        if (context.inRoot()) throw new UnsupportedOperationException("Root objects can not be arrays");
+        header(BSON.ARRAY);
+        context = new Context(Context.ARRAY, context, reserve());
+    }
+
+    @Override
+    public void writeEndArray()
+    throws IOException, JsonGenerationException {
+        if (closed) throw new IOException("Closed");
+        if (!context.inArray()) throw new IllegalStateException("Not in an array");
+        end();
+    }
+
+    @Override
+    public void writeString(String text)
+    throws IOException, JsonGenerationException {
+        if (closed) throw new IOException("Closed");
+        if (text == null) {
+            header(BSON.NULL);
+        } else {
+            header(BSON.STRING);
+            string(text);
+        }
+    }
+
+    @Override
+    public void writeBinary(Base64Variant b64variant, byte[] data, int offset, int len)
+    throws IOException, JsonGenerationException {
+        if (closed) throw new IOException("Closed");
+        header(BSON.BINARY);
+        ensure(len + 5);
+        int32(len);
+        buffer[position ++] = BSON.B_GENERAL;
+        System.arraycopy(data, offset, buffer, position, len);
+        position += len;
+    }
+
+    @Override
+    public void writeNumber(int v)
+    throws IOException, JsonGenerationException {
+        if (closed) throw new IOException("Closed");
+        header(BSON.NUMBER_INT);
+        int32(v);
+    }
+
+    @Override
+    public void writeNumber(long v)
+    throws IOException, JsonGenerationException {
+        if (closed) throw new IOException("Closed");
+        header(BSON.NUMBER_LONG);
+        int64(v);
+    }
+
+    @Override
+    public void writeNumber(BigInteger v)
+    throws IOException, JsonGenerationException {
+        if (v == null) writeNull();
+        else writeNumber(v.longValue());
+    }
+
+    @Override
+    public void writeNumber(double v)
+    throws IOException, JsonGenerationException {
+        if (closed) throw new IOException("Closed");
+        header(BSON.NUMBER);
+        int64(Double.doubleToRawLongBits(v));
+    }
+
+    @Override
+    public void writeNumber(float v)
+    throws IOException, JsonGenerationException {
+        writeNumber((double) v);
+    }
+
+    @Override
+    public void writeNumber(BigDecimal v)
+    throws IOException, JsonGenerationException {
+        if (v == null) writeNull();
+        else writeNumber(v.doubleValue());
+    }
+
+    @Override
+    public void writeBoolean(boolean v)
+    throws IOException, JsonGenerationException {
+        if (closed) throw new IOException("Closed");
+        header(BSON.BOOLEAN);
+        ensure(1);
+        buffer[position ++] = (byte) (v ? 1 : 0);
+    }
+
+    @Override
+    public void writeNull()
+    throws IOException, JsonGenerationException {
+        if (closed) throw new IOException("Closed");
+        header(BSON.NULL);
+    }
+
+    @Override
+    public void writeObject(Object object)
+    throws IOException, JsonProcessingException {
+        if (closed) throw new IOException("Closed");
+        if (writeValue(object)) return;
+        else if (codec != null) codec.writeValue(this, object);
+        else _writeSimpleObject(object);
+    }
+
+    @Override
+    public void writeTree(TreeNode tree)
+    throws IOException, JsonProcessingException {
+        if (closed) throw new IOException("Closed");
+        codec.writeTree(this, tree);
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    public void writeFieldName(SerializableString name)
+    throws IOException, JsonGenerationException {
+        this.writeFieldName(name.getValue());
+    }
+
+    @Override
+    public void writeString(char[] text, int offset, int len)
+    throws IOException, JsonGenerationException {
+        this.writeString(new String(text, offset, len));
+    }
+
+    @Override
+    public void writeString(SerializableString text)
+    throws IOException, JsonGenerationException {
+        this.writeString(text.getValue());
+    }
+
+    @Override
+    public int writeBinary(Base64Variant b64variant, InputStream data, int len)
+    throws IOException, JsonGenerationException {
+        final byte[] buffer = new byte[len];
+
+        int read = -1;
+        int offset = 0;
+        while ((read = data.read(buffer, offset, len - offset)) >= 0) {
+            if ((offset += read) >= len) break;
+        }
+
+        this.writeBinary(b64variant, buffer, 0, offset);
+        return offset;
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    public void writeNumber(String encodedValue) {
+        throw new UnsupportedOperationException("Un-typized number unsupported");
+    }
+
+    @Override
+    public void writeRawUTF8String(byte[] text, int offset, int length) {
+        throw new UnsupportedOperationException("RAW writes unsupported");
+    }
+
+    @Override
+    public void writeUTF8String(byte[] text, int offset, int length) {
+        throw new UnsupportedOperationException("RAW writes unsupported");
+    }
+
+    @Override
+    public void writeRaw(String text) {
+        throw new UnsupportedOperationException("RAW writes unsupported");
+    }
+
+    @Override
+    public void writeRaw(String text, int offset, int len) {
+        throw new UnsupportedOperationException("RAW writes unsupported");
+    }
+
+    @Override
+    public void writeRaw(char[] text, int offset, int len) {
+        throw new UnsupportedOperationException("RAW writes unsupported");
+    }
+
+    @Override
+    public void writeRaw(char c) {
+        throw new UnsupportedOperationException("RAW writes unsupported");
+    }
+
+    @Override
+    public void writeRawValue(String text) {
+        throw new UnsupportedOperationException("RAW writes unsupported");
+    }
+
+    @Override
+    public void writeRawValue(String text, int offset, int len) {
+        throw new UnsupportedOperationException("RAW writes unsupported");
+    }
+
+    @Override
+    public void writeRawValue(char[] text, int offset, int len) {
+        throw new UnsupportedOperationException("RAW writes unsupported");
+    }
+
+    /* ====================================================================== */
+
+    /* Write any of the natively supported types, false if unsupported */
+    private boolean writeValue(Object object)
+    throws IOException {
+        if (object == null) {
+            header(BSON.NULL);
+
+        } else if (object instanceof String) {
+            header(BSON.STRING);
+            string((String) object);
+
+        } else if (object instanceof Integer) {
+            header(BSON.NUMBER_INT);
+            int32((Integer) object);
+
+        } else if (object instanceof Long) {
+            header(BSON.NUMBER_LONG);
+            int64((Long) object);
+
+        } else if (object instanceof Double) {
+            header(BSON.NUMBER);
+            int64(Double.doubleToRawLongBits((Double) object));
+
+        } else if (object instanceof Boolean) {
+            writeBoolean((Boolean) object);
+
+        } else if (object instanceof byte[]) {
+            final byte[] bytes = (byte[]) object;
+            writeBinary(null, bytes, 0, bytes.length);
+
+        } else if (object instanceof Date) {
+            header(BSON.DATE);
+            int64(((Date) object).getTime());
+
+        } else if (object instanceof ObjectId) {
+            header(BSON.OID);
+            bytes(((ObjectId) object).toByteArray());
+
+        } else if (object instanceof Pattern) {
+            final Pattern pattern = (Pattern) object;
+            header(BSON.REGEX);
+            cstring(pattern.pattern());
+            cstring(BSON.regexFlags(pattern.flags()));
+
+        } else if (object instanceof UUID) {
+            final UUID uuid = (UUID) object;
+            header(BSON.BINARY);
+            ensure(5);
+            int32(16);
+            buffer[position ++] = BSON.B_UUID;
+            int64(uuid.getMostSignificantBits());
+            int64(uuid.getLeastSignificantBits());
+
+        } else if (object instanceof DBRef) {
+            final DBRef ref = (DBRef) object;
+            header(BSON.OBJECT);
+            context = new Context(Context.OBJECT, context, reserve());
+            context.name = "$ref";
+            writeValue(ref.getCollectionName());
+            context.name = "$id";
+            if (!writeValue(ref.getId()))
+                throw new IllegalArgumentException("Type \"" + ref.getId().getClass() + "\" not supported in references");
+            end();
+
+        } else if (object instanceof BSONObject) {
+            /* Rare enough, let the driver deal with those */
+            header(object instanceof List ? BSON.ARRAY : BSON.OBJECT);
+            bytes(new DefaultDBEncoder().encode((BSONObject) object));
+
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /* ====================================================================== */
+
+    /* Type and name of an element, name from our context */
+    private void header(byte type) {
+        final Context context = this.context;
+        if (context.inObject()) {
+            if (context.name == null) throw new IllegalStateException("Name not set");
+            ensure(1);
+            buffer[position ++] = type;
+            cstring(context.name);
+            context.name = null;
+            context.next();
+        } else if (context.inArray()) {
+            ensure(12);
+            buffer[position ++] = type;
+            index(context.next());
+        } else {
+            throw new UnsupportedOperationException("Root objects can not have values");
+        }
+    }
+
+    /* Reserve space for a document size, returning its position */
+    private int reserve() {
+        ensure(4);
+        final int start = position;
+        position += 4;
+        return start;
+    }
+
+    /* Terminate the current document, back-patching its size */
+    private void end() {
+        ensure(1);
+        buffer[position ++] = BSON.EOO;
+        final int start = context.start;
+        final int size = position - start;
+        buffer[start    ] = (byte) (size       );
+        buffer[start + 1] = (byte) (size >>>  8);
+        buffer[start + 2] = (byte) (size >>> 16);
+        buffer[start + 3] = (byte) (size >>> 24);
+        context = context.parent;
+    }
+
+    /* ====================================================================== */
+
+    private void ensure(int bytes) {
+        if (position + bytes <= buffer.length) return;
+        buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + bytes));
+    }
+
+    private void bytes(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    private void int32(int value) {
+        ensure(4);
+        buffer[position ++] = (byte) (value       );
+        buffer[position ++] = (byte) (value >>>  8);
+        buffer[position ++] = (byte) (value >>> 16);
+        buffer[position ++] = (byte) (value >>> 24);
+    }
+
+    private void int64(long value) {
+        ensure(8);
+        for (int x = 0; x < 64; x += 8) buffer[position ++] = (byte) (value >>> x);
+    }
+
+    /* Array indexes are written as names, without allocating strings */
+    private void index(int index) {
+        if (index < 10) {
+            buffer[position ++] = (byte) ('0' + index);
+        } else {
+            final int start = position;
+            while (index > 0) {
+                buffer[position ++] = (byte) ('0' + (index % 10));
+                index /= 10;
+            }
+            for (int x = start, y = position - 1; x < y; x ++, y --) {
+                final byte swap = buffer[x];
+                buffer[x] = buffer[y];
+                buffer[y] = swap;
+            }
+        }
+        buffer[position ++] = BSON.EOO;
+    }
+
+    /* A length-prefixed, null-terminated UTF-8 string */
+    private void string(String string) {
+        final int start = reserve();
+        utf8(string, false);
+        ensure(1);
+        buffer[position ++] = BSON.EOO;
+
+        final int size = position - start - 4;
+        buffer[start    ] = (byte) (size       );
+        buffer[start + 1] = (byte) (size >>>  8);
+        buffer[start + 2] = (byte) (size >>> 16);
+        buffer[start + 3] = (byte) (size >>> 24);
+    }
+
+    /* A null-terminated UTF-8 string (field names and regular expressions) */
+    private void cstring(String string) {
+        utf8(string, true);
+        ensure(1);
+        buffer[position ++] = BSON.EOO;
+    }
+
+    private void utf8(String string, boolean cstring) {
+        final int length = string.length();
+        ensure(length * 3);
+
+        for (int x = 0; x < length; x ++) {
+            final char c = string.charAt(x);
+            if (c < 0x80) {
+                if (cstring && (c == 0)) throw new IllegalArgumentException("Null character in \"" + string + "\"");
+                buffer[position ++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[position ++] = (byte) (0xC0 | (c >> 6));
+                buffer[position ++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && (x + 1 < length) && Character.isLowSurrogate(string.charAt(x + 1))) {
+                final int codePoint = Character.toCodePoint(c, string.charAt(++ x));
+                buffer[position ++] = (byte) (0xF0 | (codePoint >> 18));
+                buffer[position ++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buffer[position ++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buffer[position ++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else {
+                buffer[position ++] = (byte) (0xE0 | (c >> 12));
+                buffer[position ++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[position ++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    /* ====================================================================== */
+
+    private static final class Context extends JsonStreamContext {
+
+        private static final int ROOT = TYPE_ROOT;
+        private static final int OBJECT = TYPE_OBJECT;
+        private static final int ARRAY = TYPE_ARRAY;
+
+        private final Context parent;
+        private final int start;
+        private String name;
+
+        private Context(int type, Context parent, int start) {
+            _type = type;
+            _index = -1;
+            this.parent = parent;
+            this.start = start;
+        }
+
+        private int next() {
+            return ++ _index;
+        }
+
+        @Override
+        public Context getParent() {
+            return parent;
+        }
+
+        @Override
+        public String getCurrentName() {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,669 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores.bson;
+
+import static com.fasterxml.jackson.core.JsonToken.END_ARRAY;
+import static com.fasterxml.jackson.core.JsonToken.END_OBJECT;
+import static com.fasterxml.jackson.core.JsonToken.FIELD_NAME;
+import static com.fasterxml.jackson.core.JsonToken.START_ARRAY;
+import static com.fasterxml.jackson.core.JsonToken.START_OBJECT;
+import static com.fasterxml.jackson.core.JsonToken.VALUE_EMBEDDED_OBJECT;
+import static com.fasterxml.jackson.core.JsonToken.VALUE_FALSE;
+import static com.fasterxml.jackson.core.JsonToken.VALUE_NULL;
+import static com.fasterxml.jackson.core.JsonToken.VALUE_NUMBER_FLOAT;
+import static com.fasterxml.jackson.core.JsonToken.VALUE_NUMBER_INT;
+import static com.fasterxml.jackson.core.JsonToken.VALUE_STRING;
+import static com.fasterxml.jackson.core.JsonToken.VALUE_TRUE;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.usrz.libs.stores.bson.BSONObjectMapper.VERSION;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Set;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+import org.bson.BSON;
+import org.bson.BSONObject;
+import org.bson.BasicBSONDecoder;
+import org.bson.types.BSONTimestamp;
+import org.bson.types.Binary;
+import org.bson.types.Code;
+import org.bson.types.CodeWScope;
+import org.bson.types.MaxKey;
+import org.bson.types.MinKey;
+import org.bson.types.ObjectId;
+
+import com.fasterxml.jackson.core.Base64Variant;
+import com.fasterxml.jackson.core.JsonLocation;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonStreamContext;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.ObjectCodec;
+import com.fasterxml.jackson.core.Version;
+import com.mongodb.DBRef;
+
+/**
+ * A {@link JsonParser} reading tokens directly from <em>BSON</em> bytes,
+ * without decoding them in an intermediate {@link BSONObject} tree like
+ * {@link BSONParser}.
+ * <p>
+ * Values are exposed exactly as {@link BSONParser} does (dates, object IDs,
+ * references, ... as {@linkplain JsonToken#VALUE_EMBEDDED_OBJECT embedded
+ * objects}), and selected fields of the root document can be skipped
+ * altogether.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public class BSONByteParser extends JsonParser {
+
+    private final byte[] bytes;
+    private final int end;
+    private final Set<String> skipped;
+    private ObjectCodec codec;
+    private boolean closed;
+
+    private Context context;
+    private int position;
+    private byte pending;
+
+    private JsonToken token;
+    private JsonToken cleared;
+
+    /* The value of the current token */
+    private String text;
+    private NumberType numberType;
+    private long longValue;
+    private double doubleValue;
+    private Object embedded;
+
+    public BSONByteParser(ObjectCodec codec, byte[] bytes) {
+        this(codec, bytes, 0, null);
+    }
+
+    /**
+     * Create a new {@link BSONByteParser} reading the document at the given
+     * offset, and ignoring the specified fields of the root document.
+     */
+    public BSONByteParser(ObjectCodec codec, byte[] bytes, int offset, Set<String> skipped) {
+        this.bytes = bytes;
+        this.codec = codec;
+        this.skipped = skipped == null ? Collections.emptySet() : skipped;
+        position = offset;
+        end = offset + int32(bytes, offset);
+        if ((end > bytes.length) || (end < offset + 5))
+            throw new IllegalArgumentException("Invalid BSON document size " + (end - offset));
+        context = new Context(Context.ROOT, null, end);
+        closed = false;
+    }
+
+    @Override
+    public Version version() {
+        return VERSION;
+    }
+
+    @Override
+    public void setCodec(ObjectCodec codec) {
+        this.codec = codec;
+    }
+
+    @Override
+    public ObjectCodec getCodec() {
+        return codec;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close()
+    throws IOException {
+        closed = true;
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    public JsonLocation getTokenLocation() {
+        return new JsonLocation(null, position, -1, -1);
+    }
+
+    @Override
+    public JsonLocation getCurrentLocation() {
+        return new JsonLocation(null, position, -1, -1);
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    public JsonStreamContext getParsingContext() {
+        return context;
+    }
+
+    @Override
+    public JsonToken nextToken()
+    throws IOException, JsonParseException {
+        cleared = null;
+        if (closed) return token = null;
+
+        /* Value of a field whose name we just returned */
+        if (pending != BSON.EOO) {
+            final byte type = pending;
+            pending = BSON.EOO;
+            return token = value(type);
+        }
+
+        /* Start (or end) of the whole document */
+        if (context.inRoot()) {
+            if (position >= end) return token = null;
+            context = new Context(Context.OBJECT, context, end);
+            position += 4;
+            return token = START_OBJECT;
+        }
+
+        while (true) {
+            if (position >= context.end) throw new JsonParseException("Truncated BSON document", getCurrentLocation());
+
+            /* End of the current object or array */
+            final byte type = bytes[position ++];
+            if (type == BSON.EOO) {
+                final boolean array = context.inArray();
+                if (position != context.end) throw new JsonParseException("Invalid BSON document size", getCurrentLocation());
+                context = context.parent;
+                return token = array ? END_ARRAY : END_OBJECT;
+            }
+
+            /* Array elements: ignore the name, just return the value */
+            context.next();
+            if (context.inArray()) {
+                position = skipCString(position);
+                return token = value(type);
+            }
+
+            /* Object fields: skip (at root level) or remember the type */
+            context.name = cstring();
+            if (context.parent.inRoot() && skipped.contains(context.name)) {
+                position = skip(type, position);
+                continue;
+            }
+
+            pending = type;
+            return token = FIELD_NAME;
+        }
+    }
+
+    @Override
+    public BSONByteParser skipChildren()
+    throws IOException, JsonParseException {
+        if ((token == START_OBJECT) || (token == START_ARRAY)) {
+            position = context.end;
+            context = context.parent;
+            token = token == START_OBJECT ? END_OBJECT : END_ARRAY;
+        }
+        return this;
+    }
+
+    @Override
+    public void clearCurrentToken() {
+        if (token != null) cleared = token;
+        token = null;
+    }
+
+    @Override
+    public JsonToken nextValue()
+    throws IOException, JsonParseException {
+        final JsonToken token = nextToken();
+        return token == FIELD_NAME ? nextToken() : token;
+    }
+
+    @Override
+    public JsonToken getCurrentToken() {
+        return token;
+    }
+
+    @Override
+    public int getCurrentTokenId() {
+        return token == null ? -1 : token.id();
+    }
+
+    @Override
+    public boolean hasCurrentToken() {
+        return token != null;
+    }
+
+    @Override
+    public String getCurrentName()
+    throws IOException, JsonParseException {
+        /* When starting objects or arrays, the name is the parent's */
+        if ((token == START_OBJECT) || (token == START_ARRAY)) return context.parent.getCurrentName();
+        return context.getCurrentName();
+    }
+
+    @Override
+    public JsonToken getLastClearedToken() {
+        return cleared;
+    }
+
+    @Override
+    public void overrideCurrentName(String name) {
+        throw new UnsupportedOperationException("Forget about it, Frank!");
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    public Number getNumberValue()
+    throws IOException, JsonParseException {
+        if (numberType == null) return null;
+        switch (numberType) {
+            case INT:    return (int) longValue;
+            case LONG:   return longValue;
+            case DOUBLE: return doubleValue;
+            default:     return null;
+        }
+    }
+
+    @Override
+    public NumberType getNumberType()
+    throws IOException, JsonParseException {
+        return numberType;
+    }
+
+    @Override
+    public Object getEmbeddedObject()
+    throws IOException, JsonParseException {
+        if (token == null) return null;
+        switch (token) {
+            case VALUE_EMBEDDED_OBJECT: return embedded;
+            case VALUE_STRING:          return text;
+            case VALUE_NUMBER_INT:      return getNumberValue();
+            case VALUE_NUMBER_FLOAT:    return getNumberValue();
+            case VALUE_TRUE:            return Boolean.TRUE;
+            case VALUE_FALSE:           return Boolean.FALSE;
+            case FIELD_NAME:            return context.name;
+            default:                    return null;
+        }
+    }
+
+    @Override
+    public byte[] getBinaryValue(Base64Variant b64variant)
+    throws IOException, JsonParseException {
+        if (token == VALUE_NULL) return null;
+        if ((token == VALUE_EMBEDDED_OBJECT) && (embedded instanceof byte[])) return (byte[]) embedded;
+        throw new JsonParseException("Current token (" + token + ") is not binary", getCurrentLocation());
+    }
+
+    @Override
+    public String getText()
+    throws IOException, JsonParseException {
+        if (token == null) return null;
+        switch (token) {
+            case VALUE_STRING:       return text;
+            case FIELD_NAME:         return context.name;
+            case VALUE_NUMBER_INT:   return String.valueOf(getNumberValue());
+            case VALUE_NUMBER_FLOAT: return String.valueOf(getNumberValue());
+            default:                 return token.asString();
+        }
+    }
+
+    @Override
+    public String getValueAsString(String defaultValue)
+    throws IOException, JsonParseException {
+        if (token == null) return null;
+        switch (token) {
+            case VALUE_STRING:       return text;
+            case FIELD_NAME:         return context.name;
+            case VALUE_NUMBER_INT:   return String.valueOf(getNumberValue());
+            case VALUE_NUMBER_FLOAT: return String.valueOf(getNumberValue());
+            default:                 return defaultValue;
+        }
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    public char[] getTextCharacters()
+    throws IOException, JsonParseException {
+        final String text = getText();
+        return text == null ? null : text.toCharArray();
+    }
+
+    @Override
+    public int getTextLength()
+    throws IOException, JsonParseException {
+        final String text = getText();
+        return text == null ? 0 : text.length();
+    }
+
+    @Override
+    public int getTextOffset()
+    throws IOException, JsonParseException {
+        return 0;
+    }
+
+    @Override
+    public boolean hasTextCharacters() {
+        return false;
+    }
+
+    @Override
+    public int getIntValue()
+    throws IOException, JsonParseException {
+        return numberType == NumberType.DOUBLE ? (int) doubleValue : (int) longValue;
+    }
+
+    @Override
+    public long getLongValue()
+    throws IOException, JsonParseException {
+        return numberType == NumberType.DOUBLE ? (long) doubleValue : longValue;
+    }
+
+    @Override
+    public BigInteger getBigIntegerValue()
+    throws IOException, JsonParseException {
+        return BigInteger.valueOf(getLongValue());
+    }
+
+    @Override
+    public float getFloatValue()
+    throws IOException, JsonParseException {
+        return (float) getDoubleValue();
+    }
+
+    @Override
+    public double getDoubleValue()
+    throws IOException, JsonParseException {
+        return numberType == NumberType.DOUBLE ? doubleValue : longValue;
+    }
+
+    @Override
+    public BigDecimal getDecimalValue()
+    throws IOException, JsonParseException {
+        return BigDecimal.valueOf(getDoubleValue());
+    }
+
+    @Override
+    public boolean hasTokenId(int id) {
+        return getCurrentTokenId() == id;
+    }
+
+    /* ====================================================================== */
+
+    /* Read the value of an element, returning its token */
+    private JsonToken value(byte type)
+    throws JsonParseException {
+        numberType = null;
+        embedded = null;
+        text = null;
+
+        switch (type) {
+            case BSON.NUMBER:
+                numberType = NumberType.DOUBLE;
+                doubleValue = Double.longBitsToDouble(int64(bytes, position));
+                position += 8;
+                return VALUE_NUMBER_FLOAT;
+
+            case BSON.NUMBER_INT:
+                numberType = NumberType.INT;
+                longValue = int32(bytes, position);
+                position += 4;
+                return VALUE_NUMBER_INT;
+
+            case BSON.NUMBER_LONG:
+                numberType = NumberType.LONG;
+                longValue = int64(bytes, position);
+                position += 8;
+                return VALUE_NUMBER_INT;
+
+            case BSON.STRING:
+            case BSON.SYMBOL:
+                text = string();
+                return VALUE_STRING;
+
+            case BSON.BOOLEAN:
+                return bytes[position ++] == 0 ? VALUE_FALSE : VALUE_TRUE;
+
+            case BSON.NULL:
+            case BSON.UNDEFINED:
+                return VALUE_NULL;
+
+            case BSON.OBJECT: {
+                final int size = int32(bytes, position);
+                if (isReference(position)) {
+                    final BSONObject object = document(position, size);
+                    embedded = new DBRef((String) object.get("$ref"), object.get("$id"));
+                    position += size;
+                    return VALUE_EMBEDDED_OBJECT;
+                }
+                context = new Context(Context.OBJECT, context, position + size);
+                position += 4;
+                return START_OBJECT;
+            }
+
+            case BSON.ARRAY: {
+                final int size = int32(bytes, position);
+                context = new Context(Context.ARRAY, context, position + size);
+                position += 4;
+                return START_ARRAY;
+            }
+
+            case BSON.BINARY: {
+                int length = int32(bytes, position);
+                final byte subtype = bytes[position + 4];
+                position += 5;
+                if (subtype == BSON.B_BINARY) { // old binary, has extra length
+                    length = int32(bytes, position);
+                    position += 4;
+                }
+                if ((subtype == BSON.B_UUID) && (length == 16)) {
+                    embedded = new UUID(int64(bytes, position), int64(bytes, position + 8));
+                } else {
+                    final byte[] data = Arrays.copyOfRange(bytes, position, position + length);
+                    embedded = (subtype == BSON.B_GENERAL) || (subtype == BSON.B_BINARY) ? data : new Binary(subtype, data);
+                }
+                position += length;
+                return VALUE_EMBEDDED_OBJECT;
+            }
+
+            case BSON.OID:
+                embedded = new ObjectId(Arrays.copyOfRange(bytes, position, position + 12));
+                position += 12;
+                return VALUE_EMBEDDED_OBJECT;
+
+            case BSON.DATE:
+                embedded = new Date(int64(bytes, position));
+                position += 8;
+                return VALUE_EMBEDDED_OBJECT;
+
+            case BSON.REGEX: {
+                final String pattern = cstring();
+                final String flags = cstring();
+                embedded = Pattern.compile(pattern, BSON.regexFlags(flags));
+                return VALUE_EMBEDDED_OBJECT;
+            }
+
+            case BSON.REF: {
+                final String namespace = string();
+                final ObjectId id = new ObjectId(Arrays.copyOfRange(bytes, position, position + 12));
+                position += 12;
+                embedded = new DBRef(namespace, id);
+                return VALUE_EMBEDDED_OBJECT;
+            }
+
+            case BSON.CODE:
+                embedded = new Code(string());
+                return VALUE_EMBEDDED_OBJECT;
+
+            case BSON.CODE_W_SCOPE: {
+                final int size = int32(bytes, position);
+                final int start = position;
+                position += 4;
+                final String code = string();
+                embedded = new CodeWScope(code, document(position, int32(bytes, position)));
+                position = start + size;
+                return VALUE_EMBEDDED_OBJECT;
+            }
+
+            case BSON.TIMESTAMP:
+                embedded = new BSONTimestamp(int32(bytes, position + 4), int32(bytes, position));
+                position += 8;
+                return VALUE_EMBEDDED_OBJECT;
+
+            case BSON.MINKEY:
+                embedded = new MinKey();
+                return VALUE_EMBEDDED_OBJECT;
+
+            case BSON.MAXKEY:
+                embedded = new MaxKey();
+                return VALUE_EMBEDDED_OBJECT;
+
+            default:
+                throw new JsonParseException("Unsupported BSON type " + type, getCurrentLocation());
+        }
+    }
+
+    /* Skip the value of an element, returning the position after it */
+    private int skip(byte type, int position)
+    throws JsonParseException {
+        switch (type) {
+            case BSON.NULL:
+            case BSON.UNDEFINED:
+            case BSON.MINKEY:
+            case BSON.MAXKEY:       return position;
+            case BSON.BOOLEAN:      return position + 1;
+            case BSON.NUMBER_INT:   return position + 4;
+            case BSON.NUMBER:
+            case BSON.NUMBER_LONG:
+            case BSON.DATE:
+            case BSON.TIMESTAMP:    return position + 8;
+            case BSON.OID:          return position + 12;
+            case BSON.STRING:
+            case BSON.SYMBOL:
+            case BSON.CODE:         return position + 4 + int32(bytes, position);
+            case BSON.REF:          return position + 16 + int32(bytes, position);
+            case BSON.BINARY:       return position + 5 + int32(bytes, position);
+            case BSON.OBJECT:
+            case BSON.ARRAY:
+            case BSON.CODE_W_SCOPE: return position + int32(bytes, position);
+            case BSON.REGEX:        return skipCString(skipCString(position));
+            default: throw new JsonParseException("Unsupported BSON type " + type, getCurrentLocation());
+        }
+    }
+
+    /* References are (as the driver does) objects with "$ref" and "$id" */
+    private boolean isReference(int start) throws JsonParseException {
+        final int end = start + int32(bytes, start);
+        int position = start + 4;
+
+        /* Avoid scanning unless the first field name starts with "$" */
+        if ((position + 1 >= end) || (bytes[position + 1] != '$')) return false;
+
+        boolean ref = false, id = false;
+        while ((position < end) && (bytes[position] != BSON.EOO)) {
+            final byte type = bytes[position ++];
+            final int name = position;
+            position = skipCString(position);
+            if (matches(name, position - 1, "$ref")) ref = true;
+            else if (matches(name, position - 1, "$id")) id = true;
+            position = skip(type, position);
+        }
+        return ref && id;
+    }
+
+    /* Rare enough (references, code with scope), let the driver decode those */
+    private BSONObject document(int start, int size) {
+        return new BasicBSONDecoder().readObject(Arrays.copyOfRange(bytes, start, start + size));
+    }
+
+    /* ====================================================================== */
+
+    private boolean matches(int start, int end, String name) {
+        if (end - start != name.length()) return false;
+        for (int x = 0; x < name.length(); x ++) if (bytes[start + x] != name.charAt(x)) return false;
+        return true;
+    }
+
+    private int skipCString(int position) {
+        while (bytes[position] != BSON.EOO) position ++;
+        return position + 1;
+    }
+
+    private String cstring() {
+        final int start = position;
+        position = skipCString(position);
+        return new String(bytes, start, position - start - 1, UTF_8);
+    }
+
+    private String string() {
+        final int length = int32(bytes, position);
+        final String string = new String(bytes, position + 4, length - 1, UTF_8);
+        position += 4 + length;
+        return string;
+    }
+
+    private static int int32(byte[] bytes, int position) {
+        return (bytes[position    ] & 0xFF)
+             | (bytes[position + 1] & 0xFF) <<  8
+             | (bytes[position + 2] & 0xFF) << 16
+             | (bytes[position + 3] & 0xFF) << 24;
+    }
+
+    private static long int64(byte[] bytes, int position) {
+        return (int32(bytes, position) & 0xFFFFFFFFL)
+             | ((long) int32(bytes, position + 4) << 32);
+    }
+
+    /* ====================================================================== */
+
+    private static final class Context extends JsonStreamContext {
+
+        private static final int ROOT = TYPE_ROOT;
+        private static final int OBJECT = TYPE_OBJECT;
+        private static final int ARRAY = TYPE_ARRAY;
+
+        private final Context parent;
+        private final int end;
+        private String name;
+
+        private Context(int type, Context parent, int end) {
+            _type = type;
+            _index = -1;
+            this.parent = parent;
+            this.end = end;
+        }
+
+        private void next() {
+            _index ++;
+        }
+
+        @Override
+        public Context getParent() {
+            return parent;
+        }
+
+        @Override
+        public String getCurrentName() {
+            return inObject() ? name : null;
+        }
+    }
+}
@@ -0,0 +1,622 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores.bson;
+
+import static java.lang.invoke.MethodType.methodType;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+import org.bson.types.ObjectId;
+import org.usrz.libs.logging.Log;
+import org.usrz.libs.stores.Document;
+import org.usrz.libs.utils.Check;
+
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.AnnotationIntrospector;
+import com.fasterxml.jackson.databind.BeanDescription;
+import com.fasterxml.jackson.databind.DeserializationConfig;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationConfig;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.deser.DefaultDeserializationContext;
+import com.fasterxml.jackson.databind.exc.UnrecognizedPropertyException;
+import com.fasterxml.jackson.databind.introspect.AnnotatedClass;
+import com.fasterxml.jackson.databind.introspect.AnnotatedMember;
+import com.fasterxml.jackson.databind.introspect.AnnotatedMethod;
+import com.fasterxml.jackson.databind.introspect.BeanPropertyDefinition;
+import com.fasterxml.jackson.databind.ser.DefaultSerializerProvider;
+import com.mongodb.DBRef;
+
+/**
+ * A {@link BSONCodec} reads and writes the properties of a bean straight
+ * from and to a {@link JsonParser} or {@link JsonGenerator}, using
+ * {@link MethodHandle}s generated once from the bean's Jackson description.
+ * <p>
+ * Strings, numbers, booleans and the types natively handled by
+ * <em>BSON</em> (dates, UUIDs, binary data, ...) are copied directly,
+ * {@link Document} properties are written as references, and any other
+ * property type is delegated to the {@link BSONObjectMapper}.
+ * <p>
+ * Beans whose description requires more than plain properties (creators,
+ * polymorphic types, custom serializers, unwrapping, injection, ...) can
+ * not be handled by a codec: {@link #create(BSONObjectMapper, BeanDescription)}
+ * will return <b>null</b> for those, and the normal Jackson path should be
+ * used instead.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ * @param <T> The type of beans handled by this codec.
+ */
+public final class BSONCodec<T> {
+
+    private static final Log log = new Log();
+
+    /* Types written and read as-is by our generators and parsers */
+    private static final Set<Class<?>> EMBEDDED_TYPES = new HashSet<>(Arrays.asList(new Class<?>[] {
+            byte[].class, Date.class, Pattern.class, UUID.class, ObjectId.class, DBRef.class
+    }));
+
+    private static final Map<Class<?>, Kind> KINDS = new HashMap<>();
+
+    static {
+        KINDS.put(String.class,  Kind.STRING);
+        KINDS.put(int.class,     Kind.INT);
+        KINDS.put(long.class,    Kind.LONG);
+        KINDS.put(double.class,  Kind.DOUBLE);
+        KINDS.put(boolean.class, Kind.BOOLEAN);
+        KINDS.put(Integer.class, Kind.BOXED_INT);
+        KINDS.put(Long.class,    Kind.BOXED_LONG);
+        KINDS.put(Double.class,  Kind.BOXED_DOUBLE);
+        KINDS.put(Boolean.class, Kind.BOXED_BOOLEAN);
+        for (Class<?> type: EMBEDDED_TYPES) KINDS.put(type, Kind.EMBEDDED);
+    }
+
+    /* What a property holds, and the type its handles are adapted to */
+    private enum Kind {
+        STRING(Object.class), INT(int.class), LONG(long.class), DOUBLE(double.class), BOOLEAN(boolean.class),
+        BOXED_INT(Object.class), BOXED_LONG(Object.class), BOXED_DOUBLE(Object.class), BOXED_BOOLEAN(Object.class),
+        EMBEDDED(Object.class), REFERENCE(Object.class), BEAN(Object.class), OBJECT(Object.class);
+
+        private final Class<?> carrier;
+
+        private Kind(Class<?> carrier) {
+            this.carrier = carrier;
+        }
+    };
+
+    /* ====================================================================== */
+
+    private final Class<T> type;
+    private final MethodHandle constructor;
+    private final Property[] properties;
+    private final Set<String> ignored;
+    private final boolean failOnUnknown;
+
+    private BSONCodec(Class<T> type, MethodHandle constructor, Property[] properties, Set<String> ignored, boolean failOnUnknown) {
+        this.type = type;
+        this.constructor = constructor;
+        this.properties = properties;
+        this.ignored = ignored;
+        this.failOnUnknown = failOnUnknown;
+    }
+
+    /**
+     * Return the type of beans handled by this {@link BSONCodec}.
+     */
+    public Class<T> getType() {
+        return type;
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Write the specified bean as an object into the given generator.
+     */
+    public void write(T object, JsonGenerator generator)
+    throws IOException {
+        Check.notNull(object, "Null object");
+        generator.writeStartObject();
+        for (Property property: properties) property.write(object, generator);
+        generator.writeEndObject();
+    }
+
+    /**
+     * Read a new bean from the object at the current position of the given
+     * parser, leaving the parser on its closing {@link JsonToken#END_OBJECT}.
+     */
+    public T read(JsonParser parser)
+    throws IOException {
+        JsonToken token = parser.getCurrentToken();
+        if (token == null) token = parser.nextToken();
+        if (token != JsonToken.START_OBJECT)
+            throw new JsonParseException("Expected start of object for " + type.getName() + ", got " + token, parser.getCurrentLocation());
+
+        final T object = instantiate();
+
+        /* Properties are normally found in the order we write them */
+        int next = 0;
+        while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+            final String name = parser.getCurrentName();
+            parser.nextToken();
+
+            final Property property;
+            if ((next < properties.length) && name.equals(properties[next].name)) {
+                property = properties[next ++];
+            } else {
+                property = find(name);
+                if (property == null) {
+                    unknown(object, name, parser);
+                    continue;
+                }
+            }
+
+            property.read(object, parser);
+        }
+
+        if (token != JsonToken.END_OBJECT)
+            throw new JsonParseException("Expected end of object for " + type.getName() + ", got " + token, parser.getCurrentLocation());
+        return object;
+    }
+
+    private Property find(String name) {
+        for (Property property: properties) if (name.equals(property.name)) return property;
+        return null;
+    }
+
+    private void unknown(T object, String name, JsonParser parser)
+    throws IOException {
+        if (failOnUnknown && !ignored.contains(name))
+            throw UnrecognizedPropertyException.from(parser, object, name, null);
+        parser.skipChildren();
+    }
+
+    @SuppressWarnings("unchecked")
+    private T instantiate()
+    throws JsonMappingException {
+        try {
+            return (T) constructor.invokeExact();
+        } catch (Throwable throwable) {
+            throw new JsonMappingException("Unable to instantiate " + type.getName(), throwable);
+        }
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Create a new {@link BSONCodec} for the specified type, or return
+     * <b>null</b> if a codec can not be generated for it.
+     */
+    public static <T> BSONCodec<T> create(BSONObjectMapper mapper, Class<T> type) {
+        Check.notNull(mapper, "Null mapper");
+        Check.notNull(type, "Null type");
+        final SerializationConfig config = mapper.getSerializationConfig();
+        return create(mapper, config.introspect(config.constructType(type)));
+    }
+
+    /**
+     * Create a new {@link BSONCodec} for the type in the specified
+     * (serialization) {@link BeanDescription}, or return <b>null</b> if
+     * a codec can not be generated for the type.
+     */
+    public static <T> BSONCodec<T> create(BSONObjectMapper mapper, BeanDescription description) {
+        Check.notNull(mapper, "Null mapper");
+        Check.notNull(description, "Null description");
+
+        @SuppressWarnings("unchecked")
+        final Class<T> type = (Class<T>) description.getBeanClass();
+        try {
+            return generate(mapper, description, type, new HashSet<>());
+        } catch (UnsupportedOperationException exception) {
+            log.debug("Unable to generate codec for %s: %s", type.getName(), exception.getMessage());
+            return null;
+        } catch (IllegalAccessException exception) {
+            log.warn(exception, "Unable to access members of %s for codec", type.getName());
+            return null;
+        }
+    }
+
+    private static <T> BSONCodec<T> generate(BSONObjectMapper mapper, BeanDescription serialization, Class<T> type, Set<Class<?>> generating)
+    throws IllegalAccessException {
+        generating.add(type);
+        try {
+            return build(mapper, serialization, type, generating);
+        } finally {
+            generating.remove(type);
+        }
+    }
+
+    private static <T> BSONCodec<T> build(BSONObjectMapper mapper, BeanDescription serialization, Class<T> type, Set<Class<?>> generating)
+    throws IllegalAccessException {
+        final SerializationConfig serializationConfig = mapper.getSerializationConfig();
+        final DeserializationConfig deserializationConfig = mapper.getDeserializationConfig();
+        final BeanDescription deserialization = deserializationConfig.introspect(serialization.getType());
+        final AnnotationIntrospector introspector = serializationConfig.getAnnotationIntrospector();
+        final AnnotatedClass annotated = serialization.getClassInfo();
+
+        /* Anything fancy on the class itself is left to Jackson */
+        unsupported(Modifier.isAbstract(type.getModifiers()), "abstract type");
+        unsupported(introspector.findTypeResolver(serializationConfig, annotated, serialization.getType()) != null, "polymorphic type");
+        unsupported(introspector.findSerializer(annotated) != null, "custom serializer");
+        unsupported(introspector.findDeserializer(annotated) != null, "custom deserializer");
+        unsupported(introspector.findSerializationConverter(annotated) != null, "serialization converter");
+        unsupported(introspector.findDeserializationConverter(annotated) != null, "deserialization converter");
+        unsupported(serialization.getObjectIdInfo() != null, "object identity");
+        unsupported(serialization.findJsonValueMethod() != null, "value method");
+        unsupported(serialization.findAnyGetter() != null, "any getter");
+        unsupported(deserialization.findAnySetter() != null, "any setter");
+        unsupported(!empty(deserialization.findInjectables()), "injectables");
+        unsupported(!empty(deserialization.findBackReferenceProperties()), "back references");
+
+        /* We need a default constructor */
+        final Constructor<?> constructor = constructor(deserialization);
+
+        /* Serialization and deserialization properties must match */
+        final Map<String, BeanPropertyDefinition> mutators = new HashMap<>();
+        for (BeanPropertyDefinition property: deserialization.findProperties()) {
+            unsupported(property.hasConstructorParameter(), "creator property " + property.getName());
+            if (property.couldDeserialize()) mutators.put(property.getName(), property);
+        }
+
+        final Include inclusion = introspector.findSerializationInclusion(annotated, serializationConfig.getSerializationInclusion());
+        final MethodHandles.Lookup lookup = MethodHandles.lookup();
+        final ObjectWriter writer = mapper.writer();
+        final List<Property> properties = new ArrayList<>();
+        for (BeanPropertyDefinition property: serialization.findProperties()) {
+            if (!property.couldSerialize()) continue;
+
+            final String name = property.getName();
+            final BeanPropertyDefinition mutable = mutators.remove(name);
+            unsupported(mutable == null, "read-only property " + name);
+
+            final AnnotatedMember accessor = property.getAccessor();
+            final AnnotatedMember mutator = mutable.getNonConstructorMutator();
+            final Class<?> rawType = accessor.getRawType();
+            unsupported(!rawType.equals(parameter(mutator)), "mismatched types for property " + name);
+
+            /* Documents are written as references, everything else must be plain */
+            final JavaType javaType = deserialization.resolveType(generic(mutator));
+            BSONCodec<?> nested = null;
+            Kind kind;
+            if (Document.class.isAssignableFrom(rawType)) {
+                kind = Kind.REFERENCE;
+            } else {
+                unsupported(!plainAccessor(introspector, serializationConfig, accessor), "annotated property " + name);
+                unsupported(!plainMutator(introspector, deserializationConfig, mutator), "annotated property " + name);
+                kind = KINDS.getOrDefault(rawType, Kind.OBJECT);
+
+                /* Nested beans get their own codec, if possible */
+                if ((kind == Kind.OBJECT) && bean(javaType) && !generating.contains(rawType)) try {
+                    nested = generate(mapper, serializationConfig.introspect(javaType), rawType, generating);
+                    kind = Kind.BEAN;
+                } catch (UnsupportedOperationException exception) {
+                    log.debug("Using Jackson for property \"%s\" of %s: %s", name, type.getName(), exception.getMessage());
+                }
+            }
+
+            unsupported(property.findViews() != null, "property views for " + name);
+            unsupported(property.isTypeId(), "type id property " + name);
+            unsupported(property.findReferenceType() != null, "managed reference " + name);
+            unsupported(introspector.findUnwrappingNameTransformer(accessor) != null, "unwrapped property " + name);
+
+            final Include include = introspector.findSerializationInclusion(accessor, inclusion);
+            unsupported((include != Include.ALWAYS) && (include != Include.NON_NULL), include + " inclusion for " + name);
+
+            final ObjectReader reader = kind != Kind.OBJECT ? null : mapper.reader(javaType);
+
+            properties.add(new Property(name, kind, rawType, include == Include.NON_NULL,
+                                        getter(lookup, accessor.getMember(), kind),
+                                        setter(lookup, mutator.getMember(), kind), mapper,
+                                        introspector, accessor, mutator, nested, writer, reader));
+        }
+        unsupported(!mutators.isEmpty(), "write-only properties " + mutators.keySet());
+
+        /* Properties ignored, but silently skipped when reading */
+        final Set<String> ignored = new HashSet<>(deserialization.getIgnoredPropertyNames());
+        final String[] toIgnore = introspector.findPropertiesToIgnore(annotated);
+        if (toIgnore != null) ignored.addAll(Arrays.asList(toIgnore));
+
+        final boolean failOnUnknown = deserializationConfig.isEnabled(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES)
+                                   && !Boolean.TRUE.equals(introspector.findIgnoreUnknownProperties(annotated));
+
+        final MethodHandle handle = lookup.unreflectConstructor(accessible(constructor))
+                                          .asType(methodType(Object.class));
+
+        log.debug("Generated codec for %s with %d properties", type.getName(), properties.size());
+        return new BSONCodec<>(type, handle, properties.toArray(new Property[properties.size()]), ignored, failOnUnknown);
+    }
+
+    /* ====================================================================== */
+
+    private static void unsupported(boolean condition, String reason) {
+        if (condition) throw new UnsupportedOperationException(reason);
+    }
+
+    private static boolean empty(Map<?, ?> map) {
+        return (map == null) || map.isEmpty();
+    }
+
+    private static Constructor<?> constructor(BeanDescription description) {
+        unsupported(description.findDefaultConstructor() == null, "no default constructor");
+        return description.findDefaultConstructor().getAnnotated();
+    }
+
+    private static boolean plainAccessor(AnnotationIntrospector introspector, SerializationConfig config, AnnotatedMember member) {
+        return introspector.findSerializer(member) == null
+            && introspector.findKeySerializer(member) == null
+            && introspector.findContentSerializer(member) == null
+            && introspector.findSerializationConverter(member) == null
+            && introspector.findSerializationType(member) == null
+            && introspector.findPropertyTypeResolver(config, member, config.constructType(member.getRawType())) == null
+            && introspector.findFormat(member) == null;
+    }
+
+    private static boolean plainMutator(AnnotationIntrospector introspector, DeserializationConfig config, AnnotatedMember member) {
+        return introspector.findDeserializer(member) == null
+            && introspector.findKeyDeserializer(member) == null
+            && introspector.findContentDeserializer(member) == null
+            && introspector.findDeserializationConverter(member) == null
+            && introspector.findPropertyTypeResolver(config, member, config.constructType(parameter(member))) == null
+            && introspector.findFormat(member) == null;
+    }
+
+    private static boolean bean(JavaType type) {
+        final Class<?> raw = type.getRawClass();
+        return !type.isContainerType()
+            && !type.isEnumType()
+            && !type.isArrayType()
+            && !type.isPrimitive()
+            && !type.isAbstract()
+            && (type.containedTypeCount() == 0)
+            && !raw.getName().startsWith("java.");
+    }
+
+    private static Class<?> parameter(AnnotatedMember mutator) {
+        if (mutator instanceof AnnotatedMethod) return ((AnnotatedMethod) mutator).getRawParameterType(0);
+        return mutator.getRawType();
+    }
+
+    private static java.lang.reflect.Type generic(AnnotatedMember mutator) {
+        if (mutator instanceof AnnotatedMethod) return ((AnnotatedMethod) mutator).getGenericParameterType(0);
+        return mutator.getGenericType();
+    }
+
+    private static <A extends AccessibleObject> A accessible(A object) {
+        object.setAccessible(true);
+        return object;
+    }
+
+    private static MethodHandle getter(MethodHandles.Lookup lookup, Member member, Kind kind)
+    throws IllegalAccessException {
+        final MethodHandle handle = member instanceof Method
+                ? lookup.unreflect(accessible((Method) member))
+                : lookup.unreflectGetter(accessible((Field) member));
+        return handle.asType(methodType(kind.carrier, Object.class));
+    }
+
+    private static MethodHandle setter(MethodHandles.Lookup lookup, Member member, Kind kind)
+    throws IllegalAccessException {
+        final MethodHandle handle = member instanceof Method
+                ? lookup.unreflect(accessible((Method) member))
+                : lookup.unreflectSetter(accessible((Field) member));
+        return handle.asType(methodType(void.class, Object.class, kind.carrier));
+    }
+
+    /* ====================================================================== */
+
+    private static final class Property {
+
+        private final String name;
+        private final Kind kind;
+        private final Class<?> type;
+        private final boolean skipNulls;
+        private final MethodHandle getter;
+        private final MethodHandle setter;
+
+        /* Document references are resolved lazily, as stores might not exist yet */
+        private final BSONObjectMapper mapper;
+        private final AnnotationIntrospector introspector;
+        private final AnnotatedMember accessor;
+        private final AnnotatedMember mutator;
+        private volatile JsonSerializer<Object> serializer;
+        private volatile JsonDeserializer<Object> deserializer;
+
+        /* Nested beans have their own codec */
+        private final BSONCodec<Object> nested;
+
+        /* Anything else goes through Jackson */
+        private final ObjectWriter writer;
+        private final ObjectReader reader;
+
+        private Property(String name, Kind kind, Class<?> type, boolean skipNulls,
+                         MethodHandle getter, MethodHandle setter, BSONObjectMapper mapper,
+                         AnnotationIntrospector introspector, AnnotatedMember accessor, AnnotatedMember mutator,
+                         BSONCodec<?> nested, ObjectWriter writer, ObjectReader reader) {
+            this.name = name;
+            this.kind = kind;
+            this.type = type;
+            this.skipNulls = skipNulls;
+            this.getter = getter;
+            this.setter = setter;
+            this.mapper = mapper;
+            this.introspector = introspector;
+            this.accessor = accessor;
+            this.mutator = mutator;
+            this.writer = writer;
+            this.reader = reader;
+
+            @SuppressWarnings("unchecked")
+            final BSONCodec<Object> codec = (BSONCodec<Object>) nested;
+            this.nested = codec;
+        }
+
+        private void write(Object bean, JsonGenerator generator)
+        throws IOException {
+            try {
+                switch (kind) {
+                    case INT:     generator.writeFieldName(name); generator.writeNumber((int) getter.invokeExact(bean)); return;
+                    case LONG:    generator.writeFieldName(name); generator.writeNumber((long) getter.invokeExact(bean)); return;
+                    case DOUBLE:  generator.writeFieldName(name); generator.writeNumber((double) getter.invokeExact(bean)); return;
+                    case BOOLEAN: generator.writeFieldName(name); generator.writeBoolean((boolean) getter.invokeExact(bean)); return;
+                    default: break;
+                }
+
+                final Object value = (Object) getter.invokeExact(bean);
+                if (value == null) {
+                    if (skipNulls) return;
+                    generator.writeFieldName(name);
+                    generator.writeNull();
+                    return;
+                }
+
+                generator.writeFieldName(name);
+                switch (kind) {
+                    case STRING:        generator.writeString((String) value); break;
+                    case BOXED_INT:     generator.writeNumber(((Integer) value).intValue()); break;
+                    case BOXED_LONG:    generator.writeNumber(((Long) value).longValue()); break;
+                    case BOXED_DOUBLE:  generator.writeNumber(((Double) value).doubleValue()); break;
+                    case BOXED_BOOLEAN: generator.writeBoolean(((Boolean) value).booleanValue()); break;
+                    case EMBEDDED:
+                        if (generator instanceof BSONGenerator) ((BSONGenerator) generator).writeNative(value);
+                        else generator.writeObject(value);
+                        break;
+                    case REFERENCE:     serializer().serialize(value, generator, provider()); break;
+                    case BEAN:          nested.write(value, generator); break;
+                    default:            writer.writeValue(generator, value);
+                }
+            } catch (IOException | RuntimeException | Error exception) {
+                throw exception;
+            } catch (Throwable throwable) {
+                throw new JsonMappingException("Unable to get property \"" + name + "\"", throwable);
+            }
+        }
+
+        /* invokeExact needs the (Object) casts javac deems redundant */
+        @SuppressWarnings("cast")
+        private void read(Object bean, JsonParser parser)
+        throws IOException {
+            try {
+                switch (kind) {
+                    case REFERENCE: setter.invokeExact(bean, (Object) deserializer().deserialize(parser, context(parser))); return;
+                    case OBJECT:    setter.invokeExact(bean, (Object) reader.readValue(parser)); return;
+                    default: break;
+                }
+
+                /* Nulls leave primitives untouched */
+                if (parser.getCurrentToken() == JsonToken.VALUE_NULL) {
+                    if (!kind.carrier.isPrimitive()) setter.invokeExact(bean, (Object) null);
+                    return;
+                }
+
+                if (kind == Kind.BEAN) {
+                    setter.invokeExact(bean, nested.read(parser));
+                    return;
+                }
+
+                final Object value = parser.getEmbeddedObject();
+                switch (kind) {
+                    case INT:           setter.invokeExact(bean, number(value, parser).intValue()); break;
+                    case LONG:          setter.invokeExact(bean, number(value, parser).longValue()); break;
+                    case DOUBLE:        setter.invokeExact(bean, number(value, parser).doubleValue()); break;
+                    case BOOLEAN:       setter.invokeExact(bean, ((Boolean) cast(value, parser)).booleanValue()); break;
+                    case BOXED_INT:     setter.invokeExact(bean, (Object) Integer.valueOf(number(value, parser).intValue())); break;
+                    case BOXED_LONG:    setter.invokeExact(bean, (Object) Long.valueOf(number(value, parser).longValue())); break;
+                    case BOXED_DOUBLE:  setter.invokeExact(bean, (Object) Double.valueOf(number(value, parser).doubleValue())); break;
+                    default:            setter.invokeExact(bean, cast(value, parser));
+                }
+            } catch (IOException | RuntimeException | Error exception) {
+                throw exception;
+            } catch (Throwable throwable) {
+                throw new JsonMappingException("Unable to set property \"" + name + "\"", throwable);
+            }
+        }
+
+        private Number number(Object value, JsonParser parser)
+        throws JsonParseException {
+            if (value instanceof Number) return (Number) value;
+            throw failure(value, parser);
+        }
+
+        private Object cast(Object value, JsonParser parser)
+        throws JsonParseException {
+            final Class<?> expected = kind == Kind.BOOLEAN ? Boolean.class : type;
+            if (expected.isInstance(value)) return value;
+            throw failure(value, parser);
+        }
+
+        private JsonParseException failure(Object value, JsonParser parser) {
+            final String actual = value == null ? "null" : value.getClass().getName();
+            return new JsonParseException("Unable to cast " + actual + " to " + type.getName() + " for property \"" + name + "\"",
+                                          parser.getCurrentLocation());
+        }
+
+        /* Fresh instances per call, as Jackson does for each value */
+        private SerializerProvider provider() {
+            return ((DefaultSerializerProvider) mapper.getSerializerProvider())
+                    .createInstance(mapper.getSerializationConfig(), mapper.getSerializerFactory());
+        }
+
+        private DeserializationContext context(JsonParser parser) {
+            return ((DefaultDeserializationContext) mapper.getDeserializationContext())
+                    .createInstance(mapper.getDeserializationConfig(), parser, null);
+        }
+
+        @SuppressWarnings("unchecked")
+        private JsonSerializer<Object> serializer()
+        throws JsonMappingException {
+            if (serializer != null) return serializer;
+            final Object found = introspector.findSerializer(accessor);
+            if (found instanceof JsonSerializer) return serializer = (JsonSerializer<Object>) found;
+            throw new JsonMappingException("No reference serializer for property \"" + name + "\"");
+        }
+
+        @SuppressWarnings("unchecked")
+        private JsonDeserializer<Object> deserializer()
+        throws JsonMappingException {
+            if (deserializer != null) return deserializer;
+            final Object found = introspector.findDeserializer(mutator);
+            if (found instanceof JsonDeserializer) return deserializer = (JsonDeserializer<Object>) found;
+            throw new JsonMappingException("No reference deserializer for property \"" + name + "\"");
+        }
+    }
+}
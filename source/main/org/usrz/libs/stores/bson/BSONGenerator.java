@@ -273,6 +273,13 @@ public class BSONGenerator extends JsonGenerator {
         else _writeSimpleObject(object);
     }
 
+    /* Write a value known to be natively handled, skipping type checks */
+    void writeNative(Object object)
+    throws IOException {
+        if (closed) throw new IOException("Closed");
+        context.writeValue(object);
+    }
+
     @Override
     public void writeTree(TreeNode tree)
     throws IOException, JsonProcessingException {
@@ -18,6 +18,7 @@ package org.usrz.libs.stores.bson;
 import java.io.IOException;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
@@ -27,6 +28,8 @@ import org.usrz.libs.utils.json.BasicPropertyNamingStrategy;
 import org.usrz.libs.utils.json.ConstructorPropertiesIntrospector;
 
 import com.fasterxml.jackson.core.JsonGenerationException;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.Version;
 import com.fasterxml.jackson.databind.JsonMappingException;
@@ -47,6 +50,9 @@ public class BSONObjectMapper extends ObjectMapper {
 
     public static final Version VERSION = new Version(1, 0, 0, null, "org.usrz.libs", "mongodb");
 
+    /* Parsers are reusable, keep one per thread */
+    private final transient ThreadLocal<BSONParser> parsers = new ThreadLocal<>();
+
     @Inject
     private BSONObjectMapper(Injector injector) {
         super(new ObjectMapper());
@@ -100,19 +106,78 @@ public class BSONObjectMapper extends ObjectMapper {
 
     public <T> T readValue(BSONObject object, Class<T> type)
     throws JsonProcessingException, IOException {
-        return readBSON(reader(type), object, type);
+        final ObjectReader reader = reader(type);
+        return readBSON(object, (parser) -> reader.readValue(parser, type));
     }
 
     public <T> T readValueWithView(BSONObject object, Class<T> type, Class<?> view)
     throws JsonProcessingException, IOException {
         Objects.requireNonNull(view, "Null view");
-        return readBSON(readerWithView(view), object, type);
+        final ObjectReader reader = readerWithView(view);
+        return readBSON(object, (parser) -> reader.readValue(parser, type));
+    }
+
+    /**
+     * Read a value from a {@link BSONObject} using the specified
+     * {@link BSONCodec} rather than Jackson's own deserializers.
+     */
+    public <T> T readValue(BSONObject object, BSONCodec<T> codec)
+    throws JsonProcessingException, IOException {
+        Objects.requireNonNull(codec, "Null codec");
+        return readBSON(object, codec::read);
+    }
+
+    private <T> T readBSON(BSONObject object, Reading<T> reading)
+    throws JsonProcessingException, IOException {
+        /* Reuse this thread's parser, unless we're re-entering */
+        BSONParser parser = parsers.get();
+        if (parser == null) {
+            parser = new BSONParser(this, object);
+        } else {
+            parsers.set(null);
+            parser.reset(object);
+        }
+
+        try {
+            return reading.read(parser);
+        } finally {
+            parser.close();
+            parsers.set(parser);
+        }
+    }
+
+    /**
+     * Read a value straight from an encoded <em>BSON</em> document, without
+     * decoding it as a {@link BSONObject} first.
+     */
+    public <T> T readBsonValue(byte[] bson, Class<T> type)
+    throws JsonProcessingException, IOException {
+        return readBsonValue(bson, type, null);
     }
 
-    private <T> T readBSON(ObjectReader reader, BSONObject object, Class<T> type)
+    /**
+     * Read a value straight from an encoded <em>BSON</em> document, ignoring
+     * the specified fields of the root document.
+     */
+    public <T> T readBsonValue(byte[] bson, Class<T> type, Set<String> skipped)
     throws JsonProcessingException, IOException {
-        final BSONParser parser = new BSONParser(this, object);
-        final T value = reader.readValue(parser, type);
+        Objects.requireNonNull(bson, "Null BSON");
+        final BSONByteParser parser = new BSONByteParser(this, bson, 0, skipped);
+        final T value = reader(type).readValue(parser, type);
+        parser.close();
+        return value;
+    }
+
+    /**
+     * Read a value straight from an encoded <em>BSON</em> document using the
+     * specified {@link BSONCodec}, ignoring the specified root fields.
+     */
+    public <T> T readBsonValue(byte[] bson, BSONCodec<T> codec, Set<String> skipped)
+    throws JsonProcessingException, IOException {
+        Objects.requireNonNull(bson, "Null BSON");
+        Objects.requireNonNull(codec, "Null codec");
+        final BSONByteParser parser = new BSONByteParser(this, bson, 0, skipped);
+        final T value = codec.read(parser);
         parser.close();
         return value;
     }
@@ -130,10 +195,25 @@ public class BSONObjectMapper extends ObjectMapper {
         return writeBson(writerWithView(view), object);
     }
 
+    /**
+     * Write a value as a {@link BasicDBObject} using the specified
+     * {@link BSONCodec} rather than Jackson's own serializers.
+     */
+    public <T> BasicDBObject writeValueAsBson(T object, BSONCodec<T> codec)
+    throws JsonGenerationException, JsonMappingException, IOException {
+        Objects.requireNonNull(codec, "Null codec");
+        return writeBson((generator) -> codec.write(object, generator));
+    }
+
     private BasicDBObject writeBson(ObjectWriter writer, Object object)
+    throws JsonGenerationException, JsonMappingException, IOException {
+        return writeBson((generator) -> writer.writeValue(generator, object));
+    }
+
+    private BasicDBObject writeBson(Writing writing)
     throws JsonGenerationException, JsonMappingException, IOException {
         final BSONGenerator generator = new BSONGenerator(this);
-        writer.writeValue(generator, object);
+        writing.write(generator);
         final BSONObject bson = generator.getOutputTarget();
         generator.close();
 
@@ -141,4 +221,59 @@ public class BSONObjectMapper extends ObjectMapper {
         final Map<?, ?> map = bson instanceof Map ? (Map<?, ?>) bson : bson.toMap();
         return new BasicDBObject(map);
     }
+
+    /**
+     * Write a value straight into an encoded <em>BSON</em> document, without
+     * building a {@link BSONObject} first.
+     */
+    public byte[] writeValueAsBsonBytes(Object object)
+    throws JsonGenerationException, JsonMappingException, IOException {
+        return writeValueAsBsonBytes(object, null);
+    }
+
+    /**
+     * Write a value straight into an encoded <em>BSON</em> document, whose
+     * root will start with the specified fields.
+     */
+    public byte[] writeValueAsBsonBytes(Object object, BSONObject fields)
+    throws JsonGenerationException, JsonMappingException, IOException {
+        final ObjectWriter writer = writer();
+        return writeBsonBytes(object, fields, (generator) -> writer.writeValue(generator, object));
+    }
+
+    /**
+     * Write a value straight into an encoded <em>BSON</em> document using the
+     * specified {@link BSONCodec}, whose root will start with the specified
+     * fields.
+     */
+    public <T> byte[] writeValueAsBsonBytes(T object, BSONCodec<T> codec, BSONObject fields)
+    throws JsonGenerationException, JsonMappingException, IOException {
+        Objects.requireNonNull(codec, "Null codec");
+        return writeBsonBytes(object, fields, (generator) -> codec.write(object, generator));
+    }
+
+    private byte[] writeBsonBytes(Object object, BSONObject fields, Writing writing)
+    throws JsonGenerationException, JsonMappingException, IOException {
+        final BSONByteGenerator generator = new BSONByteGenerator(this, fields);
+        try {
+            writing.write(generator);
+            final byte[] bson = generator.getOutputTarget();
+            if (bson == null) throw new JsonGenerationException("No BSON document written for " + object.getClass().getName());
+            return bson;
+        } finally {
+            generator.close();
+        }
+    }
+
+    /* ====================================================================== */
+
+    @FunctionalInterface
+    private interface Reading<T> {
+        T read(JsonParser parser) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface Writing {
+        void write(JsonGenerator generator) throws IOException;
+    }
 }
@@ -15,14 +15,31 @@
  * ========================================================================== */
 package org.usrz.libs.stores.bson;
 
+import static com.fasterxml.jackson.core.JsonToken.END_ARRAY;
+import static com.fasterxml.jackson.core.JsonToken.END_OBJECT;
+import static com.fasterxml.jackson.core.JsonToken.FIELD_NAME;
+import static com.fasterxml.jackson.core.JsonToken.START_ARRAY;
+import static com.fasterxml.jackson.core.JsonToken.START_OBJECT;
+import static com.fasterxml.jackson.core.JsonToken.VALUE_EMBEDDED_OBJECT;
+import static com.fasterxml.jackson.core.JsonToken.VALUE_FALSE;
+import static com.fasterxml.jackson.core.JsonToken.VALUE_NULL;
+import static com.fasterxml.jackson.core.JsonToken.VALUE_NUMBER_FLOAT;
+import static com.fasterxml.jackson.core.JsonToken.VALUE_NUMBER_INT;
+import static com.fasterxml.jackson.core.JsonToken.VALUE_STRING;
+import static com.fasterxml.jackson.core.JsonToken.VALUE_TRUE;
 import static org.usrz.libs.stores.bson.BSONObjectMapper.VERSION;
 
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
 
 import org.bson.BSONObject;
-import org.usrz.libs.logging.Log;
 
 import com.fasterxml.jackson.core.Base64Variant;
 import com.fasterxml.jackson.core.JsonLocation;
@@ -33,19 +50,67 @@ import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.core.ObjectCodec;
 import com.fasterxml.jackson.core.Version;
 
+/**
+ * A {@link JsonParser} streaming tokens out of a {@link BSONObject} tree.
+ * <p>
+ * The parser is a <em>cursor</em> over the tree, keeping a small stack of
+ * the objects and arrays being walked: other than one iterator for each
+ * (non-list) object or array entered, no garbage is produced per token,
+ * and the same instance can be {@linkplain #reset(BSONObject) reset} and
+ * reused for another {@link BSONObject}.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
 public class BSONParser extends JsonParser {
 
-    private static final Log LOG = new Log();
-
-    private BSONReadContext context;
-    private BSONReadContext cleared;
     private ObjectCodec codec;
     private boolean closed;
 
+    /* Our stack, depth zero is the root, one the root object */
+    private Context[] contexts;
+    private Iterator<?>[] iterators;
+    private List<?>[] lists;
+    private int[] sizes;
+    private int depth;
+
+    /* The current token, its value and name */
+    private JsonToken token;
+    private JsonToken cleared;
+    private Object value;
+    private String name;
+    private char[] characters;
+
+    /* The value of a field whose name was just returned */
+    private Object pending;
+    private boolean hasPending;
+
     public BSONParser(ObjectCodec codec, BSONObject object) {
-        context = BSONReadContext.newContext(object);
+        contexts = new Context[] { new Context(null) };
+        iterators = new Iterator<?>[8];
+        lists = new List<?>[8];
+        sizes = new int[8];
         this.codec = codec;
+        reset(object);
+    }
+
+    /**
+     * Reset this {@link BSONParser} to parse the specified {@link BSONObject},
+     * positioned (as when constructed) on its {@link JsonToken#START_OBJECT}.
+     */
+    public BSONParser reset(BSONObject object) {
+        /* Forget about anything we might have been parsing before */
+        Arrays.fill(iterators, 0, depth + 1, null);
+        Arrays.fill(lists, 0, depth + 1, null);
+        hasPending = false;
+        pending = null;
+        cleared = null;
         closed = false;
+        depth = 0;
+
+        /* Reposition on the start of the root object */
+        token = null;
+        start(START_OBJECT, object, null);
+        return this;
     }
 
     @Override
@@ -73,6 +138,12 @@ public class BSONParser extends JsonParser {
     public void close()
     throws IOException {
         closed = true;
+
+        /* Do not hold on to the tree we were parsing */
+        Arrays.fill(iterators, 0, depth + 1, null);
+        Arrays.fill(lists, 0, depth + 1, null);
+        pending = value = null;
+        depth = 0;
     }
 
     /* ====================================================================== */
@@ -91,111 +162,205 @@ public class BSONParser extends JsonParser {
 
     @Override
     public JsonStreamContext getParsingContext() {
-        return context;
+        return contexts[depth];
     }
 
     @Override
     public JsonToken nextToken()
     throws IOException, JsonParseException {
-        LOG.trace("NextToken %s", context);
-        return (nextToken(false)).getCurrentToken();
+        cleared = null;
+        characters = null;
+
+        /* Value of a field whose name we just returned */
+        if (hasPending) {
+            final Object pending = this.pending;
+            this.pending = null;
+            hasPending = false;
+            return value(pending, name);
+        }
+
+        /* Nothing left after the root object */
+        if (depth == 0) {
+            value = name = null;
+            return token = null;
+        }
+
+        final Context context = contexts[depth];
+        final List<?> list = lists[depth];
+
+        /* Arrays as random-access lists, no iterators */
+        if (list != null) {
+            final int index = context.next();
+            if (index < sizes[depth]) return value(list.get(index), null);
+            return end(END_ARRAY);
+        }
+
+        final Iterator<?> iterator = iterators[depth];
+        if (!iterator.hasNext()) return end(context.inArray() ? END_ARRAY : END_OBJECT);
+        context.next();
+
+        /* Other arrays */
+        if (context.inArray()) return value(iterator.next(), null);
+
+        /* Objects, return the name and remember the value */
+        final Map.Entry<?, ?> entry = (Map.Entry<?, ?>) iterator.next();
+        final Object key = entry.getKey();
+        name = key == null ? null :
+               key instanceof String ? (String) key :
+               key.toString();
+        context.name = name;
+        pending = entry.getValue();
+        hasPending = true;
+        value = name;
+        return token = FIELD_NAME;
     }
 
     @Override
     public BSONParser skipChildren()
     throws IOException, JsonParseException {
-        LOG.trace("SkipChildren %s", context);
-        return (nextToken(true));
-    }
-
-    private BSONParser nextToken(boolean skipChildren) {
-        context = context != null ? context.getNextContext(skipChildren) :
-                  cleared != null ? cleared.getNextContext(skipChildren) :
-                  null;
-        cleared = null;
+        if ((token == START_OBJECT) || (token == START_ARRAY)) {
+            end(token == START_OBJECT ? END_OBJECT : END_ARRAY);
+        }
         return this;
     }
 
     @Override
     public void clearCurrentToken() {
-        LOG.trace("ClearCurrentToken %s", context);
-        cleared = context;
-        context = null;
+        if (token != null) cleared = token;
+        characters = null;
+        token = null;
+        value = null;
     }
 
     @Override
     public JsonToken nextValue()
     throws IOException, JsonParseException {
-        LOG.trace("NextValue %s", context);
-        JsonToken token = null;
-        while ((token = nextToken()) != null) switch (token) {
-            case START_ARRAY:
-            case START_OBJECT:
-            case VALUE_EMBEDDED_OBJECT:
-            case VALUE_FALSE:
-            case VALUE_NULL:
-            case VALUE_NUMBER_FLOAT:
-            case VALUE_NUMBER_INT:
-            case VALUE_STRING:
-            case VALUE_TRUE:
-                return token;
-            default:
-                continue;
-        }
-        return null;
+        final JsonToken token = nextToken();
+        return token == FIELD_NAME ? nextToken() : token;
     }
 
     @Override
     public JsonToken getCurrentToken() {
-        LOG.trace("GetCurrentToken %s", context);
-        return context == null ? null : context.getCurrentToken();
+        return token;
     }
 
     @Override
     public int getCurrentTokenId() {
-        LOG.trace("GetCurrentTokenId %s", context);
-        final JsonToken token = getCurrentToken();
         return token == null ? -1 : token.id();
     }
 
     @Override
     public boolean hasCurrentToken() {
-        LOG.trace("HasCurrentToken %s", context);
-        return getCurrentToken() != null;
+        return token != null;
     }
 
     @Override
     public String getCurrentName()
     throws IOException, JsonParseException {
-        LOG.trace("GetCurrentName %s", context);
-        return context == null ? null : context.getCurrentName();
+        return token == null ? null : name;
     }
 
     @Override
     public JsonToken getLastClearedToken() {
-        LOG.trace("GetLastClearedToken %s", context);
-        return cleared == null ? null : cleared.getCurrentToken();
+        return cleared;
     }
 
     @Override
     public void overrideCurrentName(String name) {
-        LOG.trace("OverrideCurrentName %s", context);
         throw new UnsupportedOperationException("Forget about it, Frank!");
     }
 
     /* ====================================================================== */
 
+    /* Return the token for a value, entering objects and arrays */
+    private JsonToken value(Object value, String name) {
+        if (value == null) {
+            this.value = null;
+            this.name = name;
+            return token = VALUE_NULL;
+
+        } else if (value instanceof String) {
+            this.value = value;
+            this.name = name;
+            return token = VALUE_STRING;
+
+        } else if (value instanceof Boolean) {
+            this.value = value;
+            this.name = name;
+            return token = ((Boolean) value).booleanValue() ? VALUE_TRUE : VALUE_FALSE;
+
+        } else if (value instanceof Number) {
+            this.value = value;
+            this.name = name;
+            return token = (value instanceof Double) || (value instanceof Float) || (value instanceof BigDecimal) ?
+                           VALUE_NUMBER_FLOAT : VALUE_NUMBER_INT;
+
+        } else if (value instanceof Collection) {
+            return start(START_ARRAY, value, name);
+
+        } else if ((value instanceof Map) || (value instanceof BSONObject)) {
+            return start(START_OBJECT, value, name);
+
+        } else {
+            this.value = value;
+            this.name = name;
+            return token = VALUE_EMBEDDED_OBJECT;
+        }
+    }
+
+    /* Push a new object or array on the stack */
+    private JsonToken start(JsonToken token, Object value, String name) {
+        if (++ depth == contexts.length) {
+            contexts = Arrays.copyOf(contexts, depth + 1);
+            contexts[depth] = new Context(contexts[depth - 1]);
+        }
+        if (depth == iterators.length) {
+            iterators = Arrays.copyOf(iterators, depth * 2);
+            lists = Arrays.copyOf(lists, depth * 2);
+            sizes = Arrays.copyOf(sizes, depth * 2);
+        }
+
+        if (token == START_ARRAY) {
+            contexts[depth].reset(Context.ARRAY, name);
+            if ((value instanceof List) && (value instanceof RandomAccess)) {
+                lists[depth] = (List<?>) value;
+                sizes[depth] = ((List<?>) value).size();
+            } else {
+                iterators[depth] = ((Collection<?>) value).iterator();
+            }
+        } else {
+            /* Check if we have a BSON Object that does not cast to a map... Bleurk :-( */
+            final Map<?, ?> map = value instanceof Map ? (Map<?, ?>) value : ((BSONObject) value).toMap();
+            contexts[depth].reset(Context.OBJECT, name);
+            iterators[depth] = map.entrySet().iterator();
+        }
+
+        this.value = value;
+        this.name = name;
+        return this.token = token;
+    }
+
+    /* Pop the current object or array from the stack */
+    private JsonToken end(JsonToken token) {
+        iterators[depth] = null;
+        lists[depth] = null;
+        name = contexts[depth].parentName;
+        value = null;
+        depth --;
+        return this.token = token;
+    }
+
+    /* ====================================================================== */
+
     @Override
     public Number getNumberValue()
     throws IOException, JsonParseException {
-        LOG.trace("GetNumberValue %s", context);
-        return context == null ? null : (Number) context.getCurrentValue();
+        return token == null ? null : (Number) value;
     }
 
     @Override
     public NumberType getNumberType()
     throws IOException, JsonParseException {
-        LOG.trace("GetNumberType %s", context);
         final Number number = getNumberValue();
         if (number == null) return null;
         if (number instanceof Byte)    return NumberType.INT;
@@ -210,30 +375,26 @@ public class BSONParser extends JsonParser {
     @Override
     public Object getEmbeddedObject()
     throws IOException, JsonParseException {
-        LOG.trace("GetEmbeddedObject %s", context);
-        return context == null ? null : context.getCurrentValue();
+        return token == null ? null : value;
     }
 
     @Override
     public byte[] getBinaryValue(Base64Variant b64variant)
     throws IOException, JsonParseException {
-        LOG.trace("GetBinaryValue %s", context);
-        return context == null ? null : (byte[]) context.getCurrentValue();
+        return token == null ? null : (byte[]) value;
     }
 
     @Override
     public String getText()
     throws IOException, JsonParseException {
-        LOG.trace("GetText %s", context);
-        return context == null ? null : (String) context.getCurrentValue();
+        return token == null ? null : (String) value;
     }
 
     @Override
     public String getValueAsString(String defaultValue)
     throws IOException, JsonParseException {
-        LOG.trace("GetValueAsString %s", context);
-        if (context == null) return null;
-        final Object value = context.getCurrentValue();
+        if (token == null) return null;
+        final Object value = this.value;
         return value == null ? defaultValue :
                value instanceof String ? (String) value :
                value instanceof Number ? ((Number) value).toString() :
@@ -245,69 +406,64 @@ public class BSONParser extends JsonParser {
     @Override
     public char[] getTextCharacters()
     throws IOException, JsonParseException {
-        LOG.trace("GetTextCharacters %s", context);
-        return getText().toCharArray();
+        /* Convert only once per token, however many times we're asked */
+        if (characters == null) {
+            final String text = getText();
+            if (text != null) characters = text.toCharArray();
+        }
+        return characters;
     }
 
     @Override
     public int getTextLength()
     throws IOException, JsonParseException {
-        LOG.trace("GetTextLength %s", context);
         return getText().length();
     }
 
     @Override
     public int getTextOffset()
     throws IOException, JsonParseException {
-        LOG.trace("GetTextOffset %s", context);
         return 0;
     }
 
     @Override
     public boolean hasTextCharacters() {
-        LOG.trace("HasTextCharacters %s", context);
         return false;
     }
 
     @Override
     public int getIntValue()
     throws IOException, JsonParseException {
-        LOG.trace("GetIntValue %s", context);
         return getNumberValue().intValue();
     }
 
     @Override
     public long getLongValue()
     throws IOException, JsonParseException {
-        LOG.trace("GetLongValue %s", context);
         return getNumberValue().longValue();
     }
 
     @Override
     public BigInteger getBigIntegerValue()
     throws IOException, JsonParseException {
-        LOG.trace("GetBigIntegerValue %s", context);
         return BigInteger.valueOf(getLongValue());
     }
 
     @Override
     public float getFloatValue()
     throws IOException, JsonParseException {
-        LOG.trace("GetFloatValue %s", context);
         return getNumberValue().floatValue();
     }
 
     @Override
     public double getDoubleValue()
     throws IOException, JsonParseException {
-        LOG.trace("GetDoubleValue %s", context);
         return getNumberValue().doubleValue();
     }
 
     @Override
     public BigDecimal getDecimalValue()
     throws IOException, JsonParseException {
-        LOG.trace("GetDecimalValue %s", context);
         return BigDecimal.valueOf(getDoubleValue());
     }
 
@@ -316,4 +472,44 @@ public class BSONParser extends JsonParser {
         return getCurrentTokenId() == id;
     }
 
+    /* ====================================================================== */
+
+    /* One (reused) context per depth of our stack */
+    private static final class Context extends JsonStreamContext {
+
+        private static final int ROOT = TYPE_ROOT;
+        private static final int OBJECT = TYPE_OBJECT;
+        private static final int ARRAY = TYPE_ARRAY;
+
+        private final Context parent;
+        private String parentName;
+        private String name;
+
+        private Context(Context parent) {
+            _type = ROOT;
+            _index = -1;
+            this.parent = parent;
+        }
+
+        private void reset(int type, String parentName) {
+            _type = type;
+            _index = -1;
+            this.parentName = parentName;
+            name = null;
+        }
+
+        private int next() {
+            return ++ _index;
+        }
+
+        @Override
+        public Context getParent() {
+            return parent;
+        }
+
+        @Override
+        public String getCurrentName() {
+            return _type == OBJECT ? name : null;
+        }
+    }
 }
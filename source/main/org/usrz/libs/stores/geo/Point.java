@@ -0,0 +1,102 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores.geo;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+
+/**
+ * An immutable geographical point, mapped as a <em>GeoJSON</em> point:
+ * <code>{"type": "Point", "coordinates": [longitude, latitude]}</code>.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+@JsonPropertyOrder({"type", "coordinates"})
+public final class Point {
+
+    /** The <em>GeoJSON</em> type of points. */
+    public static final String TYPE = "Point";
+
+    private final double longitude;
+    private final double latitude;
+
+    /**
+     * Create a new {@link Point} from its longitude and latitude (in this
+     * order, as in <em>GeoJSON</em>).
+     */
+    public Point(double longitude, double latitude) {
+        if ((longitude < -180) || (longitude > 180) || Double.isNaN(longitude))
+            throw new IllegalArgumentException("Invalid longitude " + longitude);
+        if ((latitude < -90) || (latitude > 90) || Double.isNaN(latitude))
+            throw new IllegalArgumentException("Invalid latitude " + latitude);
+        this.longitude = longitude;
+        this.latitude = latitude;
+    }
+
+    @JsonCreator
+    private static Point create(@JsonProperty("type") String type,
+                                @JsonProperty("coordinates") double[] coordinates) {
+        if (!TYPE.equals(type)) throw new IllegalArgumentException("Invalid GeoJSON type \"" + type + "\" for point");
+        if ((coordinates == null) || (coordinates.length != 2)) throw new IllegalArgumentException("Invalid point coordinates");
+        return new Point(coordinates[0], coordinates[1]);
+    }
+
+    /* ====================================================================== */
+
+    @JsonIgnore
+    public double getLongitude() {
+        return longitude;
+    }
+
+    @JsonIgnore
+    public double getLatitude() {
+        return latitude;
+    }
+
+    @JsonProperty("type")
+    public String getType() {
+        return TYPE;
+    }
+
+    @JsonProperty("coordinates")
+    public double[] getCoordinates() {
+        return new double[] { longitude, latitude };
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    public String toString() {
+        return TYPE + "[" + longitude + "," + latitude + "]";
+    }
+
+    @Override
+    public int hashCode() {
+        return Double.hashCode(longitude) * 31 + Double.hashCode(latitude);
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (object == this) return true;
+        if (!(object instanceof Point)) return false;
+        final Point point = (Point) object;
+        return (Double.compare(longitude, point.longitude) == 0)
+            && (Double.compare(latitude, point.latitude) == 0);
+    }
+
+}
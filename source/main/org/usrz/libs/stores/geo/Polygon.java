@@ -0,0 +1,119 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores.geo;
+
+import static org.usrz.libs.utils.Check.notNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+
+/**
+ * An immutable geographical polygon (without holes), mapped as a
+ * <em>GeoJSON</em> polygon with a single, closed, ring:
+ * <code>{"type": "Polygon", "coordinates": [[[lon, lat], ...]]}</code>.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+@JsonPropertyOrder({"type", "coordinates"})
+public final class Polygon {
+
+    /** The <em>GeoJSON</em> type of polygons. */
+    public static final String TYPE = "Polygon";
+
+    private final List<Point> ring;
+
+    /**
+     * Create a new {@link Polygon} from its vertices, closing the ring if
+     * the last point is not the same as the first one.
+     */
+    public Polygon(Point... points) {
+        this(Arrays.asList(notNull(points, "Null points")));
+    }
+
+    /**
+     * Create a new {@link Polygon} from its vertices, closing the ring if
+     * the last point is not the same as the first one.
+     */
+    public Polygon(List<Point> points) {
+        final List<Point> ring = new ArrayList<>(notNull(points, "Null points"));
+        if (ring.contains(null)) throw new NullPointerException("Null point in polygon");
+        if ((!ring.isEmpty()) && (!ring.get(0).equals(ring.get(ring.size() - 1)))) ring.add(ring.get(0));
+        if (new HashSet<>(ring).size() < 3) throw new IllegalArgumentException("Polygons require at least 3 distinct points");
+        this.ring = Collections.unmodifiableList(ring);
+    }
+
+    @JsonCreator
+    private static Polygon create(@JsonProperty("type") String type,
+                                  @JsonProperty("coordinates") double[][][] coordinates) {
+        if (!TYPE.equals(type)) throw new IllegalArgumentException("Invalid GeoJSON type \"" + type + "\" for polygon");
+        if ((coordinates == null) || (coordinates.length < 1)) throw new IllegalArgumentException("Invalid polygon coordinates");
+        if (coordinates.length > 1) throw new IllegalArgumentException("Polygons with holes are not supported");
+
+        final List<Point> points = new ArrayList<>(coordinates[0].length);
+        for (double[] point: coordinates[0]) {
+            if ((point == null) || (point.length != 2)) throw new IllegalArgumentException("Invalid polygon coordinates");
+            points.add(new Point(point[0], point[1]));
+        }
+        return new Polygon(points);
+    }
+
+    /* ====================================================================== */
+
+    /** Return the (closed) ring of {@link Point}s of this {@link Polygon}. */
+    @JsonIgnore
+    public List<Point> getPoints() {
+        return ring;
+    }
+
+    @JsonProperty("type")
+    public String getType() {
+        return TYPE;
+    }
+
+    @JsonProperty("coordinates")
+    public double[][][] getCoordinates() {
+        final double[][] coordinates = new double[ring.size()][];
+        for (int x = 0; x < coordinates.length; x ++) coordinates[x] = ring.get(x).getCoordinates();
+        return new double[][][] { coordinates };
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    public String toString() {
+        return TYPE + ring;
+    }
+
+    @Override
+    public int hashCode() {
+        return ring.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (object == this) return true;
+        return (object instanceof Polygon) && ring.equals(((Polygon) object).ring);
+    }
+
+}
@@ -66,4 +66,10 @@ public interface MongoBindingBuilder  {
 
     public <L extends Document, R extends Document> MongoBuilder relate(TypeLiteral<L> left, TypeLiteral<R> right, String collection);
 
+    default <L extends Document, R extends Document> MongoBuilder relate(Class<L> left, Class<R> right, String collection, Consumer<MongoRelationBuilder<L, R>> consumer) {
+        return this.relate(TypeLiteral.get(left), TypeLiteral.get(right), collection, consumer);
+    }
+
+    public <L extends Document, R extends Document> MongoBuilder relate(TypeLiteral<L> left, TypeLiteral<R> right, String collection, Consumer<MongoRelationBuilder<L, R>> consumer);
+
 }
@@ -17,10 +17,13 @@ package org.usrz.libs.stores.inject;
 
 import java.util.function.Consumer;
 
+import org.usrz.libs.stores.CacheInvalidator;
 import org.usrz.libs.stores.Document;
 import org.usrz.libs.stores.Relation;
 import org.usrz.libs.stores.Stores;
 import org.usrz.libs.stores.bson.BSONObjectMapper;
+import org.usrz.libs.stores.mongo.MongoCacheInvalidator;
+import org.usrz.libs.stores.mongo.MongoIndexManager;
 import org.usrz.libs.utils.inject.ConfiguringBindingBuilder;
 
 import com.google.inject.Binder;
@@ -45,6 +48,19 @@ implements MongoBindingBuilder {
         /* Client and DB binding */
         binder.bind(MongoClient.class).toProvider(MongoClientProvider.class).asEagerSingleton();
         binder.bind(DB.class).toProvider(MongoDatabaseProvider.class).asEagerSingleton();
+
+        /* Cache invalidations, only created when a store requires them */
+        binder.bind(CacheInvalidator.class).to(MongoCacheInvalidator.class);
+    }
+
+    /**
+     * Specify how indexes missing from collections should be handled: when
+     * not specified, missing indexes are created (and waited for) when
+     * stores and relations are first created.
+     */
+    public MongoBuilder withIndexes(MongoIndexManager.Mode mode) {
+        binder().bind(MongoIndexManager.class).toInstance(new MongoIndexManager(mode));
+        return this;
     }
 
     /* ====================================================================== */
@@ -62,6 +78,17 @@ implements MongoBindingBuilder {
 
     @Override
     public <L extends Document, R extends Document> MongoBuilder relate(TypeLiteral<L> left, TypeLiteral<R> right, String collection) {
+        relation(left, right, collection);
+        return this;
+    }
+
+    @Override
+    public <L extends Document, R extends Document> MongoBuilder relate(TypeLiteral<L> left, TypeLiteral<R> right, String collection, Consumer<MongoRelationBuilder<L, R>> consumer) {
+        consumer.accept(relation(left, right, collection));
+        return this;
+    }
+
+    private <L extends Document, R extends Document> MongoRelationBuilder<L, R> relation(TypeLiteral<L> left, TypeLiteral<R> right, String collection) {
 
         /* Start creating and binding our collection (annotated by collection name) */
         MongoCollectionProvider provider = new MongoCollectionProvider(collection);
@@ -73,10 +100,11 @@ implements MongoBindingBuilder {
         @SuppressWarnings("unchecked")
         final TypeLiteral<Relation<L, R>> type = (TypeLiteral<Relation<L, R>>)
                 TypeLiteral.get(Types.newParameterizedType(Relation.class, left.getType(), right.getType()));
-        binder().bind(type).toProvider(new MongoRelationProvider<L, R>(left, right, collection));
+        final MongoRelationProvider<L, R> relation = new MongoRelationProvider<L, R>(left, right, collection);
+        binder().bind(type).toProvider(relation);
 
-        /* Return ourselves */
-        return this;
+        /* Return a builder for further configuration */
+        return new MongoRelationBuilder<L, R>(relation);
     }
 
 }
@@ -21,6 +21,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 import org.usrz.libs.stores.mongo.MongoIndex;
+import org.usrz.libs.stores.mongo.MongoIndexManager;
 import org.usrz.libs.utils.inject.InjectingProvider;
 import org.usrz.libs.utils.inject.Injections;
 
@@ -52,7 +53,7 @@ public class MongoCollectionProvider extends InjectingProvider<DBCollection> {
         final DBCollection collection = database.getCollection(name);
 
         /* Indexes */
-        for (MongoIndex index: indexes) index.ensureIndex(collection);
+        injector.getInstance(MongoIndexManager.class).ensureIndexes(collection, indexes);
 
         /* Done */
         return collection;
@@ -27,6 +27,9 @@ import org.usrz.libs.stores.annotations.Indexes.Option;
 import org.usrz.libs.stores.annotations.Indexes.Type;
 import org.usrz.libs.utils.Times;
 
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
 public interface MongoIndexBuilder {
 
     public MongoIndexBuilder withName(String name);
@@ -65,4 +68,18 @@ public interface MongoIndexBuilder {
 
     public MongoIndexBuilder expiresAfterSeconds(long seconds);
 
+    default MongoIndexBuilder withPartialFilter(String filter) {
+        final Object parsed = JSON.parse(notNull(filter, "Null filter"));
+        if (parsed instanceof DBObject) return withPartialFilter((DBObject) parsed);
+        throw new IllegalArgumentException("Invalid partial filter " + filter);
+    }
+
+    public MongoIndexBuilder withPartialFilter(DBObject filter);
+
+    default MongoIndexBuilder withCollation(String locale) {
+        return withCollation(locale, 3);
+    }
+
+    public MongoIndexBuilder withCollation(String locale, int strength);
+
 }
\ No newline at end of file
@@ -0,0 +1,85 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores.inject;
+
+import static org.usrz.libs.utils.Check.notNull;
+
+import org.usrz.libs.stores.CachingRelation;
+import org.usrz.libs.stores.Document;
+import org.usrz.libs.stores.Relation;
+import org.usrz.libs.stores.mongo.MongoBucketRelation;
+
+import com.google.common.cache.CacheBuilderSpec;
+
+public class MongoRelationBuilder<L extends Document, R extends Document> {
+
+    private final MongoRelationProvider<L, R> provider;
+
+    protected MongoRelationBuilder(MongoRelationProvider<L, R> provider) {
+        this.provider = notNull(provider, "Null provider");
+    }
+
+    /**
+     * Cache the adjacencies of related documents according to the specified
+     * {@link CacheBuilderSpec}, answering {@link Relation#isAssociated(Document,
+     * Document) isAssociated(...)}, counts and id traversals in memory.
+     *
+     * @see CachingRelation
+     */
+    public MongoRelationBuilder<L, R> withCache(String cacheSpec) {
+        provider.cacheSpec = CacheBuilderSpec.parse(notNull(cacheSpec, "Null cache specification"));
+        return this;
+    }
+
+    /**
+     * Store associations in buckets of (at most)
+     * {@value MongoBucketRelation#DEFAULT_BUCKET_SIZE} <em>right</em> ids
+     * per <em>left</em> document, rather than one document per association.
+     *
+     * @see MongoBucketRelation
+     */
+    public MongoRelationBuilder<L, R> withBuckets() {
+        return this.withBuckets(MongoBucketRelation.DEFAULT_BUCKET_SIZE);
+    }
+
+    /**
+     * Store associations in buckets of (at most) the specified number of
+     * <em>right</em> ids per <em>left</em> document, rather than one
+     * document per association.
+     * <p>
+     * Buckets can not be combined with {@linkplain #withCacheInvalidation()
+     * cache invalidation}, as their changes are not identified by edge ids.
+     *
+     * @see MongoBucketRelation
+     */
+    public MongoRelationBuilder<L, R> withBuckets(int bucketSize) {
+        if (bucketSize < 1) throw new IllegalArgumentException("Invalid bucket size " + bucketSize);
+        if (provider.invalidation) throw new IllegalStateException("Buckets can not be used with cache invalidation");
+        provider.bucketSize = bucketSize;
+        return this;
+    }
+
+    public MongoRelationBuilder<L, R> withCacheInvalidation() {
+        return this.withCacheInvalidation(true);
+    }
+
+    public MongoRelationBuilder<L, R> withCacheInvalidation(boolean invalidation) {
+        if (invalidation && (provider.bucketSize > 0)) throw new IllegalStateException("Cache invalidation can not be used with buckets");
+        provider.invalidation = invalidation;
+        return this;
+    }
+
+}
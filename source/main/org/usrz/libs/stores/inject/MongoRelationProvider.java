@@ -21,13 +21,19 @@ import static org.usrz.libs.utils.Check.notNull;
 import java.lang.reflect.ParameterizedType;
 
 import org.usrz.libs.logging.Log;
+import org.usrz.libs.stores.CacheInvalidator;
+import org.usrz.libs.stores.CachingRelation;
 import org.usrz.libs.stores.Document;
 import org.usrz.libs.stores.Relation;
 import org.usrz.libs.stores.Store;
+import org.usrz.libs.stores.mongo.MongoBucketRelation;
+import org.usrz.libs.stores.mongo.MongoIndexManager;
 import org.usrz.libs.stores.mongo.MongoRelation;
 import org.usrz.libs.utils.inject.InjectingProvider;
 import org.usrz.libs.utils.inject.Injections;
 
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheBuilderSpec;
 import com.google.inject.Injector;
 import com.google.inject.Key;
 import com.google.inject.TypeLiteral;
@@ -43,6 +49,10 @@ extends InjectingProvider<Relation<L, R>> {
     private final TypeLiteral<L> typeL;
     private final TypeLiteral<R> typeR;
     private final String collection;
+    CacheBuilderSpec cacheSpec = null;
+    boolean invalidation = false;
+    int bucketSize = 0;
+    private CachingRelation<L, R> caching;
 
     protected MongoRelationProvider(TypeLiteral<L> typeL, TypeLiteral<R> typeR, String collection) {
         this.typeL = notNull(typeL, "Null type for left association");
@@ -52,7 +62,9 @@ extends InjectingProvider<Relation<L, R>> {
 
     @Override
     @SuppressWarnings({ "unchecked", "rawtypes" })
-    protected Relation<L, R> get(Injector injector) {
+    protected synchronized Relation<L, R> get(Injector injector) {
+        if (caching != null) return caching;
+
         final DBCollection collection = Injections.getInstance(injector, DBCollection.class, Names.named(this.collection));
 
         final ParameterizedType storeTypeL = Types.newParameterizedType(Store.class, typeL.getType());
@@ -63,10 +75,22 @@ extends InjectingProvider<Relation<L, R>> {
         /* Grab our stores */
         final Store<L> storeL = injector.getInstance(Key.get(literalL));
         final Store<R> storeR = injector.getInstance(Key.get(literalR));
+        final MongoIndexManager indexes = injector.getInstance(MongoIndexManager.class);
 
         /* Create our relation */
         log.info("Createding Relation<%s, %s> in collection %s", typeL, typeR, collection.getName());
-        return new MongoRelation(collection, storeL, storeR);
+        final Relation<L, R> relation = bucketSize > 0 ?
+                new MongoBucketRelation<L, R>(collection, storeL, storeR, bucketSize, indexes) :
+                new MongoRelation(collection, storeL, storeR, indexes);
+        if (bucketSize > 0) log.info("Storing Relation<%s, %s> in buckets of %d", typeL, typeR, bucketSize);
+        if (cacheSpec == null) return relation;
+
+        /* Cached adjacencies are shared by all relations for this type */
+        final CacheInvalidator invalidator = invalidation ? injector.getInstance(CacheInvalidator.class) : null;
+        caching = new CachingRelation<L, R>(relation, storeL, storeR, CacheBuilder.from(cacheSpec), collection.getName(), invalidator);
+        log.info("Enabling cache on Relation<%s, %s> with specification \"%s\"", typeL, typeR, cacheSpec.toParsableString());
+        if (invalidator != null) log.info("Enabling cache invalidation on Relation<%s, %s> with %s", typeL, typeR, invalidator);
+        return caching;
     }
 
 }
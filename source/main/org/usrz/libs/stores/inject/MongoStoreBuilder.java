@@ -17,20 +17,31 @@ package org.usrz.libs.stores.inject;
 
 import static org.usrz.libs.utils.Check.notNull;
 
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
 import org.usrz.libs.stores.Document;
+import org.usrz.libs.stores.Query;
 import org.usrz.libs.stores.Store;
+import org.usrz.libs.stores.Stores;
+import org.usrz.libs.stores.WriteBehindStore;
 import org.usrz.libs.stores.annotations.Index;
+import org.usrz.libs.stores.mongo.IndexAdvisor;
 import org.usrz.libs.stores.mongo.MongoIndex;
+import org.usrz.libs.utils.Times;
+import org.usrz.libs.utils.inject.InjectingProvider;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheBuilderSpec;
 import com.google.inject.Binder;
+import com.google.inject.Injector;
 import com.google.inject.TypeLiteral;
 import com.google.inject.name.Names;
 import com.google.inject.util.Types;
@@ -109,15 +120,224 @@ implements MongoBindingBuilder {
         return this;
     }
 
+    /**
+     * Cache documents according to the specified {@link CacheBuilderSpec}.
+     * <p>
+     * When the specification includes a {@code refreshAfterWrite} duration
+     * (shorter than any {@code expireAfterWrite} one) documents due for a
+     * refresh will be returned immediately and <em>revalidated</em> in the
+     * background, comparing their last modified date.
+     * <p>
+     * A {@code maximumWeight} in the specification requires documents to be
+     * {@linkplain #withWeighedCache() weighed}, and weighed caches must have
+     * a {@code maximumWeight} and no {@code maximumSize}.
+     * <p>
+     * Cache statistics are always recorded, and are available from
+     * {@link Stores#getStatistics(String)} or through JMX.
+     */
     public MongoStoreBuilder<D> withCache(String cacheSpec) {
-        return this.withCache(CacheBuilder.from(cacheSpec).build());
+        provider.cacheSpec = CacheBuilderSpec.parse(notNull(cacheSpec, "Null cache specification"));
+        checkWeighedCache();
+        binder.bind(cacheType()).toProvider(new InjectingProvider<Cache<String, D>>() {
+            @Override
+            protected Cache<String, D> get(Injector injector) {
+                return provider.caching(injector).getCache();
+            }
+        });
+        return this;
     }
 
     public MongoStoreBuilder<D> withCache(Cache<String, D> cache) {
-        @SuppressWarnings("unchecked")
-        final TypeLiteral<Cache<String, D>> cacheType = (TypeLiteral<Cache<String, D>>)
-                TypeLiteral.get(Types.newParameterizedType(Cache.class, String.class, type.getType()));
-        binder.bind(cacheType).toInstance(cache);
+        binder.bind(cacheType()).toInstance(cache);
+        return this;
+    }
+
+    /**
+     * Weigh documents cached by {@link #withCache(String)} by their encoded
+     * (BSON) size in bytes, so that the {@code maximumWeight} of its
+     * specification bounds the total size of the documents held, rather
+     * than their number.
+     */
+    public MongoStoreBuilder<D> withWeighedCache() {
+        return this.withWeighedCache(true);
+    }
+
+    public MongoStoreBuilder<D> withWeighedCache(boolean weighed) {
+        provider.weighed = weighed;
+        checkWeighedCache();
+        return this;
+    }
+
+    /* Weighed caches are bounded by weight, never by size */
+    private void checkWeighedCache() {
+        if ((provider.cacheSpec == null) || (!provider.weighed)) return;
+
+        final String spec = provider.cacheSpec.toParsableString();
+        final Set<String> keys = new HashSet<>();
+        for (String option: spec.split(",")) keys.add(option.split("=", 2)[0].trim());
+        if (!keys.contains("maximumWeight"))
+            throw new IllegalArgumentException("Weighed cache specification \"" + spec + "\" has no maximumWeight");
+        if (keys.contains("maximumSize"))
+            throw new IllegalArgumentException("Weighed cache specification \"" + spec + "\" has a maximumSize");
+    }
+
+    /**
+     * Keep up to the specified number of bytes of <em>serialized</em>
+     * documents outside of the Java heap, consulted before hitting the
+     * database whenever a document is not found in the (on-heap) cache.
+     */
+    public MongoStoreBuilder<D> withOffHeapCache(long bytes) {
+        if (bytes < 1) throw new IllegalArgumentException("Invalid off-heap cache size " + bytes);
+        provider.offHeap = bytes;
+        provider.offHeapPath = null;
+        return this;
+    }
+
+    /**
+     * Keep up to the specified number of bytes of <em>serialized</em>
+     * documents in memory-mapped files under the specified directory,
+     * surviving restarts.
+     * <p>
+     * Documents recovered on startup are revalidated in bulk (in the
+     * background) against their last modified date before being used.
+     */
+    public MongoStoreBuilder<D> withPersistentCache(Path directory, long bytes) {
+        this.withOffHeapCache(bytes);
+        provider.offHeapPath = notNull(directory, "Null directory");
+        return this;
+    }
+
+    /**
+     * Warm up the cache (configured with {@link #withCache(String)}) by
+     * loading all documents matching a {@link Query} before the
+     * {@link Store} is first handed out.
+     */
+    public MongoStoreBuilder<D> warmWith(Function<Store<D>, Query<D>> query) {
+        provider.warmQuery = notNull(query, "Null query");
+        return this;
+    }
+
+    /**
+     * Warm up the cache (configured with {@link #withCache(String)}) by
+     * loading all documents listed in a snapshot file, and rewrite the
+     * snapshot with the most requested cached ids every 5 minutes.
+     */
+    public MongoStoreBuilder<D> warmWith(Path snapshot) {
+        return this.warmWith(snapshot, Duration.ofMinutes(5));
+    }
+
+    public MongoStoreBuilder<D> warmWith(Path snapshot, String interval) {
+        return this.warmWith(snapshot, Times.duration(notNull(interval, "Null interval")));
+    }
+
+    public MongoStoreBuilder<D> warmWith(Path snapshot, Duration interval) {
+        if (notNull(interval, "Null interval").isNegative() || interval.isZero())
+            throw new IllegalArgumentException("Invalid snapshot interval " + interval);
+        provider.warmSnapshot = notNull(snapshot, "Null snapshot");
+        provider.warmInterval = interval;
+        return this;
+    }
+
+    /**
+     * Defer writes of existing documents, coalescing repeated writes and
+     * flushing them in bulk after the specified delay, or as soon as the
+     * specified number of writes is pending.
+     *
+     * @see WriteBehindStore
+     */
+    public MongoStoreBuilder<D> withWriteBehind(String delay, int maxPending) {
+        return this.withWriteBehind(Times.duration(notNull(delay, "Null delay")), maxPending);
+    }
+
+    public MongoStoreBuilder<D> withWriteBehind(Duration delay, int maxPending) {
+        if (notNull(delay, "Null delay").isNegative() || delay.isZero())
+            throw new IllegalArgumentException("Invalid write-behind delay " + delay);
+        if (maxPending < 1) throw new IllegalArgumentException("Invalid maximum pending writes " + maxPending);
+        provider.writeBehindDelay = delay;
+        provider.writeBehindMaxPending = maxPending;
+        return this;
+    }
+
+    /**
+     * Record the shapes of all queries run against this store, and
+     * periodically log which of them would benefit from an index, and which
+     * indexes are never used.
+     *
+     * @see IndexAdvisor
+     */
+    public MongoStoreBuilder<D> withIndexAdvisor(String interval) {
+        return this.withIndexAdvisor(Times.duration(notNull(interval, "Null interval")));
+    }
+
+    public MongoStoreBuilder<D> withIndexAdvisor(Duration interval) {
+        if (notNull(interval, "Null interval").isNegative() || interval.isZero())
+            throw new IllegalArgumentException("Invalid index advisor interval " + interval);
+        provider.advisorInterval = interval;
+        return this;
+    }
+
+    /**
+     * Execute queries on cached stores by fetching only the IDs of matching
+     * documents and resolving them through the cache, fetching all misses
+     * in batches.
+     */
+    public MongoStoreBuilder<D> withResolvedQueries() {
+        return this.withResolvedQueries(true);
+    }
+
+    public MongoStoreBuilder<D> withResolvedQueries(boolean resolveQueries) {
+        provider.resolveQueries = resolveQueries;
+        return this;
+    }
+
+    /**
+     * Encode documents straight to <em>BSON</em> bytes handed over as-is to
+     * the driver, and decode them straight from the bytes read, without
+     * building intermediate {@link com.mongodb.DBObject}s.
+     */
+    public MongoStoreBuilder<D> withStreamingCodec() {
+        return this.withStreamingCodec(true);
+    }
+
+    public MongoStoreBuilder<D> withStreamingCodec(boolean streaming) {
+        provider.streaming = streaming;
+        return this;
+    }
+
+    /**
+     * Read and write documents with a {@link org.usrz.libs.stores.bson.BSONCodec}
+     * generated for the document type when the store is created, falling
+     * back to Jackson's own serialization if the type is not supported.
+     */
+    public MongoStoreBuilder<D> withGeneratedCodec() {
+        return this.withGeneratedCodec(true);
+    }
+
+    public MongoStoreBuilder<D> withGeneratedCodec(boolean generated) {
+        provider.generated = generated;
+        return this;
+    }
+
+    @SuppressWarnings("unchecked")
+    private TypeLiteral<Cache<String, D>> cacheType() {
+        return (TypeLiteral<Cache<String, D>>) TypeLiteral.get(Types.newParameterizedType(Cache.class, String.class, type.getType()));
+    }
+
+    public MongoStoreBuilder<D> withNegativeCache(String cacheSpec) {
+        return this.withNegativeCache(CacheBuilder.from(cacheSpec).build());
+    }
+
+    public MongoStoreBuilder<D> withNegativeCache(Cache<String, Boolean> cache) {
+        provider.missing = notNull(cache, "Null negative cache");
+        return this;
+    }
+
+    public MongoStoreBuilder<D> withCacheInvalidation() {
+        return this.withCacheInvalidation(true);
+    }
+
+    public MongoStoreBuilder<D> withCacheInvalidation(boolean invalidation) {
+        provider.invalidation = invalidation;
         return this;
     }
 
@@ -138,4 +358,9 @@ implements MongoBindingBuilder {
         return builder.relate(left, right, collection);
     }
 
+    @Override
+    public <L extends Document, R extends Document> MongoBuilder relate(TypeLiteral<L> left, TypeLiteral<R> right, String collection, Consumer<MongoRelationBuilder<L, R>> consumer) {
+        return builder.relate(left, right, collection, consumer);
+    }
+
 }
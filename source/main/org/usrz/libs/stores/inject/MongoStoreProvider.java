@@ -15,17 +15,41 @@
  * ========================================================================== */
 package org.usrz.libs.stores.inject;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Function;
+
 import org.usrz.libs.logging.Log;
+import org.usrz.libs.stores.CacheInvalidator;
+import org.usrz.libs.stores.CacheWarmer;
 import org.usrz.libs.stores.CachingStore;
 import org.usrz.libs.stores.Document;
+import org.usrz.libs.stores.DocumentCodec;
+import org.usrz.libs.stores.DocumentWeigher;
+import org.usrz.libs.stores.MappedSlabCache;
+import org.usrz.libs.stores.OffHeapStore;
+import org.usrz.libs.stores.Query;
+import org.usrz.libs.stores.SlabCache;
 import org.usrz.libs.stores.Store;
 import org.usrz.libs.stores.ValidatingStore;
+import org.usrz.libs.stores.WriteBehindStore;
 import org.usrz.libs.stores.bson.BSONObjectMapper;
+import org.usrz.libs.stores.mongo.IndexAdvisor;
+import org.usrz.libs.stores.mongo.MongoIndexManager;
 import org.usrz.libs.stores.mongo.MongoStore;
+import org.usrz.libs.stores.mongo.MongoStoreOptions;
 import org.usrz.libs.utils.inject.InjectingProvider;
 import org.usrz.libs.utils.inject.Injections;
 
 import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheBuilderSpec;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Injector;
 import com.google.inject.Key;
 import com.google.inject.TypeLiteral;
@@ -40,6 +64,27 @@ extends InjectingProvider<Store<D>> {
     private final TypeLiteral<D> type;
     private final String collection;
     boolean validation = false;
+    boolean invalidation = false;
+    boolean resolveQueries = false;
+    boolean streaming = false;
+    boolean generated = false;
+    boolean weighed = false;
+    Cache<String, Boolean> missing = null;
+    CacheBuilderSpec cacheSpec = null;
+    long offHeap = 0;
+    Path offHeapPath = null;
+    Function<Store<D>, Query<D>> warmQuery = null;
+    Path warmSnapshot = null;
+    Duration warmInterval = null;
+    Duration writeBehindDelay = null;
+    int writeBehindMaxPending = 0;
+    Duration advisorInterval = null;
+    private CachingStore<D> caching;
+    private CachingStore<D> registered;
+    private SlabCache slabs;
+    private WriteBehindStore<D> writeBehind;
+    private DocumentCodec<D> codec;
+    private IndexAdvisor advisor;
 
     public MongoStoreProvider(TypeLiteral<D> type, String collection) {
         this.collection = collection;
@@ -49,23 +94,165 @@ extends InjectingProvider<Store<D>> {
     @Override
     @SuppressWarnings({ "unchecked", "rawtypes" })
     protected Store<D> get(Injector injector) {
-        final BSONObjectMapper mapper = injector.getInstance(BSONObjectMapper.class);
-        final DBCollection collection = Injections.getInstance(injector, DBCollection.class, Names.named(this.collection));
+        Store store = cacheSpec != null ? caching(injector) : create(injector);
+        if (writeBehindDelay != null) store = writeBehind(store);
 
-        /* Create the basic store */
-        Store store = new MongoStore(mapper, collection, type.getRawType(), type.getType());
-        log.info("Created Store<%s> in collection \"%s\"", type, collection.getName());
+        /* Validation or plan storage? */
+        return validation ? new ValidatingStore(store) : store;
+    }
 
-        /* Caches */
+    /* ====================================================================== */
+
+    @SuppressWarnings("unchecked")
+    private Store<D> create(Injector injector) {
         final TypeLiteral<Cache<String, D>> cacheType = (TypeLiteral<Cache<String, D>>) TypeLiteral.get(Types.newParameterizedType(Cache.class, String.class, type.getType()));
         final Cache<String, D> cache = Injections.getInstance(injector, Key.get(cacheType), true);
+        final CacheInvalidator invalidator = invalidation ? injector.getInstance(CacheInvalidator.class) : null;
+
+        /* Off-heap caches are invalidated by the on-heap one, if any */
+        Store<D> store = mongo(injector, cache == null ? invalidator : null);
+
+        /* Caches */
         if (cache != null) {
-            store = new CachingStore<D>(store, cache);
+            final CachingStore<D> cached = new CachingStore<D>(store, cache, missing, invalidator, resolveQueries);
+            register(cached);
+            store = cached;
             log.info("Enabling cache on Store<%s> with cache %s", type, cache);
+            if (missing != null) log.info("Enabling negative cache on Store<%s> with cache %s", type, missing);
+            if (invalidator != null) log.info("Enabling cache invalidation on Store<%s> with %s", type, invalidator);
+        } else if (missing != null) {
+            log.warn("Negative cache for Store<%s> ignored, as no cache was configured", type);
         }
 
-        /* Validation or plan storage? */
-        return validation ? new ValidatingStore(store) : store;
+        if ((warmQuery != null) || (warmSnapshot != null))
+            log.warn("Warming of Store<%s> ignored, as no cache specification was configured", type);
+
+        return store;
+    }
+
+    /* Pending writes must be shared by all stores for this type */
+    private synchronized Store<D> writeBehind(Store<D> store) {
+        if (writeBehind != null) return writeBehind;
+        writeBehind = new WriteBehindStore<D>(store, codec, writeBehindDelay, writeBehindMaxPending);
+        log.info("Enabling write-behind on Store<%s> every %s (max %d pending)", type, writeBehindDelay, writeBehindMaxPending);
+        return writeBehind;
+    }
+
+    /**
+     * Return the {@link CachingStore} built from the configured cache
+     * specification, shared by all {@link Store}s returned by this instance.
+     */
+    synchronized CachingStore<D> caching(Injector injector) {
+        if (caching != null) return caching;
+
+        final CacheInvalidator invalidator = invalidation ? injector.getInstance(CacheInvalidator.class) : null;
+        final CacheBuilder<Object, Object> builder = CacheBuilder.from(cacheSpec).recordStats();
+        if (weighed) builder.weigher(new DocumentWeigher());
+        caching = new CachingStore<D>(mongo(injector, null), builder, missing, invalidator, resolveQueries);
+        register(caching);
+        log.info("Enabling cache on Store<%s> with specification \"%s\"", type, cacheSpec.toParsableString());
+        if (missing != null) log.info("Enabling negative cache on Store<%s> with cache %s", type, missing);
+        if (invalidator != null) log.info("Enabling cache invalidation on Store<%s> with %s", type, invalidator);
+        if ((warmQuery != null) || (warmSnapshot != null)) warm(caching);
+        return caching;
+    }
+
+    /* Statistics are registered once, by the first caching store created */
+    private synchronized void register(CachingStore<D> store) {
+        if (registered != null) return;
+        store.register();
+        registered = store;
+    }
+
+    /* Warm up the cache before anyone gets to use it */
+    private void warm(CachingStore<D> store) {
+        final CacheWarmer<D> warmer = new CacheWarmer<>(store);
+        store.closeWith(warmer);
+        if (warmQuery != null) warmer.warm(warmQuery.apply(store));
+        if (warmSnapshot == null) return;
+
+        warmer.warm(warmSnapshot);
+        final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("CacheWarmer-snapshot-" + store.getCollection())
+                .setDaemon(true)
+                .build());
+        store.closeWith(executor::shutdown);
+
+        final long interval = warmInterval.toMillis();
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                /* Never overwrite a snapshot with nothing, e.g. when idle */
+                final List<String> ids = store.getCachedIds();
+                if (ids.isEmpty()) return;
+                CacheWarmer.snapshot(warmSnapshot, ids);
+                log.debug("Saved snapshot of %d cached ids in Store<%s> to %s", ids.size(), type, warmSnapshot);
+            } catch (Exception exception) {
+                log.warn(exception, "Unable to save snapshot of Store<%s> to %s", type, warmSnapshot);
+            }
+        }, interval, interval, MILLISECONDS);
+    }
+
+    /* Query shapes are recorded across all stores for this type */
+    private synchronized IndexAdvisor advisor(DBCollection collection) {
+        if ((advisor != null) || (advisorInterval == null)) return advisor;
+        advisor = new IndexAdvisor(collection);
+        log.info("Enabling index advisor on Store<%s> every %s", type, advisorInterval);
+
+        final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("IndexAdvisor-" + collection.getName())
+                .setDaemon(true)
+                .build());
+
+        final long interval = advisorInterval.toMillis();
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                final IndexAdvisor.Report report = advisor.report();
+                if (report.isEmpty()) log.debug("%s", report);
+                else log.warn("%s", report);
+            } catch (Exception exception) {
+                log.warn(exception, "Unable to produce index report for Store<%s>", type);
+            }
+        }, interval, interval, MILLISECONDS);
+        return advisor;
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private Store<D> mongo(Injector injector, CacheInvalidator invalidator) {
+        final BSONObjectMapper mapper = injector.getInstance(BSONObjectMapper.class);
+        final DBCollection collection = Injections.getInstance(injector, DBCollection.class, Names.named(this.collection));
+        final MongoIndexManager indexes = injector.getInstance(MongoIndexManager.class);
+
+        /* Create the basic store */
+        final MongoStoreOptions options = new MongoStoreOptions()
+                .withIndexManager(indexes)
+                .withIndexAdvisor(advisor(collection))
+                .withStreamingCodec(streaming)
+                .withGeneratedCodec(generated)
+                .withWeighing(weighed);
+        final MongoStore<D> store = new MongoStore(mapper, collection, type.getRawType(), type.getType(), options);
+        log.info("Created Store<%s> in collection \"%s\"", type, collection.getName());
+        codec = store;
+        if (offHeap < 1) return store;
+
+        /* Off-heap slabs are shared by all stores for this type */
+        synchronized (this) {
+            if (slabs != null) return new OffHeapStore<D>(store, store, slabs, invalidator);
+
+            if (offHeapPath == null) {
+                slabs = new SlabCache(offHeap);
+                log.info("Enabling off-heap cache on Store<%s> with %s", type, slabs);
+                return new OffHeapStore<D>(store, store, slabs, invalidator);
+            }
+
+            /* Persistent slabs need their content revalidated */
+            slabs = new MappedSlabCache(offHeapPath.resolve(collection.getName()), offHeap);
+            log.info("Enabling persistent cache on Store<%s> with %s", type, slabs);
+            final OffHeapStore<D> offHeapStore = new OffHeapStore<D>(store, store, slabs, invalidator);
+            final Thread thread = new Thread(offHeapStore::revalidate, "OffHeapStore-revalidator-" + collection.getName());
+            thread.setDaemon(true);
+            thread.start();
+            return offHeapStore;
+        }
     }
 
 }
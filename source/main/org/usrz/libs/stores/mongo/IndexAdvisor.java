@@ -0,0 +1,308 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores.mongo;
+
+import static org.usrz.libs.utils.Check.notNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.usrz.libs.logging.Log;
+import org.usrz.libs.stores.Cursor;
+
+import com.mongodb.AggregationOptions;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+/**
+ * An advisor recording the {@linkplain QueryShape shapes} of the queries
+ * run against a collection (with their frequencies and latencies), and
+ * reporting which of them would benefit from an index, and which indexes
+ * are never used.
+ * <p>
+ * Latencies are measured up to the first batch of results being returned.
+ * Only the first {@value #MAX_SHAPES} distinct shapes are recorded.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public class IndexAdvisor {
+
+    /** The maximum number of distinct shapes recorded. */
+    public static final int MAX_SHAPES = 1000;
+
+    private static final Log log = new Log();
+
+    private final ConcurrentHashMap<QueryShape, Statistics> shapes = new ConcurrentHashMap<>();
+    private final DBCollection collection;
+
+    public IndexAdvisor(DBCollection collection) {
+        this.collection = notNull(collection, "Null collection");
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Record the shape of the specified query object, returning a
+     * {@link Cursor} wrapping the one executing it, and timing it.
+     */
+    public <T> Cursor<T> record(DBObject query, Cursor<T> cursor) {
+        final QueryShape shape = QueryShape.of(query);
+        Statistics statistics = shapes.get(shape);
+        if (statistics == null) {
+            if (shapes.size() >= MAX_SHAPES) return cursor;
+            statistics = shapes.computeIfAbsent(shape, (key) -> new Statistics(query));
+        }
+
+        final Statistics recorded = statistics;
+        final long started = System.nanoTime();
+        return new Cursor<T>() {
+
+            private boolean timed = false;
+
+            @Override
+            public boolean hasNext() {
+                final boolean next = cursor.hasNext();
+                if (!timed) {
+                    recorded.record(System.nanoTime() - started);
+                    timed = true;
+                }
+                return next;
+            }
+
+            @Override
+            public T next() {
+                if (!timed) hasNext();
+                return cursor.next();
+            }
+
+            @Override
+            public void close() {
+                cursor.close();
+            }
+        };
+    }
+
+    /** Forget all recorded query shapes. */
+    public void reset() {
+        shapes.clear();
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Compare the recorded query shapes with the query plans chosen by the
+     * server, and the existing indexes with their usage (where supported).
+     * <p>
+     * Unique and TTL indexes are never reported as unused, as their purpose
+     * is not (only) to serve queries.
+     */
+    public Report report() {
+        final List<Missing> missing = new ArrayList<>();
+        for (Map.Entry<QueryShape, Statistics> entry: shapes.entrySet()) {
+            final QueryShape shape = entry.getKey();
+            final Statistics statistics = entry.getValue();
+
+            final DBObject plan;
+            try {
+                final DBCursor cursor = collection.find(statistics.filter()).limit(1);
+                if (!shape.getSort().keySet().isEmpty()) cursor.sort(shape.getSort());
+                plan = cursor.explain();
+            } catch (MongoException exception) {
+                log.warn(exception, "Unable to explain query %s on collection \"%s\"", shape, collection.getName());
+                continue;
+            }
+
+            final boolean scan = contains(plan, "COLLSCAN") || String.valueOf(plan.get("cursor")).startsWith("BasicCursor");
+            final boolean sort = contains(plan, "SORT") || Boolean.TRUE.equals(plan.get("scanAndOrder"));
+            if (scan || sort) missing.add(new Missing(shape, statistics, scan ? "COLLSCAN" : "in-memory sort"));
+        }
+        Collections.sort(missing, (a, b) -> Long.compare(b.count, a.count));
+
+        final Map<String, Long> usage = usage();
+        final List<DBObject> unused = new ArrayList<>();
+        if (usage != null) for (DBObject index: collection.getIndexInfo()) {
+            final Object name = index.get("name");
+            if ("_id_".equals(name)) continue;
+            if (Boolean.TRUE.equals(index.get("unique")) || index.containsField("expireAfterSeconds")) continue;
+            if (usage.getOrDefault(name, 0L) == 0) unused.add(index);
+        }
+
+        return new Report(collection.getName(), missing, unused, usage != null);
+    }
+
+    /* Index name to number of operations, or null when unsupported */
+    private Map<String, Long> usage() {
+        try {
+            final Map<String, Long> usage = new HashMap<>();
+            final List<DBObject> pipeline = Collections.singletonList(new BasicDBObject("$indexStats", new BasicDBObject()));
+            final com.mongodb.Cursor cursor = collection.aggregate(pipeline, AggregationOptions.builder().build());
+            try {
+                while (cursor.hasNext()) {
+                    final DBObject stats = cursor.next();
+                    final DBObject accesses = (DBObject) stats.get("accesses");
+                    final Object ops = accesses == null ? null : accesses.get("ops");
+                    usage.merge((String) stats.get("name"), ops instanceof Number ? ((Number) ops).longValue() : 0L, Long::sum);
+                }
+            } finally {
+                cursor.close();
+            }
+            return usage;
+        } catch (MongoException exception) {
+            log.debug("Index usage statistics unavailable for collection \"%s\": %s", collection.getName(), exception.getMessage());
+            return null;
+        }
+    }
+
+    /* Look for a "stage" anywhere in the (nested) explained plan */
+    private static boolean contains(Object object, String stage) {
+        if (object instanceof List) {
+            for (Object element: (List<?>) object) if (contains(element, stage)) return true;
+        } else if (object instanceof DBObject) {
+            final DBObject document = (DBObject) object;
+            if (stage.equals(document.get("stage"))) return true;
+            for (String key: document.keySet()) if (contains(document.get(key), stage)) return true;
+        }
+        return false;
+    }
+
+    /* ====================================================================== */
+
+    private static final class Statistics {
+
+        private final DBObject sample;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        private Statistics(DBObject sample) {
+            this.sample = sample;
+        }
+
+        private void record(long elapsed) {
+            count.increment();
+            nanos.add(elapsed);
+            max.accumulateAndGet(elapsed, Math::max);
+        }
+
+        private DBObject filter() {
+            return sample.containsField("$query") ? (DBObject) sample.get("$query") : sample;
+        }
+    }
+
+    /* ====================================================================== */
+
+    /** A query shape not (fully) served by an index. */
+    public static final class Missing {
+
+        private final QueryShape shape;
+        private final long count;
+        private final double meanMillis;
+        private final double maxMillis;
+        private final String reason;
+
+        private Missing(QueryShape shape, Statistics statistics, String reason) {
+            this.shape = shape;
+            this.reason = reason;
+            count = statistics.count.sum();
+            meanMillis = count == 0 ? 0 : statistics.nanos.sum() / (double) count / TimeUnit.MILLISECONDS.toNanos(1);
+            maxMillis = statistics.max.get() / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        }
+
+        public QueryShape getShape() {
+            return shape;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMeanMillis() {
+            return meanMillis;
+        }
+
+        public double getMaxMillis() {
+            return maxMillis;
+        }
+
+        /** Either "COLLSCAN" or "in-memory sort". */
+        public String getReason() {
+            return reason;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %s, %d queries, mean %.2f ms, max %.2f ms, %s",
+                                 shape, reason, count, meanMillis, maxMillis,
+                                 shape.isIndexable() ? "suggested index " + shape.getSuggestedIndex() : "no single index suggested");
+        }
+    }
+
+    /* ====================================================================== */
+
+    /** The report produced by an {@link IndexAdvisor}. */
+    public static final class Report {
+
+        private final String collection;
+        private final List<Missing> missing;
+        private final List<DBObject> unused;
+        private final boolean usage;
+
+        private Report(String collection, List<Missing> missing, List<DBObject> unused, boolean usage) {
+            this.collection = collection;
+            this.missing = Collections.unmodifiableList(missing);
+            this.unused = Collections.unmodifiableList(unused);
+            this.usage = usage;
+        }
+
+        /** The query shapes served by collection scans or in-memory sorts, most frequent first. */
+        public List<Missing> getMissingIndexes() {
+            return missing;
+        }
+
+        /** The indexes never used since the server started (empty if unknown). */
+        public List<DBObject> getUnusedIndexes() {
+            return unused;
+        }
+
+        /** Whether index usage statistics were available or not. */
+        public boolean hasUsage() {
+            return usage;
+        }
+
+        public boolean isEmpty() {
+            return missing.isEmpty() && unused.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder builder = new StringBuilder("Index report for collection \"").append(collection).append("\"");
+            for (Missing shape: missing) builder.append("\n  missing: ").append(shape);
+            for (DBObject index: unused) builder.append("\n  unused: ").append(index.get("name")).append(" ").append(index.get("key"));
+            if (!usage) builder.append("\n  (index usage statistics unavailable)");
+            return builder.toString();
+        }
+    }
+}
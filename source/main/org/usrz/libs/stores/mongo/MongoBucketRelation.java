@@ -0,0 +1,309 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores.mongo;
+
+import static org.usrz.libs.stores.annotations.Indexes.Type.ASCENDING;
+import static org.usrz.libs.utils.Check.notNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.usrz.libs.stores.AbstractRelation;
+import org.usrz.libs.stores.Cursor;
+import org.usrz.libs.stores.Document;
+import org.usrz.libs.stores.ResolvingCursor;
+import org.usrz.libs.stores.Store;
+
+import com.mongodb.AggregationOptions;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * A {@link MongoRelation} alternative for high fan-out relations, storing
+ * the <em>right</em> ids associated with each <em>left</em> one in
+ * <em>bucket</em> documents holding at most a fixed number of them, and
+ * opening new buckets when full.
+ * <p>
+ * Compared to one document per association, this keeps two index entries
+ * per association (rather than four) and reads all associations of a
+ * <em>left</em> document with a handful of document reads.
+ * <p>
+ * Concurrent associations of the <em>same</em> pair might (rarely) record
+ * it in two different buckets: counts will then include it twice, while
+ * dissociating it will remove all its copies.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ * @param <L> The type of data stored in the left part of this relation.
+ * @param <R> The type of data stored in the right part of this relation.
+ */
+public class MongoBucketRelation<L extends Document, R extends Document>
+extends AbstractRelation<L, R> {
+
+    /** The default maximum number of <em>right</em> ids in a bucket. */
+    public static final int DEFAULT_BUCKET_SIZE = 1000;
+
+    private static final String L = "l";
+    private static final String R = "r";
+    private static final String ID = "_id";
+    private static final int TRAVERSAL_BATCH = 1000;
+    private static final BasicDBObject NOT_EXISTS = new BasicDBObject("$exists", false);
+
+    private final DBCollection collection;
+    private final Store<L> storeL;
+    private final Store<R> storeR;
+    private final int bucketSize;
+    private final String last;
+
+    public MongoBucketRelation(DBCollection collection, Store<L> storeL, Store<R> storeR) {
+        this(collection, storeL, storeR, DEFAULT_BUCKET_SIZE);
+    }
+
+    public MongoBucketRelation(DBCollection collection, Store<L> storeL, Store<R> storeR, int bucketSize) {
+        this(collection, storeL, storeR, bucketSize, new MongoIndexManager());
+    }
+
+    public MongoBucketRelation(DBCollection collection, Store<L> storeL, Store<R> storeR, int bucketSize, MongoIndexManager indexes) {
+        if (bucketSize < 1) throw new IllegalArgumentException("Invalid bucket size " + bucketSize);
+        this.collection = notNull(collection, "Null collection");
+        this.storeL = notNull(storeL, "Null left store");
+        this.storeR = notNull(storeR, "Null right store");
+        this.bucketSize = bucketSize;
+
+        /* A bucket is full when its last slot exists */
+        last = R + "." + (bucketSize - 1);
+
+        /* Lookups by "L" (and association checks), and reverse lookups by "R" (multikey) */
+        notNull(indexes, "Null index manager").ensureIndexes(collection,
+                new MongoIndex().withKey(L, ASCENDING).withKey(R, ASCENDING),
+                new MongoIndex().withKey(R, ASCENDING).withKey(L, ASCENDING));
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    public void associate(L l, R r) {
+        if (isAssociated(l, r)) return;
+
+        /* Add to a non-full bucket or create a new one */
+        final BasicDBObject query = new BasicDBObject(L, l.id())
+                                              .append(R, new BasicDBObject("$ne", r.id()))
+                                              .append(last, NOT_EXISTS);
+        collection.update(query, new BasicDBObject("$addToSet", new BasicDBObject(R, r.id())), true, false);
+    }
+
+    @Override
+    public void dissociate(L l, R r) {
+        remove(l.id(), Collections.singletonList(r.id()));
+    }
+
+    @Override
+    public void associateAll(L l, Collection<R> rs) {
+        if (rs.isEmpty()) return;
+        add(l.id(), ids(rs));
+    }
+
+    @Override
+    public void dissociateAll(L l, Collection<R> rs) {
+        if (rs.isEmpty()) return;
+        remove(l.id(), ids(rs));
+    }
+
+    @Override
+    public void replaceAll(L l, Collection<R> rs) {
+        final Set<String> wanted = new LinkedHashSet<>(ids(rs));
+        final List<String> unwanted = new ArrayList<>();
+        try (Cursor<String> cursor = findRIds(l)) {
+            while (cursor.hasNext()) {
+                final String id = cursor.next();
+                if (!wanted.remove(id)) unwanted.add(id);
+            }
+        }
+
+        /* Whatever is left in "wanted" is new */
+        if (!unwanted.isEmpty()) remove(l.id(), unwanted);
+        if (!wanted.isEmpty()) add(l.id(), wanted);
+    }
+
+    @Override
+    public boolean isAssociated(L l, R r) {
+        return collection.findOne(new BasicDBObject(L, l.id()).append(R, r.id()), new BasicDBObject(ID, 1)) != null;
+    }
+
+    @Override
+    public Cursor<L> findL(R r) {
+        return new ResolvingCursor<L>(findLIds(r), storeL::findAll);
+    }
+
+    @Override
+    public Cursor<R> findR(L l) {
+        return new ResolvingCursor<R>(findRIds(l), storeR::findAll);
+    }
+
+    @Override
+    public long countL(R r) {
+        return collection.count(new BasicDBObject(R, r.id()));
+    }
+
+    @Override
+    public long countR(L l) {
+        final List<DBObject> pipeline = Arrays.asList(
+                new BasicDBObject("$match", new BasicDBObject(L, l.id())),
+                new BasicDBObject("$group", new BasicDBObject(ID, null)
+                        .append("n", new BasicDBObject("$sum", new BasicDBObject("$size", "$" + R)))));
+
+        final com.mongodb.Cursor cursor = collection.aggregate(pipeline, AggregationOptions.builder().build());
+        try {
+            return cursor.hasNext() ? ((Number) cursor.next().get("n")).longValue() : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public Cursor<String> findLIds(R r) {
+        /* Covered query on the "R" index, one bucket per "L" */
+        final BasicDBObject query = new BasicDBObject(R, r.id());
+        final BasicDBObject fields = new BasicDBObject(L, 1).append(ID, 0);
+        return new MongoCursor<String>(collection.find(query, fields), (o) -> (String) o.get(L));
+    }
+
+    @Override
+    public Cursor<String> findRIds(L l) {
+        return rights(collection.find(new BasicDBObject(L, l.id()), new BasicDBObject(R, 1).append(ID, 0)));
+    }
+
+    @Override
+    public Map<String, Integer> traverse(L start, int depth, int maxResults) {
+        if (depth < 1) throw new IllegalArgumentException("Invalid depth " + depth);
+        if (maxResults < 1) throw new IllegalArgumentException("Invalid maximum results " + maxResults);
+
+        final Map<String, Integer> reached = new LinkedHashMap<>();
+        final Set<String> visited = new HashSet<>();
+        visited.add(start.id());
+
+        List<String> frontier = Collections.singletonList(start.id());
+        for (int level = 1; (level <= depth) && (!frontier.isEmpty()); level ++) {
+            final List<String> next = new ArrayList<>();
+
+            /* Expand the whole frontier in batches, reading whole buckets */
+            for (int offset = 0; offset < frontier.size(); offset += TRAVERSAL_BATCH) {
+                final List<String> batch = frontier.subList(offset, Math.min(offset + TRAVERSAL_BATCH, frontier.size()));
+                final BasicDBObject query = new BasicDBObject(L, new BasicDBObject("$in", batch));
+                try (Cursor<String> cursor = rights(collection.find(query, new BasicDBObject(R, 1).append(ID, 0)))) {
+                    while (cursor.hasNext()) {
+                        final String id = cursor.next();
+                        if (!visited.add(id)) continue;
+                        reached.put(id, level);
+                        if (reached.size() >= maxResults) return reached;
+                        next.add(id);
+                    }
+                }
+            }
+            frontier = next;
+        }
+        return reached;
+    }
+
+    /* ====================================================================== */
+
+    private void add(String l, Collection<String> rs) {
+        final Set<String> pending = new LinkedHashSet<>(rs);
+
+        /* Skip whatever is already associated */
+        try (Cursor<String> cursor = rights(collection.find(new BasicDBObject(L, l).append(R, new BasicDBObject("$in", rs)), new BasicDBObject(R, 1)))) {
+            while (cursor.hasNext()) pending.remove(cursor.next());
+        }
+
+        /* Fill up any non-full bucket, as long as nobody else does */
+        while (!pending.isEmpty()) {
+            final DBObject bucket = collection.findOne(new BasicDBObject(L, l).append(last, NOT_EXISTS), new BasicDBObject(R, 1));
+            if (bucket == null) break;
+
+            final List<String> chunk = take(pending, bucketSize - ((List<?>) bucket.get(R)).size());
+            final BasicDBObject query = new BasicDBObject(ID, bucket.get(ID)).append(R + "." + (bucketSize - chunk.size()), NOT_EXISTS);
+            final BasicDBObject update = new BasicDBObject("$addToSet", new BasicDBObject(R, new BasicDBObject("$each", chunk)));
+            if (collection.update(query, update).getN() == 0) pending.addAll(chunk);
+        }
+
+        /* Anything left goes in new buckets */
+        final List<DBObject> buckets = new ArrayList<>();
+        while (!pending.isEmpty()) buckets.add(new BasicDBObject(L, l).append(R, take(pending, bucketSize)));
+        if (!buckets.isEmpty()) collection.insert(buckets);
+    }
+
+    private void remove(String l, List<String> rs) {
+        collection.update(new BasicDBObject(L, l).append(R, new BasicDBObject("$in", rs)),
+                          new BasicDBObject("$pullAll", new BasicDBObject(R, rs)), false, true);
+        collection.remove(new BasicDBObject(L, l).append(R, new BasicDBObject("$size", 0)));
+    }
+
+    private static List<String> take(Set<String> ids, int count) {
+        final List<String> taken = new ArrayList<>(Math.min(count, ids.size()));
+        final Iterator<String> iterator = ids.iterator();
+        while (iterator.hasNext() && (taken.size() < count)) {
+            taken.add(iterator.next());
+            iterator.remove();
+        }
+        return taken;
+    }
+
+    private static List<String> ids(Collection<? extends Document> documents) {
+        final List<String> ids = new ArrayList<>(documents.size());
+        for (Document document: documents) ids.add(document.id());
+        return ids;
+    }
+
+    /* ====================================================================== */
+
+    private static Cursor<String> rights(DBCursor cursor) {
+        return new Cursor<String>() {
+
+            private Iterator<?> bucket = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!bucket.hasNext()) {
+                    if (!cursor.hasNext()) return false;
+                    bucket = ((List<?>) cursor.next().get(R)).iterator();
+                }
+                return true;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return (String) bucket.next();
+            }
+
+            @Override
+            public void close() {
+                cursor.close();
+            }
+        };
+    }
+}
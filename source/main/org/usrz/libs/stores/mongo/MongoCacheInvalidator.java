@@ -0,0 +1,298 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores.mongo;
+
+import static org.usrz.libs.utils.Check.notNull;
+
+import java.io.Closeable;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.bson.types.BSONTimestamp;
+import org.bson.types.ObjectId;
+import org.usrz.libs.logging.Log;
+import org.usrz.libs.stores.CacheInvalidator;
+import org.usrz.libs.stores.Document;
+import org.usrz.libs.utils.Strings;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.Bytes;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+/**
+ * A {@link CacheInvalidator} tailing MongoDB's <em>oplog</em> when running
+ * against a replica set, or a <em>capped</em> {@value #COLLECTION}
+ * collection when running against a standalone server.
+ * <p>
+ * When tailing the <em>oplog</em> every write to the database (from any
+ * client) is noticed, and {@link #publish(String, String)} does nothing:
+ * listeners receive the written {@linkplain Document#lastModifiedAt() last
+ * modification date} (when present) to recognize their own writes. In the
+ * <em>capped</em> collection case, only changes published by other
+ * instances of this class are noticed.
+ * <p>
+ * Tailing stops when this instance is {@linkplain #close() closed}, or when
+ * the JVM shuts down.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+@Singleton
+public class MongoCacheInvalidator implements CacheInvalidator, Closeable {
+
+    /** The name of the capped collection used when no oplog is available. */
+    public static final String COLLECTION = "invalidations";
+
+    private static final long CAPPED_SIZE = 16 * 1024 * 1024;
+    private static final long RETRY_MILLIS = 1000;
+
+    private static final String OPLOG = "oplog.rs";
+    private static final String FIELD_COLLECTION = "c";
+    private static final String FIELD_ID = "i";
+    private static final String FIELD_NODE = "n";
+    private static final String FIELD_TIMESTAMP = "ts";
+
+    private static final Log log = new Log();
+
+    private final ConcurrentHashMap<String, List<BiConsumer<String, Date>>> listeners = new ConcurrentHashMap<>();
+    private final String node = Strings.random(16);
+    private final DBCollection invalidations;
+    private final DBCollection oplog;
+    private final DB database;
+    private final Thread shutdownHook;
+
+    private volatile DBCursor cursor;
+    private volatile boolean closed;
+    private Thread thread;
+
+    @Inject
+    private MongoCacheInvalidator(DB database) {
+        this.database = notNull(database, "Null database");
+
+        /* Try to use the oplog, if we are in a replica set and allowed to */
+        DBCollection oplog = null;
+        try {
+            final DB local = database.getSisterDB("local");
+            if (local.collectionExists(OPLOG)) oplog = local.getCollection(OPLOG);
+        } catch (MongoException exception) {
+            log.debug("Unable to access oplog: %s", exception.getMessage());
+        }
+
+        /* Oplog available? Use it, otherwise fall back to our capped collection */
+        if (oplog != null) {
+            log.info("Tailing oplog for cache invalidations in database \"%s\"", database.getName());
+            this.invalidations = null;
+            this.oplog = oplog;
+        } else {
+            log.info("Tailing capped collection \"%s\" for cache invalidations in database \"%s\"", COLLECTION, database.getName());
+            this.invalidations = capped(database);
+            this.oplog = null;
+        }
+
+        shutdownHook = new Thread(this::close, "CacheInvalidator-shutdown-" + database.getName());
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    private static DBCollection capped(DB database) {
+        if (!database.collectionExists(COLLECTION)) try {
+            return database.createCollection(COLLECTION, new BasicDBObject("capped", true).append("size", CAPPED_SIZE));
+        } catch (MongoException exception) {
+            /* Someone else might have created it in the meantime */
+            log.debug("Unable to create capped collection \"%s\": %s", COLLECTION, exception.getMessage());
+        }
+        return database.getCollection(COLLECTION);
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    public void subscribe(String collection, Consumer<String> listener) {
+        notNull(listener, "Null listener");
+        this.subscribe(collection, (id, lastModifiedAt) -> listener.accept(id));
+    }
+
+    @Override
+    public void subscribe(String collection, BiConsumer<String, Date> listener) {
+        notNull(collection, "Null collection");
+        notNull(listener, "Null listener");
+        listeners.computeIfAbsent(collection, (c) -> new CopyOnWriteArrayList<>()).add(listener);
+        start();
+    }
+
+    @Override
+    public void publish(String collection, String id) {
+        if (invalidations == null) return; // the oplog will notify everyone
+
+        /* Let the server assign the timestamp we resume from when tailing */
+        final BasicDBObject entry = new BasicDBObject(FIELD_COLLECTION, notNull(collection, "Null collection"))
+                                              .append(FIELD_ID, notNull(id, "Null ID"))
+                                              .append(FIELD_NODE, node);
+        invalidations.update(new BasicDBObject(MongoStore.ID, new ObjectId()),
+                             new BasicDBObject("$set", entry)
+                                       .append("$currentDate", new BasicDBObject(FIELD_TIMESTAMP, new BasicDBObject("$type", "timestamp"))),
+                             true, false);
+    }
+
+    /**
+     * Stop tailing for cache invalidations.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException exception) {
+            /* Already shutting down */
+        }
+
+        final DBCursor cursor = this.cursor;
+        if (cursor != null) cursor.close();
+    }
+
+    /* ====================================================================== */
+
+    private synchronized void start() {
+        if ((thread != null) || closed) return;
+        thread = new Thread(this::tail, "CacheInvalidator[" + database.getName() + "]");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void notify(String collection, String id, Date lastModifiedAt) {
+        final List<BiConsumer<String, Date>> consumers = listeners.get(collection);
+        if (consumers != null) consumers.forEach((consumer) -> {
+            try {
+                consumer.accept(id, lastModifiedAt);
+            } catch (RuntimeException exception) {
+                log.warn(exception, "Exception invalidating \"%s/%s\"", collection, id);
+            }
+        });
+    }
+
+    private void tail() {
+        Object position = oplog != null ? lastTimestamp(oplog) : lastTimestamp(invalidations);
+        if ((position == null) && (oplog != null)) position = new BSONTimestamp((int) (System.currentTimeMillis() / 1000), 0);
+
+        while (!closed) try {
+            cursor = oplog != null ? tailOplog(position) : tailCapped(position);
+            while (!closed && cursor.hasNext()) {
+                final DBObject entry = cursor.next();
+                position = oplog != null ? processOplog(entry) : processCapped(entry);
+            }
+
+            /* Tailable cursors die on empty collections, wait and retry */
+            cursor.close();
+            if (!closed) Thread.sleep(RETRY_MILLIS);
+
+        } catch (InterruptedException exception) {
+            log.warn("Interrupted tailing for cache invalidations");
+            return;
+        } catch (RuntimeException exception) {
+            if (closed) return;
+            log.error(exception, "Exception tailing for cache invalidations, invalidating all caches");
+
+            /* We might have lost some changes, invalidate everything */
+            listeners.keySet().forEach((collection) -> notify(collection, null, null));
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException interrupted) {
+                return;
+            }
+        }
+    }
+
+    /* ====================================================================== */
+
+    /* Start after the last entry: timestamps are assigned by the server */
+    private BSONTimestamp lastTimestamp(DBCollection collection) {
+        final DBCursor cursor = collection.find().sort(new BasicDBObject("$natural", -1)).limit(1);
+        try {
+            if (cursor.hasNext()) {
+                final Object timestamp = cursor.next().get(FIELD_TIMESTAMP);
+                if (timestamp instanceof BSONTimestamp) return (BSONTimestamp) timestamp;
+            }
+        } finally {
+            cursor.close();
+        }
+        return null;
+    }
+
+    private DBCursor tailOplog(Object timestamp) {
+        final BasicDBObject query = new BasicDBObject(FIELD_TIMESTAMP, new BasicDBObject("$gt", timestamp))
+                .append("ns", Pattern.compile("^" + Pattern.quote(database.getName() + ".")));
+        return oplog.find(query)
+                    .addOption(Bytes.QUERYOPTION_TAILABLE)
+                    .addOption(Bytes.QUERYOPTION_AWAITDATA)
+                    .addOption(Bytes.QUERYOPTION_OPLOGREPLAY);
+    }
+
+    private Object processOplog(DBObject entry) {
+        final String namespace = (String) entry.get("ns");
+        final String operation = (String) entry.get("op");
+        final DBObject object = (DBObject) entry.get("o");
+        final String prefix = database.getName() + ".";
+
+        if ("c".equals(operation)) {
+            /* Commands: a dropped collection invalidates everything */
+            final Object dropped = object == null ? null : object.get("drop");
+            if (dropped != null) notify(dropped.toString(), null, null);
+
+        } else if (namespace.startsWith(prefix)) {
+            /* Inserts and deletes have the ID in "o", updates in "o2" */
+            final DBObject document = "u".equals(operation) ? (DBObject) entry.get("o2") : object;
+            final Object id = document == null ? null : document.get(MongoStore.ID);
+            if (id != null) notify(namespace.substring(prefix.length()), id.toString(), lastModifiedAt(object));
+        }
+
+        return entry.get(FIELD_TIMESTAMP);
+    }
+
+    /* Inserts and replacements have the whole document, updates "$set" */
+    private static Date lastModifiedAt(DBObject object) {
+        if (object == null) return null;
+        final Object set = object.get("$set");
+        final Object date = (set instanceof DBObject ? (DBObject) set : object).get(MongoStore.LAST_MODIFIED_AT);
+        return date instanceof Date ? (Date) date : null;
+    }
+
+    /* ====================================================================== */
+
+    private DBCursor tailCapped(Object timestamp) {
+        final BasicDBObject query = timestamp == null ? new BasicDBObject() : new BasicDBObject(FIELD_TIMESTAMP, new BasicDBObject("$gt", timestamp));
+        return invalidations.find(query)
+                            .addOption(Bytes.QUERYOPTION_TAILABLE)
+                            .addOption(Bytes.QUERYOPTION_AWAITDATA);
+    }
+
+    private Object processCapped(DBObject entry) {
+        if (!node.equals(entry.get(FIELD_NODE))) {
+            notify((String) entry.get(FIELD_COLLECTION), (String) entry.get(FIELD_ID), null);
+        }
+        return entry.get(FIELD_TIMESTAMP);
+    }
+
+}
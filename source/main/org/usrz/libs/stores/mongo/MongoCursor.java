@@ -18,18 +18,17 @@ package org.usrz.libs.stores.mongo;
 import java.util.function.Function;
 
 import org.usrz.libs.stores.Cursor;
-import org.usrz.libs.stores.Document;
 import org.usrz.libs.utils.Check;
 
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 
-public class MongoCursor<D extends Document> implements Cursor<D> {
+public class MongoCursor<T> implements Cursor<T> {
 
     private final DBCursor cursor;
-    private final Function<DBObject, D> function;
+    private final Function<DBObject, T> function;
 
-    public MongoCursor(DBCursor cursor, Function<DBObject, D> function) {
+    public MongoCursor(DBCursor cursor, Function<DBObject, T> function) {
         this.cursor = Check.notNull(cursor, "Null cursor");
         this.function = Check.notNull(function, "Null function");
     }
@@ -40,7 +39,7 @@ public class MongoCursor<D extends Document> implements Cursor<D> {
     }
 
     @Override
-    public D next() {
+    public T next() {
         final DBObject object = cursor.next();
         if (object == null) return null;
         return function.apply(object);
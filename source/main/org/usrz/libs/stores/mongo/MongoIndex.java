@@ -17,7 +17,6 @@ package org.usrz.libs.stores.mongo;
 
 import static org.usrz.libs.utils.Check.notNull;
 
-import org.usrz.libs.logging.Log;
 import org.usrz.libs.stores.annotations.Index;
 import org.usrz.libs.stores.annotations.Index.Key;
 import org.usrz.libs.stores.annotations.Indexed;
@@ -27,12 +26,10 @@ import org.usrz.libs.stores.inject.MongoIndexBuilder;
 import org.usrz.libs.utils.Check;
 
 import com.mongodb.BasicDBObject;
-import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
 
 public class MongoIndex implements MongoIndexBuilder {
 
-    private static final Log log = new Log();
-
     private final BasicDBObject index = new BasicDBObject();
     private final BasicDBObject options = new BasicDBObject();
 
@@ -41,24 +38,27 @@ public class MongoIndex implements MongoIndexBuilder {
     }
 
     @Override
-    public MongoIndexBuilder withName(String name) {
+    public MongoIndex withName(String name) {
         options.put("name", notNull(name, "Null name"));
         return this;
     }
 
     @Override
-    public MongoIndexBuilder withKey(String key, Type type) {
+    public MongoIndex withKey(String key, Type type) {
         switch (notNull(type, "Null type")) {
             case ASCENDING:  index.append(notNull(key, "Null name"),  1);       break;
             case DESCENDING: index.append(notNull(key, "Null name"), -1);       break;
             case HASHED:     index.append(notNull(key, "Null name"), "hashed"); break;
+            case WILDCARD:   index.append(wildcard(notNull(key, "Null name")), 1); break;
+            case TEXT:       index.append("".equals(notNull(key, "Null name")) ? "$**" : key, "text"); break;
+            case GEO_2DSPHERE: index.append(notNull(key, "Null name"), "2dsphere"); break;
             default: throw new IllegalArgumentException("Unsupported type "  + type);
         }
         return this;
     }
 
     @Override
-    public MongoIndexBuilder withOptions(Option... o) {
+    public MongoIndex withOptions(Option... o) {
         for (Option option: o) switch(notNull(option, "Null option")) {
             case SPARSE: options.put("sparse", true); break;
             case UNIQUE: options.put("unique", true); break;
@@ -68,13 +68,30 @@ public class MongoIndex implements MongoIndexBuilder {
     }
 
     @Override
-    public MongoIndexBuilder expiresAfterSeconds(long seconds) {
+    public MongoIndex expiresAfterSeconds(long seconds) {
         if ((seconds > Integer.MAX_VALUE) || (seconds < 0))
             throw new IllegalArgumentException("Invalid expiration: " + seconds + " seconds");
         options.put("expireAfterSeconds", (int) seconds);
         return this;
     }
 
+    @Override
+    public MongoIndex withPartialFilter(DBObject filter) {
+        options.put("partialFilterExpression", notNull(filter, "Null filter"));
+        return this;
+    }
+
+    @Override
+    public MongoIndex withCollation(String locale, int strength) {
+        if ((strength < 1) || (strength > 5)) throw new IllegalArgumentException("Invalid collation strength " + strength);
+        options.put("collation", new BasicDBObject("locale", notNull(locale, "Null locale")).append("strength", strength));
+        return this;
+    }
+
+    private static String wildcard(String key) {
+        return "".equals(key) || "$**".equals(key) ? "$**" : key + ".$**";
+    }
+
     /* ====================================================================== */
 
     public MongoIndex withAnnotation(Index index) {
@@ -84,6 +101,8 @@ public class MongoIndex implements MongoIndexBuilder {
         for (Key key: index.keys()) withKey(key.field(), key.type());
         if (!"".equals(index.expiresAfter())) expiresAfter(index.expiresAfter());
         if (!"".equals(index.name())) withName(index.name());
+        if (!"".equals(index.partialFilter())) withPartialFilter(index.partialFilter());
+        if (!"".equals(index.collation())) withCollation(index.collation(), index.collationStrength());
         withOptions(index.options());
 
         return this;
@@ -97,19 +116,27 @@ public class MongoIndex implements MongoIndexBuilder {
         withOptions(annotation.options());
         if (!"".equals(annotation.name())) withName(annotation.name());
         if (!"".equals(annotation.expiresAfter())) expiresAfter(annotation.expiresAfter());
+        if (!"".equals(annotation.partialFilter())) withPartialFilter(annotation.partialFilter());
+        if (!"".equals(annotation.collation())) withCollation(annotation.collation(), annotation.collationStrength());
 
         return this;
     }
 
     /* ====================================================================== */
 
-    public void ensureIndex(DBCollection collection) {
-        if (options.isEmpty()) {
-            log.info("Ensuring index %s with no options on collection \"%s\"", index, collection.getName());
-        } else {
-            log.info("Ensuring index %s with options %s on collection \"%s\"", index, options, collection.getName());
-        }
-        collection.createIndex(index, options);
+    /** Return a copy of the keys of this index. */
+    BasicDBObject key() {
+        return (BasicDBObject) index.copy();
+    }
+
+    /** Return a copy of the options of this index. */
+    BasicDBObject options() {
+        return (BasicDBObject) options.copy();
+    }
+
+    @Override
+    public String toString() {
+        return options.isEmpty() ? index.toString() : index + " " + options;
     }
 
 }
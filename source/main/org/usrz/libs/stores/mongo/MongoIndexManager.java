@@ -0,0 +1,274 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores.mongo;
+
+import static org.usrz.libs.utils.Check.notNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.usrz.libs.logging.Log;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+/**
+ * A manager ensuring that {@link MongoIndex}es are present on collections.
+ * <p>
+ * Declared indexes are first compared with the ones existing in the
+ * collection: indexes already present (by key, collation and partial filter)
+ * are never re-created (differences in their other options are reported),
+ * while missing ones are handled according to the manager's {@link Mode}.
+ * <p>
+ * Indexes sharing the same key but differing in collation or partial filter
+ * can only coexist with different names: declarations like these are only
+ * considered missing when {@linkplain MongoIndex#withName(String) named}
+ * differently from all existing indexes, otherwise they are reported and
+ * never created.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public class MongoIndexManager {
+
+    /** How missing indexes are handled. */
+    public enum Mode {
+        /** Create missing indexes, waiting for them to be built. */
+        CREATE,
+        /** Build missing indexes in the background, without waiting. */
+        BACKGROUND,
+        /** Do not create missing indexes, simply report them. */
+        REPORT
+    }
+
+    /* Options distinguishing indexes with the same key */
+    private static final List<String> VARIANTS = Arrays.asList("collation", "partialFilterExpression");
+    /* Other options whose differences we report */
+    private static final List<String> OPTIONS = Arrays.asList("unique", "sparse", "expireAfterSeconds");
+    private static final Log log = new Log();
+
+    private final Mode mode;
+    private ExecutorService executor;
+
+    public MongoIndexManager() {
+        this(Mode.CREATE);
+    }
+
+    public MongoIndexManager(Mode mode) {
+        this.mode = notNull(mode, "Null mode");
+    }
+
+    /** Return the {@link Mode} of this manager. */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /* ====================================================================== */
+
+    /** Ensure that the specified indexes are present on the collection. */
+    public void ensureIndexes(DBCollection collection, MongoIndex... indexes) {
+        this.ensureIndexes(collection, Arrays.asList(indexes));
+    }
+
+    /** Ensure that the specified indexes are present on the collection. */
+    public void ensureIndexes(DBCollection collection, Collection<MongoIndex> indexes) {
+        notNull(collection, "Null collection");
+        if (indexes.isEmpty()) return;
+
+        final List<DBObject> existing;
+        try {
+            existing = collection.getIndexInfo();
+        } catch (MongoException exception) {
+            /* Without a listing, only CREATE can still honor unique/TTL indexes */
+            if (mode != Mode.CREATE) {
+                log.warn(exception, "Unable to list indexes of collection \"%s\"", collection.getName());
+                return;
+            }
+
+            /* Creating an index that already exists is a no-op for MongoDB */
+            log.warn(exception, "Unable to list indexes of collection \"%s\", creating all declared", collection.getName());
+            for (MongoIndex index: indexes) create(collection, index, false);
+            return;
+        }
+
+        final List<MongoIndex> missing = new ArrayList<>();
+        for (MongoIndex index: indexes) {
+            final BasicDBObject options = index.options();
+            final List<DBObject> sameKey = find(existing, index.key());
+            if (sameKey.isEmpty()) {
+                missing.add(index);
+                continue;
+            }
+
+            final DBObject found = variant(sameKey, options);
+            if (found == null) {
+                /* Creating it with the same (default) name would fail */
+                final Object name = options.get("name");
+                if ((name != null) && !named(existing, name)) {
+                    missing.add(index);
+                } else {
+                    log.warn("Index %s on collection \"%s\" has the same key as declared %s, but a different collation or partial filter (name it differently to create both)",
+                             sameKey.get(0).get("name"), collection.getName(), index);
+                }
+                continue;
+            }
+
+            for (String option: OPTIONS) {
+                final Object declared = options.get(option);
+                final Object present = found.get(option);
+                if (same(declared, present)) continue;
+                log.warn("Index %s on collection \"%s\" differs from declared %s (option \"%s\")",
+                         found.get("name"), collection.getName(), index, option);
+                break;
+            }
+        }
+
+        if (!missing.isEmpty()) switch (mode) {
+            case CREATE:
+                for (MongoIndex index: missing) create(collection, index, false);
+                break;
+
+            case BACKGROUND:
+                for (MongoIndex index: missing) log.info("Scheduling background build of index %s on collection \"%s\"", index, collection.getName());
+                executor().execute(() -> {
+                    for (MongoIndex index: missing) try {
+                        create(collection, index, true);
+                    } catch (MongoException exception) {
+                        log.error(exception, "Unable to build index %s on collection \"%s\"", index, collection.getName());
+                    }
+                });
+                break;
+
+            case REPORT:
+                for (MongoIndex index: missing) log.warn("Missing index %s on collection \"%s\"", index, collection.getName());
+                break;
+
+            default:
+                throw new IllegalStateException("Unsupported mode " + mode);
+        }
+    }
+
+    /* ====================================================================== */
+
+    private void create(DBCollection collection, MongoIndex index, boolean background) {
+        final BasicDBObject options = index.options();
+        if (background) options.put("background", true);
+
+        final long started = System.currentTimeMillis();
+        log.info("Creating index %s on collection \"%s\"", index, collection.getName());
+        collection.createIndex(index.key(), options);
+        log.info("Created index %s on collection \"%s\" in %d ms", index, collection.getName(), System.currentTimeMillis() - started);
+    }
+
+    private synchronized ExecutorService executor() {
+        if (executor == null) executor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("MongoIndexManager-%d").build());
+        return executor;
+    }
+
+    private static List<DBObject> find(List<DBObject> existing, BasicDBObject key) {
+        final List<DBObject> found = new ArrayList<>();
+        for (DBObject index: existing) if (sameIndexKey(key, index)) found.add(index);
+        return found;
+    }
+
+    private static DBObject variant(List<DBObject> sameKey, BasicDBObject options) {
+        for (DBObject index: sameKey) if (sameVariant(options, index)) return index;
+        return null;
+    }
+
+    private static boolean sameVariant(BasicDBObject options, DBObject index) {
+        for (String option: VARIANTS) {
+            final Object declared = options.get(option);
+            final Object present = index.get(option);
+            if ("collation".equals(option) ? !sameCollation(declared, present) : !same(declared, present)) return false;
+        }
+        return true;
+    }
+
+    private static boolean named(List<DBObject> existing, Object name) {
+        for (DBObject index: existing) if (name.equals(index.get("name"))) return true;
+        return false;
+    }
+
+    /* Existing collations include all defaults, and "simple" is no collation */
+    private static boolean sameCollation(Object declared, Object existing) {
+        if ((existing instanceof DBObject) && "simple".equals(((DBObject) existing).get("locale"))) existing = null;
+        if ((declared == null) || (existing == null)) return (declared == null) && (existing == null);
+        if (!(existing instanceof DBObject)) return false;
+
+        final DBObject collation = (DBObject) existing;
+        for (String field: ((DBObject) declared).keySet()) {
+            if (!same(((DBObject) declared).get(field), collation.get(field))) return false;
+        }
+        return true;
+    }
+
+    /* Text fields are listed as "_fts" and "_ftsx", and named in "weights" */
+    private static boolean sameIndexKey(BasicDBObject declared, DBObject index) {
+        final Object key = index.get("key");
+        if (!(key instanceof DBObject)) return false;
+        final Object weights = index.get("weights");
+        if (!(weights instanceof DBObject)) return sameKey(declared, (DBObject) key);
+
+        final BasicDBObject normalized = new BasicDBObject();
+        final Set<String> fields = new HashSet<>();
+        for (Map.Entry<String, Object> entry: declared.entrySet()) {
+            if ("text".equals(entry.getValue())) {
+                fields.add(entry.getKey());
+                normalized.append("_fts", "text").append("_ftsx", 1);
+            } else {
+                normalized.append(entry.getKey(), entry.getValue());
+            }
+        }
+        return fields.equals(((DBObject) weights).keySet()) && sameKey(normalized, (DBObject) key);
+    }
+
+    /* Key order matters, and numbers might come back as doubles */
+    private static boolean sameKey(BasicDBObject declared, DBObject existing) {
+        if (declared.keySet().size() != existing.keySet().size()) return false;
+
+        final Iterator<String> iterator = existing.keySet().iterator();
+        for (Map.Entry<String, Object> entry: declared.entrySet()) {
+            final String field = iterator.next();
+            if (!entry.getKey().equals(field)) return false;
+            if (!same(entry.getValue(), existing.get(field))) return false;
+        }
+        return true;
+    }
+
+    private static boolean same(Object declared, Object existing) {
+        if ((declared instanceof Number) && (existing instanceof Number))
+            return ((Number) declared).doubleValue() == ((Number) existing).doubleValue();
+
+        /* "false" is the same as not specified */
+        if (Boolean.FALSE.equals(declared)) declared = null;
+        if (Boolean.FALSE.equals(existing)) existing = null;
+        return Objects.equals(declared, existing);
+    }
+
+}
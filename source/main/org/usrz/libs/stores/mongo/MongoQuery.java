@@ -21,6 +21,8 @@ import java.util.regex.Pattern;
 
 import org.usrz.libs.stores.Document;
 import org.usrz.libs.stores.Query;
+import org.usrz.libs.stores.geo.Point;
+import org.usrz.libs.stores.geo.Polygon;
 import org.usrz.libs.utils.Check;
 
 import com.mongodb.BasicDBList;
@@ -31,8 +33,14 @@ import com.mongodb.QueryOperators;
 
 public abstract class MongoQuery<D extends Document> implements Query<D> {
 
+    /** The field where the relevance score of text searches is projected. */
+    protected static final String SCORE = "_score";
+    private static final BasicDBObject TEXT_SCORE = new BasicDBObject("$meta", "textScore");
+
     private final BasicDBObject query;
     private final BasicDBObject orderBy;
+    private String hint;
+    private boolean text;
 
     protected MongoQuery() {
         this.query = new BasicDBObject();
@@ -60,11 +68,36 @@ public abstract class MongoQuery<D extends Document> implements Query<D> {
         return this;
     }
 
+    @Override
+    public MongoQuery<D> text(String search) {
+        query.append("$text", new BasicDBObject("$search", Check.notNull(search, "Null search")));
+        text = true;
+        return this;
+    }
+
+    @Override
+    public MongoQuery<D> hint(String index) {
+        this.hint = Check.notEmpty(index, "Invalid index name");
+        return this;
+    }
+
     /* ====================================================================== */
 
     protected DBObject getQueryObject() {
-        if (orderBy.isEmpty()) return query;
-        return new BasicDBObject("$query", query).append("$orderby", orderBy);
+        if (orderBy.isEmpty() && (hint == null) && (!text)) return query;
+        final BasicDBObject object = new BasicDBObject("$query", query);
+        if (!orderBy.isEmpty()) object.append("$orderby", orderBy);
+        else if (text) object.append("$orderby", new BasicDBObject(SCORE, TEXT_SCORE));
+        if (hint != null) object.append("$hint", hint);
+        return object;
+    }
+
+    /**
+     * Return the fields to project in addition to the ones of the document,
+     * or <b>null</b> if none (the relevance score of text searches).
+     */
+    protected DBObject getFieldsObject() {
+        return text ? new BasicDBObject(SCORE, TEXT_SCORE) : null;
     }
 
     /* ====================================================================== */
@@ -144,6 +177,22 @@ public abstract class MongoQuery<D extends Document> implements Query<D> {
             return MongoQuery.this;
         }
 
+        @Override
+        public MongoQuery<D> near(Point point, double maxMeters) {
+            Check.notNull(point, "Null point");
+            if (!(maxMeters >= 0)) throw new IllegalArgumentException("Invalid maximum distance " + maxMeters);
+            query.append(field, new BasicDBObject("$nearSphere", new BasicDBObject("$geometry", map(point))
+                                                                    .append("$maxDistance", maxMeters)));
+            return MongoQuery.this;
+        }
+
+        @Override
+        public MongoQuery<D> within(Polygon polygon) {
+            Check.notNull(polygon, "Null polygon");
+            query.append(field, new BasicDBObject("$geoWithin", new BasicDBObject("$geometry", map(polygon))));
+            return MongoQuery.this;
+        }
+
         /* ================================================================== */
 
         private Object map(Object object) {
@@ -154,8 +203,14 @@ public abstract class MongoQuery<D extends Document> implements Query<D> {
                 final String collection = document.collection();
                 return new DBRef(null, collection, id);
             }
+            if (object instanceof Point) return geometry(Point.TYPE, ((Point) object).getCoordinates());
+            if (object instanceof Polygon) return geometry(Polygon.TYPE, ((Polygon) object).getCoordinates());
             return object;
         }
 
+        private DBObject geometry(String type, Object coordinates) {
+            return new BasicDBObject("type", type).append("coordinates", coordinates);
+        }
+
     }
 }
@@ -15,33 +15,155 @@
  * ========================================================================== */
 package org.usrz.libs.stores.mongo;
 
+import static org.usrz.libs.stores.annotations.Indexes.Option.UNIQUE;
+import static org.usrz.libs.stores.annotations.Indexes.Type.ASCENDING;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.usrz.libs.logging.Log;
 import org.usrz.libs.stores.AbstractRelation;
 import org.usrz.libs.stores.Cursor;
 import org.usrz.libs.stores.Document;
+import org.usrz.libs.stores.ResolvingCursor;
 import org.usrz.libs.stores.Store;
 
+import com.mongodb.AggregationOptions;
 import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
 import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
 
 public class MongoRelation<L extends Document, R extends Document>
 extends AbstractRelation<L, R> {
 
     private static final String L = "l";
     private static final String R = "r";
+    private static final String ID = "_id";
+    private static final char EDGE_SEPARATOR = '\u0000';
+    private static final int DUPLICATE_KEY = 11000;
+    private static final int TRAVERSAL_BATCH = 1000;
+    private static final Set<Integer> UNRECOGNIZED_STAGE = new HashSet<>(Arrays.asList(16436, 40324));
+    /* "$graphLookup" gathers all edges reached in one document (16MB) and in memory (100MB, ignoring "allowDiskUse") */
+    private static final long GRAPH_LOOKUP_MAX_BYTES = 8 * 1024 * 1024;
+    private static final Log log = new Log();
 
     private final DBCollection collection;
     private final Store<L> storeL;
     private final Store<R> storeR;
+    private volatile boolean graphLookup = true;
 
     public MongoRelation(DBCollection collection, Store<L> storeL, Store<R> storeR) {
+        this(collection, storeL, storeR, new MongoIndexManager());
+    }
+
+    public MongoRelation(DBCollection collection, Store<L> storeL, Store<R> storeR, MongoIndexManager indexes) {
         this.storeL = storeL;
         this.storeR = storeR;
         this.collection = collection;
 
-        collection.createIndex(new BasicDBObject(L, 1), new BasicDBObject("unique", false).append("sparse", false));
-        collection.createIndex(new BasicDBObject(R, 1), new BasicDBObject("unique", false).append("sparse", false));
-        collection.createIndex(new BasicDBObject(L, 1).append(R, 1), new BasicDBObject("unique", true).append("sparse", false));
+        /* Compound indexes also serve queries on their first key alone */
+        indexes.ensureIndexes(collection,
+                new MongoIndex().withKey(L, ASCENDING).withKey(R, ASCENDING).withOptions(UNIQUE),
+                /* Covers queries on "R" returning only "L" ("L" to "R" is covered by the unique one) */
+                new MongoIndex().withKey(R, ASCENDING).withKey(L, ASCENDING));
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    public Map<String, Integer> traverse(L start, int depth, int maxResults) {
+        if (depth < 1) throw new IllegalArgumentException("Invalid depth " + depth);
+        if (maxResults < 1) throw new IllegalArgumentException("Invalid maximum results " + maxResults);
+
+        /* Only when the whole relation fits, as high fan-outs could reach all of it */
+        if (graphLookup && (size() <= GRAPH_LOOKUP_MAX_BYTES)) try {
+            return graphLookup(start.id(), depth, maxResults);
+        } catch (MongoException exception) {
+            /* Old servers, not supporting "$graphLookup" at all */
+            if (!UNRECOGNIZED_STAGE.contains(exception.getCode())) throw exception;
+            log.debug("Falling back to breadth-first traversal: %s", exception.getMessage());
+            graphLookup = false;
+        }
+        return breadthFirst(start.id(), depth, maxResults);
+    }
+
+    private long size() {
+        final Object size = collection.getStats().get("size");
+        return size instanceof Number ? ((Number) size).longValue() : Long.MAX_VALUE;
+    }
+
+    private Map<String, Integer> graphLookup(String start, int depth, int maxResults) {
+        final List<DBObject> pipeline = Arrays.asList(
+                new BasicDBObject("$match", new BasicDBObject(L, start)),
+                new BasicDBObject("$limit", 1),
+                new BasicDBObject("$graphLookup", new BasicDBObject("from", collection.getName())
+                                                            .append("startWith", "$" + L)
+                                                            .append("connectFromField", R)
+                                                            .append("connectToField", L)
+                                                            .append("maxDepth", depth - 1)
+                                                            .append("depthField", "d")
+                                                            .append("as", "e")),
+                new BasicDBObject("$unwind", "$e"),
+                new BasicDBObject("$group", new BasicDBObject(ID, "$e." + R).append("d", new BasicDBObject("$min", "$e.d"))),
+                new BasicDBObject("$match", new BasicDBObject(ID, new BasicDBObject("$ne", start))),
+                new BasicDBObject("$sort", new BasicDBObject("d", 1)),
+                new BasicDBObject("$limit", maxResults));
 
+        /* Each edge found at depth "d" reaches its right side at "d + 1" */
+        final Map<String, Integer> reached = new LinkedHashMap<>();
+        final com.mongodb.Cursor cursor = collection.aggregate(pipeline, AggregationOptions.builder().allowDiskUse(true).build());
+        try {
+            while (cursor.hasNext()) {
+                final DBObject object = cursor.next();
+                reached.put((String) object.get(ID), ((Number) object.get("d")).intValue() + 1);
+            }
+        } finally {
+            cursor.close();
+        }
+        return reached;
+    }
+
+    private Map<String, Integer> breadthFirst(String start, int depth, int maxResults) {
+        final Map<String, Integer> reached = new LinkedHashMap<>();
+        final Set<String> visited = new HashSet<>();
+        visited.add(start);
+
+        List<String> frontier = Collections.singletonList(start);
+        for (int level = 1; (level <= depth) && (!frontier.isEmpty()); level ++) {
+            final List<String> next = new ArrayList<>();
+
+            /* Expand the whole frontier in batches, using the covering index */
+            for (int offset = 0; offset < frontier.size(); offset += TRAVERSAL_BATCH) {
+                final List<String> batch = frontier.subList(offset, Math.min(offset + TRAVERSAL_BATCH, frontier.size()));
+                final BasicDBObject query = new BasicDBObject(L, new BasicDBObject("$in", batch));
+                final DBCursor cursor = collection.find(query, new BasicDBObject(R, 1).append(ID, 0));
+                try {
+                    while (cursor.hasNext()) {
+                        final String id = (String) cursor.next().get(R);
+                        if (!visited.add(id)) continue;
+                        reached.put(id, level);
+                        if (reached.size() >= maxResults) return reached;
+                        next.add(id);
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+            frontier = next;
+        }
+        return reached;
     }
 
     /* ====================================================================== */
@@ -52,12 +174,42 @@ extends AbstractRelation<L, R> {
                          .append(R, r.id());
     }
 
+    private static List<String> ids(Collection<? extends Document> documents) {
+        final List<String> ids = new ArrayList<>(documents.size());
+        for (Document document: documents) ids.add(document.id());
+        return ids;
+    }
+
+    private static void upsert(BulkWriteOperation bulk, String l, String r) {
+        bulk.find(new BasicDBObject(L, l).append(R, r)).upsert().updateOne(insert(l, r));
+    }
+
+    /* New edges get an ID identifying both sides, for cache invalidation */
+    private static BasicDBObject insert(String l, String r) {
+        return new BasicDBObject("$setOnInsert", new BasicDBObject(ID, edgeId(l, r)));
+    }
+
+    /* The caching relation expects both ids separated by a NUL */
+    static String edgeId(String l, String r) {
+        return l + EDGE_SEPARATOR + r;
+    }
+
+    private static void execute(BulkWriteOperation bulk) {
+        try {
+            bulk.execute();
+        } catch (BulkWriteException exception) {
+            /* Concurrent upserts of the same pair are fine */
+            for (BulkWriteError error: exception.getWriteErrors()) {
+                if (error.getCode() != DUPLICATE_KEY) throw exception;
+            }
+        }
+    }
+
     /* ====================================================================== */
 
     @Override
     public void associate(L l, R r) {
-        final BasicDBObject object = object(l, r);
-        collection.update(object, object, true, false);
+        collection.update(object(l, r), insert(l.id(), r.id()), true, false);
     }
 
     @Override
@@ -65,6 +217,44 @@ extends AbstractRelation<L, R> {
         collection.remove(object(l, r));
     }
 
+    @Override
+    public void associateAll(L l, Collection<R> rs) {
+        if (rs.isEmpty()) return;
+        final BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+        for (R r: rs) upsert(bulk, l.id(), r.id());
+        execute(bulk);
+    }
+
+    @Override
+    public void dissociateAll(L l, Collection<R> rs) {
+        if (rs.isEmpty()) return;
+        collection.remove(new BasicDBObject(L, l.id()).append(R, new BasicDBObject("$in", ids(rs))));
+    }
+
+    @Override
+    public void replaceAll(L l, Collection<R> rs) {
+        final Set<String> wanted = new HashSet<>(ids(rs));
+
+        /* Read only the current "R" ids for "L" */
+        final Set<String> remove = new HashSet<>();
+        final DBCursor cursor = collection.find(new BasicDBObject(L, l.id()), new BasicDBObject(R, 1).append(ID, 0));
+        try {
+            while (cursor.hasNext()) {
+                final String id = (String) cursor.next().get(R);
+                if (!wanted.remove(id)) remove.add(id);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        /* Whatever is left in "wanted" is new */
+        if (wanted.isEmpty() && remove.isEmpty()) return;
+        final BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+        if (!remove.isEmpty()) bulk.find(new BasicDBObject(L, l.id()).append(R, new BasicDBObject("$in", remove))).remove();
+        for (String id: wanted) upsert(bulk, l.id(), id);
+        execute(bulk);
+    }
+
     @Override
     public boolean isAssociated(L l, R r) {
         return collection.findOne(object(l, r)) != null;
@@ -72,23 +262,40 @@ extends AbstractRelation<L, R> {
 
     @Override
     public Cursor<L> findL(R r) {
-        /* Build our query on "R" returning only "L" */
-        final BasicDBObject query = new BasicDBObject(R, r.id().toString());
-        final BasicDBObject fields = new BasicDBObject(L, 1);
-
-        /* Get our DB cursor and iterate over it */
-        return new MongoCursor<L>(collection.find(query, fields),
-                (o) -> storeL.find((String) o.get(L)));
+        /* Read edges in pages, resolving each page with a single fetch */
+        return new ResolvingCursor<L>(findLIds(r), storeL::findAll);
     }
 
     @Override
     public Cursor<R> findR(L l) {
-        /* Build our query on "L" returning only "R" */
-        final BasicDBObject query = new BasicDBObject(L, l.id().toString());
-        final BasicDBObject fields = new BasicDBObject(R, 1);
+        /* Read edges in pages, resolving each page with a single fetch */
+        return new ResolvingCursor<R>(findRIds(l), storeR::findAll);
+    }
+
+    @Override
+    public long countL(R r) {
+        return collection.count(new BasicDBObject(R, r.id()));
+    }
+
+    @Override
+    public long countR(L l) {
+        return collection.count(new BasicDBObject(L, l.id()));
+    }
+
+    @Override
+    public Cursor<String> findLIds(R r) {
+        /* Build our (covered) query on "R" returning only "L" */
+        final BasicDBObject query = new BasicDBObject(R, r.id());
+        final BasicDBObject fields = new BasicDBObject(L, 1).append(ID, 0);
+        final DBCursor cursor = collection.find(query, fields).hint(new BasicDBObject(R, 1).append(L, 1));
+        return new MongoCursor<String>(cursor, (o) -> (String) o.get(L));
+    }
 
-        /* Get our DB cursor and iterate over it */
-        return new MongoCursor<R>(collection.find(query, fields),
-                (o) -> storeR.find((String) o.get(R)));
+    @Override
+    public Cursor<String> findRIds(L l) {
+        /* Build our (covered) query on "L" returning only "R" */
+        final BasicDBObject query = new BasicDBObject(L, l.id());
+        final BasicDBObject fields = new BasicDBObject(R, 1).append(ID, 0);
+        return new MongoCursor<String>(collection.find(query, fields), (o) -> (String) o.get(R));
     }
 }
@@ -20,15 +20,28 @@ import static org.usrz.libs.utils.Check.notNull;
 import java.io.IOException;
 import java.lang.reflect.Field;
 import java.lang.reflect.Type;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.bson.BSONException;
 import org.usrz.libs.logging.Log;
 import org.usrz.libs.stores.AbstractStore;
 import org.usrz.libs.stores.Cursor;
 import org.usrz.libs.stores.Document;
+import org.usrz.libs.stores.DocumentCodec;
 import org.usrz.libs.stores.Query;
 import org.usrz.libs.stores.annotations.Indexed;
+import org.usrz.libs.stores.bson.BSONCodec;
 import org.usrz.libs.stores.bson.BSONObjectMapper;
 import org.usrz.libs.utils.Strings;
 
@@ -39,30 +52,58 @@ import com.fasterxml.jackson.databind.introspect.AnnotatedMember;
 import com.fasterxml.jackson.databind.introspect.BeanPropertyDefinition;
 import com.fasterxml.jackson.databind.type.SimpleType;
 import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
 import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
+import com.mongodb.DefaultDBEncoder;
 import com.mongodb.MongoException;
 
 
-public class MongoStore<D extends Document> extends AbstractStore<D> {
+public class MongoStore<D extends Document> extends AbstractStore<D>
+implements DocumentCodec<D> {
 
     protected static final String ID = "_id";
     protected static final String LAST_MODIFIED_AT = "_last_modified_at";
     private static final Log log = new Log();
 
+    /* Root fields never mapped to documents when reading raw BSON */
+    private static final Set<String> SKIPPED = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            ID, LAST_MODIFIED_AT, MongoQuery.SCORE, SizingDBDecoder.BSON_SIZE)));
+
     private final DBCollection collection;
     private final BSONObjectMapper mapper;
     private final Class<D> rawType;
     private final Type type;
+    private final IndexAdvisor advisor;
+    private final boolean streaming;
+    private final boolean weighed;
+    private final BSONCodec<D> codec;
 
     private final Field idField;
     private final Field storeField;
     private final Field lastModifiedAtField;
+    private final Field encodedSizeField;
 
     public MongoStore(BSONObjectMapper mapper,
                       DBCollection collection,
                       Class<D> rawType,
                       Type type) {
+        this(mapper, collection, rawType, type, new MongoStoreOptions());
+    }
+
+    /**
+     * Create a new {@link MongoStore} with the specified {@link MongoStoreOptions}.
+     */
+    public MongoStore(BSONObjectMapper mapper,
+                      DBCollection collection,
+                      Class<D> rawType,
+                      Type type,
+                      MongoStoreOptions options) {
+        notNull(options, "Null options");
+        this.advisor = options.advisor;
+        this.streaming = options.streaming;
+        this.weighed = options.weighed;
         this.collection = notNull(collection, "Null collection");
         this.mapper = notNull(mapper, "Null mapper");
         this.rawType = notNull(rawType, "Null raw type");
@@ -72,6 +113,7 @@ public class MongoStore<D extends Document> extends AbstractStore<D> {
         final JavaType javaType = SimpleType.construct(rawType);
         final SerializationConfig config = mapper.getSerializationConfig();
         final BeanDescription description = config.getClassIntrospector().forSerialization(config, javaType, null);
+        final List<MongoIndex> indexed = new ArrayList<>();
 
         for (BeanPropertyDefinition property: description.findProperties()) {
 
@@ -90,9 +132,18 @@ public class MongoStore<D extends Document> extends AbstractStore<D> {
             }
 
             /* Do we need to index this property? */
-            ensureIndex(property);
+            final MongoIndex index = index(property);
+            if (index != null) indexed.add(index);
         }
 
+        /* Generate our codec from the same description, if we can */
+        codec = options.generated ? BSONCodec.create(mapper, description) : null;
+        if (options.generated && (codec == null))
+            log.info("Unable to generate codec for %s, using Jackson serialization", rawType.getName());
+
+        /* Compare with what's in the collection, only once */
+        (options.indexes == null ? new MongoIndexManager() : options.indexes).ensureIndexes(collection, indexed);
+
         /* Be sneaky, use reflection to set ID and Last Modified final fields */
         try {
             this.idField = Document.class.getDeclaredField("id");
@@ -101,12 +152,14 @@ public class MongoStore<D extends Document> extends AbstractStore<D> {
             this.storeField.setAccessible(true);
             this.lastModifiedAtField = Document.class.getDeclaredField("lastModifiedAt");
             this.lastModifiedAtField.setAccessible(true);
+            this.encodedSizeField = Document.class.getDeclaredField("encodedSize");
+            this.encodedSizeField.setAccessible(true);
         } catch (NoSuchFieldException exception) {
             throw new IllegalArgumentException("Unable to access Document fields", exception);
         }
     }
 
-    private void ensureIndex(BeanPropertyDefinition property) {
+    private MongoIndex index(BeanPropertyDefinition property) {
         final String name = property.getName();
         final AnnotatedMember accessor = property.getAccessor();
         final AnnotatedMember mutator = property.getMutator();
@@ -115,8 +168,13 @@ public class MongoStore<D extends Document> extends AbstractStore<D> {
         final AnnotatedMember member = accessor != null ? accessor : mutator;
 
         final Indexed annotation = member.getAnnotation(Indexed.class);
-        if (annotation == null) return;
-        new MongoIndex().withAnnotation(name, annotation).ensureIndex(collection);
+        if (annotation == null) return null;
+        return new MongoIndex().withAnnotation(name, annotation);
+    }
+
+    /** Return the {@link IndexAdvisor} recording queries, or <b>null</b>. */
+    public IndexAdvisor getIndexAdvisor() {
+        return advisor;
     }
 
     @Override
@@ -136,23 +194,103 @@ public class MongoStore<D extends Document> extends AbstractStore<D> {
 
     @Override
     public D find(String id) {
-        return convert(collection.findOne(id(id)));
+        final DBCursor cursor = find(id(id)).limit(-1);
+        try {
+            return cursor.hasNext() ? convert(cursor.next()) : null;
+        } finally {
+            cursor.close();
+        }
     }
 
     @Override
-    public D store(D object) {
-        final BasicDBObject bson;
+    public Map<String, D> findAll(Collection<String> ids) {
+        final Map<String, D> found = new HashMap<>();
+        final DBCursor cursor = find(new BasicDBObject(ID, new BasicDBObject("$in", notNull(ids, "Null IDs"))));
         try {
-            bson = mapper.writeValueAsBson(object);
-        } catch (IOException exception) {
-            throw new BSONException("Exception writing BSON for " + object, exception);
+            while (cursor.hasNext()) {
+                final D document = convert(cursor.next());
+                found.put(document.id(), document);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        /* Return in the same order we were asked for */
+        final Map<String, D> documents = new LinkedHashMap<>();
+        for (String id: ids) {
+            final D document = found.get(id);
+            if (document != null) documents.put(id, document);
+        }
+        return documents;
+    }
+
+    @Override
+    public Date lastModifiedAt(String id) {
+        final DBObject object = collection.findOne(id(id), new BasicDBObject(LAST_MODIFIED_AT, 1));
+        return object == null ? null : (Date) object.get(LAST_MODIFIED_AT);
+    }
+
+    @Override
+    public Map<String, Date> lastModifiedAt(Collection<String> ids) {
+        final Map<String, Date> dates = new HashMap<>();
+        final DBObject query = new BasicDBObject(ID, new BasicDBObject("$in", notNull(ids, "Null IDs")));
+        final DBCursor cursor = collection.find(query, new BasicDBObject(LAST_MODIFIED_AT, 1));
+        try {
+            while (cursor.hasNext()) {
+                final DBObject object = cursor.next();
+                final Date date = (Date) object.get(LAST_MODIFIED_AT);
+                if (date != null) dates.put(object.get(ID).toString(), date);
+            }
+        } finally {
+            cursor.close();
         }
-        final String id = object.id();
-        bson.put(ID, id == null ? Strings.random(32) : id);
-        bson.put(LAST_MODIFIED_AT, new Date());
+        return dates;
+    }
+
+    @Override
+    public D store(D object) {
+        final DBObject bson = prepare(object, new Date());
         log.debug("Saving %s in collection \"%s\"", bson, collection);
-        collection.save(bson);
-        return convert(bson);
+
+        /* Raw documents need our encoder, without touching the shared collection */
+        if (bson instanceof RawDBObject) {
+            collection.update(new BasicDBObject(ID, bson.get(ID)), bson, true, false, collection.getWriteConcern(), new RawDBEncoder());
+        } else {
+            collection.save(bson);
+        }
+        return saved(bson);
+    }
+
+    @Override
+    public List<D> storeAll(Collection<D> objects) {
+        return storeAll(objects, false);
+    }
+
+    @Override
+    public List<D> storeAllAsModified(Collection<D> objects) {
+        return storeAll(objects, true);
+    }
+
+    private List<D> storeAll(Collection<D> objects, boolean asModified) {
+        if (objects.isEmpty()) return new ArrayList<>();
+
+        final Date now = new Date();
+        final List<DBObject> bsons = new ArrayList<>(objects.size());
+        final BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+        for (D object: objects) {
+            final Date lastModifiedAt = asModified ? object.lastModifiedAt() : null;
+            final DBObject bson = prepare(object, lastModifiedAt == null ? now : lastModifiedAt);
+            bulk.find(new BasicDBObject(ID, bson.get(ID))).upsert().replaceOne(bson);
+            bsons.add(bson);
+        }
+
+        /* Bulk writes can't take our encoder: raw documents are re-encoded */
+        log.debug("Saving %d documents in collection \"%s\"", bsons.size(), collection);
+        bulk.execute();
+
+        final List<D> documents = new ArrayList<>(bsons.size());
+        for (DBObject bson: bsons) documents.add(saved(bson));
+        return documents;
     }
 
     @Override
@@ -170,33 +308,126 @@ public class MongoStore<D extends Document> extends AbstractStore<D> {
             public Cursor<D> documents() {
                 final DBObject query = getQueryObject();
                 log.debug("Querying %s in collection \"%s\"", query, collection);
-                return new MongoCursor<D>(collection.find(query), (o) -> convert(o));
+                return recorded(query, new MongoCursor<D>(find(query, getFieldsObject()), (o) -> convert(o)));
+            }
+
+            @Override
+            public Cursor<Map.Entry<D, Double>> scored() {
+                final DBObject query = getQueryObject();
+                log.debug("Querying with scores %s in collection \"%s\"", query, collection);
+                return recorded(query, new MongoCursor<Map.Entry<D, Double>>(find(query, getFieldsObject()), (o) -> {
+                    final Number score = (Number) o.get(SCORE);
+                    return new SimpleImmutableEntry<>(convert(o), score == null ? null : score.doubleValue());
+                }));
+            }
+
+            @Override
+            public Cursor<String> ids() {
+                final DBObject query = getQueryObject();
+                final BasicDBObject fields = new BasicDBObject(ID, 1);
+                if (getFieldsObject() != null) fields.putAll(getFieldsObject());
+                log.debug("Querying IDs %s in collection \"%s\"", query, collection);
+                return recorded(query, new MongoCursor<String>(collection.find(query, fields), (o) -> o.get(ID).toString()));
             }
         };
     }
 
+    private <T> Cursor<T> recorded(DBObject query, Cursor<T> cursor) {
+        return advisor == null ? cursor : advisor.record(query, cursor);
+    }
+
     /* ====================================================================== */
 
+    @Override
+    public byte[] encode(D document, Date lastModifiedAt) {
+        if (streaming) return bytes(document, notNull(document.id(), "Null ID"), lastModifiedAt);
+
+        final BasicDBObject bson = bson(document);
+        bson.put(ID, notNull(document.id(), "Null ID"));
+        bson.put(LAST_MODIFIED_AT, lastModifiedAt);
+        return new DefaultDBEncoder().encode(bson);
+    }
+
+    @Override
+    public D decode(byte[] bytes) {
+        if (streaming) return convert(new RawDBObject(bytes, collection));
+        return convert(new SizingDBDecoder().decode(bytes, collection));
+    }
+
+    /* ====================================================================== */
+
+    /* Find documents recording their BSON size */
+    private DBCursor find(DBObject query) {
+        return find(query, null);
+    }
+
+    private DBCursor find(DBObject query, DBObject fields) {
+        return collection.find(query, fields).setDecoderFactory(streaming ? RawDBDecoder.FACTORY : SizingDBDecoder.FACTORY);
+    }
+
     private BasicDBObject id(String id) {
         return new BasicDBObject(ID, notNull(id, "Null ID"));
     }
 
+    private DBObject prepare(D object, Date lastModifiedAt) {
+        final String id = object.id() == null ? Strings.random(32) : object.id();
+        if (streaming) return new RawDBObject(bytes(object, id, lastModifiedAt), collection);
+
+        final BasicDBObject bson = bson(object);
+        bson.put(ID, id);
+        bson.put(LAST_MODIFIED_AT, lastModifiedAt);
+        return bson;
+    }
+
+    private D saved(DBObject bson) {
+        /* Raw documents already know their size */
+        if (bson instanceof RawDBObject) return convert(bson);
+
+        /* Measure what we just saved, only if someone weighs it */
+        if (weighed) bson.put(SizingDBDecoder.BSON_SIZE, new DefaultDBEncoder().encode(bson).length);
+        return convert(bson);
+    }
+
+    private byte[] bytes(D object, String id, Date lastModifiedAt) {
+        try {
+            final BasicDBObject fields = new BasicDBObject(ID, id).append(LAST_MODIFIED_AT, lastModifiedAt);
+            return codec == null ? mapper.writeValueAsBsonBytes(object, fields) : mapper.writeValueAsBsonBytes(object, codec, fields);
+        } catch (IOException exception) {
+            throw new BSONException("Exception writing BSON for " + object, exception);
+        }
+    }
+
+    private BasicDBObject bson(D object) {
+        try {
+            return codec == null ? mapper.writeValueAsBson(object) : mapper.writeValueAsBson(object, codec);
+        } catch (IOException exception) {
+            throw new BSONException("Exception writing BSON for " + object, exception);
+        }
+    }
+
     /* ====================================================================== */
 
     private D convert(DBObject object) {
         if (object == null) return null;
 
+        /* Raw documents are read as they are, anything else is stripped */
+        final RawDBObject raw = object instanceof RawDBObject ? (RawDBObject) object : null;
+
         /* Strip ID and Last Modified Date from BSON */
-        final String id = object.removeField(ID).toString();
-        if (id == null) throw new IllegalStateException("No ID found for document");
+        final Object identifier = raw != null ? raw.get(ID) : object.removeField(ID);
+        if (identifier == null) throw new IllegalStateException("No ID found for document");
+        final String id = identifier.toString();
 
-        final Date lastModified = (Date) object.removeField(LAST_MODIFIED_AT);
+        final Date lastModified = (Date) (raw != null ? raw.get(LAST_MODIFIED_AT) : object.removeField(LAST_MODIFIED_AT));
+        final Number size = raw != null ? raw.getBSONSize() : (Number) object.removeField(SizingDBDecoder.BSON_SIZE);
+        if (raw == null) object.removeField(MongoQuery.SCORE);
         if (lastModified == null) log.warn("No \"%s\" field in BSON for \"%s/%s\"", LAST_MODIFIED_AT, collection.getName(), id);
 
         /* Map the (partial) BSON to the object */
         final D instance;
         try {
-            instance = mapper.readValue(object, rawType);
+            if (codec != null) instance = raw != null ? mapper.readBsonValue(raw.bytes(), codec, SKIPPED) : mapper.readValue(object, codec);
+            else instance = raw != null ? mapper.readBsonValue(raw.bytes(), rawType, SKIPPED) : mapper.readValue(object, rawType);
         } catch (IOException exception) {
             throw new BSONException("Exception reading BSON from " + object, exception);
         }
@@ -206,6 +437,7 @@ public class MongoStore<D extends Document> extends AbstractStore<D> {
             this.idField.set(instance, id);
             this.storeField.set(instance, this);
             this.lastModifiedAtField.set(instance, lastModified);
+            this.encodedSizeField.setInt(instance, size == null ? 0 : size.intValue());
             return instance;
         } catch (IllegalAccessException exception) {
             throw new MongoException("Unable to set Document fields", exception);
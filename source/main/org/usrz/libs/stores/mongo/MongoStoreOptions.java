@@ -0,0 +1,101 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores.mongo;
+
+import static org.usrz.libs.utils.Check.notNull;
+
+import org.usrz.libs.stores.Document;
+import org.usrz.libs.stores.bson.BSONCodec;
+
+import com.mongodb.DBObject;
+
+/**
+ * The options used when creating a {@link MongoStore}.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public class MongoStoreOptions {
+
+    MongoIndexManager indexes = null;
+    IndexAdvisor advisor = null;
+    boolean streaming = false;
+    boolean generated = false;
+    boolean weighed = false;
+
+    public MongoStoreOptions() {
+        /* Nothing to do */
+    }
+
+    /**
+     * Ensure indexes with the specified {@link MongoIndexManager}, rather
+     * than with a new one creating missing indexes.
+     */
+    public MongoStoreOptions withIndexManager(MongoIndexManager indexes) {
+        this.indexes = notNull(indexes, "Null index manager");
+        return this;
+    }
+
+    /**
+     * Record the shapes of all queries with the specified {@link IndexAdvisor}.
+     */
+    public MongoStoreOptions withIndexAdvisor(IndexAdvisor advisor) {
+        this.advisor = advisor;
+        return this;
+    }
+
+    /**
+     * Encode documents straight to <em>BSON</em> bytes handed over as-is to
+     * the driver, and decode them straight from the bytes read, without
+     * building intermediate {@link DBObject}s.
+     */
+    public MongoStoreOptions withStreamingCodec() {
+        return this.withStreamingCodec(true);
+    }
+
+    public MongoStoreOptions withStreamingCodec(boolean streaming) {
+        this.streaming = streaming;
+        return this;
+    }
+
+    /**
+     * Use a {@link BSONCodec} <em>generated</em> for the document type,
+     * rather than Jackson's own bean serializers and deserializers, whenever
+     * the type allows it.
+     */
+    public MongoStoreOptions withGeneratedCodec() {
+        return this.withGeneratedCodec(true);
+    }
+
+    public MongoStoreOptions withGeneratedCodec(boolean generated) {
+        this.generated = generated;
+        return this;
+    }
+
+    /**
+     * Also measure the {@linkplain Document#encodedSize() encoded size} of
+     * stored documents (found ones are always measured) for caches weighing
+     * them.
+     */
+    public MongoStoreOptions withWeighing() {
+        return this.withWeighing(true);
+    }
+
+    public MongoStoreOptions withWeighing(boolean weighed) {
+        this.weighed = weighed;
+        return this;
+    }
+
+}
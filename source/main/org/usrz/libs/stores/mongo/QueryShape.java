@@ -0,0 +1,202 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores.mongo;
+
+import static org.usrz.libs.utils.Check.notNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.QueryOperators;
+
+/**
+ * The normalized <em>shape</em> of a query: the fields it filters on by
+ * equality or by range (values stripped), and the fields it sorts on.
+ * <p>
+ * Clauses of top-level {@code $and}s are treated as top-level filters,
+ * while shapes including other logical operators (such as {@code $or},
+ * {@code $nor} or {@code $where}) are recorded but not
+ * {@linkplain #isIndexable() indexable} by a single suggested index.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public final class QueryShape {
+
+    private final List<String> equality;
+    private final List<String> range;
+    private final List<String> operators;
+    private final BasicDBObject sort;
+    private final boolean text;
+    private final String string;
+
+    private QueryShape(List<String> equality, List<String> range, List<String> operators, BasicDBObject sort, boolean text) {
+        this.equality = Collections.unmodifiableList(equality);
+        this.range = Collections.unmodifiableList(range);
+        this.operators = Collections.unmodifiableList(operators);
+        this.sort = sort;
+        this.text = text;
+        string = "{eq: " + equality + ", range: " + range + ", sort: " + sort
+               + (operators.isEmpty() ? "" : ", operators: " + operators)
+               + (text ? ", text: true}" : "}");
+    }
+
+    /**
+     * Return the {@link QueryShape} of a query object, in the format
+     * produced by {@link MongoQuery#getQueryObject()}.
+     */
+    public static QueryShape of(DBObject object) {
+        notNull(object, "Null query object");
+
+        final DBObject query;
+        final BasicDBObject sort = new BasicDBObject();
+        if (object.containsField("$query")) {
+            query = (DBObject) object.get("$query");
+            final DBObject orderBy = (DBObject) object.get("$orderby");
+            if (orderBy != null) for (String field: orderBy.keySet()) {
+                final Object direction = orderBy.get(field);
+                if (direction instanceof Number) sort.append(field, ((Number) direction).intValue() < 0 ? -1 : 1);
+            }
+        } else {
+            query = object;
+        }
+
+        /* Sorted, as the order of filters is irrelevant */
+        final TreeSet<String> equality = new TreeSet<>();
+        final TreeSet<String> range = new TreeSet<>();
+        final TreeSet<String> operators = new TreeSet<>();
+        final boolean text = collect(query, equality, range, operators);
+        range.removeAll(equality);
+
+        return new QueryShape(new ArrayList<>(equality), new ArrayList<>(range), new ArrayList<>(operators), sort, text);
+    }
+
+    /* Collect the fields of a query (and its "$and" clauses), returning whether it has "$text" */
+    private static boolean collect(DBObject query, Set<String> equality, Set<String> range, Set<String> operators) {
+        boolean text = false;
+        for (String field: query.keySet()) {
+            final Object value = query.get(field);
+            if ("$text".equals(field)) {
+                text = true;
+            } else if ("$comment".equals(field)) {
+                continue;
+            } else if (QueryOperators.AND.equals(field) && (value instanceof List)) {
+                for (Object clause: (List<?>) value) {
+                    if (clause instanceof DBObject) text |= collect((DBObject) clause, equality, range, operators);
+                    else operators.add(field);
+                }
+            } else if (field.startsWith("$")) {
+                operators.add(field);
+            } else if (isEquality(value)) {
+                equality.add(field);
+            } else {
+                range.add(field);
+            }
+        }
+        return text;
+    }
+
+    private static boolean isEquality(Object value) {
+        if (value instanceof Pattern) return false;
+        if (!(value instanceof DBObject)) return true;
+
+        /* Sub-documents are equality matches, operators (but $in) are not */
+        final DBObject object = (DBObject) value;
+        for (String key: object.keySet()) {
+            if (!key.startsWith("$")) return true;
+            if (!QueryOperators.IN.equals(key)) return false;
+        }
+        return true;
+    }
+
+    /* ====================================================================== */
+
+    /** Return the fields this shape filters on by equality. */
+    public List<String> getEqualityFields() {
+        return equality;
+    }
+
+    /** Return the fields this shape filters on by range. */
+    public List<String> getRangeFields() {
+        return range;
+    }
+
+    /**
+     * Return the top-level logical operators (other than {@code $and}) this
+     * shape includes, such as {@code $or}, {@code $nor} or {@code $where}.
+     */
+    public List<String> getOperators() {
+        return operators;
+    }
+
+    /**
+     * Return whether this shape can be served by a single
+     * {@linkplain #getSuggestedIndex() suggested index}, that is whether it
+     * includes no logical {@linkplain #getOperators() operators}.
+     */
+    public boolean isIndexable() {
+        return operators.isEmpty();
+    }
+
+    /** Return whether this shape includes a full-text search or not. */
+    public boolean isText() {
+        return text;
+    }
+
+    /** Return the sort specification of this shape. */
+    public DBObject getSort() {
+        return (DBObject) sort.copy();
+    }
+
+    /**
+     * Return the key of an index serving this shape: equality fields first,
+     * then sort fields, then range fields, or <b>null</b> if this shape is
+     * not {@linkplain #isIndexable() indexable}.
+     */
+    public DBObject getSuggestedIndex() {
+        if (!isIndexable()) return null;
+        final BasicDBObject index = new BasicDBObject();
+        for (String field: equality) index.append(field, 1);
+        for (Map.Entry<String, Object> entry: sort.entrySet()) if (!index.containsField(entry.getKey())) index.append(entry.getKey(), entry.getValue());
+        for (String field: range) if (!index.containsField(field)) index.append(field, 1);
+        return index;
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    public String toString() {
+        return string;
+    }
+
+    @Override
+    public int hashCode() {
+        return string.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (object == this) return true;
+        return (object instanceof QueryShape) && string.equals(((QueryShape) object).string);
+    }
+
+}
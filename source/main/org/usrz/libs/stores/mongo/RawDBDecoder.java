@@ -0,0 +1,50 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores.mongo;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBDecoder;
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+
+/**
+ * A {@link DBDecoder} wrapping the bytes of each document in a
+ * {@link RawDBObject}, leaving them to be parsed straight into our
+ * {@link org.usrz.libs.stores.Document}s.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+class RawDBDecoder extends DefaultDBDecoder {
+
+    /** A {@link DBDecoderFactory} for {@link RawDBDecoder}s. */
+    static final DBDecoderFactory FACTORY = () -> new RawDBDecoder();
+
+    @Override
+    public DBObject decode(byte[] bytes, DBCollection collection) {
+        return new RawDBObject(bytes, collection);
+    }
+
+    @Override
+    public DBObject decode(InputStream input, DBCollection collection)
+    throws IOException {
+        return decode(SizingDBDecoder.read(input), collection);
+    }
+
+}
@@ -0,0 +1,40 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores.mongo;
+
+import org.bson.BSONObject;
+import org.bson.io.OutputBuffer;
+
+import com.mongodb.DBEncoder;
+import com.mongodb.DefaultDBEncoder;
+
+/**
+ * A {@link DBEncoder} copying the bytes of {@link RawDBObject}s straight
+ * into the driver's buffer, and encoding everything else normally.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+class RawDBEncoder extends DefaultDBEncoder {
+
+    @Override
+    public int writeObject(OutputBuffer buffer, BSONObject object) {
+        if (!(object instanceof RawDBObject)) return super.writeObject(buffer, object);
+        final byte[] bytes = ((RawDBObject) object).bytes();
+        buffer.write(bytes);
+        return bytes.length;
+    }
+
+}
@@ -0,0 +1,42 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores.mongo;
+
+import com.mongodb.DBCollection;
+import com.mongodb.LazyDBCallback;
+import com.mongodb.LazyDBObject;
+
+/**
+ * A {@link LazyDBObject} exposing its encoded <em>BSON</em> bytes, written
+ * and read as-is by {@link RawDBEncoder}s and {@link RawDBDecoder}s.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+class RawDBObject extends LazyDBObject {
+
+    private final byte[] bytes;
+
+    RawDBObject(byte[] bytes, DBCollection collection) {
+        super(bytes, new LazyDBCallback(collection));
+        this.bytes = bytes;
+    }
+
+    /** Return the encoded <em>BSON</em> bytes of this document. */
+    byte[] bytes() {
+        return bytes;
+    }
+
+}
@@ -0,0 +1,82 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores.mongo;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBDecoder;
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+
+/**
+ * A {@link DBDecoder} recording the size of each decoded document in its
+ * (synthetic) {@value #BSON_SIZE} field, later stripped by the
+ * {@link MongoStore}.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+class SizingDBDecoder extends DefaultDBDecoder {
+
+    /** The name of the field holding the BSON size of a document. */
+    static final String BSON_SIZE = "_bson_size";
+
+    /** A {@link DBDecoderFactory} for {@link SizingDBDecoder}s. */
+    static final DBDecoderFactory FACTORY = () -> new SizingDBDecoder();
+
+    @Override
+    public DBObject decode(byte[] bytes, DBCollection collection) {
+        final DBObject object = super.decode(bytes, collection);
+        object.put(BSON_SIZE, bytes.length);
+        return object;
+    }
+
+    @Override
+    public DBObject decode(InputStream input, DBCollection collection)
+    throws IOException {
+        return decode(read(input), collection);
+    }
+
+    /* Read the bytes of a whole BSON document from an input stream */
+    static byte[] read(InputStream input)
+    throws IOException {
+        /* The first four bytes (little endian) are the document size */
+        final byte[] header = new byte[4];
+        readFully(input, header, 0);
+        final int size = (header[0] & 0xFF)
+                       | ((header[1] & 0xFF) << 8)
+                       | ((header[2] & 0xFF) << 16)
+                       | ((header[3] & 0xFF) << 24);
+        if (size < 5) throw new IOException("Invalid BSON document size " + size);
+
+        final byte[] bytes = new byte[size];
+        System.arraycopy(header, 0, bytes, 0, 4);
+        readFully(input, bytes, 4);
+        return bytes;
+    }
+
+    private static void readFully(InputStream input, byte[] bytes, int offset)
+    throws IOException {
+        while (offset < bytes.length) {
+            final int read = input.read(bytes, offset, bytes.length - offset);
+            if (read < 0) throw new EOFException("Truncated BSON document");
+            offset += read;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+import org.usrz.libs.testing.AbstractTest;
+
+public class CompressedBitmapTest extends AbstractTest {
+
+    /* Containers hold 65536 values, and become bitmaps above 4096 */
+    private static final int CHUNK = 65536;
+    private static final int ARRAY_MAX = 4096;
+
+    private final Random random = new Random(0x5EED);
+
+    @Test
+    public void testArrayContainers() {
+        final CompressedBitmap bitmap = CompressedBitmap.of(5, 3, 3, 1, CHUNK + 7, 3 * CHUNK);
+        assertEquals(bitmap.cardinality(), 5);
+        assertEquals(bitmap.toArray(), new int[] { 1, 3, 5, CHUNK + 7, 3 * CHUNK });
+        assertTrue(bitmap.contains(CHUNK + 7));
+        assertFalse(bitmap.contains(7));
+        assertFalse(bitmap.contains(-1));
+
+        assertTrue(CompressedBitmap.of().isEmpty());
+        assertTrue(bitmap.and(CompressedBitmap.of(2, 4, CHUNK)).isEmpty());
+        assertTrue(bitmap.andNot(bitmap).isEmpty());
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testNegativeValues() {
+        CompressedBitmap.of(1, -1);
+    }
+
+    @Test
+    public void testBitmapContainers() {
+        /* One dense chunk, one sparse, and one exactly at each side of the threshold */
+        final BitSet expected = new BitSet();
+        fill(expected, 0, 20000);
+        fill(expected, CHUNK, 100);
+        fill(expected, 2 * CHUNK, ARRAY_MAX);
+        fill(expected, 3 * CHUNK, ARRAY_MAX + 1);
+
+        final CompressedBitmap bitmap = bitmap(expected);
+        assertEquals(bitmap.toString(), "CompressedBitmap[cardinality=" + expected.cardinality() + ",containers=4]");
+        assertBitmap(bitmap, expected);
+
+        /* Every value in the dense chunk */
+        for (int value = 0; value < CHUNK; value ++) assertEquals(bitmap.contains(value), expected.get(value), "Value " + value);
+    }
+
+    @Test
+    public void testAnd() {
+        final BitSet dense1 = random(0, 30000);
+        final BitSet dense2 = random(0, 30000);
+        final BitSet sparse = random(0, 1000);
+
+        /* Bitmap and bitmap, remaining a bitmap */
+        assertBitmap(bitmap(dense1).and(bitmap(dense2)), and(dense1, dense2));
+
+        /* Bitmap and bitmap, becoming an array */
+        final BitSet overlap = random(0, 40000);
+        final BitSet disjoint = new BitSet();
+        disjoint.or(dense1);
+        disjoint.andNot(overlap);
+        disjoint.or(sparse);
+        assertBitmap(bitmap(overlap).and(bitmap(disjoint)), and(overlap, disjoint));
+        assertTrue(and(overlap, disjoint).cardinality() <= ARRAY_MAX, "Not converted to an array");
+
+        /* Array and bitmap (both ways), always an array */
+        assertBitmap(bitmap(sparse).and(bitmap(dense1)), and(sparse, dense1));
+        assertBitmap(bitmap(dense1).and(bitmap(sparse)), and(dense1, sparse));
+
+        /* Disjoint dense containers disappear */
+        final BitSet evens = new BitSet();
+        final BitSet odds = new BitSet();
+        for (int x = 0; x < 20000; x += 2) { evens.set(x); odds.set(x + 1); }
+        assertTrue(bitmap(evens).and(bitmap(odds)).isEmpty());
+    }
+
+    @Test
+    public void testAndNot() {
+        final BitSet dense1 = random(0, 30000);
+        final BitSet dense2 = random(0, 30000);
+        final BitSet sparse = random(0, 1000);
+
+        /* Bitmap and-not bitmap, remaining a bitmap or becoming an array */
+        assertBitmap(bitmap(dense1).andNot(bitmap(sparse)), andNot(dense1, sparse));
+        assertBitmap(bitmap(dense1).andNot(bitmap(dense2)), andNot(dense1, dense2));
+
+        final BitSet most = new BitSet();
+        most.or(dense1);
+        for (int x = most.nextSetBit(0), count = 0; x >= 0; x = most.nextSetBit(x + 1)) {
+            if ((count ++ % 10) == 0) most.clear(x);
+        }
+        assertBitmap(bitmap(dense1).andNot(bitmap(most)), andNot(dense1, most));
+        assertTrue(andNot(dense1, most).cardinality() <= ARRAY_MAX, "Not converted to an array");
+
+        /* Array and-not bitmap, and array and-not array */
+        assertBitmap(bitmap(sparse).andNot(bitmap(dense1)), andNot(sparse, dense1));
+        final BitSet smaller = random(0, 500);
+        assertBitmap(bitmap(sparse).andNot(bitmap(smaller)), andNot(sparse, smaller));
+
+        /* Bitmap and-not itself empties the container */
+        assertTrue(bitmap(dense1).andNot(bitmap(dense1)).isEmpty());
+    }
+
+    @Test
+    public void testOr() {
+        final BitSet dense = random(0, 30000);
+
+        /* Array or array, exceeding the threshold, becomes a bitmap */
+        final BitSet sparse1 = new BitSet();
+        final BitSet sparse2 = new BitSet();
+        for (int x = 0; x < 3000; x ++) { sparse1.set(x * 2); sparse2.set(x * 2 + 1); }
+        assertBitmap(bitmap(sparse1).or(bitmap(sparse2)), or(sparse1, sparse2));
+        assertTrue(or(sparse1, sparse2).cardinality() > ARRAY_MAX, "Not converted to a bitmap");
+
+        /* Array or array, within the threshold, remains an array */
+        final BitSet small = random(0, 1000);
+        assertBitmap(bitmap(small).or(bitmap(sparse1)), or(small, sparse1));
+
+        /* Array or bitmap (both ways), and bitmap or bitmap */
+        assertBitmap(bitmap(small).or(bitmap(dense)), or(small, dense));
+        assertBitmap(bitmap(dense).or(bitmap(small)), or(dense, small));
+        final BitSet other = random(0, 30000);
+        assertBitmap(bitmap(dense).or(bitmap(other)), or(dense, other));
+
+        /* Different chunks are simply merged */
+        final BitSet far = random(5 * CHUNK, 10000);
+        assertBitmap(bitmap(dense).or(bitmap(far)), or(dense, far));
+        assertBitmap(bitmap(far).or(bitmap(dense)), or(far, dense));
+    }
+
+    /* ====================================================================== */
+
+    private BitSet random(int offset, int count) {
+        final BitSet bits = new BitSet();
+        while (bits.cardinality() < count) bits.set(offset + random.nextInt(CHUNK));
+        return bits;
+    }
+
+    private static void fill(BitSet bits, int offset, int count) {
+        /* Spread values over the whole chunk */
+        final int step = CHUNK / count;
+        for (int x = 0; x < count; x ++) bits.set(offset + x * step);
+    }
+
+    private static CompressedBitmap bitmap(BitSet bits) {
+        return CompressedBitmap.of(bits.stream().toArray());
+    }
+
+    private static BitSet and(BitSet a, BitSet b) {
+        final BitSet result = (BitSet) a.clone();
+        result.and(b);
+        return result;
+    }
+
+    private static BitSet or(BitSet a, BitSet b) {
+        final BitSet result = (BitSet) a.clone();
+        result.or(b);
+        return result;
+    }
+
+    private static BitSet andNot(BitSet a, BitSet b) {
+        final BitSet result = (BitSet) a.clone();
+        result.andNot(b);
+        return result;
+    }
+
+    private static void assertBitmap(CompressedBitmap bitmap, BitSet expected) {
+        assertEquals(bitmap.cardinality(), expected.cardinality(), "Wrong cardinality");
+        assertEquals(bitmap.isEmpty(), expected.isEmpty(), "Wrong emptiness");
+        assertEquals(bitmap.toArray(), expected.stream().toArray(), "Wrong values");
+        for (int x = expected.nextSetBit(0); x >= 0; x = expected.nextSetBit(x + 1)) {
+            if (!bitmap.contains(x)) fail("Value " + x + " not contained");
+            if (bitmap.contains(x + 1) != expected.get(x + 1)) fail("Value " + (x + 1) + " wrongly contained");
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import org.testng.annotations.Test;
+import org.usrz.libs.testing.AbstractTest;
+
+public class SlabCacheTest extends AbstractTest {
+
+    @Test
+    public void testNewerTimestampsWin() {
+        final SlabCache cache = new SlabCache(1024 * 1024, 64 * 1024);
+
+        /* An older value (e.g. from a slow find) never replaces a newer one */
+        assertTrue(cache.put("id", "newer".getBytes(UTF_8), 2000));
+        assertTrue(cache.put("id", "older".getBytes(UTF_8), 1000));
+        assertEquals(new String(cache.get("id"), UTF_8), "newer");
+
+        /* Newer values, and values without timestamps, replace it */
+        assertTrue(cache.put("id", "newest".getBytes(UTF_8), 3000));
+        assertEquals(new String(cache.get("id"), UTF_8), "newest");
+        assertTrue(cache.put("id", "untimed".getBytes(UTF_8)));
+        assertEquals(new String(cache.get("id"), UTF_8), "untimed");
+        assertEquals(cache.size(), 1);
+    }
+}
@@ -0,0 +1,148 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores.bson;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import org.bson.BSONObject;
+import org.testng.annotations.Test;
+import org.usrz.libs.stores.bson.TestBean.NestedBean;
+import org.usrz.libs.testing.AbstractTest;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonTypeInfo;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.google.inject.Guice;
+import com.mongodb.BasicDBObject;
+
+public class BSONCodecTest extends AbstractTest {
+
+    private final BSONObjectMapper mapper = Guice.createInjector().getInstance(BSONObjectMapper.class);
+
+    @Test
+    public void testCodec()
+    throws Exception {
+        final BSONCodec<TestBean> codec = BSONCodec.create(mapper, TestBean.class);
+        assertNotNull(codec);
+
+        final NestedBean nested = new NestedBean();
+        nested.setValue("nested");
+        nested.setData(new byte[] { 1, 2, 3 });
+
+        final TestBean bean = new TestBean();
+        bean.setTheDate(new Date());
+        bean.setTheDouble(123.456);
+        bean.setTheInteger(987654321);
+        bean.setTheString("Hello, world!");
+        bean.setTheUUID(UUID.randomUUID());
+        bean.setNested(nested);
+
+        /* Same results as Jackson, both as trees and as bytes */
+        final BSONObject object = mapper.writeValueAsBson(bean, codec);
+        assertEquals(object, mapper.writeValueAsBson(bean));
+
+        final BasicDBObject fields = new BasicDBObject("_id", "foo");
+        final byte[] bytes = mapper.writeValueAsBsonBytes(bean, codec, fields);
+        assertEquals(bytes, mapper.writeValueAsBsonBytes(bean, fields));
+
+        /* Read back */
+        final TestBean tree = mapper.readValue(object, codec);
+        assertNotSame(tree, bean);
+        assertEquals(tree, bean);
+
+        final TestBean raw = mapper.readBsonValue(bytes, codec, Collections.singleton("_id"));
+        assertNotSame(raw, bean);
+        assertEquals(raw, bean);
+    }
+
+    @Test
+    public void testProperties()
+    throws Exception {
+        final BSONCodec<Properties> codec = BSONCodec.create(mapper, Properties.class);
+        assertNotNull(codec);
+
+        final Properties properties = new Properties();
+        properties.setCount(12345678901L);
+        properties.setFlag(true);
+        properties.setTags(Arrays.asList("a", "b"));
+        properties.setUnit(Unit.METERS);
+
+        final BSONObject object = mapper.writeValueAsBson(properties, codec);
+        assertEquals(object, mapper.writeValueAsBson(properties));
+        assertFalse(object.containsField("missing"));
+
+        /* Written in a different order, with a number of a different type */
+        final Properties read = mapper.readValue(new BasicDBObject("unit", "METERS")
+                                                           .append("tags", Arrays.asList("c"))
+                                                           .append("count", 42)
+                                                           .append("flag", null), codec);
+        assertEquals(read.getCount(), 42L);
+        assertEquals(read.isFlag(), false);
+        assertEquals(read.getTags(), Arrays.asList("c"));
+        assertEquals(read.getUnit(), Unit.METERS);
+        assertNull(read.getMissing());
+    }
+
+    @Test(expectedExceptions = JsonMappingException.class)
+    public void testUnknownProperty()
+    throws Exception {
+        final BSONCodec<Properties> codec = BSONCodec.create(mapper, Properties.class);
+        mapper.readValue(new BasicDBObject("unknown", "foo"), codec);
+    }
+
+    @Test
+    public void testUnsupported() {
+        assertNull(BSONCodec.create(mapper, Created.class));
+        assertNull(BSONCodec.create(mapper, Polymorphic.class));
+    }
+
+    /* ====================================================================== */
+
+    public enum Unit { METERS, FEET };
+
+    @JsonInclude(Include.NON_NULL)
+    public static class Properties {
+        @Getter @Setter private long count;
+        @Getter @Setter private boolean flag;
+        @Getter @Setter private List<String> tags;
+        @Getter @Setter private Unit unit;
+        @Getter @Setter private String missing;
+    }
+
+    public static class Created {
+        @Getter private final String value;
+
+        @JsonCreator
+        public Created(@JsonProperty("value") String value) {
+            this.value = value;
+        }
+    }
+
+    @JsonTypeInfo(use = JsonTypeInfo.Id.CLASS)
+    public static class Polymorphic {
+        @Getter @Setter private String value;
+    }
+}
@@ -15,6 +15,7 @@
  * ========================================================================== */
 package org.usrz.libs.stores.bson;
 
+import java.util.Collections;
 import java.util.Date;
 import java.util.UUID;
 
@@ -23,6 +24,8 @@ import org.testng.annotations.Test;
 import org.usrz.libs.testing.AbstractTest;
 
 import com.google.inject.Guice;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DefaultDBEncoder;
 
 public class BSONMapperTest extends AbstractTest {
 
@@ -55,4 +58,27 @@ public class BSONMapperTest extends AbstractTest {
         assertNotSame(read, bean);
         assertEquals(read, bean);
     }
+
+    @Test
+    public void testBytes()
+    throws Exception {
+
+        final TestBean bean = new TestBean();
+        bean.setTheDate(new Date());
+        bean.setTheDouble(123.456);
+        bean.setTheInteger(987654321);
+        bean.setTheString("Hello, w\u00f6rld! \ud83d\ude00");
+        bean.setTheUUID(UUID.randomUUID());
+
+        /* Same bytes as encoding the tree */
+        final BasicDBObject object = new BasicDBObject("_id", "foo");
+        object.putAll((BSONObject) mapper.writeValueAsBson(bean));
+        final byte[] bytes = mapper.writeValueAsBsonBytes(bean, new BasicDBObject("_id", "foo"));
+        assertEquals(bytes, new DefaultDBEncoder().encode(object));
+
+        /* Read back, skipping our extra field */
+        final TestBean read = mapper.readBsonValue(bytes, TestBean.class, Collections.singleton("_id"));
+        assertNotSame(read, bean);
+        assertEquals(read, bean);
+    }
 }
@@ -0,0 +1,126 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores.bson;
+
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+import java.util.UUID;
+
+import org.bson.BSONObject;
+import org.usrz.libs.stores.bson.TestBean.NestedBean;
+
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.inject.Guice;
+
+/**
+ * A simple micro-benchmark for the {@link BSONParser}, reporting tokens per
+ * second and bytes allocated per decoded document, both for a raw token walk
+ * and for a full {@link BSONObjectMapper#readValue(BSONObject, Class)}.
+ * <p>
+ * Run with <code>java -server org.usrz.libs.stores.bson.BSONParserBenchmark
+ * [iterations]</code>: allocations are measured with the HotSpot-specific
+ * {@link com.sun.management.ThreadMXBean}.
+ */
+public class BSONParserBenchmark {
+
+    private static final int WARMUP = 5;
+    private static final int MEASURE = 10;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static long allocated() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /* ====================================================================== */
+
+    public static void main(String[] args)
+    throws Exception {
+        final int documents = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+        final BSONObjectMapper mapper = Guice.createInjector().getInstance(BSONObjectMapper.class);
+        final BSONObject object = mapper.writeValueAsBson(bean());
+        final BSONParser parser = new BSONParser(mapper, object);
+
+        for (int x = 0; x < WARMUP; x ++) {
+            tokens(parser, object, documents);
+            values(mapper, object, documents);
+        }
+
+        long tokens = 0, tokensTime = 0, tokensBytes = 0;
+        long valuesTime = 0, valuesBytes = 0;
+        for (int x = 0; x < MEASURE; x ++) {
+            long bytes = allocated();
+            long time = System.nanoTime();
+            tokens += tokens(parser, object, documents);
+            tokensTime += System.nanoTime() - time;
+            tokensBytes += allocated() - bytes;
+
+            bytes = allocated();
+            time = System.nanoTime();
+            values(mapper, object, documents);
+            valuesTime += System.nanoTime() - time;
+            valuesBytes += allocated() - bytes;
+        }
+
+        final long total = (long) documents * MEASURE;
+        System.out.printf("token walk: %,12.0f tokens/sec %8.1f bytes/document%n",
+                          tokens * 1e9 / tokensTime, (double) tokensBytes / total);
+        System.out.printf("readValue:  %,12.0f docs/sec   %8.1f bytes/document%n",
+                          total * 1e9 / valuesTime, (double) valuesBytes / total);
+    }
+
+    /* ====================================================================== */
+
+    private static long tokens(BSONParser parser, BSONObject object, int documents)
+    throws Exception {
+        long tokens = 0;
+        for (int x = 0; x < documents; x ++) {
+            parser.reset(object);
+            JsonToken token;
+            while ((token = parser.nextToken()) != null) {
+                if (token == JsonToken.VALUE_STRING) parser.getText();
+                else if (token.isScalarValue()) parser.getEmbeddedObject();
+                tokens ++;
+            }
+        }
+        return tokens;
+    }
+
+    private static void values(BSONObjectMapper mapper, BSONObject object, int documents)
+    throws Exception {
+        for (int x = 0; x < documents; x ++) {
+            if (mapper.readValue(object, TestBean.class) == null)
+                throw new IllegalStateException("Null document");
+        }
+    }
+
+    private static TestBean bean() {
+        final NestedBean nested = new NestedBean();
+        nested.setValue("nested value");
+        nested.setData(new byte[] { 1, 2, 3, 4 });
+
+        final TestBean bean = new TestBean();
+        bean.setTheString("a string");
+        bean.setTheDate(new Date());
+        bean.setTheInteger(12345);
+        bean.setTheDouble(1.5);
+        bean.setTheUUID(UUID.randomUUID());
+        bean.setNested(nested);
+        return bean;
+    }
+}
@@ -0,0 +1,128 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores.bson;
+
+import static com.fasterxml.jackson.core.JsonToken.END_ARRAY;
+import static com.fasterxml.jackson.core.JsonToken.END_OBJECT;
+import static com.fasterxml.jackson.core.JsonToken.FIELD_NAME;
+import static com.fasterxml.jackson.core.JsonToken.START_ARRAY;
+import static com.fasterxml.jackson.core.JsonToken.START_OBJECT;
+import static com.fasterxml.jackson.core.JsonToken.VALUE_EMBEDDED_OBJECT;
+import static com.fasterxml.jackson.core.JsonToken.VALUE_NULL;
+import static com.fasterxml.jackson.core.JsonToken.VALUE_NUMBER_FLOAT;
+import static com.fasterxml.jackson.core.JsonToken.VALUE_NUMBER_INT;
+import static com.fasterxml.jackson.core.JsonToken.VALUE_STRING;
+import static com.fasterxml.jackson.core.JsonToken.VALUE_TRUE;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.testng.annotations.Test;
+import org.usrz.libs.testing.AbstractTest;
+
+import com.fasterxml.jackson.core.JsonParser.NumberType;
+import com.fasterxml.jackson.core.JsonToken;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+
+public class BSONParserTest extends AbstractTest {
+
+    @Test
+    public void testTokens()
+    throws Exception {
+        final BasicDBList list = new BasicDBList();
+        list.add(1L);
+        list.add(new BasicDBObject());
+        list.add(null);
+
+        final BasicDBObject object = new BasicDBObject("string", "foo")
+                                               .append("number", 1.5)
+                                               .append("flag", true)
+                                               .append("date", new Date(0))
+                                               .append("list", list)
+                                               .append("nested", new BasicDBObject("a", Arrays.asList("b", "c")))
+                                               .append("last", 1);
+
+        final BSONParser parser = new BSONParser(null, object);
+
+        /* Positioned on the root object from the start */
+        assertEquals(parser.getCurrentToken(), START_OBJECT);
+        assertEquals(tokens(parser), Arrays.asList(
+                FIELD_NAME, VALUE_STRING,
+                FIELD_NAME, VALUE_NUMBER_FLOAT,
+                FIELD_NAME, VALUE_TRUE,
+                FIELD_NAME, VALUE_EMBEDDED_OBJECT,
+                FIELD_NAME, START_ARRAY, VALUE_NUMBER_INT, START_OBJECT, END_OBJECT, VALUE_NULL, END_ARRAY,
+                FIELD_NAME, START_OBJECT, FIELD_NAME, START_ARRAY, VALUE_STRING, VALUE_STRING, END_ARRAY, END_OBJECT,
+                FIELD_NAME, VALUE_NUMBER_INT,
+                END_OBJECT));
+
+        /* Names, values and skipping */
+        parser.reset(object);
+        assertEquals(parser.nextToken(), FIELD_NAME);
+        assertEquals(parser.getCurrentName(), "string");
+        assertEquals(parser.nextToken(), VALUE_STRING);
+        assertEquals(parser.getCurrentName(), "string");
+        assertEquals(parser.getText(), "foo");
+
+        while (parser.nextToken() != START_ARRAY) continue;
+        assertEquals(parser.getCurrentName(), "list");
+        assertEquals(parser.nextToken(), VALUE_NUMBER_INT);
+        assertEquals(parser.getNumberType(), NumberType.LONG);
+        assertNull(parser.getCurrentName());
+        assertSame(parser.skipChildren(), parser);
+        assertEquals(parser.getCurrentToken(), VALUE_NUMBER_INT);
+
+        assertEquals(parser.nextToken(), START_OBJECT);
+        assertEquals(parser.nextToken(), END_OBJECT);
+        assertEquals(parser.nextToken(), VALUE_NULL);
+        assertEquals(parser.nextToken(), END_ARRAY);
+        assertEquals(parser.getCurrentName(), "list");
+
+        assertEquals(parser.nextToken(), FIELD_NAME);
+        assertEquals(parser.nextToken(), START_OBJECT);
+        assertEquals(parser.skipChildren().getCurrentToken(), END_OBJECT);
+        assertEquals(parser.getCurrentName(), "nested");
+        assertEquals(parser.nextToken(), FIELD_NAME);
+        assertEquals(parser.getCurrentName(), "last");
+    }
+
+    @Test
+    public void testReuse()
+    throws Exception {
+        final BSONParser parser = new BSONParser(null, new BasicDBObject("a", new BasicDBObject("b", 1)));
+        assertEquals(parser.nextToken(), FIELD_NAME);
+        assertEquals(parser.nextToken(), START_OBJECT);
+        parser.close();
+
+        /* Start from scratch with a different object */
+        parser.reset(new BasicDBObject("c", "d"));
+        assertFalse(parser.isClosed());
+        assertEquals(parser.getCurrentToken(), START_OBJECT);
+        assertEquals(tokens(parser), Arrays.asList(FIELD_NAME, VALUE_STRING, END_OBJECT));
+        assertNull(parser.nextToken());
+    }
+
+    private static List<JsonToken> tokens(BSONParser parser)
+    throws Exception {
+        final List<JsonToken> tokens = new ArrayList<>();
+        JsonToken token;
+        while ((token = parser.nextToken()) != null) tokens.add(token);
+        return tokens;
+    }
+}
@@ -0,0 +1,168 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores.mongo;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.inject.Inject;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.usrz.libs.configurations.Configurations;
+import org.usrz.libs.configurations.JsonConfigurations;
+import org.usrz.libs.logging.Log;
+import org.usrz.libs.stores.Cursor;
+import org.usrz.libs.stores.Document;
+import org.usrz.libs.stores.Relation;
+import org.usrz.libs.stores.Store;
+import org.usrz.libs.stores.inject.MongoBuilder;
+import org.usrz.libs.testing.AbstractTest;
+import org.usrz.libs.testing.IO;
+import org.usrz.libs.utils.Strings;
+
+import com.google.inject.CreationException;
+import com.google.inject.Guice;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+
+public class BucketRelationTest extends AbstractTest {
+
+    private final String fooCollection = Strings.random(16);
+    private final String barCollection = Strings.random(16);
+    private final String relCollection = Strings.random(16);
+    private final Log log = new Log();
+
+    @BeforeClass
+    public void prepare()
+    throws IOException {
+        final Configurations configurations = new JsonConfigurations(IO.resource("test.js"));
+
+        Guice.createInjector((binder) -> new MongoBuilder(binder)
+                .configure(configurations.strip("mongo"))
+                .store(Foo.class, fooCollection)
+                .store(Bar.class, barCollection)
+                .relate(Foo.class, Bar.class, relCollection, (relation) -> relation.withBuckets(3))
+            ).injectMembers(this);
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void cleanup() {
+        if (db != null) {
+            try { db.getCollection(fooCollection).drop(); } catch (Exception exception) { log.error(exception, "Exception dropping FOO"); }
+            try { db.getCollection(barCollection).drop(); } catch (Exception exception) { log.error(exception, "Exception dropping BAR"); }
+            try { db.getCollection(relCollection).drop(); } catch (Exception exception) { log.error(exception, "Exception dropping REL"); }
+        }
+    }
+
+    /* ====================================================================== */
+
+    @Inject private DB db;
+    @Inject private Store<Foo> fooStore;
+    @Inject private Store<Bar> barStore;
+    @Inject private Relation<Foo, Bar> relation;
+
+    /* ====================================================================== */
+
+    @Test
+    public void testNoCacheInvalidation() {
+        try {
+            Guice.createInjector((binder) -> new MongoBuilder(binder)
+                    .relate(Foo.class, Bar.class, relCollection, (relation) -> relation.withBuckets().withCacheInvalidation()));
+            fail("Buckets accepted with cache invalidation");
+        } catch (CreationException exception) {
+            assertTrue(exception.getCause() instanceof IllegalStateException, "Wrong cause " + exception.getCause());
+        }
+    }
+
+    @Test
+    public void testBuckets() {
+        assertTrue(relation instanceof MongoBucketRelation, "Relation not bucketed");
+
+        final Foo foo1 = fooStore.store(new Foo());
+        final Foo foo2 = fooStore.store(new Foo());
+        final List<Bar> bars = new ArrayList<>();
+        for (int x = 0; x < 8; x ++) bars.add(barStore.store(new Bar()));
+
+        /* Single associations, the fourth one opens a new bucket */
+        for (int x = 0; x < 4; x ++) relation.associate(foo1, bars.get(x));
+        relation.associate(foo1, bars.get(0)); // no duplicates
+        assertEquals(buckets(foo1), 2L);
+        assertEquals(relation.countR(foo1), 4L);
+
+        /* Bulk associations fill the partial bucket first */
+        relation.associateAll(foo1, bars.subList(2, 8));
+        assertEquals(buckets(foo1), 3L);
+        assertEquals(relation.countR(foo1), 8L);
+        assertEquals(ids(relation.findR(foo1)), ids(bars));
+        assertEquals(ids(relation.findRIds(foo1).map(barStore::find)), ids(bars));
+
+        /* Reverse lookups */
+        relation.associate(foo2, bars.get(5));
+        assertTrue(relation.isAssociated(foo2, bars.get(5)));
+        assertFalse(relation.isAssociated(foo2, bars.get(4)));
+        assertEquals(relation.countL(bars.get(5)), 2L);
+        assertEquals(ids(relation.findL(bars.get(5))), ids(foo1, foo2));
+
+        /* Dissociations remove empty buckets */
+        relation.dissociate(foo2, bars.get(5));
+        assertEquals(buckets(foo2), 0L);
+        relation.dissociateAll(foo1, bars.subList(0, 3));
+        assertEquals(relation.countR(foo1), 5L);
+        assertEquals(buckets(foo1), 2L);
+
+        relation.replaceAll(foo1, bars.subList(0, 2));
+        assertEquals(ids(relation.findR(foo1)), ids(bars.subList(0, 2)));
+        assertEquals(relation.countR(foo1), 2L);
+    }
+
+    private long buckets(Foo foo) {
+        return db.getCollection(relCollection).count(new BasicDBObject("l", foo.id()));
+    }
+
+    private static Set<String> ids(Cursor<? extends Document> cursor) {
+        return cursor.map(Document::id).drainTo(new HashSet<>());
+    }
+
+    private static Set<String> ids(List<? extends Document> documents) {
+        final Set<String> ids = new HashSet<>();
+        for (Document document: documents) ids.add(document.id());
+        return ids;
+    }
+
+    private static Set<String> ids(Document... documents) {
+        return ids(Arrays.asList(documents));
+    }
+
+    /* ====================================================================== */
+
+    public static class Foo extends Document {
+        @Getter @Setter private Integer foo;
+    }
+
+    public static class Bar extends Document {
+        @Getter @Setter private Integer bar;
+    }
+
+}
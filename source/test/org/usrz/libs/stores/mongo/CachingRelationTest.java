@@ -0,0 +1,133 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores.mongo;
+
+import java.io.IOException;
+
+import javax.inject.Inject;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.usrz.libs.configurations.Configurations;
+import org.usrz.libs.configurations.JsonConfigurations;
+import org.usrz.libs.logging.Log;
+import org.usrz.libs.stores.CachingRelation;
+import org.usrz.libs.stores.Document;
+import org.usrz.libs.stores.Relation;
+import org.usrz.libs.stores.Store;
+import org.usrz.libs.stores.inject.MongoBuilder;
+import org.usrz.libs.testing.AbstractTest;
+import org.usrz.libs.testing.IO;
+import org.usrz.libs.utils.Strings;
+
+import com.google.inject.Guice;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+
+public class CachingRelationTest extends AbstractTest {
+
+    private final String fooCollection = Strings.random(16);
+    private final String barCollection = Strings.random(16);
+    private final String relCollection = Strings.random(16);
+    private final Log log = new Log();
+
+    @BeforeClass
+    public void prepare()
+    throws IOException {
+        final Configurations configurations = new JsonConfigurations(IO.resource("test.js"));
+
+        Guice.createInjector((binder) -> new MongoBuilder(binder)
+                .configure(configurations.strip("mongo"))
+                .store(Foo.class, fooCollection)
+                .store(Bar.class, barCollection)
+                .relate(Foo.class, Bar.class, relCollection, (relation) -> relation
+                        .withCache("maximumSize=1000,expireAfterWrite=1m"))
+            ).injectMembers(this);
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void cleanup() {
+        if (db != null) {
+            try { db.getCollection(fooCollection).drop(); } catch (Exception exception) { log.error(exception, "Exception dropping FOO"); }
+            try { db.getCollection(barCollection).drop(); } catch (Exception exception) { log.error(exception, "Exception dropping BAR"); }
+            try { db.getCollection(relCollection).drop(); } catch (Exception exception) { log.error(exception, "Exception dropping REL"); }
+        }
+    }
+
+    /* ====================================================================== */
+
+    @Inject private DB db;
+    @Inject private Store<Foo> fooStore;
+    @Inject private Store<Bar> barStore;
+    @Inject private Relation<Foo, Bar> relation;
+
+    /* ====================================================================== */
+
+    @Test
+    public void testCachedRelation() {
+        assertTrue(relation instanceof CachingRelation, "Relation not cached");
+
+        final Foo foo = fooStore.store(new Foo());
+        final Bar bar = barStore.store(new Bar());
+
+        assertFalse(relation.isAssociated(foo, bar));
+        relation.associate(foo, bar);
+        assertTrue(relation.isAssociated(foo, bar));
+        assertEquals(relation.countR(foo), 1L);
+        assertEquals(relation.countL(bar), 1L);
+
+        /* New edges are identified by both sides */
+        final String edgeId = MongoRelation.edgeId(foo.id(), bar.id());
+        assertNotNull(db.getCollection(relCollection).findOne(new BasicDBObject("_id", edgeId)), "No edge with ID");
+
+        /* Removing the edge behind our back is not noticed... */
+        db.getCollection(relCollection).remove(new BasicDBObject("_id", edgeId));
+        assertTrue(relation.isAssociated(foo, bar), "Adjacency not cached");
+
+        /* ...until someone tells us */
+        ((CachingRelation<Foo, Bar>) relation).invalidate(edgeId);
+        assertFalse(relation.isAssociated(foo, bar), "Adjacency not invalidated");
+        assertEquals(relation.countR(foo), 0L);
+
+        /* Bulk changes are published with the left id only */
+        relation.associate(foo, bar);
+        assertEquals(relation.countL(bar), 1L);
+        db.getCollection(relCollection).remove(new BasicDBObject("_id", edgeId));
+        ((CachingRelation<Foo, Bar>) relation).invalidate(MongoRelation.edgeId(foo.id(), ""));
+        assertFalse(relation.isAssociated(foo, bar), "Left adjacency not invalidated");
+        assertEquals(relation.countL(bar), 0L, "Right adjacency not invalidated");
+    }
+
+    @Test
+    public void testSetOperations() {
+        RelationTest.testSetOperations(relation, () -> fooStore.store(new Foo()), () -> barStore.store(new Bar()));
+    }
+
+    /* ====================================================================== */
+
+    public static class Foo extends Document {
+        @Getter @Setter private Integer foo;
+    }
+
+    public static class Bar extends Document {
+        @Getter @Setter private Integer bar;
+    }
+
+}
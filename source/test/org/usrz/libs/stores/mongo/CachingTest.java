@@ -15,7 +15,15 @@
  * ========================================================================== */
 package org.usrz.libs.stores.mongo;
 
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
 import javax.inject.Inject;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import lombok.Getter;
 import lombok.Setter;
@@ -26,14 +34,18 @@ import org.testng.annotations.Test;
 import org.usrz.libs.configurations.Configurations;
 import org.usrz.libs.configurations.JsonConfigurations;
 import org.usrz.libs.logging.Log;
+import org.usrz.libs.stores.CachingStore;
+import org.usrz.libs.stores.CachingStoreMXBean;
 import org.usrz.libs.stores.Document;
 import org.usrz.libs.stores.Store;
+import org.usrz.libs.stores.Stores;
 import org.usrz.libs.stores.inject.MongoBuilder;
 import org.usrz.libs.testing.AbstractTest;
 import org.usrz.libs.testing.IO;
 import org.usrz.libs.utils.Strings;
 
 import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.inject.Guice;
 import com.mongodb.DB;
 
@@ -44,6 +56,7 @@ public class CachingTest extends AbstractTest {
 
     @Inject private Store<MyBean> store;
     @Inject private Cache<String, MyBean> cache;
+    @Inject private Stores stores;
     @Inject private DB db;
 
     @BeforeClass
@@ -86,6 +99,52 @@ public class CachingTest extends AbstractTest {
 
     }
 
+    @Test
+    public void testQueryCaching()
+    throws Exception {
+        final String foo = Strings.random(16);
+        final MyBean bean = new MyBean();
+        bean.setFoo(foo);
+        store.store(bean);
+        cache.invalidate(bean.id());
+
+        final List<MyBean> list = store.query().and("foo").is(foo).list();
+        assertEquals(list.size(), 1);
+        assertSame(cache.getIfPresent(bean.id()), list.get(0), "Query result not cached");
+
+        final Map<String, MyBean> found = store.findAll(Arrays.asList(bean.id(), Strings.random(32)));
+        assertEquals(found.size(), 1);
+        assertSame(found.get(bean.id()), list.get(0), "Cached instance not returned");
+    }
+
+    @Test
+    public void testStatistics()
+    throws Exception {
+        final CachingStoreMXBean statistics = stores.getStatistics(collection);
+        assertNotNull(statistics, "No statistics for cached store");
+
+        final String id = store.store(new MyBean()).id();
+        final long hits = statistics.getHitCount();
+        for (int x = 0; x < 1000; x ++) store.find(id);
+
+        assertEquals(statistics.getHitCount(), hits + 1000);
+        assertTrue(statistics.getHotKeys().containsKey(id), "Not a hot key");
+
+        /* Warming snapshots are taken from hot ids still cached */
+        assertTrue(store instanceof CachingStore, "Not a caching store");
+        assertEquals(((CachingStore<MyBean>) store).getHotIds(1), Collections.singletonList(id));
+
+        final ObjectName name = new ObjectName("org.usrz.libs.stores:type=CachingStore,collection=" + ObjectName.quote(collection));
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertEquals(server.getAttribute(name, "HitCount"), statistics.getHitCount());
+
+        /* Other stores for the same collection neither replace nor remove it */
+        try (CachingStore<MyBean> other = new CachingStore<MyBean>(store, CacheBuilder.newBuilder().<String, MyBean>build())) {
+            other.register();
+        }
+        assertEquals(server.getAttribute(name, "HitCount"), statistics.getHitCount());
+    }
+
     public static class MyBean extends Document {
 
         @Getter @Setter
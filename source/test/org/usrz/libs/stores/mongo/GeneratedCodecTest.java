@@ -0,0 +1,155 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores.mongo;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import javax.inject.Inject;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.usrz.libs.configurations.Configurations;
+import org.usrz.libs.configurations.JsonConfigurations;
+import org.usrz.libs.logging.Log;
+import org.usrz.libs.stores.Document;
+import org.usrz.libs.stores.DocumentCodec;
+import org.usrz.libs.stores.Store;
+import org.usrz.libs.stores.inject.MongoBuilder;
+import org.usrz.libs.testing.AbstractTest;
+import org.usrz.libs.testing.IO;
+import org.usrz.libs.utils.Strings;
+
+import com.google.inject.Guice;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBObject;
+
+public class GeneratedCodecTest extends AbstractTest {
+
+    private final String collection = Strings.random(16);
+    private final String streamingCollection = Strings.random(16);
+    private final Log log = new Log();
+
+    @BeforeClass
+    public void prepare()
+    throws IOException {
+        final Configurations configurations = new JsonConfigurations(IO.resource("test.js"));
+
+        Guice.createInjector((binder) -> new MongoBuilder(binder)
+                .configure(configurations.strip("mongo"))
+                .store(Bean.class, collection, (builder) -> builder.withGeneratedCodec())
+                .store(StreamingBean.class, streamingCollection, (builder) -> builder.withGeneratedCodec().withStreamingCodec())
+            ).injectMembers(this);
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void cleanup() {
+        if (db != null) {
+            try { db.getCollection(collection).drop(); } catch (Exception exception) { log.error(exception, "Exception dropping collection"); }
+            try { db.getCollection(streamingCollection).drop(); } catch (Exception exception) { log.error(exception, "Exception dropping collection"); }
+        }
+    }
+
+    /* ====================================================================== */
+
+    @Inject private DB db;
+    @Inject private Store<Bean> store;
+    @Inject private Store<StreamingBean> streamingStore;
+
+    /* ====================================================================== */
+
+    @Test
+    public void testGeneratedCodec() {
+        test(store, collection, new Bean());
+    }
+
+    @Test
+    public void testGeneratedStreamingCodec() {
+        test(streamingStore, streamingCollection, new StreamingBean());
+    }
+
+    private <B extends Bean> void test(Store<B> store, String collection, B bean) {
+        bean.setName("first");
+        bean.setCount(3);
+        bean.setTags(Arrays.asList("a", "b"));
+        bean.setWhen(new Date(1000));
+        bean.setNested(new Nested());
+        bean.getNested().setValue("nested");
+
+        final B stored = store.store(bean);
+        assertNotNull(stored.id());
+        assertTrue(stored.encodedSize() > 0);
+
+        /* What's in the database is what Jackson would have written */
+        final DBObject object = db.getCollection(collection).findOne(new BasicDBObject("_id", stored.id()));
+        assertEquals(object.get("name"), "first");
+        assertEquals(object.get("count"), 3);
+        assertEquals(object.get("tags"), Arrays.asList("a", "b"));
+        assertEquals(object.get("when"), new Date(1000));
+        assertEquals(object.get("nested"), new BasicDBObject("value", "nested"));
+
+        /* Read back */
+        final B found = store.find(stored.id());
+        assertEquals(found.getName(), "first");
+        assertEquals(found.getCount(), 3);
+        assertEquals(found.getTags(), Arrays.asList("a", "b"));
+        assertEquals(found.getWhen(), new Date(1000));
+        assertEquals(found.getNested().getValue(), "nested");
+        assertEquals(found.lastModifiedAt(), stored.lastModifiedAt());
+
+        /* Documents written by the driver, with missing fields */
+        db.getCollection(collection).insert(new BasicDBObject("_id", "external")
+                                               .append("_last_modified_at", new Date(2000))
+                                               .append("name", "second"));
+        final B external = store.find("external");
+        assertEquals(external.getName(), "second");
+        assertEquals(external.getCount(), 0);
+        assertNull(external.getNested());
+
+        /* Encoding and decoding (for off-heap caches) */
+        @SuppressWarnings("unchecked")
+        final DocumentCodec<B> codec = (DocumentCodec<B>) store;
+        final B decoded = codec.decode(codec.encode(found));
+        assertEquals(decoded.id(), found.id());
+        assertEquals(decoded.getTags(), found.getTags());
+        assertEquals(decoded.getNested().getValue(), "nested");
+    }
+
+    /* ====================================================================== */
+
+    public static class Bean extends Document {
+        @Getter @Setter private String name;
+        @Getter @Setter private int count;
+        @Getter @Setter private List<String> tags;
+        @Getter @Setter private Date when;
+        @Getter @Setter private Nested nested;
+    }
+
+    public static class StreamingBean extends Bean {
+        /* Same as a bean, but in a streaming store */
+    }
+
+    public static class Nested {
+        @Getter @Setter private String value;
+    }
+}
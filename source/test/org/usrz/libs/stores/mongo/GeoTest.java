@@ -0,0 +1,165 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores.mongo;
+
+import static org.usrz.libs.stores.annotations.Indexes.Type.GEO_2DSPHERE;
+
+import java.io.IOException;
+import java.util.List;
+
+import javax.inject.Inject;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.usrz.libs.configurations.Configurations;
+import org.usrz.libs.configurations.JsonConfigurations;
+import org.usrz.libs.logging.Log;
+import org.usrz.libs.stores.Document;
+import org.usrz.libs.stores.Store;
+import org.usrz.libs.stores.annotations.Indexed;
+import org.usrz.libs.stores.geo.Point;
+import org.usrz.libs.stores.geo.Polygon;
+import org.usrz.libs.stores.inject.MongoBuilder;
+import org.usrz.libs.testing.AbstractTest;
+import org.usrz.libs.testing.IO;
+import org.usrz.libs.utils.Strings;
+
+import com.google.inject.Guice;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBObject;
+
+public class GeoTest extends AbstractTest {
+
+    private final String collection = Strings.random(16);
+    private final Log log = new Log();
+
+    @BeforeClass
+    public void prepare()
+    throws IOException {
+        final Configurations configurations = new JsonConfigurations(IO.resource("test.js"));
+
+        Guice.createInjector((binder) -> new MongoBuilder(binder)
+                .configure(configurations.strip("mongo"))
+                .store(Place.class, collection)
+            ).injectMembers(this);
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void cleanup() {
+        if (db != null) {
+            try { db.getCollection(collection).drop(); } catch (Exception exception) { log.error(exception, "Exception dropping collection"); }
+        }
+    }
+
+    /* ====================================================================== */
+
+    @Inject private DB db;
+    @Inject private Store<Place> store;
+
+    /* ====================================================================== */
+
+    @Test
+    public void testGeoQueries() {
+        final Place milan = store.store(new Place("Milan", new Point(9.1900, 45.4642)));
+        final Place monza = store.store(new Place("Monza", new Point(9.2744, 45.5845)));
+        final Place como  = store.store(new Place("Como",  new Point(9.0852, 45.8081)));
+        final Place rome  = store.store(new Place("Rome",  new Point(12.4964, 41.9028)));
+
+        /* Stored as GeoJSON, indexed as "2dsphere" */
+        final DBObject stored = db.getCollection(collection).findOne(new BasicDBObject("_id", milan.id()));
+        assertEquals(((DBObject) stored.get("location")).get("type"), "Point");
+        assertTrue(db.getCollection(collection).getIndexInfo().stream()
+                .anyMatch((index) -> "2dsphere".equals(((DBObject) index.get("key")).get("location"))),
+                "No 2dsphere index found");
+
+        /* Read back as points */
+        assertEquals(store.find(rome.id()).getLocation(), rome.getLocation());
+
+        /* Nearest first, within 50 kilometers */
+        final List<Place> near = store.query().and("location").near(9.19, 45.46, 50000).list();
+        assertEquals(near.size(), 3);
+        assertEquals(near.get(0).id(), milan.id());
+        assertEquals(near.get(1).id(), monza.id());
+        assertEquals(near.get(2).id(), como.id());
+
+        /* Within 20 kilometers */
+        final List<Place> closer = store.query().and("location").near(milan.getLocation(), 20000).list();
+        assertEquals(closer.size(), 2);
+
+        /* Roughly northern Italy */
+        final Polygon north = new Polygon(new Point(6.5, 44.0), new Point(14.0, 44.0),
+                                          new Point(14.0, 47.0), new Point(6.5, 47.0));
+        final List<Place> within = store.query().and("location").within(north).list();
+        assertEquals(within.size(), 3);
+        assertFalse(within.stream().anyMatch((place) -> place.id().equals(rome.id())));
+    }
+
+    @Test
+    public void testInvalidGeometries() {
+        try {
+            new Point(181, 0);
+            fail("Invalid longitude accepted");
+        } catch (IllegalArgumentException exception) {
+            /* Good! */
+        }
+
+        try {
+            new Polygon(new Point(0, 0), new Point(1, 1), new Point(0, 0));
+            fail("Degenerate polygon accepted");
+        } catch (IllegalArgumentException exception) {
+            /* Good! */
+        }
+
+        try {
+            new Polygon(new Point(0, 0), new Point(1, 1), new Point(1, 1));
+            fail("Polygon with repeated vertices accepted");
+        } catch (IllegalArgumentException exception) {
+            /* Good! */
+        }
+
+        /* Rings are always closed */
+        final Polygon polygon = new Polygon(new Point(0, 0), new Point(1, 0), new Point(1, 1));
+        assertEquals(polygon.getPoints().size(), 4);
+        assertEquals(polygon.getPoints().get(3), new Point(0, 0));
+    }
+
+    /* ====================================================================== */
+
+    public static class Place extends Document {
+
+        @Getter @Setter
+        private String name;
+
+        @Getter @Setter
+        @Indexed(type=GEO_2DSPHERE)
+        private Point location;
+
+        protected Place() {
+            /* Nothing to do */
+        }
+
+        private Place(String name, Point location) {
+            this.name = name;
+            this.location = location;
+        }
+    }
+
+}
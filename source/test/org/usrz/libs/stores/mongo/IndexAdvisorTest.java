@@ -0,0 +1,138 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores.mongo;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.inject.Inject;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.usrz.libs.configurations.Configurations;
+import org.usrz.libs.configurations.JsonConfigurations;
+import org.usrz.libs.logging.Log;
+import org.usrz.libs.stores.Document;
+import org.usrz.libs.stores.Store;
+import org.usrz.libs.stores.annotations.Indexed;
+import org.usrz.libs.stores.inject.MongoBuilder;
+import org.usrz.libs.stores.mongo.IndexAdvisor.Missing;
+import org.usrz.libs.stores.mongo.IndexAdvisor.Report;
+import org.usrz.libs.testing.AbstractTest;
+import org.usrz.libs.testing.IO;
+import org.usrz.libs.utils.Strings;
+
+import com.google.inject.Guice;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBObject;
+
+public class IndexAdvisorTest extends AbstractTest {
+
+    private final String collection = Strings.random(16);
+    private final Log log = new Log();
+
+    @BeforeClass
+    public void prepare()
+    throws IOException {
+        final Configurations configurations = new JsonConfigurations(IO.resource("test.js"));
+
+        Guice.createInjector((binder) -> new MongoBuilder(binder)
+                .configure(configurations.strip("mongo"))
+                .store(Foo.class, collection, (store) -> store.withIndexAdvisor("1 hour"))
+            ).injectMembers(this);
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void cleanup() {
+        if (db != null) {
+            try { db.getCollection(collection).drop(); } catch (Exception exception) { log.error(exception, "Exception dropping collection"); }
+        }
+    }
+
+    /* ====================================================================== */
+
+    @Inject private DB db;
+    @Inject private Store<Foo> store;
+
+    /* ====================================================================== */
+
+    @Test
+    public void testIndexAdvisor() {
+        assertTrue(store instanceof MongoStore, "Not a MongoStore");
+        final IndexAdvisor advisor = ((MongoStore<Foo>) store).getIndexAdvisor();
+        assertNotNull(advisor, "No index advisor");
+
+        for (int x = 0; x < 10; x ++) {
+            final Foo foo = new Foo();
+            foo.setIndexed(x);
+            foo.setPlain(x);
+            store.store(foo);
+        }
+
+        /* Served by the index */
+        for (int x = 0; x < 3; x ++) store.query().and("indexed").is(x).documents().forEachRemaining((foo) -> {});
+        /* Collection scans, differing only in values */
+        for (int x = 0; x < 5; x ++) store.query().and("plain").gt(x).documents().forEachRemaining((foo) -> {});
+        /* Indexed filter, but in-memory sort */
+        store.query().and("indexed").is(1).orderBy("plain", true).ids().forEachRemaining((id) -> {});
+
+        final Report report = advisor.report();
+        log.info("%s", report);
+        assertEquals(report.getMissingIndexes().size(), 2, "Wrong missing indexes");
+
+        final Missing scan = report.getMissingIndexes().get(0);
+        assertEquals(scan.getCount(), 5L);
+        assertEquals(scan.getReason(), "COLLSCAN");
+        assertEquals(scan.getShape().getSuggestedIndex(), new BasicDBObject("plain", 1));
+
+        final Missing sort = report.getMissingIndexes().get(1);
+        assertEquals(sort.getCount(), 1L);
+        assertEquals(sort.getReason(), "in-memory sort");
+        assertEquals(sort.getShape().getSuggestedIndex().keySet().toString(), "[indexed, plain]");
+    }
+
+    @Test
+    public void testLogicalShapes() {
+        final List<DBObject> clauses = Arrays.asList(new BasicDBObject("a", 1), new BasicDBObject("b", new BasicDBObject("$gt", 2)));
+
+        final QueryShape and = QueryShape.of(new BasicDBObject("$and", clauses).append("c", 3));
+        assertTrue(and.isIndexable(), "$and not indexable");
+        assertEquals(and.getEqualityFields().toString(), "[a, c]");
+        assertEquals(and.getRangeFields().toString(), "[b]");
+        assertEquals(and.getSuggestedIndex().keySet().toString(), "[a, c, b]");
+
+        final QueryShape or = QueryShape.of(new BasicDBObject("$or", clauses).append("c", 3));
+        assertFalse(or.isIndexable(), "$or indexable");
+        assertEquals(or.getOperators().toString(), "[$or]");
+        assertTrue(or.getRangeFields().isEmpty(), "$or recorded as range");
+        assertNull(or.getSuggestedIndex());
+        assertNotEquals(or, QueryShape.of(new BasicDBObject("c", 3)));
+    }
+
+    /* ====================================================================== */
+
+    public static class Foo extends Document {
+        @Indexed @Getter @Setter private int indexed;
+        @Getter @Setter private int plain;
+    }
+
+}
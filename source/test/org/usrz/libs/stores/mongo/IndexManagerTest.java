@@ -0,0 +1,151 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores.mongo;
+
+import static org.usrz.libs.stores.annotations.Indexes.Type.ASCENDING;
+import static org.usrz.libs.stores.annotations.Indexes.Type.DESCENDING;
+import static org.usrz.libs.stores.annotations.Indexes.Type.TEXT;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.inject.Inject;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.usrz.libs.configurations.Configurations;
+import org.usrz.libs.configurations.JsonConfigurations;
+import org.usrz.libs.logging.Log;
+import org.usrz.libs.stores.inject.MongoBuilder;
+import org.usrz.libs.stores.mongo.MongoIndexManager.Mode;
+import org.usrz.libs.testing.AbstractTest;
+import org.usrz.libs.testing.IO;
+import org.usrz.libs.utils.Strings;
+
+import com.google.inject.Guice;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+
+public class IndexManagerTest extends AbstractTest {
+
+    private final String collection = Strings.random(16);
+    private final String variants = Strings.random(16);
+    private final String texts = Strings.random(16);
+    private final Log log = new Log();
+
+    @BeforeClass
+    public void prepare()
+    throws IOException {
+        final Configurations configurations = new JsonConfigurations(IO.resource("test.js"));
+
+        Guice.createInjector((binder) -> new MongoBuilder(binder)
+                .configure(configurations.strip("mongo"))
+            ).injectMembers(this);
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void cleanup() {
+        if (db != null) {
+            try { db.getCollection(collection).drop(); } catch (Exception exception) { log.error(exception, "Exception dropping collection"); }
+            try { db.getCollection(variants).drop(); } catch (Exception exception) { log.error(exception, "Exception dropping variants"); }
+            try { db.getCollection(texts).drop(); } catch (Exception exception) { log.error(exception, "Exception dropping texts"); }
+        }
+    }
+
+    /* ====================================================================== */
+
+    @Inject private DB db;
+
+    /* ====================================================================== */
+
+    @Test
+    public void testIndexManager()
+    throws InterruptedException {
+        final DBCollection collection = db.getCollection(this.collection);
+        collection.insert(new BasicDBObject("a", 1).append("b", 2));
+
+        /* Report only, nothing gets created */
+        new MongoIndexManager(Mode.REPORT).ensureIndexes(collection, new MongoIndex().withKey("a", ASCENDING));
+        assertFalse(hasIndex(collection, new BasicDBObject("a", 1)), "Index created in report mode");
+
+        /* Background, eventually gets created */
+        new MongoIndexManager(Mode.BACKGROUND).ensureIndexes(collection, new MongoIndex().withKey("a", ASCENDING));
+        for (int x = 0; (x < 100) && (!hasIndex(collection, new BasicDBObject("a", 1))); x ++) Thread.sleep(100);
+        assertTrue(hasIndex(collection, new BasicDBObject("a", 1)), "Index not created in background");
+
+        /* Synchronous, existing indexes are left alone, key order matters */
+        final MongoIndexManager manager = new MongoIndexManager();
+        manager.ensureIndexes(collection,
+                new MongoIndex().withKey("a", ASCENDING),
+                new MongoIndex().withKey("b", DESCENDING).withKey("a", ASCENDING));
+        assertTrue(hasIndex(collection, new BasicDBObject("b", -1).append("a", 1)), "Index not created");
+        assertFalse(hasIndex(collection, new BasicDBObject("a", 1).append("b", -1)), "Wrong index created");
+        assertEquals(collection.getIndexInfo().size(), 3); // _id, a, b+a
+    }
+
+    @Test
+    public void testIndexVariants() {
+        final DBCollection collection = db.getCollection(variants);
+        collection.insert(new BasicDBObject("c", "x"));
+
+        final MongoIndexManager manager = new MongoIndexManager();
+        manager.ensureIndexes(collection, new MongoIndex().withKey("c", ASCENDING));
+
+        /* Same key, different collation: only created when named differently */
+        manager.ensureIndexes(collection, new MongoIndex().withKey("c", ASCENDING).withCollation("en", 2));
+        assertEquals(collection.getIndexInfo().size(), 2); // _id, c
+        manager.ensureIndexes(collection, new MongoIndex().withKey("c", ASCENDING).withCollation("en", 2).withName("c_en"));
+        assertEquals(collection.getIndexInfo().size(), 3); // _id, c, c_en
+
+        /* Collations are matched even if the server adds its defaults */
+        manager.ensureIndexes(collection, new MongoIndex().withKey("c", ASCENDING).withCollation("en", 2).withName("c_en_2"));
+        assertEquals(collection.getIndexInfo().size(), 3);
+    }
+
+    @Test
+    public void testTextIndexes() {
+        final DBCollection collection = db.getCollection(texts);
+        collection.insert(new BasicDBObject("k", 1).append("t", "foo").append("u", "bar"));
+
+        final MongoIndexManager manager = new MongoIndexManager();
+        manager.ensureIndexes(collection, new MongoIndex().withKey("k", ASCENDING).withKey("t", TEXT).withKey("u", TEXT));
+        assertEquals(collection.getIndexInfo().size(), 2); // _id, k+t+u
+
+        /* Listed as "_fts" and "_ftsx": recreating it (even named) would fail */
+        manager.ensureIndexes(collection, new MongoIndex().withKey("k", ASCENDING).withKey("t", TEXT).withKey("u", TEXT).withName("other"));
+        assertEquals(collection.getIndexInfo().size(), 2);
+    }
+
+    private static boolean hasIndex(DBCollection collection, BasicDBObject key) {
+        final List<DBObject> indexes = collection.getIndexInfo();
+        for (DBObject index: indexes) {
+            /* Compare in order, numbers might be returned as doubles */
+            final DBObject found = (DBObject) index.get("key");
+            if (!new ArrayList<>(found.keySet()).equals(new ArrayList<>(key.keySet()))) continue;
+            boolean same = true;
+            for (String field: key.keySet()) {
+                same &= ((Number) key.get(field)).doubleValue() == ((Number) found.get(field)).doubleValue();
+            }
+            if (same) return true;
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,113 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores.mongo;
+
+import javax.inject.Inject;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.usrz.libs.configurations.Configurations;
+import org.usrz.libs.configurations.JsonConfigurations;
+import org.usrz.libs.stores.Document;
+import org.usrz.libs.stores.Store;
+import org.usrz.libs.stores.inject.MongoBuilder;
+import org.usrz.libs.testing.AbstractTest;
+import org.usrz.libs.testing.IO;
+import org.usrz.libs.utils.Strings;
+
+import com.google.common.cache.Cache;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.TypeLiteral;
+import com.mongodb.DB;
+
+public class InvalidationTest extends AbstractTest {
+
+    private static final String collection = Strings.random(16);
+
+    private Store<MyBean> store1, store2;
+    private Cache<String, MyBean> cache2;
+    @Inject private DB db;
+
+    @BeforeClass
+    public void initialize()
+    throws Exception {
+        final Configurations configurations = new JsonConfigurations(IO.resource("test.js"));
+
+        /* Two injectors, simulating two different nodes */
+        final Injector injector1 = Guice.createInjector((binder) ->
+                new MongoBuilder(binder)
+                        .configure(configurations.strip("mongo"))
+                        .store(MyBean.class, collection)
+                        .withCache("maximumSize=1000")
+                        .withCacheInvalidation());
+        final Injector injector2 = Guice.createInjector((binder) ->
+                new MongoBuilder(binder)
+                        .configure(configurations.strip("mongo"))
+                        .store(MyBean.class, collection)
+                        .withCache("maximumSize=1000")
+                        .withCacheInvalidation());
+
+        injector1.injectMembers(this);
+        store1 = injector1.getInstance(Key.get(new TypeLiteral<Store<MyBean>>(){}));
+        store2 = injector2.getInstance(Key.get(new TypeLiteral<Store<MyBean>>(){}));
+        cache2 = injector2.getInstance(Key.get(new TypeLiteral<Cache<String, MyBean>>(){}));
+    }
+
+    @AfterClass(alwaysRun=true)
+    public void destroy()
+    throws Exception {
+        if (db != null) {
+            log.info("Dropping collection %s.%s", db.getName(), collection);
+            db.getCollection(collection).drop();
+        }
+    }
+
+    @Test
+    public void testInvalidation()
+    throws Exception {
+        final MyBean bean = new MyBean();
+        bean.setFoo("first");
+        final String id = store1.store(bean).id();
+
+        /* Load the document on the second node */
+        assertEquals(store2.find(id).getFoo(), "first");
+        assertNotNull(cache2.getIfPresent(id), "Not cached on find");
+
+        /* Modify the document on the first node */
+        final MyBean modified = store1.find(id);
+        modified.setFoo("second");
+        store1.store(modified);
+
+        /* Wait for the second node to be notified */
+        for (int x = 0; (x < 50) && (cache2.getIfPresent(id) != null); x ++) Thread.sleep(100);
+        assertNull(cache2.getIfPresent(id), "Not invalidated on second node");
+        assertEquals(store2.find(id).getFoo(), "second");
+    }
+
+    public static class MyBean extends Document {
+
+        @Getter @Setter
+        private String foo;
+
+    }
+
+}
@@ -0,0 +1,149 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores.mongo;
+
+import static org.usrz.libs.stores.annotations.Indexes.Option.UNIQUE;
+import static org.usrz.libs.stores.annotations.Indexes.Type.WILDCARD;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.inject.Inject;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.usrz.libs.configurations.Configurations;
+import org.usrz.libs.configurations.JsonConfigurations;
+import org.usrz.libs.logging.Log;
+import org.usrz.libs.stores.Document;
+import org.usrz.libs.stores.Store;
+import org.usrz.libs.stores.annotations.Index;
+import org.usrz.libs.stores.annotations.Index.Key;
+import org.usrz.libs.stores.annotations.Indexed;
+import org.usrz.libs.stores.inject.MongoBuilder;
+import org.usrz.libs.testing.AbstractTest;
+import org.usrz.libs.testing.IO;
+import org.usrz.libs.utils.Strings;
+
+import com.google.inject.Guice;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+public class PartialIndexTest extends AbstractTest {
+
+    private final String collection = Strings.random(16);
+    private final Log log = new Log();
+
+    @BeforeClass
+    public void prepare()
+    throws IOException {
+        final Configurations configurations = new JsonConfigurations(IO.resource("test.js"));
+
+        Guice.createInjector((binder) -> new MongoBuilder(binder)
+                .configure(configurations.strip("mongo"))
+                .store(Order.class, collection)
+            ).injectMembers(this);
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void cleanup() {
+        if (db != null) {
+            try { db.getCollection(collection).drop(); } catch (Exception exception) { log.error(exception, "Exception dropping collection"); }
+        }
+    }
+
+    /* ====================================================================== */
+
+    @Inject private DB db;
+    @Inject private Store<Order> store;
+
+    /* ====================================================================== */
+
+    @Test
+    public void testIndexOptions() {
+        final Map<String, DBObject> indexes = new HashMap<>();
+        for (DBObject index: db.getCollection(collection).getIndexInfo()) indexes.put((String) index.get("name"), index);
+
+        final DBObject open = indexes.get("open_orders");
+        assertNotNull(open, "Partial index not found");
+        assertEquals(open.get("partialFilterExpression"), new BasicDBObject("status", "open"));
+
+        final DBObject code = indexes.get("code");
+        assertNotNull(code, "Collated index not found");
+        assertEquals(((DBObject) code.get("collation")).get("locale"), "en");
+        assertEquals(((Number) ((DBObject) code.get("collation")).get("strength")).intValue(), 2);
+
+        assertTrue(indexes.containsKey("attributes.$**_1"), "Wildcard index not found");
+    }
+
+    @Test
+    public void testHintedQuery() {
+        final Order open = store.store(new Order("c1", "open", "A1"));
+        store.store(new Order("c1", "closed", "A2"));
+
+        assertEquals(store.query().and("customer").is("c1")
+                                  .and("status").is("open")
+                                  .hint("open_orders")
+                                  .list().size(), 1);
+        assertEquals(store.query().and("customer").is("c1")
+                                  .and("status").is("open")
+                                  .hint("open_orders")
+                                  .first().id(), open.id());
+    }
+
+    @Test(expectedExceptions = MongoException.class)
+    public void testCollatedUniqueness() {
+        store.store(new Order("c2", "open", "CASE"));
+        store.store(new Order("c2", "open", "case"));
+    }
+
+    /* ====================================================================== */
+
+    @Index(name="open_orders",
+           partialFilter="{\"status\": \"open\"}",
+           keys=@Key(field="customer"))
+    public static class Order extends Document {
+
+        @Getter @Setter private String customer;
+        @Getter @Setter private String status;
+
+        @Getter @Setter
+        @Indexed(name="code", options=UNIQUE, collation="en", collationStrength=2)
+        private String code;
+
+        @Getter @Setter
+        @Indexed(type=WILDCARD)
+        private Map<String, String> attributes = new HashMap<>();
+
+        protected Order() {
+            /* Nothing to do */
+        }
+
+        private Order(String customer, String status, String code) {
+            this.customer = customer;
+            this.status = status;
+            this.code = code;
+        }
+    }
+
+}
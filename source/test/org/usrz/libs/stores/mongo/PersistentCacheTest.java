@@ -0,0 +1,115 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores.mongo;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Date;
+
+import javax.inject.Inject;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.usrz.libs.configurations.Configurations;
+import org.usrz.libs.configurations.JsonConfigurations;
+import org.usrz.libs.logging.Log;
+import org.usrz.libs.stores.Document;
+import org.usrz.libs.stores.MappedSlabCache;
+import org.usrz.libs.stores.OffHeapStore;
+import org.usrz.libs.stores.Store;
+import org.usrz.libs.stores.inject.MongoBuilder;
+import org.usrz.libs.testing.AbstractTest;
+import org.usrz.libs.testing.IO;
+import org.usrz.libs.utils.Strings;
+
+import com.google.inject.Guice;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+
+public class PersistentCacheTest extends AbstractTest {
+
+    private static final String collection = Strings.random(16);
+    private static final Log log = new Log();
+
+    @Inject private Store<MyBean> store;
+    @Inject private DB db;
+
+    @BeforeClass
+    public void initialize()
+    throws Exception {
+        final Configurations configurations = new JsonConfigurations(IO.resource("test.js"));
+
+        Guice.createInjector((binder) ->
+                new MongoBuilder(binder)
+                        .configure(configurations.strip("mongo"))
+                        .store(MyBean.class, collection)
+            ).injectMembers(this);
+    }
+
+    @AfterClass(alwaysRun=true)
+    public void destroy()
+    throws Exception {
+        if (db != null) {
+            log.info("Dropping collection %s.%s", db.getName(), collection);
+            db.getCollection(collection).drop();
+        }
+    }
+
+    @Test
+    public void testRecovery()
+    throws Exception {
+        final MongoStore<MyBean> mongo = (MongoStore<MyBean>) store;
+        final Path directory = Files.createTempDirectory("slabs");
+
+        /* First run, store two documents */
+        final String id1, id2;
+        try (MappedSlabCache cache = new MappedSlabCache(directory, 1024 * 1024)) {
+            final OffHeapStore<MyBean> offHeap = new OffHeapStore<>(mongo, mongo, cache, null);
+            id1 = offHeap.store(new MyBean()).id();
+            id2 = offHeap.store(new MyBean()).id();
+            assertEquals(cache.size(), 2);
+        }
+
+        /* Modify one document behind our back */
+        db.getCollection(collection).update(new BasicDBObject("_id", id2),
+                new BasicDBObject("$set", new BasicDBObject("_last_modified_at", new Date())));
+
+        /* Second run, everything is recovered but unverified */
+        try (MappedSlabCache cache = new MappedSlabCache(directory, 1024 * 1024)) {
+            assertEquals(cache.size(), 2);
+            assertEquals(cache.unverified(10).size(), 2);
+
+            final OffHeapStore<MyBean> offHeap = new OffHeapStore<>(mongo, mongo, cache, null);
+            offHeap.revalidate();
+
+            assertNotNull(cache.get(id1), "Unmodified document not verified");
+            assertNull(cache.get(id2), "Modified document was verified");
+            assertEquals(offHeap.find(id2).id(), id2);
+        }
+    }
+
+    public static class MyBean extends Document {
+
+        @Getter @Setter
+        private String foo;
+
+    }
+
+}
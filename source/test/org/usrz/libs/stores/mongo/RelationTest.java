@@ -16,9 +16,14 @@
 package org.usrz.libs.stores.mongo;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.Supplier;
 
 import javax.inject.Inject;
 
@@ -31,6 +36,7 @@ import org.testng.annotations.Test;
 import org.usrz.libs.configurations.Configurations;
 import org.usrz.libs.configurations.JsonConfigurations;
 import org.usrz.libs.logging.Log;
+import org.usrz.libs.stores.Cursor;
 import org.usrz.libs.stores.Document;
 import org.usrz.libs.stores.Relation;
 import org.usrz.libs.stores.Store;
@@ -47,6 +53,7 @@ public class RelationTest extends AbstractTest {
     private final String fooCollection = Strings.random(16);
     private final String barCollection = Strings.random(16);
     private final String relCollection = Strings.random(16);
+    private final String graphCollection = Strings.random(16);
     private final Log log = new Log();
 
     @BeforeClass
@@ -59,6 +66,7 @@ public class RelationTest extends AbstractTest {
                 .store(Foo.class, fooCollection)
                 .store(Bar.class, barCollection)
                 .relate(Foo.class, Bar.class, relCollection)
+                .relate(Foo.class, Foo.class, graphCollection)
             ).injectMembers(this);
     }
 
@@ -68,6 +76,7 @@ public class RelationTest extends AbstractTest {
             try { db.getCollection(fooCollection).drop(); } catch (Exception exception) { log.error(exception, "Exception dropping FOO"); }
             try { db.getCollection(barCollection).drop(); } catch (Exception exception) { log.error(exception, "Exception dropping BAR"); }
             try { db.getCollection(relCollection).drop(); } catch (Exception exception) { log.error(exception, "Exception dropping REL"); }
+            try { db.getCollection(graphCollection).drop(); } catch (Exception exception) { log.error(exception, "Exception dropping GRAPH"); }
         }
     }
 
@@ -77,6 +86,7 @@ public class RelationTest extends AbstractTest {
     @Inject private Store<Foo> fooStore;
     @Inject private Store<Bar> barStore;
     @Inject private Relation<Foo, Bar> relation;
+    @Inject private Relation<Foo, Foo> graph;
 
     /* ====================================================================== */
 
@@ -180,6 +190,113 @@ public class RelationTest extends AbstractTest {
 
     }
 
+    @Test
+    public void testManyAssociations() {
+        final Foo foo = fooStore.store(new Foo());
+        final Set<Bar> bars = new HashSet<>();
+        for (int x = 0; x < 250; x ++) {
+            final Bar bar = barStore.store(new Bar());
+            relation.associate(foo, bar);
+            bars.add(bar);
+        }
+
+        /* Spans multiple pages of resolved documents */
+        assertEquals(fromIterator(relation.findR(foo)), bars);
+    }
+
+    @Test
+    public void testBulkAssociations() {
+        final Foo foo = fooStore.store(new Foo());
+        final Bar bar1 = barStore.store(new Bar());
+        final Bar bar2 = barStore.store(new Bar());
+        final Bar bar3 = barStore.store(new Bar());
+
+        relation.associateAll(foo, Arrays.asList(bar1, bar2));
+        relation.associateAll(foo, Arrays.asList(bar2)); // should not fail
+        assertEquals(fromIterator(relation.findR(foo)), new HashSet<>(Arrays.asList(bar1, bar2)));
+
+        relation.replaceAll(foo, Arrays.asList(bar2, bar3));
+        assertEquals(fromIterator(relation.findR(foo)), new HashSet<>(Arrays.asList(bar2, bar3)));
+
+        assertEquals(relation.countR(foo), 2L);
+        assertEquals(relation.countL(bar1), 0L);
+        assertEquals(relation.countL(bar2), 1L);
+        assertEquals(fromIterator(relation.findRIds(foo)), new HashSet<>(Arrays.asList(bar2.id(), bar3.id())));
+        assertEquals(fromIterator(relation.findLIds(bar3)), new HashSet<>(Arrays.asList(foo.id())));
+
+        relation.dissociateAll(foo, Arrays.asList(bar1, bar2, bar3));
+        assertTrue(fromIterator(relation.findR(foo)).isEmpty());
+    }
+
+    @Test
+    public void testTraversal() {
+        final Foo foo1 = fooStore.store(new Foo());
+        final Foo foo2 = fooStore.store(new Foo());
+        final Foo foo3 = fooStore.store(new Foo());
+        final Foo foo4 = fooStore.store(new Foo());
+        final Foo foo5 = fooStore.store(new Foo());
+
+        /* 1 -> 2 -> 3 -> 4 -> 5, with shortcut 1 -> 3 and cycle 4 -> 1 */
+        graph.associate(foo1, foo2);
+        graph.associate(foo2, foo3);
+        graph.associate(foo1, foo3);
+        graph.associate(foo3, foo4);
+        graph.associate(foo4, foo5);
+        graph.associate(foo4, foo1);
+
+        final Map<String, Integer> expected = new HashMap<>();
+        expected.put(foo2.id(), 1);
+        expected.put(foo3.id(), 1);
+        expected.put(foo4.id(), 2);
+        assertEquals(graph.traverse(foo1, 2), expected);
+
+        expected.put(foo5.id(), 3);
+        assertEquals(graph.traverse(foo1, 10), expected);
+
+        final Map<String, Integer> limited = graph.traverse(foo1, 10, 2);
+        assertEquals(limited.size(), 2);
+        assertEquals(new HashSet<>(limited.values()), Collections.singleton(1));
+
+        assertTrue(graph.traverse(foo5, 3).isEmpty());
+    }
+
+    @Test
+    public void testSetOperations() {
+        testSetOperations(relation, () -> fooStore.store(new Foo()), () -> barStore.store(new Bar()));
+    }
+
+    /* Shared with the caching relation test, as it implements the same operations differently */
+    @SuppressWarnings("unchecked")
+    static <L extends Document, R extends Document> void testSetOperations(Relation<L, R> relation, Supplier<L> lefts, Supplier<R> rights) {
+        final L foo1 = lefts.get();
+        final L foo2 = lefts.get();
+        final L foo3 = lefts.get();
+        final R bar1 = rights.get();
+        final R bar2 = rights.get();
+        final R bar3 = rights.get();
+        final R bar4 = rights.get();
+
+        relation.associateAll(foo1, Arrays.asList(bar1, bar2, bar3));
+        relation.associateAll(foo2, Arrays.asList(bar2, bar3, bar4));
+        relation.associateAll(foo3, Arrays.asList(bar3));
+
+        assertEquals(ids(relation.intersectR(foo1, foo2)), ids(bar2, bar3));
+        assertEquals(ids(relation.unionR(foo1, foo2)), ids(bar1, bar2, bar3, bar4));
+        assertEquals(ids(relation.differenceR(foo1, foo3)), ids(bar1, bar2));
+        assertEquals(ids(relation.differenceR(foo2, foo1, foo3)), ids(bar4));
+        assertEquals(ids(relation.intersectR(foo1, foo2, foo3)), ids(bar3));
+    }
+
+    private static Set<String> ids(Cursor<? extends Document> cursor) {
+        return cursor.map(Document::id).drainTo(new HashSet<>());
+    }
+
+    private static Set<String> ids(Document... documents) {
+        final Set<String> ids = new HashSet<>();
+        for (Document document: documents) ids.add(document.id());
+        return ids;
+    }
+
     /* ====================================================================== */
 
     public static class Foo extends Document {
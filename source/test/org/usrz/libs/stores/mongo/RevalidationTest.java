@@ -0,0 +1,128 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores.mongo;
+
+import java.util.Date;
+
+import javax.inject.Inject;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.usrz.libs.configurations.Configurations;
+import org.usrz.libs.configurations.JsonConfigurations;
+import org.usrz.libs.stores.Document;
+import org.usrz.libs.stores.Store;
+import org.usrz.libs.stores.inject.MongoBuilder;
+import org.usrz.libs.testing.AbstractTest;
+import org.usrz.libs.testing.IO;
+import org.usrz.libs.utils.Strings;
+
+import com.google.inject.Guice;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+
+public class RevalidationTest extends AbstractTest {
+
+    private static final String collection = Strings.random(16);
+
+    @Inject private Store<MyBean> store;
+    @Inject private DB db;
+
+    @BeforeClass
+    public void initialize()
+    throws Exception {
+        final Configurations configurations = new JsonConfigurations(IO.resource("test.js"));
+
+        Guice.createInjector((binder) ->
+                new MongoBuilder(binder)
+                        .configure(configurations.strip("mongo"))
+                        .store(MyBean.class, collection)
+                        .withCache("maximumSize=1000,refreshAfterWrite=1s")
+            ).injectMembers(this);
+    }
+
+    @AfterClass(alwaysRun=true)
+    public void destroy()
+    throws Exception {
+        if (db != null) {
+            log.info("Dropping collection %s.%s", db.getName(), collection);
+            db.getCollection(collection).drop();
+        }
+    }
+
+    @Test
+    public void testRevalidation()
+    throws Exception {
+        final MyBean bean = new MyBean();
+        bean.setFoo("first");
+        final String id = store.store(bean).id();
+        final MyBean cached = store.find(id);
+
+        /* Expired, but not modified: the same instance must be kept */
+        Thread.sleep(1500);
+        assertSame(store.find(id), cached, "Unmodified document refreshed");
+        Thread.sleep(100);
+        assertSame(store.find(id), cached, "Unmodified document refreshed");
+
+        /* Modify the document behind the store's back */
+        db.getCollection(collection).update(new BasicDBObject("_id", id),
+                new BasicDBObject("$set", new BasicDBObject("foo", "second").append("_last_modified_at", new Date())));
+
+        /* Expired and modified: the stale instance is returned while refreshing */
+        Thread.sleep(1500);
+        assertSame(store.find(id), cached, "Stale document not returned while refreshing");
+        MyBean refreshed = cached;
+        for (int x = 0; (x < 50) && (refreshed == cached); x ++) {
+            Thread.sleep(100);
+            refreshed = store.find(id);
+        }
+        assertEquals(refreshed.getFoo(), "second");
+    }
+
+    @Test
+    public void testDeletion()
+    throws Exception {
+        final MyBean bean = new MyBean();
+        bean.setFoo("deleted");
+        final String id = store.store(bean).id();
+        final MyBean cached = store.find(id);
+
+        /* Delete the document behind the store's back */
+        db.getCollection(collection).remove(new BasicDBObject("_id", id));
+
+        /* Expired and deleted: the stale instance is returned, then evicted */
+        Thread.sleep(1500);
+        assertSame(store.find(id), cached, "Stale document not returned while refreshing");
+        MyBean refreshed = cached;
+        for (int x = 0; (x < 50) && (refreshed != null); x ++) {
+            Thread.sleep(100);
+            refreshed = store.find(id);
+        }
+        assertNull(refreshed, "Deleted document still cached");
+    }
+
+    public static class MyBean extends Document {
+
+        @Getter @Setter
+        private String foo;
+
+    }
+
+}
@@ -0,0 +1,152 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores.mongo;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Inject;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.usrz.libs.configurations.Configurations;
+import org.usrz.libs.configurations.JsonConfigurations;
+import org.usrz.libs.logging.Log;
+import org.usrz.libs.stores.Document;
+import org.usrz.libs.stores.DocumentCodec;
+import org.usrz.libs.stores.Store;
+import org.usrz.libs.stores.inject.MongoBuilder;
+import org.usrz.libs.testing.AbstractTest;
+import org.usrz.libs.testing.IO;
+import org.usrz.libs.utils.Strings;
+
+import com.google.inject.Guice;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBObject;
+
+public class StreamingTest extends AbstractTest {
+
+    private final String collection = Strings.random(16);
+    private final Log log = new Log();
+
+    @BeforeClass
+    public void prepare()
+    throws IOException {
+        final Configurations configurations = new JsonConfigurations(IO.resource("test.js"));
+
+        Guice.createInjector((binder) -> new MongoBuilder(binder)
+                .configure(configurations.strip("mongo"))
+                .store(Bean.class, collection, (builder) -> builder.withStreamingCodec())
+            ).injectMembers(this);
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void cleanup() {
+        if (db != null) {
+            try { db.getCollection(collection).drop(); } catch (Exception exception) { log.error(exception, "Exception dropping collection"); }
+        }
+    }
+
+    /* ====================================================================== */
+
+    @Inject private DB db;
+    @Inject private Store<Bean> store;
+
+    /* ====================================================================== */
+
+    @Test
+    public void testStreaming() {
+        final Bean bean = store.store(new Bean("first", Arrays.asList("a", "b"), new Date(1000)));
+        assertNotNull(bean.id());
+        assertNotNull(bean.lastModifiedAt());
+        assertTrue(bean.encodedSize() > 0);
+
+        /* What's in the database is exactly what the driver would write */
+        final DBObject stored = db.getCollection(collection).findOne(new BasicDBObject("_id", bean.id()));
+        assertEquals(stored.get("name"), "first");
+        assertEquals(stored.get("tags"), Arrays.asList("a", "b"));
+        assertEquals(stored.get("when"), new Date(1000));
+        assertEquals(stored.get("_last_modified_at"), bean.lastModifiedAt());
+
+        /* The shared collection must be left alone */
+        assertNull(db.getCollection(collection).getDBEncoderFactory());
+
+        /* Read back */
+        final Bean found = store.find(bean.id());
+        assertEquals(found.getName(), "first");
+        assertEquals(found.getTags(), Arrays.asList("a", "b"));
+        assertEquals(found.getWhen(), new Date(1000));
+        assertEquals(found.lastModifiedAt(), bean.lastModifiedAt());
+        assertEquals(found.encodedSize(), bean.encodedSize());
+
+        /* Documents written by the driver are read, too */
+        db.getCollection(collection).insert(new BasicDBObject("_id", "external")
+                                               .append("_last_modified_at", new Date(2000))
+                                               .append("name", "second"));
+        final Bean external = store.find("external");
+        assertEquals(external.getName(), "second");
+        assertEquals(external.lastModifiedAt(), new Date(2000));
+
+        /* Queries and bulk writes */
+        final List<Bean> beans = store.storeAll(Arrays.asList(found, external));
+        assertEquals(beans.size(), 2);
+        assertEquals(store.query().and("name").is("second").first().id(), "external");
+
+        final Map<String, Bean> all = store.findAll(Arrays.asList(bean.id(), "external"));
+        assertEquals(all.size(), 2);
+        assertEquals(all.get("external").lastModifiedAt(), beans.get(1).lastModifiedAt());
+
+        /* Encoding and decoding (for off-heap caches) */
+        @SuppressWarnings("unchecked")
+        final DocumentCodec<Bean> codec = (DocumentCodec<Bean>) store;
+        final Bean decoded = codec.decode(codec.encode(found));
+        assertEquals(decoded.id(), found.id());
+        assertEquals(decoded.getTags(), found.getTags());
+    }
+
+    /* ====================================================================== */
+
+    public static class Bean extends Document {
+
+        @Getter @Setter
+        private String name;
+
+        @Getter @Setter
+        private List<String> tags;
+
+        @Getter @Setter
+        private Date when;
+
+        protected Bean() {
+            /* Nothing to do */
+        }
+
+        private Bean(String name, List<String> tags, Date when) {
+            this.name = name;
+            this.tags = tags;
+            this.when = when;
+        }
+    }
+
+}
@@ -0,0 +1,121 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores.mongo;
+
+import static org.usrz.libs.stores.annotations.Indexes.Type.TEXT;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Inject;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.usrz.libs.configurations.Configurations;
+import org.usrz.libs.configurations.JsonConfigurations;
+import org.usrz.libs.logging.Log;
+import org.usrz.libs.stores.Cursor;
+import org.usrz.libs.stores.Document;
+import org.usrz.libs.stores.Store;
+import org.usrz.libs.stores.annotations.Indexed;
+import org.usrz.libs.stores.inject.MongoBuilder;
+import org.usrz.libs.testing.AbstractTest;
+import org.usrz.libs.testing.IO;
+import org.usrz.libs.utils.Strings;
+
+import com.google.inject.Guice;
+import com.mongodb.DB;
+
+public class TextSearchTest extends AbstractTest {
+
+    private final String collection = Strings.random(16);
+    private final Log log = new Log();
+
+    @BeforeClass
+    public void prepare()
+    throws IOException {
+        final Configurations configurations = new JsonConfigurations(IO.resource("test.js"));
+
+        Guice.createInjector((binder) -> new MongoBuilder(binder)
+                .configure(configurations.strip("mongo"))
+                .store(Article.class, collection)
+            ).injectMembers(this);
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void cleanup() {
+        if (db != null) {
+            try { db.getCollection(collection).drop(); } catch (Exception exception) { log.error(exception, "Exception dropping collection"); }
+        }
+    }
+
+    /* ====================================================================== */
+
+    @Inject private DB db;
+    @Inject private Store<Article> store;
+
+    /* ====================================================================== */
+
+    @Test
+    public void testTextSearch() {
+        final Article once = store.store(new Article("Brewing coffee at home"));
+        final Article twice = store.store(new Article("Coffee, coffee and more coffee"));
+        store.store(new Article("A cup of tea"));
+
+        /* Most relevant first */
+        final List<Article> articles = store.query().text("coffee").list();
+        assertEquals(articles.size(), 2);
+        assertEquals(articles.get(0).id(), twice.id());
+        assertEquals(articles.get(1).id(), once.id());
+
+        /* Same order, with scores */
+        final List<Map.Entry<Article, Double>> scored = new ArrayList<>();
+        try (Cursor<Map.Entry<Article, Double>> cursor = store.query().text("coffee").scored()) {
+            while (cursor.hasNext()) scored.add(cursor.next());
+        }
+        assertEquals(scored.size(), 2);
+        assertEquals(scored.get(0).getKey().id(), twice.id());
+        assertTrue(scored.get(0).getValue() > scored.get(1).getValue(), "Wrong scores " + scored);
+
+        /* Explicit ordering and IDs */
+        assertEquals(store.query().text("coffee").orderBy("title").ids().next(), once.id());
+        assertTrue(store.query().text("biscuits").list().isEmpty());
+    }
+
+    /* ====================================================================== */
+
+    public static class Article extends Document {
+
+        @Getter @Setter
+        @Indexed(type=TEXT)
+        private String title;
+
+        protected Article() {
+            /* Nothing to do */
+        }
+
+        private Article(String title) {
+            this.title = title;
+        }
+    }
+
+}
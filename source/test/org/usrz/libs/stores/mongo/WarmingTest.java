@@ -0,0 +1,140 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores.mongo;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import javax.inject.Inject;
+import javax.management.ObjectName;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.usrz.libs.configurations.Configurations;
+import org.usrz.libs.configurations.JsonConfigurations;
+import org.usrz.libs.logging.Log;
+import org.usrz.libs.stores.CacheWarmer;
+import org.usrz.libs.stores.CachingStore;
+import org.usrz.libs.stores.Document;
+import org.usrz.libs.stores.Store;
+import org.usrz.libs.stores.inject.MongoBuilder;
+import org.usrz.libs.testing.AbstractTest;
+import org.usrz.libs.testing.IO;
+import org.usrz.libs.utils.Strings;
+
+import com.google.common.cache.Cache;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.TypeLiteral;
+import com.mongodb.DB;
+
+public class WarmingTest extends AbstractTest {
+
+    private static final String collection = Strings.random(16);
+    private static final Log log = new Log();
+
+    @Inject private Store<MyBean> store;
+    @Inject private DB db;
+
+    private Configurations configurations;
+
+    @BeforeClass
+    public void initialize()
+    throws Exception {
+        configurations = new JsonConfigurations(IO.resource("test.js"));
+
+        Guice.createInjector((binder) ->
+                new MongoBuilder(binder)
+                        .configure(configurations.strip("mongo"))
+                        .store(MyBean.class, collection)
+            ).injectMembers(this);
+    }
+
+    @AfterClass(alwaysRun=true)
+    public void destroy()
+    throws Exception {
+        if (db != null) {
+            log.info("Dropping collection %s.%s", db.getName(), collection);
+            db.getCollection(collection).drop();
+        }
+    }
+
+    @Test
+    public void testWarmWithQuery()
+    throws Exception {
+        final String id1 = store.store(new MyBean()).id();
+        final String id2 = store.store(new MyBean()).id();
+
+        final Injector injector = Guice.createInjector((binder) ->
+                new MongoBuilder(binder)
+                        .configure(configurations.strip("mongo"))
+                        .store(MyBean.class, collection)
+                        .withCache("maximumSize=1000")
+                        .warmWith((store) -> store.query()));
+
+        /* Caches are warmed as soon as the store is created */
+        final Store<MyBean> cached = injector.getInstance(Key.get(new TypeLiteral<Store<MyBean>>() {}));
+        final Cache<String, MyBean> cache = injector.getInstance(Key.get(new TypeLiteral<Cache<String, MyBean>>() {}));
+        assertNotNull(cached, "Null store");
+        assertNotNull(cache.getIfPresent(id1), "Document 1 not warmed");
+        assertNotNull(cache.getIfPresent(id2), "Document 2 not warmed");
+
+        /* Warmed documents are cached, but never requested */
+        final CachingStore<MyBean> caching = (CachingStore<MyBean>) cached;
+        assertTrue(caching.getCachedIds().containsAll(Arrays.asList(id1, id2)), "Cached ids not listed");
+        assertTrue(caching.getHotIds(10).isEmpty(), "Warmed ids recorded as requested");
+
+        /* The warmer is gone with the store */
+        final ObjectName name = new ObjectName("org.usrz.libs.stores:type=CacheWarmer,collection=" + ObjectName.quote(collection));
+        assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(name), "Warmer not registered");
+        caching.close();
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name), "Warmer not unregistered");
+    }
+
+    @Test
+    public void testWarmWithSnapshot()
+    throws Exception {
+        final String id = store.store(new MyBean()).id();
+        final Path snapshot = Files.createTempFile("snapshot", ".txt");
+        CacheWarmer.snapshot(snapshot, Arrays.asList(id, Strings.random(32)));
+
+        final Injector injector = Guice.createInjector((binder) ->
+                new MongoBuilder(binder)
+                        .configure(configurations.strip("mongo"))
+                        .store(MyBean.class, collection)
+                        .withCache("maximumSize=1000")
+                        .warmWith(snapshot));
+
+        final Cache<String, MyBean> cache = injector.getInstance(Key.get(new TypeLiteral<Cache<String, MyBean>>() {}));
+        assertNotNull(cache.getIfPresent(id), "Document not warmed");
+        assertEquals(cache.size(), 1L);
+    }
+
+    public static class MyBean extends Document {
+
+        @Getter @Setter
+        private String foo;
+
+    }
+
+}
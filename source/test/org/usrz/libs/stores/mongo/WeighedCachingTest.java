@@ -0,0 +1,134 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores.mongo;
+
+import java.util.Date;
+
+import javax.inject.Inject;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.usrz.libs.configurations.Configurations;
+import org.usrz.libs.configurations.JsonConfigurations;
+import org.usrz.libs.logging.Log;
+import org.usrz.libs.stores.Document;
+import org.usrz.libs.stores.Store;
+import org.usrz.libs.stores.inject.MongoBuilder;
+import org.usrz.libs.testing.AbstractTest;
+import org.usrz.libs.testing.IO;
+import org.usrz.libs.utils.Strings;
+
+import com.google.common.cache.Cache;
+import com.google.inject.CreationException;
+import com.google.inject.Guice;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+
+public class WeighedCachingTest extends AbstractTest {
+
+    private static final String collection = Strings.random(16);
+    private static final Log log = new Log();
+
+    @Inject private Store<MyBean> store;
+    @Inject private Cache<String, MyBean> cache;
+    @Inject private DB db;
+
+    @BeforeClass
+    public void initialize()
+    throws Exception {
+        final Configurations configurations = new JsonConfigurations(IO.resource("test.js"));
+
+        Guice.createInjector((binder) ->
+                new MongoBuilder(binder)
+                        .configure(configurations.strip("mongo"))
+                        .store(MyBean.class, collection)
+                        .withCache("maximumWeight=16777216")
+                        .withWeighedCache()
+                        .withNegativeCache("maximumSize=1000,expireAfterWrite=1m")
+            ).injectMembers(this);
+    }
+
+    @AfterClass(alwaysRun=true)
+    public void destroy()
+    throws Exception {
+        if (db != null) {
+            log.info("Dropping collection %s.%s", db.getName(), collection);
+            db.getCollection(collection).drop();
+        }
+    }
+
+    @Test
+    public void testNegativeCache()
+    throws Exception {
+        final String id = Strings.random(32);
+        assertNull(store.find(id), "Found non-existing document");
+
+        /* Sneakily insert the document behind the store's back */
+        db.getCollection(collection).insert(new BasicDBObject("_id", id).append("_last_modified_at", new Date()));
+        assertNull(store.find(id), "Missing document not cached");
+
+        /* Storing the document must clear the negative entry */
+        store.store(new MyBean(id));
+        cache.invalidate(id);
+        assertNotNull(store.find(id), "Negative cache not cleared on store");
+    }
+
+    @Test
+    public void testEncodedSize()
+    throws Exception {
+        final MyBean bean = new MyBean();
+        bean.setFoo(Strings.random(1024));
+        final MyBean stored = store.store(bean);
+        assertTrue(stored.encodedSize() > 1024, "Encoded size not measured on store");
+
+        cache.invalidate(stored.id());
+        final MyBean found = store.find(stored.id());
+        assertEquals(found.encodedSize(), stored.encodedSize(), "Encoded size mismatch on find");
+    }
+
+    @Test
+    public void testWeighedCacheWithSize() {
+        try {
+            Guice.createInjector((binder) -> new MongoBuilder(binder)
+                    .store(MyBean.class, collection)
+                    .withCache("maximumSize=1000")
+                    .withWeighedCache());
+            fail("Weighed cache accepted with a maximum size");
+        } catch (CreationException exception) {
+            assertTrue(exception.getCause() instanceof IllegalArgumentException, "Wrong cause " + exception.getCause());
+        }
+    }
+
+    public static class MyBean extends Document {
+
+        @Getter @Setter
+        private String foo;
+
+        public MyBean() {
+            super();
+        }
+
+        public MyBean(String id) {
+            super(id);
+        }
+
+    }
+
+}
@@ -0,0 +1,211 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.stores.mongo;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.inject.Inject;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.usrz.libs.configurations.Configurations;
+import org.usrz.libs.configurations.JsonConfigurations;
+import org.usrz.libs.logging.Log;
+import org.usrz.libs.stores.AbstractStoreWrapper;
+import org.usrz.libs.stores.Document;
+import org.usrz.libs.stores.Store;
+import org.usrz.libs.stores.WriteBehindStore;
+import org.usrz.libs.stores.bson.BSONObjectMapper;
+import org.usrz.libs.stores.inject.MongoBuilder;
+import org.usrz.libs.testing.AbstractTest;
+import org.usrz.libs.testing.IO;
+import org.usrz.libs.utils.Strings;
+
+import com.google.inject.Guice;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+
+public class WriteBehindTest extends AbstractTest {
+
+    private static final String collection = Strings.random(16);
+    private static final Log log = new Log();
+
+    @Inject private Store<MyBean> store;
+    @Inject private DB db;
+    @Inject private BSONObjectMapper mapper;
+
+    @BeforeClass
+    public void initialize()
+    throws Exception {
+        final Configurations configurations = new JsonConfigurations(IO.resource("test.js"));
+
+        Guice.createInjector((binder) ->
+                new MongoBuilder(binder)
+                        .configure(configurations.strip("mongo"))
+                        .store(MyBean.class, collection)
+                        .withWriteBehind(Duration.ofHours(1), 1000)
+            ).injectMembers(this);
+    }
+
+    @AfterClass(alwaysRun=true)
+    public void destroy()
+    throws Exception {
+        if (db != null) {
+            log.info("Dropping collection %s.%s", db.getName(), collection);
+            db.getCollection(collection).drop();
+        }
+    }
+
+    @Test
+    public void testWriteBehind()
+    throws Exception {
+        assertTrue(store instanceof WriteBehindStore, "Not a write-behind store");
+        final WriteBehindStore<MyBean> writeBehind = (WriteBehindStore<MyBean>) store;
+
+        /* New documents are written immediately */
+        final MyBean bean = store.store(new MyBean());
+        final BasicDBObject query = new BasicDBObject("_id", bean.id());
+        assertNotNull(db.getCollection(collection).findOne(query), "New document not written");
+
+        /* Updates are coalesced, and visible before being flushed */
+        final Date created = bean.lastModifiedAt();
+        Date accepted = null;
+        for (int x = 0; x < 10; x ++) {
+            final Date before = new Date();
+            bean.setFoo("foo" + x);
+            accepted = store.store(bean).lastModifiedAt();
+            assertFalse(accepted.before(before), "Last modified date not updated");
+        }
+        assertSame(bean.lastModifiedAt(), created, "Stored instance modified");
+        assertEquals(writeBehind.getPending(), 1);
+        assertEquals(store.find(bean.id()).getFoo(), "foo9");
+        assertNull(db.getCollection(collection).findOne(query).get("foo"), "Update written too early");
+
+        writeBehind.flush();
+        assertEquals(writeBehind.getPending(), 0);
+        assertEquals(db.getCollection(collection).findOne(query).get("foo"), "foo9");
+        assertEquals(db.getCollection(collection).findOne(query).get("_last_modified_at"), accepted, "Wrong last modified date");
+    }
+
+    @Test
+    public void testDeleteDuringFlush()
+    throws Exception {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        /* A store blocking bulk writes until we say so */
+        final MongoStore<MyBean> mongo = new MongoStore<>(mapper, db.getCollection(collection), MyBean.class, MyBean.class);
+        final Store<MyBean> blocking = new AbstractStoreWrapper<MyBean>(mongo) {
+            @Override
+            public List<MyBean> storeAllAsModified(Collection<MyBean> objects) {
+                writing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException exception) {
+                    throw new IllegalStateException("Interrupted", exception);
+                }
+                return super.storeAllAsModified(objects);
+            }
+        };
+
+        final WriteBehindStore<MyBean> writeBehind = new WriteBehindStore<>(blocking, mongo, Duration.ofHours(1), 1000);
+        try {
+            final MyBean bean = writeBehind.store(new MyBean());
+            final BasicDBObject query = new BasicDBObject("_id", bean.id());
+            bean.setFoo("deleted");
+            writeBehind.store(bean);
+
+            /* Start flushing, and delete while the write is in flight */
+            final Thread flusher = new Thread(writeBehind::flush);
+            flusher.start();
+            assertTrue(writing.await(10, SECONDS), "Flush never started");
+
+            final Thread deleter = new Thread(() -> writeBehind.delete(bean.id()));
+            deleter.start();
+            deleter.join(200);
+            assertTrue(deleter.isAlive(), "Delete did not wait for flush");
+
+            release.countDown();
+            flusher.join();
+            deleter.join();
+
+            /* The document must stay deleted */
+            assertNull(db.getCollection(collection).findOne(query), "Deleted document written back");
+            assertNull(writeBehind.find(bean.id()));
+        } finally {
+            release.countDown();
+            writeBehind.close();
+        }
+    }
+
+    @Test
+    public void testRejectWhenFull()
+    throws Exception {
+        /* A store failing bulk writes until we say so */
+        final AtomicBoolean failing = new AtomicBoolean(true);
+        final MongoStore<MyBean> mongo = new MongoStore<>(mapper, db.getCollection(collection), MyBean.class, MyBean.class);
+        final Store<MyBean> failable = new AbstractStoreWrapper<MyBean>(mongo) {
+            @Override
+            public List<MyBean> storeAllAsModified(Collection<MyBean> objects) {
+                if (failing.get()) throw new IllegalStateException("Failing");
+                return super.storeAllAsModified(objects);
+            }
+        };
+
+        final WriteBehindStore<MyBean> writeBehind = new WriteBehindStore<>(failable, mongo, Duration.ofHours(1), 1);
+        try {
+            final MyBean first = writeBehind.store(writeBehind.store(new MyBean()));
+            final MyBean second = writeBehind.store(new MyBean());
+            assertEquals(writeBehind.getPending(), 1);
+
+            /* The second write must be rejected, not accepted and then lost */
+            try {
+                writeBehind.store(second);
+                fail("Write accepted");
+            } catch (IllegalStateException exception) {
+                /* Expected */
+            }
+            assertEquals(writeBehind.getPending(), 1);
+            assertSame(writeBehind.find(first.id()), first);
+
+            /* Rewriting a pending document needs no room */
+            assertNotNull(writeBehind.store(first));
+            assertEquals(writeBehind.getPending(), 1);
+        } finally {
+            failing.set(false);
+            writeBehind.close();
+        }
+    }
+
+    public static class MyBean extends Document {
+
+        @Getter @Setter
+        private String foo;
+
+    }
+
+}